@@ -0,0 +1,220 @@
+package clients;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import mua.Mua;
+import mua.Session;
+import mua.message.Message;
+import mua.message.Part;
+import mua.message.header.Address;
+import mua.message.header.ContentTransferEncoding;
+import mua.message.header.ContentType;
+import mua.message.header.Date;
+import mua.message.header.Header;
+import mua.message.header.Recipient;
+import mua.message.header.Sender;
+import mua.message.header.Subject;
+import utils.ASCIICharSequence;
+import utils.Faker;
+import utils.MemoryStore;
+import utils.Storage;
+import utils.Store;
+
+/** StartupBenchmark */
+public class StartupBenchmark {
+
+  private static final int ROUNDS = 5;
+
+  /** A measured way of reading every entry of a storage. */
+  private interface Reader {
+    /**
+     * Reads an entry.
+     *
+     * @param entry the entry.
+     * @return the number of bytes read.
+     * @throws IOException if some I/O error occurs.
+     */
+    long read(Storage.Box.Entry entry) throws IOException;
+  }
+
+  /**
+   * Compares the startup throughput of the read paths of the storage
+   *
+   * <p>Generates a store of fake messages (with {@link Faker}) in a temporary directory, both one
+   * file per message and in segment files, then reports the best of five rounds (with a warm page
+   * cache) of:
+   *
+   * <ul>
+   *   <li>the decoding of the headers of every message from a channel (the previous startup path)
+   *       and from the memory-mapped or pooled buffer of the entry,
+   *   <li>the reading of every message into a heap array through a channel and through the buffer
+   *       of the entry,
+   *   <li>the construction of a {@link Mua} from scratch (without the indexes of the boxes), from
+   *       both directories and from a {@link MemoryStore}, that measures the cost of decoding and
+   *       indexing the messages without any I/O.
+   * </ul>
+   *
+   * @param args the number of messages (by default 20000) and, optionally, the seed of the
+   *     generator.
+   * @throws IOException if the store can't be written.
+   */
+  public static void main(String[] args) throws IOException {
+    final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    Faker.setSeed(args.length > 1 ? Long.parseLong(args[1]) : 42);
+    final Path dir = Files.createTempDirectory("mua-benchmark");
+    try {
+      final Path files = Files.createDirectory(dir.resolve("files"));
+      final Path segments = Files.createDirectory(dir.resolve("segments"));
+      final long bytes = generate(files, segments, messages);
+      System.out.printf("%d messages, %.1f MiB%n", messages, bytes / 1048576.0);
+
+      final Storage storage = new Storage(files.toString());
+      final Storage segmented = new Storage(segments.toString());
+      report("headers, channel (files)", bytes, storage, StartupBenchmark::channelHeaders);
+      report("headers, buffer (files)", bytes, storage, StartupBenchmark::bufferHeaders);
+      report("headers, buffer (segments)", bytes, segmented, StartupBenchmark::bufferHeaders);
+      report("content, channel (files)", bytes, storage, StartupBenchmark::channelContent);
+      report("content, buffer (files)", bytes, storage, entry -> entry.content().length());
+      report("content, buffer (segments)", bytes, segmented, entry -> entry.content().length());
+      report("Mua (files)", bytes, files, messages);
+      report("Mua (segments)", bytes, segments, messages);
+      report("Mua (memory)", bytes, () -> MemoryStore.copyOf(storage), messages);
+    } finally {
+      try (Stream<Path> paths = Files.walk(dir)) {
+        for (final Path path : paths.sorted(Comparator.reverseOrder()).toList())
+          Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /**
+   * Writes the same fake messages in two directories, with both layouts.
+   *
+   * @return the total size of the messages.
+   */
+  private static long generate(Path files, Path segments, int messages) {
+    final Storage.Box[] boxes = {
+      new Storage(files.toString()).boxes().get(0),
+      new Storage(segments.toString(), Storage.Layout.SEGMENTS).boxes().get(0)
+    };
+    long bytes = 0;
+    final List<Storage.ContentWriter> writers = new ArrayList<>();
+    for (int i = 0; i < messages; i++) {
+      final ASCIICharSequence content = ASCIICharSequence.of(message().toString());
+      bytes += content.length();
+      writers.add(channel -> channel.write(content.asByteBuffer()));
+      if (writers.size() == 1000 || i == messages - 1) {
+        for (final Storage.Box box : boxes) box.entries(writers);
+        writers.clear();
+      }
+    }
+    return bytes;
+  }
+
+  /** Returns a fake message. */
+  private static Message message() {
+    final List<String> from = Faker.address();
+    final List<Address> to = new ArrayList<>();
+    for (final List<String> address : Faker.addresses(3))
+      to.add(new Address(address.get(0), address.get(1), address.get(2)));
+    final List<Header> headers = new ArrayList<>();
+    headers.add(new Sender(new Address(from.get(0), from.get(1), from.get(2))));
+    headers.add(new Recipient(to));
+    headers.add(new Subject(Faker.subject()));
+    headers.add(new Date(Faker.date()));
+    final String text = Faker.text();
+    if (ASCIICharSequence.isAscii(text))
+      headers.add(ContentType.parse(ASCIICharSequence.of("text/plain; charset=\"us-ascii\"")));
+    else {
+      headers.add(ContentType.parse(ASCIICharSequence.of("text/plain; charset=\"utf-8\"")));
+      headers.add(ContentTransferEncoding.parse(ASCIICharSequence.of("base64")));
+    }
+    return new Message(List.of(new Part(headers, text)));
+  }
+
+  /** Decodes the headers of an entry read from its channel. */
+  private static long channelHeaders(Storage.Box.Entry entry) throws IOException {
+    try (ReadableByteChannel channel = entry.channel()) {
+      Message.parseHeaders(channel, Message.fingerprint(entry.toString()), entry::content);
+    }
+    return entry.size();
+  }
+
+  /** Decodes the headers of an entry from its buffer. */
+  private static long bufferHeaders(Storage.Box.Entry entry) {
+    final ByteBuffer buffer = entry.buffer();
+    Message.parseHeaders(buffer, Message.fingerprint(entry.toString()), entry::content);
+    return buffer.remaining();
+  }
+
+  /** Reads an entry into a heap array through its channel. */
+  private static long channelContent(Storage.Box.Entry entry) throws IOException {
+    try (ReadableByteChannel channel = entry.channel()) {
+      final ByteBuffer content = ByteBuffer.allocate((int) entry.size());
+      while (content.hasRemaining()) if (channel.read(content) < 0) break;
+      return ASCIICharSequence.of(content.array()).length();
+    }
+  }
+
+  /** Prints the best time of reading all the entries of a storage with the given reader. */
+  private static void report(String name, long bytes, Storage storage, Reader reader)
+      throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      final long start = System.nanoTime();
+      long read = 0;
+      for (final Storage.Box box : storage.boxes())
+        for (final Storage.Box.Entry entry : box.entries()) read += reader.read(entry);
+      best = Math.min(best, System.nanoTime() - start);
+      if (read != bytes) throw new IllegalStateException("Read " + read + " bytes of " + bytes);
+    }
+    print(name, bytes, best);
+  }
+
+  /** Prints the best time of loading a {@link Mua} from a directory, without the box indexes. */
+  private static void report(String name, long bytes, Path dir, int messages) {
+    report(
+        name,
+        bytes,
+        () -> {
+          try (Stream<Path> paths = Files.list(dir)) {
+            for (final Path path : paths.toList())
+              if (path.getFileName().toString().startsWith(".mua-")) Files.delete(path);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return new Storage(dir.toString());
+        },
+        messages);
+  }
+
+  /** Prints the best time of loading a {@link Mua} from the stores returned by a supplier. */
+  private static void report(String name, long bytes, Supplier<Store> stores, int messages) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      final Store store = stores.get();
+      final long start = System.nanoTime();
+      final Mua mua = new Mua(store, Runtime.getRuntime().availableProcessors());
+      best = Math.min(best, System.nanoTime() - start);
+      final Session session = mua.session();
+      session.selectMailbox(0);
+      if (session.mailBoxMessages() != messages)
+        throw new IllegalStateException("Loaded " + session.mailBoxMessages() + " messages");
+    }
+    print(name, bytes, best);
+  }
+
+  private static void print(String name, long bytes, long nanos) {
+    System.out.printf(
+        "%-28s %8.1f ms %8.1f MiB/s%n", name, nanos / 1e6, bytes / 1048576.0 / (nanos / 1e9));
+  }
+}
@@ -27,25 +27,38 @@ public class App {
      * <p>
      * Develop here the REPL, see the README.md for more details.
      *
-     * @param args the first argument is the mailbox base directory.
+     * @param args the first argument is the mailbox base directory, the optional second argument is
+     *     the number of threads used to load the mailboxes.
      */
     public static void main(String[] args) {
-        Mua mua = new Mua(args[0]);
+        Mua mua = (args.length > 1) ? new Mua(args[0], Integer.parseInt(args[1])) : new Mua(args[0]);
+        Session sessione = mua.session();
         String nomeBox = "*";
         try (UIInteract ui = UIInteract.getInstance()) {
             for (;;) {
                 String[] input = ui.command("[%s] > ", nomeBox);
                 if (Objects.isNull(input))
                     break;
-                int n = (input.length > 1) ? Integer.parseInt(input[1]) - 1 : 0;
+                String[] argomenti = (input.length > 1) ? input[1].trim().split("\\s+") : new String[0];
+                // un argomento non numerico (ad esempio i termini di SEARCH) non è un indice valido
+                int n = (argomenti.length == 0) ? 0
+                    : argomenti[0].matches("\\d{1,9}") ? Integer.parseInt(argomenti[0]) - 1 : Integer.MAX_VALUE;
                 switch (input[0]) {
                     case "LSM": 
                         ui.output(mua.listMailboxes());
                         break;
                     case "MBOX":
-                        if (n < mua.mailBoxes()) nomeBox = mua.selectMailbox(n);
+                        if (n < mua.mailBoxes()) nomeBox = sessione.selectMailbox(n);
                         else ui.error("Inserire un indice valido: [1-" + mua.mailBoxes() + "]");
                         break;
+                    case "FIND":
+                        try {
+                            if (mua.findMessages((input.length > 1) ? input[1] : "", Mua.DEFAULT_FIND_LIMIT, ui::output) == 0)
+                                ui.error("Nessun messaggio trovato");
+                        } catch (IllegalArgumentException e) {
+                            ui.error(e.getMessage());
+                        }
+                        break;
                     case "EXIT": 
                         return;
                     default:
@@ -55,15 +68,71 @@ public class App {
                         }
                         switch (input[0]) {
                             case "LSE": 
-                                ui.output(mua.listMessages());
+                                ui.output(sessione.listMessages());
                                 break;
                             case "READ": 
-                                if (n < mua.mailBoxMessages()) ui.output(mua.readMessage(n));
-                                else ui.error("Inserire un indice valido: [1-" + mua.mailBoxMessages() + "]");
+                                if (n < sessione.mailBoxMessages()) {
+                                    try {
+                                        ui.output(sessione.readMessage(n));
+                                    } catch (IllegalStateException e) {
+                                        ui.error(e.getMessage());
+                                    }
+                                } else {
+                                    ui.error("Inserire un indice valido: [1-" + sessione.mailBoxMessages() + "]");
+                                }
                                 break;
                             case "DELETE": 
-                                if (n < mua.mailBoxMessages()) mua.deleteMessage(n);
-                                else ui.error("Inserire un indice valido: [1-" + mua.mailBoxMessages() + "]");
+                                if (n < sessione.mailBoxMessages()) sessione.deleteMessage(n);
+                                else ui.error("Inserire un indice valido: [1-" + sessione.mailBoxMessages() + "]");
+                                break;
+                            case "SEARCH":
+                                try {
+                                    String risultati = (input.length > 1) ? sessione.searchMessages(input[1]) : "";
+                                    if (risultati.isEmpty()) ui.error("Nessun messaggio trovato");
+                                    else ui.output(risultati);
+                                } catch (IllegalArgumentException e) {
+                                    ui.error(e.getMessage());
+                                }
+                                break;
+                            case "FILTER":
+                                try {
+                                    nomeBox = sessione.filterMessages((input.length > 1) ? input[1] : "");
+                                } catch (IllegalArgumentException e) {
+                                    ui.error(e.getMessage());
+                                }
+                                break;
+                            case "COPY":
+                            case "MOVE":
+                                int m = (argomenti.length > 1 && argomenti[1].matches("\\d{1,9}"))
+                                    ? Integer.parseInt(argomenti[1]) - 1 : -1;
+                                if (n >= sessione.mailBoxMessages())
+                                    ui.error("Inserire un indice valido: [1-" + sessione.mailBoxMessages() + "]");
+                                else if (m < 0 || m >= mua.mailBoxes())
+                                    ui.error("Inserire una mailbox valida: [1-" + mua.mailBoxes() + "]");
+                                else if (input[0].equals("COPY")) sessione.copyMessage(n, m);
+                                else sessione.moveMessage(n, m);
+                                break;
+                            case "IMPORT":
+                                if (input.length < 2 || input[1].isBlank()) {
+                                    ui.error("Inserire la directory da importare");
+                                    break;
+                                }
+                                try {
+                                    int[] conteggi = new int[Importazione.Esito.values().length];
+                                    for (Importazione importazione : sessione.importMessages(input[1].trim())) {
+                                        conteggi[importazione.esito().ordinal()]++;
+                                        if (importazione.esito() == Importazione.Esito.IMPORTATO)
+                                            ui.output(importazione.toString());
+                                        else
+                                            ui.error(importazione.toString());
+                                    }
+                                    ui.output(String.format("Importati: %d, saltati: %d, rifiutati: %d",
+                                        conteggi[Importazione.Esito.IMPORTATO.ordinal()],
+                                        conteggi[Importazione.Esito.SALTATO.ordinal()],
+                                        conteggi[Importazione.Esito.RIFIUTATO.ordinal()]));
+                                } catch (IllegalArgumentException e) {
+                                    ui.error(e.getMessage());
+                                }
                                 break;
                             case "COMPOSE":
                                 StringJoiner sj = new StringJoiner("\n");
@@ -84,7 +153,7 @@ public class App {
                                 while (!line.equals("."));
 
                                 try {
-                                    mua.addMessage(compose(sj.toString()));
+                                    sessione.addMessage(compose(sj.toString()));
                                 } catch (Exception e) {
                                     throw e;
                                     //ui.error(e.getMessage());
@@ -96,6 +165,8 @@ public class App {
                 }
             }
         } catch (IOException ignored) {
+        } finally {
+            mua.flush();
         }
     }
 
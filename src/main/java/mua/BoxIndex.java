@@ -0,0 +1,230 @@
+package mua;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import mua.message.Message;
+import mua.message.header.Address;
+import mua.message.header.Date;
+import mua.message.header.Recipient;
+import mua.message.header.Sender;
+import mua.message.header.Subject;
+import utils.Store.Box;
+
+/**
+ * BoxIndex classe concreta mutabile che rappresenta l'indice delle intestazioni dei messaggi di una box
+ * <p>
+ * L'indice associa al nome di ogni entry la sua dimensione, la sua data di modifica e le intestazioni
+ * principali (già decodificate) del messaggio che contiene; viene salvato in formato binario
+ * in un file sidecar della box, così che ad un successivo avvio le entry non modificate
+ * non debbano essere decodificate nuovamente.
+ * <p>
+ * L'indice non è thread-safe: {@link Mua} lo modifica con il lock di scrittura della mailbox
+ * e lo salva con quello di lettura.
+ */
+class BoxIndex {
+    /** Nome del file sidecar che contiene l'indice */
+    private static final String SIDECAR = "mua-index";
+    /** Intestazione del formato binario ("MUAI") */
+    private static final int MAGIC = 0x4D554149;
+    /** Versione del formato binario (la 1 usava writeUTF, limitato a stringhe di 64 KiB) */
+    private static final int VERSION = 2;
+
+    /**
+     * Voce dell'indice: metadati di una entry e intestazioni principali del suo messaggio
+     * @param size dimensione della entry in byte
+     * @param lastModified data di modifica della entry in millisecondi
+     * @param sender mittente del messaggio
+     * @param recipient destinatari del messaggio
+     * @param subject oggetto del messaggio
+     * @param date data del messaggio
+     */
+    record Voce(long size, long lastModified, Sender sender, Recipient recipient, Subject subject, Date date) {}
+
+    /** Voci dell'indice per nome della entry */
+    private final Map<String, Voce> voci = new HashMap<>();
+
+    /*
+     * RI:  voci != null, non contiene chiavi o valori null
+     *
+     * AF:  AF(voci) = { (nome, voce) in voci | voce descrive la entry di nome nome }
+     */
+
+    /**
+     * Legge l'indice salvato nella {@code box}
+     * <p>
+     * Se l'indice non esiste o è corrotto viene restituito un indice vuoto
+     * @param box la box di cui leggere l'indice
+     * @return l'indice della box
+     * @throws NullPointerException se {@code box} è {@code null}
+     */
+    static BoxIndex read(Box box) {
+        final BoxIndex index = new BoxIndex();
+        final byte[] content = Objects.requireNonNull(box).sidecar(SIDECAR);
+        if (Objects.isNull(content))
+            return index;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return new BoxIndex();
+            for (int i = in.readInt(); i > 0; i--) {
+                String nome = readString(in);
+                long size = in.readLong(), lastModified = in.readLong();
+                ZonedDateTime data = ZonedDateTime.ofInstant(
+                    Instant.ofEpochSecond(in.readLong(), in.readInt()), ZoneId.of(readString(in)));
+                Sender sender = new Sender(readAddress(in));
+                List<Address> destinatari = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--)
+                    destinatari.add(readAddress(in));
+                Subject subject = new Subject(readString(in));
+                index.voci.put(nome, new Voce(size, lastModified, sender, new Recipient(destinatari), subject, new Date(data)));
+            }
+            if (in.available() != 0)
+                return new BoxIndex();
+        } catch (IOException | RuntimeException corrupt) {
+            return new BoxIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Legge dallo stream una stringa scritta da {@link #writeString}
+     * @param in lo stream da cui leggere
+     * @return la stringa letta
+     * @throws IOException se la lettura fallisce o la lunghezza non è valida
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("Lunghezza non valida: " + length);
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Scrive sullo stream la lunghezza della codifica UTF-8 di una stringa, seguita dai suoi byte
+     * <p>
+     * A differenza di {@link DataOutputStream#writeUTF} non ha limiti di lunghezza, così che un
+     * messaggio con intestazioni molto lunghe non impedisca di salvare l'indice dell'intera box
+     * @param out lo stream su cui scrivere
+     * @param s la stringa da scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Legge un indirizzo dallo stream
+     * @param in lo stream da cui leggere
+     * @return l'indirizzo letto
+     * @throws IOException se la lettura fallisce
+     */
+    private static Address readAddress(DataInputStream in) throws IOException {
+        return new Address(readString(in), readString(in), readString(in));
+    }
+
+    /**
+     * Scrive un indirizzo sullo stream
+     * @param out lo stream su cui scrivere
+     * @param address l'indirizzo da scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    private static void writeAddress(DataOutputStream out, Address address) throws IOException {
+        writeString(out, address.nome());
+        writeString(out, address.locale());
+        writeString(out, address.dominio());
+    }
+
+    /**
+     * Restituisce la voce della entry di nome {@code nome} se i suoi metadati non sono cambiati
+     * @param nome nome della entry
+     * @param size dimensione attuale della entry
+     * @param lastModified data di modifica attuale della entry
+     * @return la voce della entry, o {@code null} se assente o non più valida
+     */
+    Voce get(String nome, long size, long lastModified) {
+        Voce voce = voci.get(nome);
+        if (Objects.isNull(voce) || size < 0 || voce.size() != size || voce.lastModified() != lastModified)
+            return null;
+        return voce;
+    }
+
+    /**
+     * Aggiunge (o sostituisce) la voce della entry di nome {@code nome}
+     * @param nome nome della entry
+     * @param size dimensione della entry
+     * @param lastModified data di modifica della entry
+     * @param message messaggio contenuto nella entry
+     * @throws NullPointerException se {@code nome} o {@code message} sono {@code null}
+     */
+    void put(String nome, long size, long lastModified, Message message) {
+        Objects.requireNonNull(message);
+        voci.put(Objects.requireNonNull(nome),
+            new Voce(size, lastModified, message.sender(), message.recipient(), message.subject(), message.date()));
+    }
+
+    /**
+     * Rimuove la voce della entry di nome {@code nome}
+     * @param nome nome della entry
+     * @return {@code true} se l'indice conteneva la voce
+     */
+    boolean remove(String nome) {
+        return Objects.nonNull(voci.remove(nome));
+    }
+
+    /**
+     * Restituisce il numero di voci dell'indice
+     * @return il numero di voci dell'indice
+     */
+    int size() {
+        return voci.size();
+    }
+
+    /**
+     * Salva l'indice nella {@code box}
+     * @param box la box in cui salvare l'indice
+     * @return {@code true} se l'indice è stato salvato
+     * @throws NullPointerException se {@code box} è {@code null}
+     */
+    boolean write(Box box) {
+        Objects.requireNonNull(box);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(voci.size());
+            for (Map.Entry<String, Voce> entry : voci.entrySet()) {
+                Voce voce = entry.getValue();
+                writeString(out, entry.getKey());
+                out.writeLong(voce.size());
+                out.writeLong(voce.lastModified());
+                ZonedDateTime data = voce.date().value();
+                out.writeLong(data.toEpochSecond());
+                out.writeInt(data.getNano());
+                writeString(out, data.getZone().getId());
+                writeAddress(out, voce.sender().value());
+                List<Address> destinatari = voce.recipient().value();
+                out.writeInt(destinatari.size());
+                for (Address address : destinatari)
+                    writeAddress(out, address);
+                writeString(out, voce.subject().value().toString());
+            }
+        } catch (IOException exception) {
+            return false;
+        }
+        return box.sidecar(SIDECAR, bytes.toByteArray());
+    }
+}
@@ -0,0 +1,160 @@
+package mua;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import mua.message.Message;
+
+/**
+ * GlobalSearch classe di utilità che esegue una {@link Query} su più mailbox in parallelo
+ * <p>
+ * Ogni mailbox è esaminata da un task del {@link ForkJoinPool#commonPool() pool comune}, che scorre
+ * i messaggi in ordine decrescente e pubblica man mano (al più) i primi {@code k} che soddisfano la
+ * query; i risultati delle mailbox vengono fusi con un heap, in ordine decrescente, e passati al
+ * consumatore non appena tutte le mailbox hanno pubblicato il loro prossimo risultato (o terminato),
+ * senza attendere che tutte le mailbox siano state esaminate per intero.
+ */
+final class GlobalSearch {
+
+    /**
+     * Messaggio trovato da una ricerca globale
+     * @param mailBox la mailbox che contiene il messaggio
+     * @param message il messaggio
+     */
+    record Risultato(MailBox mailBox, Message message) {}
+
+    /**
+     * Esito pubblicato da un task: un messaggio, l'errore che ha interrotto il task o la fine dei risultati
+     * @param message il messaggio trovato, null se il task è terminato
+     * @param errore l'errore che ha interrotto il task, null altrimenti
+     */
+    private record Esito(Message message, RuntimeException errore) {}
+
+    /** Esito che segnala la fine dei risultati di una mailbox */
+    private static final Esito FINE = new Esito(null, null);
+
+    /**
+     * Prossimo risultato di una mailbox, candidato ad essere passato al consumatore
+     * @param message il messaggio
+     * @param box l'indice della mailbox nella lista delle mailbox
+     */
+    private record Testa(Message message, int box) {}
+
+    /** Impedisce la costruzione di istanze */
+    private GlobalSearch() {}
+
+    /**
+     * Cerca in parallelo nelle {@code mailBoxes} i (al più) {@code k} messaggi più recenti che
+     * soddisfano la {@code query}, passandoli al {@code consumatore} in ordine decrescente man mano
+     * che vengono trovati.
+     * <p>
+     * Le mailbox possono essere modificate durante la ricerca: i messaggi aggiunti dopo il suo inizio
+     * non vengono considerati e quelli eliminati prima di essere pubblicati da un task vengono
+     * saltati. Il consumatore è invocato sul thread chiamante. A parità di messaggio i risultati
+     * seguono l'ordine delle mailbox.
+     * @param query la query
+     * @param mailBoxes le mailbox in cui cercare
+     * @param indici gli indici full-text delle mailbox (un indice assente non viene usato)
+     * @param k il numero massimo di messaggi da restituire
+     * @param consumatore il consumatore dei risultati
+     * @return il numero di messaggi passati al consumatore
+     * @throws NullPointerException se uno degli argomenti è {@code null}
+     * @throws IllegalArgumentException se {@code k < 1}
+     * @throws IllegalStateException se la ricerca viene interrotta
+     */
+    static int search(Query query, List<MailBox> mailBoxes, Map<MailBox, SearchIndex> indici, int k,
+            Consumer<Risultato> consumatore) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(indici);
+        Objects.requireNonNull(consumatore);
+        if (k < 1)
+            throw new IllegalArgumentException("Il numero di risultati deve essere positivo");
+        final AtomicBoolean fermo = new AtomicBoolean();
+        final List<BlockingQueue<Esito>> code = new ArrayList<>();
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            for (MailBox mailBox : mailBoxes) {
+                final BlockingQueue<Esito> coda = new LinkedBlockingQueue<>();
+                final SearchIndex indice = indici.get(mailBox);
+                code.add(coda);
+                tasks.add(ForkJoinPool.commonPool().submit(() -> scan(query, mailBox, indice, k, fermo, coda)));
+            }
+            final PriorityQueue<Testa> heap = new PriorityQueue<>(
+                    Comparator.comparing(Testa::message, Comparator.reverseOrder()).thenComparingInt(Testa::box));
+            for (int i = 0; i < code.size(); i++)
+                advance(code, i, heap);
+            int restituiti = 0;
+            while (restituiti < k && !heap.isEmpty()) {
+                final Testa testa = heap.poll();
+                consumatore.accept(new Risultato(mailBoxes.get(testa.box()), testa.message()));
+                restituiti++;
+                advance(code, testa.box(), heap);
+            }
+            return restituiti;
+        } finally {
+            fermo.set(true);
+            tasks.forEach(task -> task.cancel(false));
+        }
+    }
+
+    /**
+     * Pubblica nella {@code coda} i primi {@code k} messaggi della {@code mailBox} che soddisfano la query
+     * <p>
+     * Le condizioni sono verificate senza il lock della mailbox: un messaggio eliminato nel frattempo
+     * (di cui il corpo potrebbe non essere più leggibile) viene saltato.
+     * @param query la query
+     * @param mailBox la mailbox in cui cercare
+     * @param indice l'indice full-text della mailbox, null se non disponibile
+     * @param k il numero massimo di messaggi da pubblicare
+     * @param fermo se la ricerca è terminata e il task può smettere di pubblicare
+     * @param coda la coda su cui pubblicare gli esiti
+     */
+    private static void scan(Query query, MailBox mailBox, SearchIndex indice, int k, AtomicBoolean fermo,
+            BlockingQueue<Esito> coda) {
+        try {
+            final Iterator<Message> trovati = query.iterator(mailBox, indice);
+            for (int n = 0; n < k && !fermo.get() && trovati.hasNext();) {
+                final Message message = trovati.next();
+                if (mailBox.indexOf(message) < 0)
+                    continue;
+                coda.add(new Esito(message, null));
+                n++;
+            }
+            coda.add(FINE);
+        } catch (RuntimeException errore) {
+            coda.add(new Esito(null, errore));
+        }
+    }
+
+    /**
+     * Attende il prossimo esito della mailbox di indice {@code box} e, se è un messaggio, lo inserisce nell'{@code heap}
+     * @param code le code degli esiti delle mailbox
+     * @param box l'indice della mailbox
+     * @param heap l'heap dei prossimi risultati delle mailbox
+     * @throws IllegalStateException se l'attesa viene interrotta
+     */
+    private static void advance(List<BlockingQueue<Esito>> code, int box, PriorityQueue<Testa> heap) {
+        final Esito esito;
+        try {
+            esito = code.get(box).take();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Ricerca interrotta");
+        }
+        if (Objects.nonNull(esito.errore()))
+            throw esito.errore();
+        if (Objects.nonNull(esito.message()))
+            heap.add(new Testa(esito.message(), box));
+    }
+}
@@ -0,0 +1,910 @@
+package mua;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import mua.message.Message;
+import mua.message.header.Address;
+import utils.ASCIICharSequence;
+import utils.DateEncoding;
+
+/**
+ * ImapConnection classe concreta mutabile che serve una connessione di un {@link ImapServer}
+ * <p>
+ * Sono supportati i comandi CAPABILITY, NOOP, LOGOUT, LOGIN, LIST, LSUB, SELECT, EXAMINE, FETCH,
+ * STORE, EXPUNGE, CLOSE e SEARCH di IMAP4rev1 (senza le varianti UID):
+ * <ul>
+ *     <li>LOGIN accetta solo le credenziali configurate nel server; se il server non ne ha, LOGIN
+ *         è disabilitato (e annunciato con la capacità {@code LOGINDISABLED});</li>
+ *     <li>le mailbox sono quelle del Mua, con {@code :} come separatore di gerarchia;</li>
+ *     <li>i numeri di sequenza si riferiscono ai messaggi presenti alla selezione della mailbox,
+ *         dal meno recente al più recente;</li>
+ *     <li>FETCH supporta FLAGS, INTERNALDATE, RFC822.SIZE, ENVELOPE, RFC822, RFC822.HEADER,
+ *         RFC822.TEXT, BODY[], BODY[HEADER], BODY[TEXT] (anche PEEK) e le macro ALL, FAST e FULL;
+ *         i corpi sono i byte memorizzati su disco, inviati senza codificare nuovamente il messaggio
+ *         ma con le righe terminate da {@code \r\n} (come RFC822.SIZE, che ne conta i byte);</li>
+ *     <li>i flag (ad esempio {@code \Seen} e {@code \Deleted}) sono mantenuti solo per la durata
+ *         della selezione; EXPUNGE e CLOSE eliminano dal Mua i messaggi con flag {@code \Deleted};</li>
+ *     <li>SEARCH supporta ALL, SEEN, UNSEEN, DELETED, UNDELETED, FROM, TO, SUBJECT, BODY, TEXT, SINCE,
+ *         BEFORE e ON, tradotti in una {@code Query} del Mua (BODY e TEXT cercano le parole
+ *         nell'oggetto e nei corpi).</li>
+ * </ul>
+ * Una connessione è servita da un solo thread; se il client non invia nulla per il tempo massimo
+ * di attesa del server, la connessione viene chiusa dopo aver inviato {@code * BYE}.
+ */
+final class ImapConnection implements Runnable {
+    /** Lunghezza massima di una riga di comando */
+    private static final int MAX_RIGA = 64 * 1024;
+    /** Lunghezza massima di un letterale */
+    private static final int MAX_LETTERALE = 1024 * 1024;
+    /** Flag che indica un messaggio da eliminare */
+    private static final String DELETED = "\\Deleted";
+    /** Flag che indica un messaggio letto */
+    private static final String SEEN = "\\Seen";
+    /** Formato delle date dei criteri di ricerca */
+    private static final DateTimeFormatter DATA = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive().appendPattern("d-MMM-yyyy").toFormatter(Locale.ENGLISH);
+    /** Formato di INTERNALDATE */
+    private static final DateTimeFormatter INTERNALDATE =
+            DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.ENGLISH);
+    /** Elementi di FETCH supportati */
+    private static final Set<String> ELEMENTI = Set.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE",
+            "RFC822", "RFC822.HEADER", "RFC822.TEXT", "BODY[]", "BODY[HEADER]", "BODY[TEXT]",
+            "BODY.PEEK[]", "BODY.PEEK[HEADER]", "BODY.PEEK[TEXT]");
+
+    /** Errore di sintassi di un comando, a cui si risponde con BAD */
+    private static final class Errore extends RuntimeException {
+        /** Versione della serializzazione */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Costruisce un errore di sintassi
+         * @param message la descrizione dell'errore, inviata al client
+         */
+        private Errore(String message) {
+            super(message);
+        }
+    }
+
+    /** Mua servito */
+    private final Mua mua;
+    /** Canale della connessione */
+    private final SocketChannel socket;
+    /** Utente accettato da LOGIN, null se LOGIN è disabilitato */
+    private final String utente;
+    /** Password dell'utente, null se LOGIN è disabilitato */
+    private final String password;
+    /** Flusso da cui vengono letti i comandi */
+    private final InputStream in;
+    /** Flusso su cui vengono scritte le risposte */
+    private final OutputStream out;
+    /** Se il client si è autenticato */
+    private boolean autenticato;
+    /** Mailbox selezionata, null se nessuna */
+    private MailBox selected;
+    /** Se la mailbox è stata selezionata in sola lettura */
+    private boolean readOnly;
+    /** Messaggi della mailbox selezionata, per numero di sequenza */
+    private final List<Message> messaggi = new ArrayList<>();
+    /** Flag dei messaggi della mailbox selezionata */
+    private final List<Set<String>> flags = new ArrayList<>();
+    /** Riga del comando in corso di lettura */
+    private String riga;
+    /** Posizione nella riga del comando */
+    private int pos;
+
+    /*
+     * RI:  mua, socket, in, out, messaggi, flags != null
+     *      utente == null se e solo se password == null
+     *      autenticato -> utente != null
+     *      messaggi.size() == flags.size()
+     *      selected == null -> messaggi.isEmpty()
+     *      selected != null -> autenticato e selected è una mailbox di mua
+     *
+     * AF:  AF(autenticato, selected, messaggi, flags) = connessione IMAP nello stato
+     *          non autenticato, autenticato o selezionato (selected), in cui il messaggio di numero
+     *          di sequenza i è messaggi.get(i - 1) con flag flags.get(i - 1)
+     */
+
+    /**
+     * Costruisce la connessione che serve il {@code socket} sul {@code mua}
+     * <p>
+     * I comandi sono letti dal flusso del socket, così che la lettura rispetti il tempo massimo di
+     * attesa impostato sul socket dal server.
+     * @param mua il Mua servito
+     * @param socket il canale della connessione, in modalità bloccante
+     * @param utente l'utente accettato da LOGIN, null per disabilitare LOGIN
+     * @param password la password dell'utente, null per disabilitare LOGIN
+     * @throws IOException se non è possibile ottenere il flusso della connessione
+     */
+    ImapConnection(Mua mua, SocketChannel socket, String utente, String password) throws IOException {
+        this.mua = Objects.requireNonNull(mua);
+        this.socket = Objects.requireNonNull(socket);
+        if (Objects.isNull(utente) != Objects.isNull(password))
+            throw new IllegalArgumentException("Utente e password vanno configurati insieme");
+        this.utente = utente;
+        this.password = password;
+        this.in = new BufferedInputStream(socket.socket().getInputStream());
+        this.out = new BufferedOutputStream(Channels.newOutputStream(socket));
+    }
+
+    /**
+     * Serve i comandi del client finché non si disconnette o invia LOGOUT, poi chiude la connessione
+     */
+    @Override
+    public void run() {
+        try {
+            send("* OK [CAPABILITY " + capabilities() + "] Mua IMAP4rev1 server ready");
+            out.flush();
+            for (boolean continua = true; continua;) {
+                riga = readLine();
+                if (Objects.isNull(riga))
+                    break;
+                pos = 0;
+                String tag = "*";
+                try {
+                    tag = atom();
+                    space();
+                    continua = execute(tag, atom().toUpperCase(Locale.ROOT));
+                } catch (Errore errore) {
+                    send(tag + " BAD " + errore.getMessage());
+                } catch (RuntimeException errore) {
+                    send(tag + " NO " + errore.getMessage());
+                }
+                out.flush();
+            }
+        } catch (SocketTimeoutException inattiva) {
+            try {
+                send("* BYE Autologout; idle for too long");
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        } catch (IOException chiusa) {
+            // la connessione è stata chiusa dal client o dal server
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Esegue un comando, di cui sono già stati letti il tag e il nome
+     * @param tag il tag del comando
+     * @param comando il nome del comando, in maiuscolo
+     * @return {@code false} se la connessione va chiusa
+     * @throws IOException se la connessione fallisce
+     */
+    private boolean execute(String tag, String comando) throws IOException {
+        switch (comando) {
+            case "CAPABILITY" -> {
+                end();
+                send("* CAPABILITY " + capabilities());
+            }
+            case "NOOP" -> end();
+            case "LOGOUT" -> {
+                end();
+                send("* BYE Mua IMAP4rev1 server logging out");
+                send(tag + " OK LOGOUT completed");
+                return false;
+            }
+            case "LOGIN" -> {
+                space();
+                String nome = astring();
+                space();
+                String segreto = astring();
+                end();
+                login(nome, segreto);
+            }
+            default -> {
+                if (!autenticato)
+                    throw new IllegalStateException("Not authenticated");
+                executeAuthenticated(comando);
+            }
+        }
+        send(tag + " OK " + comando + " completed");
+        return true;
+    }
+
+    /**
+     * Restituisce le capacità del server
+     * @return le capacità, separate da spazi
+     */
+    private String capabilities() {
+        return Objects.isNull(utente) ? "IMAP4rev1 LOGINDISABLED" : "IMAP4rev1";
+    }
+
+    /**
+     * Autentica il client se le credenziali sono quelle configurate
+     * @param nome l'utente
+     * @param segreto la password
+     * @throws IllegalStateException se LOGIN è disabilitato o le credenziali non sono valide
+     */
+    private void login(String nome, String segreto) {
+        if (Objects.isNull(utente))
+            throw new IllegalStateException("LOGIN disabled");
+        // il confronto non dipende dalla posizione del primo carattere diverso
+        boolean valide = MessageDigest.isEqual(nome.getBytes(StandardCharsets.UTF_8),
+                utente.getBytes(StandardCharsets.UTF_8))
+            & MessageDigest.isEqual(segreto.getBytes(StandardCharsets.UTF_8),
+                password.getBytes(StandardCharsets.UTF_8));
+        if (!valide)
+            throw new IllegalStateException("[AUTHENTICATIONFAILED] Invalid credentials");
+        autenticato = true;
+    }
+
+    /**
+     * Esegue un comando che richiede l'autenticazione
+     * @param comando il nome del comando, in maiuscolo
+     * @throws IOException se la connessione fallisce
+     */
+    private void executeAuthenticated(String comando) throws IOException {
+        switch (comando) {
+            case "LIST", "LSUB" -> {
+                space();
+                String riferimento = astring();
+                space();
+                String schema = astring();
+                end();
+                list(comando, riferimento + schema);
+            }
+            case "SELECT", "EXAMINE" -> {
+                space();
+                String nome = astring();
+                end();
+                select(nome, comando.equals("EXAMINE"));
+            }
+            default -> {
+                if (Objects.isNull(selected))
+                    throw new IllegalStateException("No mailbox selected");
+                executeSelected(comando);
+            }
+        }
+    }
+
+    /**
+     * Esegue un comando che richiede una mailbox selezionata
+     * @param comando il nome del comando, in maiuscolo
+     * @throws IOException se la connessione fallisce
+     */
+    private void executeSelected(String comando) throws IOException {
+        switch (comando) {
+            case "FETCH" -> {
+                space();
+                List<Integer> sequenza = sequence(atom());
+                space();
+                List<String> elementi = fetchItems();
+                end();
+                for (int n : sequenza)
+                    fetch(n, elementi);
+            }
+            case "STORE" -> {
+                space();
+                List<Integer> sequenza = sequence(atom());
+                space();
+                String modo = atom().toUpperCase(Locale.ROOT);
+                space();
+                List<String> valori = peek() == '(' ? list() : List.of(atom());
+                end();
+                store(sequenza, modo, valori);
+            }
+            case "EXPUNGE" -> {
+                end();
+                expunge(true);
+            }
+            case "CLOSE" -> {
+                end();
+                if (!readOnly)
+                    expunge(false);
+                deselect();
+            }
+            case "SEARCH" -> search();
+            default -> throw new Errore("Unknown command " + comando);
+        }
+    }
+
+    /**
+     * Risponde a LIST (o LSUB) con le mailbox il cui nome corrisponde allo {@code schema}
+     * @param comando LIST o LSUB
+     * @param schema lo schema, in cui {@code *} corrisponde a qualsiasi sequenza di caratteri e
+     *               {@code %} a qualsiasi sequenza che non contiene il separatore
+     * @throws IOException se la connessione fallisce
+     */
+    private void list(String comando, String schema) throws IOException {
+        if (schema.isEmpty()) {
+            send("* " + comando + " (\\Noselect) \":\" \"\"");
+            return;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (char c : schema.toCharArray())
+            regex.append(c == '*' ? ".*" : c == '%' ? "[^:]*" : Pattern.quote(String.valueOf(c)));
+        Pattern pattern = Pattern.compile(regex.toString());
+        List<MailBox> mailBoxes = mua.mailBoxList();
+        for (MailBox mailBox : mailBoxes) {
+            String nome = mailBox.name();
+            if (!pattern.matcher(nome).matches() && !(nome.equals("INBOX") && pattern.matcher("inbox").matches()))
+                continue;
+            boolean figli = mailBoxes.stream().anyMatch(altra -> altra.name().startsWith(nome + ":"));
+            send("* " + comando + " (" + (figli ? "\\HasChildren" : "\\HasNoChildren") + ") \":\" " + quoted(nome));
+        }
+    }
+
+    /**
+     * Seleziona la mailbox di nome {@code nome}, prendendo un'istantanea dei suoi messaggi
+     * @param nome il nome della mailbox ({@code INBOX} senza distinzione tra maiuscole e minuscole)
+     * @param soloLettura se la mailbox è selezionata in sola lettura
+     * @throws IOException se la connessione fallisce
+     */
+    private void select(String nome, boolean soloLettura) throws IOException {
+        deselect();
+        MailBox trovata = null;
+        for (MailBox mailBox : mua.mailBoxList())
+            if (mailBox.name().equals(nome) || (mailBox.name().equals("INBOX") && nome.equalsIgnoreCase("INBOX")))
+                trovata = mailBox;
+        if (Objects.isNull(trovata))
+            throw new IllegalStateException("No such mailbox");
+        for (Message message : trovata) {
+            messaggi.add(message);
+            flags.add(new HashSet<>());
+        }
+        Collections.reverse(messaggi);
+        selected = trovata;
+        readOnly = soloLettura;
+        send("* " + messaggi.size() + " EXISTS");
+        send("* 0 RECENT");
+        send("* FLAGS (\\Deleted \\Seen)");
+        send("* OK [PERMANENTFLAGS ()] Flags are kept for this session only");
+        send("* OK [" + (readOnly ? "READ-ONLY" : "READ-WRITE") + "] Mailbox selected");
+    }
+
+    /** Deseleziona la mailbox selezionata */
+    private void deselect() {
+        selected = null;
+        messaggi.clear();
+        flags.clear();
+    }
+
+    /**
+     * Legge gli elementi di FETCH: una macro, un elemento o una lista di elementi
+     * @return gli elementi, in maiuscolo e senza macro
+     * @throws IOException se la connessione fallisce
+     */
+    private List<String> fetchItems() throws IOException {
+        List<String> elementi = new ArrayList<>();
+        for (String elemento : peek() == '(' ? list() : List.of(atom())) {
+            elemento = elemento.toUpperCase(Locale.ROOT);
+            switch (elemento) {
+                case "ALL", "FULL" -> elementi.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE"));
+                case "FAST" -> elementi.addAll(List.of("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                default -> {
+                    if (!ELEMENTI.contains(elemento))
+                        throw new Errore("Unsupported FETCH item " + elemento);
+                    elementi.add(elemento);
+                }
+            }
+        }
+        return elementi;
+    }
+
+    /**
+     * Risponde a FETCH per il messaggio di numero di sequenza {@code n}
+     * @param n il numero di sequenza
+     * @param elementi gli elementi da restituire
+     * @throws IOException se la connessione fallisce
+     */
+    private void fetch(int n, List<String> elementi) throws IOException {
+        Message message = messaggi.get(n - 1);
+        // i byte del messaggio vengono letti (al più) una volta, per tutti gli elementi che li usano
+        ByteBuffer contenuto = null;
+        for (String elemento : elementi)
+            if (elemento.startsWith("RFC822") || elemento.startsWith("BODY")) {
+                contenuto = mua.buffer(message);
+                break;
+            }
+        write("* " + n + " FETCH (");
+        String separatore = "";
+        for (String elemento : elementi) {
+            write(separatore);
+            separatore = " ";
+            switch (elemento) {
+                case "FLAGS" -> write("FLAGS " + flags(n));
+                case "INTERNALDATE" -> write("INTERNALDATE \"" + INTERNALDATE.format(message.date().value()) + "\"");
+                case "RFC822.SIZE" -> write("RFC822.SIZE " + (Objects.isNull(contenuto) ? 0 : crlfSize(contenuto)));
+                case "ENVELOPE" -> write("ENVELOPE " + envelope(message));
+                case "RFC822", "BODY[]", "BODY.PEEK[]" -> {
+                    write(elemento.equals("RFC822") ? "RFC822 " : "BODY[] ");
+                    if (Objects.isNull(contenuto))
+                        write("NIL");
+                    else
+                        literal(contenuto.duplicate());
+                }
+                default -> {
+                    String nome = elemento.replace(".PEEK", "");
+                    boolean intestazioni = elemento.endsWith("HEADER") || elemento.endsWith("HEADER]");
+                    write(nome + " ");
+                    section(contenuto, intestazioni);
+                }
+            }
+            if (elemento.equals("RFC822") || elemento.equals("RFC822.TEXT") || elemento.startsWith("BODY["))
+                flags.get(n - 1).add(SEEN);
+        }
+        write(")\r\n");
+    }
+
+    /**
+     * Scrive come letterale le intestazioni (compresa la riga vuota che le termina) o il testo del
+     * messaggio memorizzato su disco, o NIL se il messaggio non è più su disco
+     * @param contenuto i byte del messaggio, {@code null} se non è più su disco; la posizione non
+     *        viene modificata
+     * @param intestazioni se scrivere le intestazioni, altrimenti il testo
+     * @throws IOException se la connessione fallisce
+     */
+    private void section(ByteBuffer contenuto, boolean intestazioni) throws IOException {
+        if (Objects.isNull(contenuto)) {
+            write("NIL");
+            return;
+        }
+        int inizio = contenuto.position(), limite = contenuto.limit(), fine = limite;
+        for (int i = inizio; i < limite; i++) {
+            if (contenuto.get(i) != '\n')
+                continue;
+            int j = i + 1;
+            if (j < limite && contenuto.get(j) == '\r')
+                j++;
+            if (j < limite && contenuto.get(j) == '\n') {
+                fine = j + 1;
+                break;
+            }
+        }
+        ByteBuffer bytes = contenuto.duplicate();
+        if (intestazioni)
+            bytes.limit(fine);
+        else
+            bytes.position(fine);
+        literal(bytes);
+    }
+
+    /**
+     * Scrive come letterale i byte rimanenti di {@code bytes}, terminando con {@code \r\n} le righe
+     * terminate dal solo {@code \n} (come sono memorizzate su disco)
+     * @param bytes i byte da scrivere
+     * @throws IOException se la connessione fallisce
+     */
+    private void literal(ByteBuffer bytes) throws IOException {
+        write("{" + crlfSize(bytes) + "}\r\n");
+        byte precedente = 0;
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '\n' && precedente != '\r')
+                out.write('\r');
+            out.write(b);
+            precedente = b;
+        }
+    }
+
+    /**
+     * Restituisce il numero di byte rimanenti di {@code bytes} dopo aver terminato con {@code \r\n}
+     * le righe terminate dal solo {@code \n}
+     * @param bytes i byte, di cui non viene modificata la posizione
+     * @return il numero di byte
+     */
+    private static long crlfSize(ByteBuffer bytes) {
+        long size = bytes.remaining();
+        byte precedente = 0;
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            byte b = bytes.get(i);
+            if (b == '\n' && precedente != '\r')
+                size++;
+            precedente = b;
+        }
+        return size;
+    }
+
+    /**
+     * Restituisce la struttura ENVELOPE del messaggio
+     * @param message il messaggio
+     * @return la struttura ENVELOPE
+     */
+    private static String envelope(Message message) {
+        String mittente = addresses(List.of(message.sender().value()));
+        return "(" + quoted(DateEncoding.encode(message.date().value()).toString())
+                + " " + quoted(message.subject().toString())
+                + " " + mittente + " " + mittente + " " + mittente
+                + " " + addresses(message.recipient().value())
+                + " NIL NIL NIL NIL)";
+    }
+
+    /**
+     * Restituisce la lista di indirizzi nel formato di ENVELOPE
+     * @param indirizzi gli indirizzi
+     * @return la lista di indirizzi
+     */
+    private static String addresses(List<Address> indirizzi) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Address indirizzo : indirizzi) {
+            String nome = indirizzo.nome();
+            sb.append('(').append(nome.isEmpty() || !ASCIICharSequence.isAscii(nome) ? "NIL" : quoted(nome))
+                    .append(" NIL ").append(quoted(indirizzo.locale()))
+                    .append(' ').append(quoted(indirizzo.dominio())).append(')');
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Esegue STORE sui messaggi della {@code sequenza}
+     * @param sequenza i numeri di sequenza
+     * @param modo FLAGS, +FLAGS o -FLAGS, eventualmente seguito da .SILENT
+     * @param valori i flag
+     * @throws IOException se la connessione fallisce
+     */
+    private void store(List<Integer> sequenza, String modo, List<String> valori) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException("Mailbox is read-only");
+        boolean silenzioso = modo.endsWith(".SILENT");
+        String operazione = silenzioso ? modo.substring(0, modo.length() - ".SILENT".length()) : modo;
+        if (!Set.of("FLAGS", "+FLAGS", "-FLAGS").contains(operazione))
+            throw new Errore("Unsupported STORE item " + modo);
+        Set<String> valore = new HashSet<>();
+        for (String flag : valori)
+            valore.add(flag.equalsIgnoreCase(DELETED) ? DELETED : flag.equalsIgnoreCase(SEEN) ? SEEN : flag);
+        for (int n : sequenza) {
+            Set<String> attuali = flags.get(n - 1);
+            switch (operazione) {
+                case "FLAGS" -> {
+                    attuali.clear();
+                    attuali.addAll(valore);
+                }
+                case "+FLAGS" -> attuali.addAll(valore);
+                default -> attuali.removeAll(valore);
+            }
+            if (!silenzioso)
+                send("* " + n + " FETCH (FLAGS " + flags(n) + ")");
+        }
+    }
+
+    /**
+     * Elimina dal Mua i messaggi con flag {@code \Deleted}
+     * @param risposte se inviare le risposte EXPUNGE
+     * @throws IOException se la connessione fallisce
+     */
+    private void expunge(boolean risposte) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException("Mailbox is read-only");
+        // in ordine decrescente i numeri di sequenza dei messaggi precedenti non cambiano
+        for (int i = messaggi.size() - 1; i >= 0; i--) {
+            if (!flags.get(i).contains(DELETED))
+                continue;
+            mua.delete(selected, messaggi.get(i));
+            messaggi.remove(i);
+            flags.remove(i);
+            if (risposte)
+                send("* " + (i + 1) + " EXPUNGE");
+        }
+    }
+
+    /**
+     * Esegue SEARCH, traducendo i criteri sull'oggetto e sul testo in una {@code Query}
+     * <p>
+     * FROM e TO cercano invece la stringa (senza distinzione tra maiuscole e minuscole) nel testo
+     * dell'intestazione, compresi i nomi associati agli indirizzi
+     * @throws IOException se la connessione fallisce
+     */
+    private void search() throws IOException {
+        List<String> condizioni = new ArrayList<>();
+        Predicate<Integer> filtro = n -> true;
+        while (!atEnd()) {
+            space();
+            String chiave = atom().toUpperCase(Locale.ROOT);
+            switch (chiave) {
+                case "ALL" -> {
+                }
+                case "SEEN", "UNSEEN", "DELETED", "UNDELETED" -> {
+                    String flag = chiave.endsWith("SEEN") ? SEEN : DELETED;
+                    boolean presente = !chiave.startsWith("UN");
+                    filtro = filtro.and(n -> flags.get(n - 1).contains(flag) == presente);
+                }
+                case "CHARSET" -> {
+                    space();
+                    String charset = astring();
+                    if (!charset.equalsIgnoreCase("UTF-8") && !charset.equalsIgnoreCase("US-ASCII"))
+                        throw new IllegalStateException("[BADCHARSET (UTF-8 US-ASCII)] Unsupported charset");
+                }
+                case "FROM", "TO" -> {
+                    space();
+                    String valore = astring().toLowerCase(Locale.ROOT);
+                    boolean mittente = chiave.equals("FROM");
+                    filtro = filtro.and(n -> {
+                        Message message = messaggi.get(n - 1);
+                        String intestazione = mittente ? message.sender().toString() : message.recipient().toString();
+                        return intestazione.toLowerCase(Locale.ROOT).contains(valore);
+                    });
+                }
+                case "SUBJECT" -> {
+                    space();
+                    String valore = astring().replace("\"", "");
+                    condizioni.add(chiave.toLowerCase(Locale.ROOT) + ":\"*" + valore + "*\"");
+                }
+                case "BODY", "TEXT" -> {
+                    space();
+                    List<String> parole = new ArrayList<>();
+                    SearchIndex.queryTerms(astring(), parole);
+                    condizioni.addAll(parole);
+                }
+                case "SINCE", "BEFORE", "ON" -> {
+                    space();
+                    LocalDate giorno = date(astring());
+                    if (!chiave.equals("BEFORE"))
+                        condizioni.add("after:" + giorno);
+                    if (!chiave.equals("SINCE"))
+                        condizioni.add("before:" + (chiave.equals("ON") ? giorno.plusDays(1) : giorno));
+                }
+                default -> throw new Errore("Unsupported SEARCH key " + chiave);
+            }
+        }
+        Set<Message> trovati = condizioni.isEmpty() ? null
+                : new HashSet<>(mua.filter(selected, Query.parse(String.join(" ", condizioni))));
+        StringJoiner risposta = new StringJoiner(" ", "* SEARCH", "").setEmptyValue("* SEARCH");
+        risposta.add("");
+        for (int n = 1; n <= messaggi.size(); n++)
+            if ((Objects.isNull(trovati) || trovati.contains(messaggi.get(n - 1))) && filtro.test(n))
+                risposta.add(String.valueOf(n));
+        send(risposta.toString().stripTrailing());
+    }
+
+    /**
+     * Decodifica una data dei criteri di ricerca
+     * @param data la data, nel formato {@code d-MMM-yyyy}
+     * @return la data
+     */
+    private static LocalDate date(String data) {
+        try {
+            return LocalDate.parse(data, DATA);
+        } catch (DateTimeParseException exception) {
+            throw new Errore("Invalid date " + data);
+        }
+    }
+
+    /**
+     * Restituisce i flag del messaggio di numero di sequenza {@code n} come lista
+     * @param n il numero di sequenza
+     * @return la lista dei flag
+     */
+    private String flags(int n) {
+        return "(" + String.join(" ", new TreeSet<>(flags.get(n - 1))) + ")";
+    }
+
+    /**
+     * Decodifica un insieme di numeri di sequenza ({@code 1,3:5,7:*})
+     * @param insieme l'insieme
+     * @return i numeri di sequenza, in ordine crescente e senza ripetizioni
+     */
+    private List<Integer> sequence(String insieme) {
+        Set<Integer> numeri = new TreeSet<>();
+        for (String intervallo : insieme.split(",", -1)) {
+            String[] estremi = intervallo.split(":", -1);
+            if (estremi.length > 2)
+                throw new Errore("Invalid sequence set " + insieme);
+            int da = number(estremi[0]), a = number(estremi[estremi.length - 1]);
+            for (int n = Math.min(da, a); n <= Math.max(da, a); n++)
+                numeri.add(n);
+        }
+        return new ArrayList<>(numeri);
+    }
+
+    /**
+     * Decodifica un numero di sequenza
+     * @param numero il numero, o {@code *} per l'ultimo messaggio
+     * @return il numero di sequenza
+     */
+    private int number(String numero) {
+        if (numero.equals("*") && !messaggi.isEmpty())
+            return messaggi.size();
+        try {
+            int n = Integer.parseInt(numero);
+            if (n >= 1 && n <= messaggi.size())
+                return n;
+        } catch (NumberFormatException exception) {
+            // gestito sotto
+        }
+        throw new Errore("Invalid sequence number " + numero);
+    }
+
+    /**
+     * Restituisce una stringa IMAP che rappresenta {@code s}: tra virgolette, o come letterale se
+     * contiene caratteri non ammessi tra virgolette
+     * @param s la stringa
+     * @return la stringa IMAP
+     */
+    private static String quoted(String s) {
+        if (!ASCIICharSequence.isAscii(s) || s.indexOf('\r') >= 0 || s.indexOf('\n') >= 0) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            return "{" + bytes.length + "}\r\n" + new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Legge una riga di comando, senza terminatore
+     * @return la riga, o {@code null} se il client ha chiuso la connessione
+     * @throws IOException se la connessione fallisce o la riga è troppo lunga
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream riga = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != '\n';) {
+            if (b < 0)
+                return riga.size() == 0 ? null : riga.toString(StandardCharsets.UTF_8);
+            if (riga.size() >= MAX_RIGA)
+                throw new IOException("Command line too long");
+            riga.write(b);
+        }
+        String letta = riga.toString(StandardCharsets.UTF_8);
+        return letta.endsWith("\r") ? letta.substring(0, letta.length() - 1) : letta;
+    }
+
+    /** @return {@code true} se il comando è stato letto per intero */
+    private boolean atEnd() {
+        return pos >= riga.length();
+    }
+
+    /** @return il prossimo carattere del comando, o 0 se il comando è stato letto per intero */
+    private char peek() {
+        return atEnd() ? 0 : riga.charAt(pos);
+    }
+
+    /** Legge uno spazio */
+    private void space() {
+        if (peek() != ' ')
+            throw new Errore("Missing argument");
+        pos++;
+    }
+
+    /** Controlla che il comando sia stato letto per intero */
+    private void end() {
+        if (!atEnd())
+            throw new Errore("Unexpected arguments");
+    }
+
+    /**
+     * Legge un atomo, che può contenere una sezione tra parentesi quadre (ad esempio {@code BODY[TEXT]})
+     * @return l'atomo
+     */
+    private String atom() {
+        int inizio = pos, quadre = 0;
+        for (; !atEnd(); pos++) {
+            char c = riga.charAt(pos);
+            if (c == '[')
+                quadre++;
+            else if (c == ']')
+                quadre--;
+            else if (quadre == 0 && (c == ' ' || c == '(' || c == ')'))
+                break;
+        }
+        if (pos == inizio)
+            throw new Errore("Missing argument");
+        return riga.substring(inizio, pos);
+    }
+
+    /**
+     * Legge un atomo, una stringa tra virgolette o un letterale
+     * @return la stringa letta
+     * @throws IOException se la connessione fallisce
+     */
+    private String astring() throws IOException {
+        return switch (peek()) {
+            case '"' -> quoted();
+            case '{' -> literal();
+            default -> atom();
+        };
+    }
+
+    /** @return la stringa tra virgolette letta, senza virgolette e caratteri di escape */
+    private String quoted() {
+        StringBuilder sb = new StringBuilder();
+        for (pos++;;) {
+            if (atEnd())
+                throw new Errore("Unterminated quoted string");
+            char c = riga.charAt(pos++);
+            if (c == '"')
+                return sb.toString();
+            if (c == '\\' && !atEnd())
+                c = riga.charAt(pos++);
+            sb.append(c);
+        }
+    }
+
+    /**
+     * Legge un letterale, che deve terminare la riga corrente; il comando prosegue sulla riga successiva
+     * @return il contenuto del letterale
+     * @throws IOException se la connessione fallisce
+     */
+    private String literal() throws IOException {
+        int chiusa = riga.indexOf('}', pos);
+        if (chiusa != riga.length() - 1)
+            throw new Errore("Invalid literal");
+        String lunghezza = riga.substring(pos + 1, chiusa);
+        boolean sincronizzato = !lunghezza.endsWith("+");
+        if (!sincronizzato)
+            lunghezza = lunghezza.substring(0, lunghezza.length() - 1);
+        int n;
+        try {
+            n = Integer.parseInt(lunghezza);
+        } catch (NumberFormatException exception) {
+            throw new Errore("Invalid literal");
+        }
+        if (n < 0 || n > MAX_LETTERALE)
+            throw new Errore("Invalid literal length");
+        if (sincronizzato) {
+            send("+ Ready for literal data");
+            out.flush();
+        }
+        byte[] contenuto = in.readNBytes(n);
+        String resto = readLine();
+        if (contenuto.length < n || Objects.isNull(resto))
+            throw new EOFException();
+        riga = resto;
+        pos = 0;
+        return new String(contenuto, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Legge una lista tra parentesi tonde di atomi o stringhe
+     * @return gli elementi della lista
+     * @throws IOException se la connessione fallisce
+     */
+    private List<String> list() throws IOException {
+        List<String> elementi = new ArrayList<>();
+        pos++;
+        while (peek() != ')') {
+            if (!elementi.isEmpty())
+                space();
+            elementi.add(astring());
+        }
+        pos++;
+        return elementi;
+    }
+
+    /**
+     * Scrive una riga di risposta
+     * @param risposta la riga, senza terminatore
+     * @throws IOException se la connessione fallisce
+     */
+    private void send(String risposta) throws IOException {
+        write(risposta + "\r\n");
+    }
+
+    /**
+     * Scrive parte di una risposta
+     * @param s il testo, i cui caratteri sono scritti come byte
+     * @throws IOException se la connessione fallisce
+     */
+    private void write(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
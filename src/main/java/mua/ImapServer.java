@@ -0,0 +1,96 @@
+package mua;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+/**
+ * ImapServer classe concreta che espone un {@link Mua} tramite un sottoinsieme del protocollo IMAP4rev1
+ * <p>
+ * Il server accetta connessioni solo dall'interfaccia di loopback e serve ogni connessione con un
+ * thread di un pool di dimensione fissa: le connessioni che eccedono il numero di thread vengono
+ * rifiutate con {@code * BYE} e quelle inattive per {@value #TIMEOUT} millisecondi (il minimo previsto
+ * da RFC 3501) vengono chiuse. I comandi supportati sono descritti in {@code ImapConnection}.
+ * <p>
+ * Il server ha un solo utente, le cui credenziali sono fornite alla costruzione: LOGIN accetta solo
+ * quelle, o nessuna se il server è costruito senza credenziali.
+ */
+public class ImapServer extends LocalServer {
+    /** Porta predefinita del server */
+    public static final int DEFAULT_PORT = 1143;
+    /** Numero predefinito di connessioni servite contemporaneamente */
+    public static final int DEFAULT_THREADS = 16;
+    /** Tempo massimo di inattività di un client, in millisecondi */
+    public static final int TIMEOUT = 30 * 60 * 1000;
+
+    /** Mua servito */
+    private final Mua mua;
+    /** Utente accettato da LOGIN, null se LOGIN è disabilitato */
+    private final String utente;
+    /** Password dell'utente, null se LOGIN è disabilitato */
+    private final String password;
+
+    /*
+     * RI:  mua != null
+     *      utente == null se e solo se password == null
+     *
+     * AF:  AF(mua, port()) = server IMAP che espone mua sulla porta locale port()
+     */
+
+    /**
+     * Costruisce un server che espone il {@code mua} sulla porta {@code port} dell'interfaccia di loopback
+     * e inizia ad accettare connessioni.
+     * @param mua il Mua da esporre
+     * @param port la porta, 0 per sceglierne una libera (vedi {@link #port()})
+     * @param threads il numero di connessioni servite contemporaneamente
+     * @param utente l'utente accettato da LOGIN, {@code null} per disabilitare LOGIN
+     * @param password la password dell'utente, {@code null} per disabilitare LOGIN
+     * @throws IOException se non è possibile aprire la porta
+     * @throws NullPointerException se {@code mua} è {@code null}
+     * @throws IllegalArgumentException se {@code threads < 1}, la porta non è valida o solo uno tra
+     *                                  {@code utente} e {@code password} è {@code null}
+     */
+    public ImapServer(Mua mua, int port, int threads, String utente, String password) throws IOException {
+        super("imap", threads, TIMEOUT);
+        this.mua = Objects.requireNonNull(mua);
+        if (Objects.isNull(utente) != Objects.isNull(password))
+            throw new IllegalArgumentException("Utente e password vanno configurati insieme");
+        this.utente = utente;
+        this.password = password;
+        start(port);
+    }
+
+    @Override
+    void serve(SocketChannel socket) {
+        try {
+            new ImapConnection(mua, socket, utente, password).run();
+        } catch (IOException chiusa) {
+            // la connessione è stata chiusa prima di essere servita
+        }
+    }
+
+    @Override
+    String refusal() {
+        return "* BYE Too many connections, try again later\r\n";
+    }
+
+    /**
+     * Avvia un server IMAP sulle mailbox contenute in una directory.
+     * <p>
+     * Le credenziali accettate da LOGIN sono lette dalle variabili d'ambiente {@code MUA_IMAP_USER}
+     * e {@code MUA_IMAP_PASSWORD}; se non sono entrambe definite LOGIN è disabilitato.
+     * @param args la directory delle mailbox e, opzionalmente, la porta (predefinita {@value #DEFAULT_PORT})
+     * @throws IOException se non è possibile aprire la porta
+     */
+    public static void main(String[] args) throws IOException {
+        Mua mua = new Mua(args[0]);
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        String utente = System.getenv("MUA_IMAP_USER"), password = System.getenv("MUA_IMAP_PASSWORD");
+        if (Objects.isNull(utente) || Objects.isNull(password)) {
+            utente = password = null;
+            System.out.println("MUA_IMAP_USER e MUA_IMAP_PASSWORD non definite: LOGIN disabilitato");
+        }
+        ImapServer server = new ImapServer(mua, port, DEFAULT_THREADS, utente, password);
+        System.out.println("Server IMAP in ascolto su localhost:" + server.port());
+    }
+}
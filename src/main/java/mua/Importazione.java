@@ -0,0 +1,66 @@
+package mua;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Classe immutabile che rappresenta l'esito dell'importazione di un file in una mailbox
+ * (vedi {@link Mua#importMessages(int, String, int)}): il {@code file}, l'{@code esito} e il
+ * {@code motivo} per cui il file non è stato importato.
+ *
+ * @param file il file importato
+ * @param esito l'esito dell'importazione
+ * @param motivo il motivo per cui il file è stato saltato o rifiutato, vuoto se è stato importato
+ */
+public record Importazione(Path file, Esito esito, String motivo) {
+
+    /*
+     * RI:  file, esito, motivo != null
+     *      motivo è vuoto se e solo se esito == IMPORTATO
+     *
+     * AF:  AF(file, esito, motivo) = "file: esito"             // se esito == IMPORTATO
+     *                              = "file: esito (motivo)"    // altrimenti
+     */
+
+    /** Esito dell'importazione di un file */
+    public enum Esito {
+        /** il messaggio contenuto nel file è stato aggiunto alla mailbox */
+        IMPORTATO,
+        /** il file non è un messaggio da importare (ad esempio una directory o un file nascosto) */
+        SALTATO,
+        /** il file non contiene un messaggio valido, o non è stato possibile leggerlo o scriverlo */
+        RIFIUTATO
+    }
+
+    /**
+     * Crea l'esito dell'importazione del {@code file}.
+     * @param file il file importato
+     * @param esito l'esito dell'importazione
+     * @param motivo il motivo per cui il file è stato saltato o rifiutato, vuoto se è stato importato
+     * @throws NullPointerException se uno dei parametri è {@code null}
+     * @throws IllegalArgumentException se {@code motivo} è vuoto e il file non è stato importato,
+     *                                  o viceversa
+     */
+    public Importazione {
+        Objects.requireNonNull(file, "Il file non può essere null");
+        Objects.requireNonNull(esito, "L'esito non può essere null");
+        Objects.requireNonNull(motivo, "Il motivo non può essere null");
+        if (motivo.isEmpty() != (esito == Esito.IMPORTATO))
+            throw new IllegalArgumentException("Il motivo va indicato solo per i file non importati");
+    }
+
+    /**
+     * Crea l'esito di un file importato.
+     * @param file il file importato
+     * @return l'esito
+     * @throws NullPointerException se {@code file} è {@code null}
+     */
+    static Importazione importato(Path file) {
+        return new Importazione(file, Esito.IMPORTATO, "");
+    }
+
+    @Override
+    public String toString() {
+        return file + ": " + esito + (motivo.isEmpty() ? "" : " (" + motivo + ")");
+    }
+}
@@ -0,0 +1,323 @@
+package mua;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import mua.message.Message;
+import utils.ASCIICharSequence;
+
+/**
+ * LmtpConnection classe concreta mutabile che serve una connessione di un {@link LmtpServer}
+ * <p>
+ * Sono supportati i comandi LHLO, MAIL, RCPT, DATA, RSET, NOOP e QUIT di LMTP (RFC 2033):
+ * <ul>
+ *     <li>la parte locale dell'indirizzo di un destinatario è il nome della mailbox in cui consegnare
+ *         il messaggio ({@code INBOX} senza distinzione tra maiuscole e minuscole), in cui il
+ *         separatore di gerarchia {@code :} può essere sostituito da {@code .};</li>
+ *     <li>i messaggi devono essere codificati in ASCII; le righe sono memorizzate terminate da
+ *         {@code \n}, come le altre entry, e il messaggio è validato con {@link Message#parse};</li>
+ *     <li>dopo DATA viene inviata una risposta per ogni destinatario accettato, solo quando il
+ *         messaggio è stato scritto su disco e reso persistente.</li>
+ * </ul>
+ * Una connessione è servita da un solo thread e mantiene in memoria al più un messaggio.
+ */
+final class LmtpConnection implements Runnable {
+    /** Lunghezza massima di una riga */
+    private static final int MAX_RIGA = 64 * 1024;
+    /** Dimensione massima di un messaggio */
+    private static final int MAX_MESSAGGIO = 10 * 1024 * 1024;
+    /** Nome con cui il server si presenta */
+    private static final String HOST = "localhost";
+
+    /** Mua a cui vengono consegnati i messaggi */
+    private final Mua mua;
+    /** Server che scrive i messaggi */
+    private final LmtpServer server;
+    /** Canale della connessione */
+    private final SocketChannel socket;
+    /** Flusso da cui vengono letti i comandi */
+    private final InputStream in;
+    /** Flusso su cui vengono scritte le risposte */
+    private final OutputStream out;
+    /** Se il client si è presentato con LHLO */
+    private boolean presentato;
+    /** Se è in corso una transazione (dopo MAIL) */
+    private boolean transazione;
+    /** Mailbox dei destinatari accettati nella transazione in corso */
+    private final List<MailBox> destinatari = new ArrayList<>();
+
+    /*
+     * RI:  mua, server, socket, in, out, destinatari != null
+     *      !transazione -> destinatari.isEmpty()
+     *      destinatari contiene solo mailbox di mua
+     *
+     * AF:  AF(presentato, transazione, destinatari) = sessione LMTP con la transazione in corso
+     *          (se transazione) verso le mailbox destinatari
+     */
+
+    /**
+     * Costruisce la connessione che serve il {@code socket}, consegnando i messaggi al {@code mua}
+     * @param mua il Mua a cui consegnare i messaggi
+     * @param server il server che scrive i messaggi
+     * @param socket il canale della connessione, in modalità bloccante
+     * @throws IOException se non è possibile ottenere il flusso della connessione
+     */
+    LmtpConnection(Mua mua, LmtpServer server, SocketChannel socket) throws IOException {
+        this.mua = Objects.requireNonNull(mua);
+        this.server = Objects.requireNonNull(server);
+        this.socket = Objects.requireNonNull(socket);
+        // il flusso del socket rispetta il tempo massimo di attesa impostato dal server
+        this.in = new BufferedInputStream(socket.socket().getInputStream());
+        this.out = new BufferedOutputStream(Channels.newOutputStream(socket));
+    }
+
+    /**
+     * Serve i comandi del client finché non si disconnette o invia QUIT, poi chiude la connessione
+     */
+    @Override
+    public void run() {
+        try {
+            send("220 " + HOST + " Mua LMTP server ready");
+            for (boolean continua = true; continua;) {
+                out.flush();
+                byte[] riga = readLine();
+                if (Objects.isNull(riga))
+                    break;
+                continua = execute(new String(riga, StandardCharsets.ISO_8859_1));
+            }
+            out.flush();
+        } catch (SocketTimeoutException inattiva) {
+            try {
+                send("421 4.4.2 " + HOST + " Idle for too long, closing connection");
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        } catch (IOException chiusa) {
+            // la connessione è stata chiusa dal client o dal server
+        } catch (InterruptedException chiuso) {
+            // il server è stato chiuso
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Esegue un comando
+     * @param riga la riga del comando
+     * @return {@code false} se la connessione va chiusa
+     * @throws IOException se la connessione fallisce
+     * @throws InterruptedException se l'attesa della scrittura dei messaggi viene interrotta
+     */
+    private boolean execute(String riga) throws IOException, InterruptedException {
+        int spazio = riga.indexOf(' ');
+        String comando = (spazio < 0 ? riga : riga.substring(0, spazio)).toUpperCase(Locale.ROOT);
+        String argomento = spazio < 0 ? "" : riga.substring(spazio + 1).trim();
+        switch (comando) {
+            case "LHLO" -> {
+                if (argomento.isEmpty()) {
+                    send("501 5.5.4 Missing host name");
+                    return true;
+                }
+                reset();
+                presentato = true;
+                send("250-" + HOST);
+                send("250-ENHANCEDSTATUSCODES");
+                send("250 SIZE " + MAX_MESSAGGIO);
+            }
+            case "MAIL" -> {
+                if (!presentato)
+                    send("503 5.5.1 Send LHLO first");
+                else if (transazione)
+                    send("503 5.5.1 Nested MAIL command");
+                else if (!argomento.toUpperCase(Locale.ROOT).startsWith("FROM:"))
+                    send("501 5.5.4 Syntax: MAIL FROM:<address>");
+                else {
+                    transazione = true;
+                    send("250 2.1.0 OK");
+                }
+            }
+            case "RCPT" -> {
+                if (!transazione)
+                    send("503 5.5.1 Need MAIL command");
+                else if (!argomento.toUpperCase(Locale.ROOT).startsWith("TO:"))
+                    send("501 5.5.4 Syntax: RCPT TO:<address>");
+                else {
+                    MailBox mailBox = mailBox(argomento.substring("TO:".length()));
+                    if (Objects.isNull(mailBox))
+                        send("550 5.1.1 No such mailbox");
+                    else {
+                        destinatari.add(mailBox);
+                        send("250 2.1.5 OK");
+                    }
+                }
+            }
+            case "DATA" -> {
+                if (destinatari.isEmpty())
+                    send("503 5.5.1 Need RCPT command");
+                else {
+                    send("354 Start mail input; end with <CRLF>.<CRLF>");
+                    out.flush();
+                    data();
+                    reset();
+                }
+            }
+            case "RSET" -> {
+                reset();
+                send("250 2.0.0 OK");
+            }
+            case "NOOP" -> send("250 2.0.0 OK");
+            case "QUIT" -> {
+                send("221 2.0.0 " + HOST + " closing connection");
+                return false;
+            }
+            case "HELO", "EHLO" -> send("500 5.5.1 Use LHLO");
+            default -> send("500 5.5.2 Unknown command");
+        }
+        return true;
+    }
+
+    /** Termina la transazione in corso */
+    private void reset() {
+        transazione = false;
+        destinatari.clear();
+    }
+
+    /**
+     * Restituisce la mailbox indicata dall'indirizzo di un destinatario
+     * @param indirizzo l'indirizzo, eventualmente tra parentesi angolari e seguito da parametri
+     * @return la mailbox, o {@code null} se non esiste
+     */
+    private MailBox mailBox(String indirizzo) {
+        String nome = indirizzo.trim();
+        if (nome.startsWith("<")) {
+            int fine = nome.indexOf('>');
+            if (fine < 0)
+                return null;
+            nome = nome.substring(1, fine);
+        } else if (nome.indexOf(' ') >= 0)
+            nome = nome.substring(0, nome.indexOf(' '));
+        int chiocciola = nome.lastIndexOf('@');
+        if (chiocciola >= 0)
+            nome = nome.substring(0, chiocciola);
+        for (MailBox mailBox : mua.mailBoxList()) {
+            String candidato = mailBox.name();
+            if (candidato.equals(nome) || candidato.replace(':', '.').equals(nome)
+                    || (candidato.equals("INBOX") && nome.equalsIgnoreCase("INBOX")))
+                return mailBox;
+        }
+        return null;
+    }
+
+    /**
+     * Legge il messaggio di DATA e risponde per ogni destinatario, dopo averlo consegnato
+     * @throws IOException se la connessione fallisce
+     * @throws InterruptedException se l'attesa della scrittura dei messaggi viene interrotta
+     */
+    private void data() throws IOException, InterruptedException {
+        ByteArrayOutputStream dati = new ByteArrayOutputStream();
+        boolean troppoGrande = false;
+        for (;;) {
+            byte[] riga = readLine();
+            if (Objects.isNull(riga))
+                throw new EOFException();
+            if (riga.length == 1 && riga[0] == '.')
+                break;
+            int inizio = (riga.length > 0 && riga[0] == '.') ? 1 : 0;
+            if (troppoGrande || dati.size() + riga.length - inizio + 1 > MAX_MESSAGGIO) {
+                // il resto del messaggio viene letto e scartato
+                troppoGrande = true;
+                dati.reset();
+                continue;
+            }
+            dati.write(riga, inizio, riga.length - inizio);
+            dati.write('\n');
+        }
+        if (troppoGrande) {
+            reply("552 5.3.4 Message too big");
+            return;
+        }
+        ASCIICharSequence codifica;
+        try {
+            codifica = ASCIICharSequence.of(dati.toByteArray());
+        } catch (IllegalArgumentException exception) {
+            reply("554 5.6.0 Message must be ASCII");
+            return;
+        }
+        List<CompletableFuture<Boolean>> esiti = new ArrayList<>();
+        try {
+            for (MailBox mailBox : destinatari)
+                esiti.add(server.deliver(mailBox, Message.parse(codifica), codifica));
+        } catch (RuntimeException exception) {
+            reply("554 5.6.0 Invalid message: " + exception.getMessage());
+            return;
+        }
+        for (int i = 0; i < esiti.size(); i++) {
+            boolean consegnato;
+            try {
+                consegnato = esiti.get(i).get();
+            } catch (ExecutionException exception) {
+                consegnato = false;
+            }
+            send(consegnato ? "250 2.0.0 Delivered to " + destinatari.get(i).name()
+                    : "451 4.3.0 Unable to write message to " + destinatari.get(i).name());
+            out.flush();
+        }
+    }
+
+    /**
+     * Invia la stessa risposta per ogni destinatario
+     * @param risposta la risposta
+     * @throws IOException se la connessione fallisce
+     */
+    private void reply(String risposta) throws IOException {
+        for (int i = 0; i < destinatari.size(); i++)
+            send(risposta);
+    }
+
+    /**
+     * Legge una riga, senza terminatore ({@code \n}, eventualmente preceduto da {@code \r})
+     * @return i byte della riga, o {@code null} se il client ha chiuso la connessione
+     * @throws IOException se la connessione fallisce o la riga è troppo lunga
+     */
+    private byte[] readLine() throws IOException {
+        ByteArrayOutputStream riga = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != '\n';) {
+            if (b < 0)
+                return riga.size() == 0 ? null : riga.toByteArray();
+            if (riga.size() >= MAX_RIGA)
+                throw new IOException("Line too long");
+            riga.write(b);
+        }
+        byte[] letta = riga.toByteArray();
+        int n = letta.length;
+        return (n > 0 && letta[n - 1] == '\r') ? Arrays.copyOf(letta, n - 1) : letta;
+    }
+
+    /**
+     * Scrive una riga di risposta
+     * @param risposta la riga, senza terminatore
+     * @throws IOException se la connessione fallisce
+     */
+    private void send(String risposta) throws IOException {
+        out.write((risposta + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
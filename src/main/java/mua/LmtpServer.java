@@ -0,0 +1,189 @@
+package mua;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+import mua.message.Message;
+import utils.ASCIICharSequence;
+
+/**
+ * LmtpServer classe concreta che consegna ad un {@link Mua} i messaggi ricevuti tramite LMTP (RFC 2033)
+ * <p>
+ * Il server accetta connessioni solo dall'interfaccia di loopback e serve ogni connessione con un
+ * thread di un pool di dimensione fissa: le connessioni che eccedono il numero di thread vengono
+ * rifiutate con {@code 421} e quelle inattive per {@value #TIMEOUT} millisecondi (come suggerito da
+ * RFC 5321) vengono chiuse. Il destinatario di un messaggio indica la mailbox in cui consegnarlo
+ * (vedi {@code LmtpConnection}).
+ * <p>
+ * I messaggi ricevuti sono validati con {@link Message#parse} e accodati in una coda limitata, da cui
+ * un unico thread li preleva a lotti: i messaggi di un lotto destinati alla stessa mailbox sono scritti
+ * su disco così come ricevuti e resi persistenti con una sola sincronizzazione della directory
+ * (vedi {@code Mua.deliver}). Un client riceve la conferma solo dopo che il messaggio è persistente;
+ * quando la coda è piena le connessioni attendono di potervi accodare i propri messaggi, e smettono
+ * quindi di leggerne di nuovi, finché il disco non smaltisce i lotti in corso.
+ */
+public class LmtpServer extends LocalServer {
+    /** Porta predefinita del server */
+    public static final int DEFAULT_PORT = 2424;
+    /** Numero predefinito di connessioni servite contemporaneamente */
+    public static final int DEFAULT_THREADS = 64;
+    /** Tempo massimo di inattività di un client, in millisecondi */
+    public static final int TIMEOUT = 5 * 60 * 1000;
+    /** Numero massimo di messaggi in attesa di essere scritti */
+    private static final int CODA = 256;
+    /** Numero massimo di messaggi scritti in un lotto */
+    private static final int LOTTO = 64;
+
+    /**
+     * Messaggio in attesa di essere scritto
+     * @param mailBox la mailbox in cui consegnare il messaggio
+     * @param message il messaggio
+     * @param codifica la codifica del messaggio, da scrivere su disco
+     * @param esito completato con {@code true} se il messaggio è stato consegnato, {@code false} altrimenti
+     */
+    private record Consegna(MailBox mailBox, Message message, ASCIICharSequence codifica,
+            CompletableFuture<Boolean> esito) {}
+
+    /** Mua a cui vengono consegnati i messaggi */
+    private final Mua mua;
+    /** Messaggi in attesa di essere scritti */
+    private final BlockingQueue<Consegna> coda = new ArrayBlockingQueue<>(CODA);
+    /** Thread che scrive i messaggi a lotti */
+    private final Thread scrittore;
+
+    /*
+     * RI:  mua, coda, scrittore != null
+     *      ogni Consegna accodata ha mailBox una mailbox di mua e message decodificato da codifica
+     *
+     * AF:  AF(mua, coda, port()) = server LMTP che consegna a mua i messaggi ricevuti sulla porta locale
+     *                              port(), di cui quelli in coda non sono ancora stati scritti
+     */
+
+    /**
+     * Costruisce un server che consegna messaggi al {@code mua} sulla porta {@code port} dell'interfaccia
+     * di loopback e inizia ad accettare connessioni.
+     * @param mua il Mua a cui consegnare i messaggi
+     * @param port la porta, 0 per sceglierne una libera (vedi {@link #port()})
+     * @param threads il numero di connessioni servite contemporaneamente
+     * @throws IOException se non è possibile aprire la porta
+     * @throws NullPointerException se {@code mua} è {@code null}
+     * @throws IllegalArgumentException se {@code threads < 1} o la porta non è valida
+     */
+    public LmtpServer(Mua mua, int port, int threads) throws IOException {
+        super("lmtp", threads, TIMEOUT);
+        this.mua = Objects.requireNonNull(mua);
+        this.scrittore = new Thread(this::write, "lmtp-writer");
+        scrittore.start();
+        try {
+            start(port);
+        } catch (IOException | RuntimeException exception) {
+            scrittore.interrupt();
+            throw exception;
+        }
+    }
+
+    @Override
+    void serve(SocketChannel socket) {
+        try {
+            new LmtpConnection(mua, this, socket).run();
+        } catch (IOException chiusa) {
+            // la connessione è stata chiusa prima di essere servita
+        }
+    }
+
+    @Override
+    String refusal() {
+        return "421 4.3.2 localhost Too many connections, try again later\r\n";
+    }
+
+    /**
+     * Accoda la consegna del {@code message} alla {@code mailBox}, attendendo se la coda è piena.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param message il messaggio, decodificato dalla {@code codifica}
+     * @param codifica la codifica del messaggio, da scrivere su disco
+     * @return un future completato con {@code true} quando il messaggio è stato consegnato e reso
+     *         persistente, con {@code false} se non è stato possibile scriverlo
+     * @throws InterruptedException se l'attesa viene interrotta
+     */
+    CompletableFuture<Boolean> deliver(MailBox mailBox, Message message, ASCIICharSequence codifica)
+            throws InterruptedException {
+        Consegna consegna = new Consegna(mailBox, message, codifica, new CompletableFuture<>());
+        coda.put(consegna);
+        return consegna.esito();
+    }
+
+    /** Scrive a lotti i messaggi accodati finché il server non viene chiuso */
+    private void write() {
+        List<Consegna> lotto = new ArrayList<>(LOTTO);
+        try {
+            for (;;) {
+                lotto.add(coda.take());
+                coda.drainTo(lotto, LOTTO - 1);
+                commit(lotto);
+                lotto.clear();
+            }
+        } catch (InterruptedException closed) {
+            // il server è stato chiuso: i messaggi non ancora scritti non vengono consegnati
+            coda.drainTo(lotto);
+            for (Consegna consegna : lotto)
+                consegna.esito().complete(false);
+        }
+    }
+
+    /**
+     * Scrive un lotto di messaggi, con una sola sincronizzazione per mailbox, e ne completa gli esiti
+     * @param lotto i messaggi da scrivere
+     */
+    private void commit(List<Consegna> lotto) {
+        Map<MailBox, List<Consegna>> perMailBox = new LinkedHashMap<>();
+        for (Consegna consegna : lotto)
+            perMailBox.computeIfAbsent(consegna.mailBox(), mailBox -> new ArrayList<>()).add(consegna);
+        for (Map.Entry<MailBox, List<Consegna>> gruppo : perMailBox.entrySet()) {
+            List<Consegna> consegne = gruppo.getValue();
+            List<Message> messaggi = new ArrayList<>();
+            List<ASCIICharSequence> codifiche = new ArrayList<>();
+            for (Consegna consegna : consegne) {
+                messaggi.add(consegna.message());
+                codifiche.add(consegna.codifica());
+            }
+            try {
+                List<Boolean> esiti = mua.deliver(gruppo.getKey(), messaggi, codifiche);
+                for (int i = 0; i < consegne.size(); i++)
+                    consegne.get(i).esito().complete(esiti.get(i));
+            } catch (RuntimeException exception) {
+                for (Consegna consegna : consegne)
+                    consegna.esito().complete(false);
+            }
+        }
+    }
+
+    /**
+     * Smette di accettare connessioni, chiude quelle aperte e smette di scrivere messaggi:
+     * quelli non ancora scritti non vengono consegnati.
+     */
+    @Override
+    public void close() {
+        super.close();
+        scrittore.interrupt();
+    }
+
+    /**
+     * Avvia un server LMTP sulle mailbox contenute in una directory.
+     * @param args la directory delle mailbox e, opzionalmente, la porta (predefinita {@value #DEFAULT_PORT})
+     * @throws IOException se non è possibile aprire la porta
+     */
+    public static void main(String[] args) throws IOException {
+        Mua mua = new Mua(args[0]);
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        LmtpServer server = new LmtpServer(mua, port, DEFAULT_THREADS);
+        System.out.println("Server LMTP in ascolto su localhost:" + server.port());
+    }
+}
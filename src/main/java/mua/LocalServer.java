@@ -0,0 +1,199 @@
+package mua;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * LocalServer classe astratta che accetta connessioni sull'interfaccia di loopback
+ * <p>
+ * Ogni connessione è servita da un thread di un pool di dimensione fissa: le connessioni che
+ * eccedono il numero di thread vengono rifiutate subito, inviando loro la risposta definita dalla
+ * sottoclasse (vedi {@link #refusal()}), così che i client in attesa non restino bloccati senza
+ * risposta. Le letture dal flusso di una connessione (vedi {@link java.net.Socket#getInputStream()})
+ * falliscono con {@link java.net.SocketTimeoutException} se il client non invia nulla per il tempo
+ * massimo di attesa del server, così che un client inattivo non occupi un thread indefinitamente.
+ * Le sottoclassi definiscono come servire una connessione e avviano il server con {@link #start(int)}
+ * al termine della propria costruzione.
+ */
+abstract class LocalServer implements Closeable {
+    /** Numero massimo di connessioni in attesa di essere accettate */
+    private static final int BACKLOG = 1024;
+    /** Nome del server, usato per i thread */
+    private final String nome;
+    /** Numero massimo di connessioni servite contemporaneamente */
+    private final int threads;
+    /** Tempo massimo di attesa dei dati di un client, in millisecondi */
+    private final int attesa;
+    /** Pool che serve le connessioni */
+    private final ExecutorService pool;
+    /** Connessioni aperte, chiuse alla chiusura del server */
+    private final Set<SocketChannel> connessioni = ConcurrentHashMap.newKeySet();
+    /** Canale su cui vengono accettate le connessioni, null se il server non è stato avviato */
+    private volatile ServerSocketChannel server;
+
+    /*
+     * RI:  nome, pool, connessioni != null, threads, attesa > 0
+     *      connessioni contiene le connessioni accettate e non ancora chiuse, al più threads
+     *
+     * AF:  AF(server) = server sulla porta locale di server (non avviato se null)
+     */
+
+    /**
+     * Costruisce un server non ancora avviato
+     * @param nome il nome del server, usato per i thread
+     * @param threads il numero di connessioni servite contemporaneamente
+     * @param attesa il tempo massimo di attesa dei dati di un client, in millisecondi
+     * @throws IllegalArgumentException se {@code threads < 1} o {@code attesa < 1}
+     */
+    LocalServer(String nome, int threads, int attesa) {
+        this.nome = Objects.requireNonNull(nome);
+        if (threads < 1)
+            throw new IllegalArgumentException("Il numero di thread deve essere positivo");
+        if (attesa < 1)
+            throw new IllegalArgumentException("Il tempo di attesa deve essere positivo");
+        this.threads = threads;
+        this.attesa = attesa;
+        this.pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Apre la porta {@code port} dell'interfaccia di loopback e inizia ad accettare connessioni
+     * @param port la porta, 0 per sceglierne una libera (vedi {@link #port()})
+     * @throws IOException se non è possibile aprire la porta
+     * @throws IllegalArgumentException se la porta non è valida
+     * @throws IllegalStateException se il server è già stato avviato
+     */
+    final void start(int port) throws IOException {
+        if (Objects.nonNull(server))
+            throw new IllegalStateException("Server già avviato");
+        ServerSocketChannel canale = ServerSocketChannel.open();
+        try {
+            canale.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        } catch (IOException | RuntimeException exception) {
+            canale.close();
+            pool.shutdown();
+            throw exception;
+        }
+        server = canale;
+        new Thread(this::accept, nome + "-accept").start();
+    }
+
+    /**
+     * Serve una connessione, chiudendola al termine
+     * @param socket il canale della connessione, in modalità bloccante
+     */
+    abstract void serve(SocketChannel socket);
+
+    /**
+     * Restituisce la risposta inviata ai client rifiutati perché il server serve già il numero
+     * massimo di connessioni
+     * @return la risposta, comprensiva del terminatore di riga
+     */
+    abstract String refusal();
+
+    /**
+     * Restituisce la porta su cui il server accetta connessioni.
+     * @return la porta del server
+     * @throws IllegalStateException se il server non è stato avviato o è stato chiuso
+     */
+    public int port() {
+        try {
+            return ((InetSocketAddress) server.getLocalAddress()).getPort();
+        } catch (IOException | NullPointerException exception) {
+            throw new IllegalStateException("Server non avviato o chiuso");
+        }
+    }
+
+    /** Accetta le connessioni finché il server non viene chiuso */
+    private void accept() {
+        try {
+            for (;;) {
+                SocketChannel socket = server.accept();
+                if (connessioni.size() >= threads) {
+                    refuse(socket);
+                    continue;
+                }
+                try {
+                    socket.socket().setSoTimeout(attesa);
+                } catch (IOException chiusa) {
+                    close(socket);
+                    continue;
+                }
+                connessioni.add(socket);
+                try {
+                    pool.execute(() -> {
+                        try {
+                            serve(socket);
+                        } finally {
+                            connessioni.remove(socket);
+                            close(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException closed) {
+                    // il server è stato chiuso dopo aver accettato la connessione
+                    socket.close();
+                    return;
+                }
+            }
+        } catch (ClosedChannelException closed) {
+            // il server è stato chiuso
+        } catch (IOException exception) {
+            close();
+        }
+    }
+
+    /**
+     * Rifiuta una connessione, inviando la risposta di {@link #refusal()} e chiudendola
+     * @param socket il canale della connessione
+     */
+    private void refuse(SocketChannel socket) {
+        try (socket) {
+            ByteBuffer risposta = ByteBuffer.wrap(refusal().getBytes(StandardCharsets.US_ASCII));
+            while (risposta.hasRemaining())
+                socket.write(risposta);
+        } catch (IOException ignored) {
+            // il client ha già chiuso la connessione
+        }
+    }
+
+    /**
+     * Chiude una connessione, ignorando gli errori
+     * @param socket il canale della connessione
+     */
+    private static void close(SocketChannel socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Smette di accettare connessioni e chiude quelle aperte.
+     */
+    @Override
+    public void close() {
+        ServerSocketChannel canale = server;
+        if (Objects.nonNull(canale)) {
+            try {
+                canale.close();
+            } catch (IOException ignored) {
+            }
+        }
+        pool.shutdownNow();
+        for (SocketChannel socket : connessioni)
+            close(socket);
+    }
+}
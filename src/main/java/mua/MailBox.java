@@ -1,6 +1,14 @@
 package mua;
 
-import java.util.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import mua.message.Message;
 
@@ -9,16 +17,23 @@ import mua.message.Message;
  * <p>
  * 
  * La MailBox è identificate dal suo nome ed è iterabile sui messaggi in ordine decrescente
+ * <p>
+ * La MailBox è thread-safe: le letture sono protette da un lock di lettura, e quindi non si bloccano
+ * a vicenda, le modifiche da un lock di scrittura; le operazioni composte che devono essere atomiche
+ * rispetto alla MailBox possono acquisire lo stesso lock tramite {@link #lock()}.
  */
 public class MailBox implements Iterable<Message> {
     /** Nome della MailBox */
     private final String nome;
     /** Collezione di messaggi */
-    private final Collection<Message> messaggi = new TreeSet<>(Comparator.reverseOrder());
+    private final RankedSet<Message> messaggi = new RankedSet<>(Comparator.reverseOrder());
+    /** Lock che protegge i messaggi */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     /*
-     * RI:  nome, messaggi != null
-     *      messaggi non contiene null
+     * RI:  nome, messaggi, lock != null
+     *      messaggi è letto solo con lock di lettura (o scrittura) e modificato solo con lock di scrittura
+     *      messaggi non contiene null e size() == messaggi.size()
      *      per ogni messaggio m1, m2 in messaggi m1.compareTo(m2) == 0 sse m1==m2 // messaggi non contiene duplicati
      * 
      * AF:  AF(nome, messaggi) = nome mailBox, { messaggo in messaggi | messaggio }
@@ -41,7 +56,12 @@ public class MailBox implements Iterable<Message> {
      * @return il numero di messaggi all'interno della MailBox
      */
     public int size() {
-        return messaggi.size();
+        lock.readLock().lock();
+        try {
+            return messaggi.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -50,20 +70,71 @@ public class MailBox implements Iterable<Message> {
      * @return {@code true} se non ci sono messaggi
      */
     public boolean isEmpty() {
-        return messaggi.isEmpty();
+        return size() == 0;
     }
 
     /**
+     * Ritorna il messaggio di indice {@code i}, in tempo O(log n)
+     *
      * @param i indice del messaggio
      * @return il messaggio scelto
-     * @throws IndexOutOfBoundsException se l'indice è maggiore o uguale al numero di messaggi
+     * @throws IndexOutOfBoundsException se l'indice è negativo o maggiore o uguale al numero di messaggi
      */
     public Message getMessage(int i) {
-        int j = 0;
-        for (Message message : messaggi)
-            if (i == j++)
-                return message;
-        throw new IndexOutOfBoundsException();
+        lock.readLock().lock();
+        try {
+            return messaggi.get(i);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ritorna l'indice del messaggio {@code message}, in tempo O(log n)
+     *
+     * @param message il messaggio da cercare
+     * @return l'indice del messaggio, o -1 se non è contenuto nella MailBox
+     * @throws NullPointerException se {@code message} è {@code null}
+     */
+    public int indexOf(Message message) {
+        lock.readLock().lock();
+        try {
+            return messaggi.indexOf(message);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ritorna i messaggi con data compresa tra {@code from} (incluso) e {@code to} (escluso),
+     * in ordine decrescente
+     * <p>
+     * Gli estremi dell'intervallo sono individuati in tempo O(log n), senza scorrere la MailBox;
+     * viene restituita una copia (non modificabile) dei soli messaggi dell'intervallo.
+     *
+     * @param from l'istante iniziale, {@code null} per non porre limiti
+     * @param to l'istante finale, {@code null} per non porre limiti
+     * @return la vista dei messaggi nell'intervallo
+     */
+    public List<Message> between(Instant from, Instant to) {
+        // i messaggi sono ordinati per data decrescente: i più recenti formano un prefisso
+        lock.readLock().lock();
+        try {
+            int inizio = Objects.isNull(to) ? 0 : messaggi.rank(m -> !instant(m).isBefore(to));
+            int fine = Objects.isNull(from) ? messaggi.size() : messaggi.rank(m -> !instant(m).isBefore(from));
+            return List.copyOf(messaggi.subList(inizio, Math.max(inizio, fine)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restituisce l'istante della data del {@code message}
+     * @param message il messaggio
+     * @return l'istante della data
+     */
+    private static Instant instant(Message message) {
+        return message.date().value().toInstant();
     }
 
     /**
@@ -80,21 +151,53 @@ public class MailBox implements Iterable<Message> {
      * @param message da aggiungere
      */
     public void addMessage(Message message) {
-        messaggi.add(Objects.requireNonNull(message));
+        Objects.requireNonNull(message);
+        lock.writeLock().lock();
+        try {
+            messaggi.add(message);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Rimuove il messaggio di indice {@code n}
+     * Rimuove il messaggio di indice {@code n}, in tempo O(log n)
      *
      * @param n indice del messaggio da rimuovere
+     * @return il messaggio rimosso
+     * @throws IndexOutOfBoundsException se l'indice è negativo o maggiore o uguale al numero di messaggi
      */
-    public void removeMessage(int n) {
-        messaggi.remove(getMessage(n));
+    public Message removeMessage(int n) {
+        lock.writeLock().lock();
+        try {
+            return messaggi.remove(n);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    /**
+     * Ritorna il lock che protegge i messaggi della MailBox
+     *
+     * @return il lock della MailBox
+     */
+    ReadWriteLock lock() {
+        return lock;
+    }
+
+    /**
+     * Ritorna un iteratore su una copia dei messaggi, che non risente delle modifiche successive
+     */
     @Override
     public Iterator<Message> iterator() {
-        return Collections.unmodifiableCollection(messaggi).iterator();
+        lock.readLock().lock();
+        try {
+            List<Message> copia = new ArrayList<>(messaggi.size());
+            messaggi.forEach(copia::add);
+            return Collections.unmodifiableList(copia).iterator();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
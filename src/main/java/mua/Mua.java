@@ -1,25 +1,42 @@
 package mua;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.StringJoiner;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import mua.message.Message;
+import mua.message.MessageWriter;
 import mua.message.Part;
-import mua.message.header.*;
 import utils.ASCIICharSequence;
 import utils.Storage;
-import utils.UICard;
+import utils.Store;
 import utils.UITable;
-import utils.Storage.Box;
-import utils.Storage.Box.Entry;
+import utils.Store.Box;
+import utils.Store.Box.Entry;
 
 /**
  * Classe che gestisce un Mail User Agent (MUA)
@@ -29,58 +46,299 @@ import utils.Storage.Box.Entry;
  * Un MUA permette di:
  * <ul>
  *     <li>visualizzare le mailbox disponibili</li>
- *     <li>selezionare una mailbox</li>
- *     <li>aggiungere un messaggio alla mailbox selezionata</li>
- *     <li>visualizzare i messaggi della mailbox selezionata</li>
- *     <li>eliminare un messaggio dalla mailbox selezionata</li>
- *     <li>visualizzare un messaggio della mailbox selezionata</li>
+ *     <li>cercare i messaggi che soddisfano una query in tutte le mailbox</li>
+ *     <li>aprire delle sessioni (vedi {@link Session}), con cui selezionare una mailbox e
+ *         visualizzarne, aggiungerne, copiarne ed eliminarne i messaggi</li>
  * </ul>
+ * <p>
+ * Un Mua è thread-safe e può essere condiviso da più sessioni, ciascuna usata da un solo thread:
+ * l'insieme delle mailbox non cambia dopo il caricamento, le corrispondenze tra messaggi ed entry
+ * sono mantenute in una mappa concorrente e ogni modifica di una mailbox (insieme alla sua entry
+ * su disco e ai suoi indici) avviene con il lock di scrittura della mailbox, così che le
+ * letture non si blocchino a vicenda e le modifiche di mailbox diverse procedano in parallelo.
  */
 public class Mua {
-    /** Lista di mailboxes */
-    private final List<MailBox> mBoxes = new ArrayList<>();
-    /** Mailbox selezionata */
-    private MailBox selected;
-    /** Corrispondenza tra Mailbox in memoria e su disco */
+    /** Numero predefinito di messaggi restituiti da una ricerca su tutte le mailbox */
+    public static final int DEFAULT_FIND_LIMIT = 20;
+    /** Numero di messaggi importati scritti su disco in un unico lotto */
+    private static final int LOTTO_IMPORTAZIONE = 256;
+    /** Estensione dei file importati */
+    private static final String ESTENSIONE_IMPORTAZIONE = ".eml";
+    /** Ritardo, in millisecondi, con cui l'indice full-text di una mailbox modificata viene salvato */
+    private static final long RITARDO_SALVATAGGIO = 1000;
+    /** Lista (non modificabile) di mailboxes, ordinate per nome */
+    private final List<MailBox> mBoxes;
+    /** Corrispondenza tra Mailbox in memoria e su disco (non modificata dopo il caricamento) */
     private final Map<MailBox, Box> boxMap = new HashMap<>();
-    /** Corrispondenza tra Message in memoria e su disco */
-    private final Map<Message, Entry> entryMap = new TreeMap<>();
+    /** Corrispondenza tra Message (per identificativo) in memoria e su disco */
+    private final Map<Message, Entry> entryMap = new ConcurrentHashMap<>();
+    /** Indice full-text di ogni Mailbox (la mappa non è modificata dopo il caricamento) */
+    private final Map<MailBox, SearchIndex> searchMap = new HashMap<>();
+    /** Indice delle intestazioni di ogni Mailbox (la mappa non è modificata dopo il caricamento) */
+    private final Map<MailBox, BoxIndex> indexMap = new HashMap<>();
+    /** Mailbox i cui indici sono stati modificati e non ancora salvati */
+    private final Set<MailBox> daSalvare = ConcurrentHashMap.newKeySet();
+    /** Esecutore dei salvataggi degli indici, il cui thread (daemon) termina se inattivo */
+    private final ScheduledThreadPoolExecutor salvataggi = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "mua-search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Codificatore dei messaggi aggiunti per ogni thread, il cui buffer è riutilizzato tra un'aggiunta e l'altra */
+    private final ThreadLocal<MessageWriter> writer = ThreadLocal.withInitial(MessageWriter::new);
 
     /*
-     * RI:  mBoxes, boxMap, entryMap != null e non contengono null
+     * RI:  mBoxes, boxMap, entryMap, searchMap != null e non contengono null
      *      ad ogni MailBox in mBoxes corrisponde una Entry in boxMap e viceversa
-     *      ad ogni Message corrisponde una Entry in entryMap e viceversa
+     *      ad ogni Message corrisponde una Entry in entryMap e viceversa, e message.id() == id(box, entry)
+     *      ad ogni MailBox in mBoxes corrisponde un SearchIndex in searchMap, che indicizza
+     *      (e associa) tutti i suoi messaggi
+     *      ad ogni MailBox in mBoxes corrisponde un BoxIndex in indexMap, che contiene una voce per
+     *      ciascuna entry dei suoi messaggi
+     *      una MailBox, i suoi messaggi in entryMap, il suo SearchIndex e il suo BoxIndex sono
+     *      modificati solo con il lock di scrittura della MailBox; le entry della sua box sono
+     *      eliminate con il lock di scrittura, ma scritte (e rese persistenti) senza, prima di
+     *      aggiungerne i messaggi
+     *      se il SearchIndex o il BoxIndex di una MailBox sono stati modificati dopo l'ultimo
+     *      salvataggio, la MailBox è in daSalvare
      * 
-     * AF:  
+     * AF:  AF(mBoxes, entryMap) = { (mailBox, { (messaggio, entryMap.get(messaggio)) | messaggio in mailBox })
+     *                               | mailBox in mBoxes }
      */
 
     /**
      * Costruisce un'istanza di Mua a partire dalla {@code directory} in cui sono contenute le mailbox.
-     * <p> Legge le mailbox contenute nella {@code directory} e le carica in memoria.
+     * <p> Legge le mailbox contenute nella {@code directory} e le carica in memoria,
+     * utilizzando un thread per ogni processore disponibile.
      * @param directory directory che contiene le mailbox
      * @throws NullPointerException se {@code directory} è {@code null}
      * @throws IllegalStateException se è presente un messaggio corrotto o non ben formato
      */
     public Mua(String directory) {
-        for (Box box : new Storage(Objects.requireNonNull(directory)).boxes()) {
-            MailBox mBox = new MailBox(box.toString());
-            boxMap.put(mBox, box);
-            for (Box.Entry entry : box.entries()) {
-                Message message;
-                try {
-                    message = Message.parse(entry.content());
-                } catch (Exception exception) {
-                    throw new IllegalStateException(
-                        "Il message: " + entry.toString() + " non è codificato secondo lo standard RFC:\n" +
-                        exception.getMessage()
-                    );
+        this(directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Costruisce un'istanza di Mua a partire dalla {@code directory} in cui sono contenute le mailbox.
+     * <p> Legge le mailbox contenute nella {@code directory} e le carica in memoria;
+     * dei messaggi vengono decodificate solo le intestazioni principali, i corpi sono letti su richiesta.
+     * Le intestazioni delle entry non modificate dall'ultimo avvio sono lette dall'indice della box,
+     * che viene ricostruito se mancante, corrotto o non aggiornato; delle altre entry vengono lette
+     * dal disco solo le intestazioni. Allo stesso modo l'indice full-text della box viene aggiornato
+     * decodificando i soli messaggi nuovi o modificati.
+     * La lettura e la decodifica dei messaggi avviene in parallelo su {@code threads} thread,
+     * il risultato è identico a quello di un caricamento sequenziale.
+     * @param directory directory che contiene le mailbox
+     * @param threads numero di thread da utilizzare per il caricamento
+     * @throws NullPointerException se {@code directory} è {@code null}
+     * @throws IllegalArgumentException se {@code threads < 1}
+     * @throws IllegalStateException se è presente un messaggio corrotto o non ben formato
+     */
+    public Mua(String directory, int threads) {
+        this(directory, threads, Storage.Layout.FILES);
+    }
+
+    /**
+     * Costruisce un'istanza di Mua a partire dalla {@code directory} in cui sono contenute le mailbox,
+     * memorizzando i nuovi messaggi secondo il {@code layout} indicato.
+     * <p> Il caricamento avviene come descritto in {@link #Mua(String, int)}: le entry esistenti sono
+     * lette qualunque sia il loro layout, quindi una directory può essere convertita gradualmente.
+     * @param directory directory che contiene le mailbox
+     * @param threads numero di thread da utilizzare per il caricamento
+     * @param layout layout delle entry dei nuovi messaggi
+     * @throws NullPointerException se {@code directory} o {@code layout} sono {@code null}
+     * @throws IllegalArgumentException se {@code threads < 1}
+     * @throws IllegalStateException se è presente un messaggio corrotto o non ben formato
+     */
+    public Mua(String directory, int threads, Storage.Layout layout) {
+        this(new Storage(Objects.requireNonNull(directory), layout), threads);
+    }
+
+    /**
+     * Costruisce un'istanza di Mua a partire dallo {@code store} in cui sono contenute le mailbox.
+     * <p> Il caricamento avviene come descritto in {@link #Mua(String, int)}, ma le mailbox possono
+     * essere memorizzate in un qualsiasi {@link Store}: ad esempio in memoria (vedi
+     * {@link utils.MemoryStore}), per misurare i costi di decodifica, indicizzazione e visualizzazione
+     * dei messaggi indipendentemente da quelli di lettura e scrittura su disco.
+     * @param store lo store che contiene le mailbox
+     * @param threads numero di thread da utilizzare per il caricamento
+     * @throws NullPointerException se {@code store} è {@code null}
+     * @throws IllegalArgumentException se {@code threads < 1}
+     * @throws IllegalStateException se è presente un messaggio corrotto o non ben formato
+     */
+    public Mua(Store store, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Il numero di thread deve essere positivo");
+        final List<? extends Box> boxes = Objects.requireNonNull(store).boxes();
+        final List<MailBox> caricate = new ArrayList<>();
+        /* Lettura in corso delle entry di una box */
+        record Lettura(Box box, BoxIndex indice, SearchIndex ricerca, List<? extends Entry> entries,
+                List<Future<Caricato>> messaggi) {}
+        final List<Lettura> letture = new ArrayList<>();
+        salvataggi.setKeepAliveTime(RITARDO_SALVATAGGIO, TimeUnit.MILLISECONDS);
+        salvataggi.allowCoreThreadTimeOut(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Box box : boxes) {
+                BoxIndex indice = BoxIndex.read(box);
+                SearchIndex ricerca = SearchIndex.read(box);
+                List<? extends Entry> entries = box.entries();
+                List<Future<Caricato>> messaggi = new ArrayList<>();
+                for (Box.Entry entry : entries)
+                    messaggi.add(executor.submit(() -> load(box, entry, indice, ricerca)));
+                letture.add(new Lettura(box, indice, ricerca, entries, messaggi));
+            }
+            // L'unione avviene nell'ordine di lettura sequenziale, indipendentemente dai thread
+            for (Lettura lettura : letture) {
+                MailBox mBox = new MailBox(lettura.box().toString());
+                boxMap.put(mBox, lettura.box());
+                BoxIndex aggiornato = new BoxIndex();
+                boolean modificato = lettura.indice().size() != lettura.entries().size();
+                // L'indice full-text è letto dai thread finché tutti i messaggi della box non sono caricati
+                List<Caricato> caricati = new ArrayList<>();
+                for (Future<Caricato> messaggio : lettura.messaggi())
+                    caricati.add(await(messaggio));
+                SearchIndex ricerca = lettura.ricerca();
+                Set<String> nomi = new HashSet<>();
+                boolean ricercaModificata = false;
+                for (int i = 0; i < lettura.entries().size(); i++) {
+                    Box.Entry entry = lettura.entries().get(i);
+                    Caricato caricato = caricati.get(i);
+                    entryMap.put(caricato.message(), entry);
+                    mBox.addMessage(caricato.message());
+                    aggiornato.put(entry.toString(), caricato.size(), caricato.lastModified(), caricato.message());
+                    modificato |= !caricato.indicizzato();
+                    if (Objects.nonNull(caricato.termini())) {
+                        ricerca.add(entry.toString(), caricato.size(), caricato.lastModified(), caricato.termini());
+                        ricercaModificata = true;
+                    }
+                    ricerca.associate(entry.toString(), caricato.message());
+                    nomi.add(entry.toString());
                 }
-                entryMap.put(message, entry);
-                mBox.addMessage(message);
+                if (modificato)
+                    aggiornato.write(lettura.box());
+                if (ricerca.retain(nomi) || ricercaModificata)
+                    ricerca.write(lettura.box());
+                searchMap.put(mBox, ricerca);
+                indexMap.put(mBox, aggiornato);
+                caricate.add(mBox);
             }
-            mBoxes.add(mBox);
+        } finally {
+            executor.shutdownNow();
         }
-        mBoxes.sort((mb1, mb2) -> mb1.toString().compareTo(mb2.toString()));
+        caricate.sort((mb1, mb2) -> mb1.toString().compareTo(mb2.toString()));
+        mBoxes = List.copyOf(caricate);
+    }
+
+    /**
+     * Messaggio caricato da una entry, con i metadati della entry al momento della lettura
+     * @param message il messaggio caricato
+     * @param size dimensione della entry
+     * @param lastModified data di modifica della entry
+     * @param indicizzato {@code true} se le intestazioni provengono dall'indice della box
+     * @param termini i termini da aggiungere all'indice full-text, {@code null} se la entry vi è già indicizzata
+     */
+    private record Caricato(Message message, long size, long lastModified, boolean indicizzato, Set<String> termini) {}
+
+    /**
+     * Carica il messaggio contenuto nella {@code entry}.
+     * <p> Se l'{@code indice} contiene una voce valida per la entry, le intestazioni principali
+     * vengono lette dall'indice, altrimenti vengono decodificate dalla entry.
+     * <p> Se la entry non è indicizzata (o è cambiata) nell'indice full-text, il messaggio viene
+     * decodificato per intero per estrarne i termini.
+     * @param box la box che contiene la entry
+     * @param entry la entry da cui leggere il messaggio
+     * @param indice l'indice della box che contiene la entry
+     * @param ricerca l'indice full-text della box che contiene la entry (solo letto)
+     * @return il messaggio caricato
+     * @throws IllegalStateException se il messaggio è corrotto o non ben formato
+     */
+    private static Caricato load(Box box, Box.Entry entry, BoxIndex indice, SearchIndex ricerca) {
+        long size = entry.size(), lastModified = entry.lastModified();
+        BoxIndex.Voce voce = indice.get(entry.toString(), size, lastModified);
+        Message message;
+        if (Objects.nonNull(voce))
+            message = Message.lazy(
+                id(box, entry), voce.sender(), voce.recipient(), voce.subject(), voce.date(), entry::content);
+        else
+            message = parseHeaders(id(box, entry), entry);
+        Set<String> termini = ricerca.contains(entry.toString(), size, lastModified) ? null : SearchIndex.terms(message);
+        return new Caricato(message, size, lastModified, Objects.nonNull(voce), termini);
+    }
+
+    /**
+     * Decodifica le intestazioni del messaggio contenuto nella {@code entry}.
+     * @param id l'identificativo del messaggio
+     * @param entry la entry da cui leggere il messaggio
+     * @return il messaggio, di cui sono decodificate solo le intestazioni
+     * @throws IllegalStateException se il messaggio è corrotto o non ben formato
+     */
+    private static Message parseHeaders(long id, Box.Entry entry) {
+        try {
+            ByteBuffer buffer = Objects.requireNonNull(entry.buffer(), "Entry non leggibile");
+            return Message.parseHeaders(buffer, id, entry::content);
+        } catch (Exception exception) {
+            throw new IllegalStateException(
+                "Il message: " + entry.toString() + " non è codificato secondo lo standard RFC:\n" +
+                exception.getMessage()
+            );
+        }
+    }
+
+    /**
+     * Restituisce l'identificativo stabile del messaggio contenuto nella {@code entry}: l'impronta dei
+     * nomi della box e della entry, che non cambia tra un avvio e l'altro e distingue due copie dello
+     * stesso messaggio.
+     * @param box la box che contiene la entry
+     * @param entry la entry
+     * @return l'identificativo del messaggio
+     */
+    private static long id(Box box, Entry entry) {
+        return Message.fingerprint(box + "/" + entry);
+    }
+
+    /**
+     * Restituisce il {@code message} memorizzato nella {@code entry} della {@code box}.
+     * <p>
+     * Del messaggio restituito sono mantenute in memoria le sole intestazioni principali: le parti
+     * e la codifica originale sono lette dalla entry quando necessario, così che né il messaggio
+     * decodificato né la sua codifica restino in memoria.
+     * @param box la box che contiene la entry
+     * @param entry la entry in cui è stato scritto il messaggio
+     * @param message il messaggio
+     * @return il messaggio memorizzato, identificato dalla entry (vedi {@link #id})
+     */
+    private static Message stored(Box box, Entry entry, Message message) {
+        return Message.lazy(id(box, entry), message.sender(), message.recipient(), message.subject(),
+            message.date(), entry::content);
+    }
+
+    /**
+     * Attende il completamento della lettura di un messaggio.
+     * @param <T> il tipo del risultato della lettura
+     * @param future la lettura in corso
+     * @return il risultato della lettura
+     * @throws IllegalStateException se la lettura fallisce o viene interrotta
+     */
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw new IllegalStateException(exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Caricamento delle mailbox interrotto");
+        }
+    }
+
+    /**
+     * Apre una nuova sessione sul Mua, senza mailbox selezionata.
+     * @return la sessione
+     */
+    public Session session() {
+        return new Session(this);
     }
 
     /**
@@ -104,138 +362,528 @@ public class Mua {
     }
 
     /**
-     * Seleziona la mailbox di indice {@code n} e ne restituisce il nome.
-     * @param n l'indice della mailbox da selezionare
-     * @return il nome della mailbox selezionata
+     * Restituisce la mailbox di indice {@code n}.
+     * @param n l'indice della mailbox
+     * @return la mailbox
      * @throws IndexOutOfBoundsException se {@code n} supera il numero di mailbox
      */
-    public String selectMailbox(int n) {
+    MailBox mailBox(int n) {
         if (n >= mBoxes.size())
             throw new IndexOutOfBoundsException("Indice maggiore del numero di mailbox");
-        selected = mBoxes.get(n);
-        return selected.name();
+        return mBoxes.get(n);
     }
 
     /**
-     * Controlla che sia stata precedentemente selezionata una mailbox.
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * Restituisce le mailbox del Mua, ordinate per nome.
+     * @return la lista (non modificabile) delle mailbox
      */
-    private void checkSelected() {
-        if (Objects.isNull(selected))
-            throw new IllegalStateException("Nessuna mailbox selezionata");
+    List<MailBox> mailBoxList() {
+        return mBoxes;
     }
 
     /**
-     * Restituisce il numero di messaggi contenuti nella mailbox selezionata.
-     * @return il numero di messaggi contenuti nella mailbox selezionata
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * Restituisce una vista in sola lettura dei byte del {@code message} così come sono memorizzati
+     * su disco, senza copiarli.
+     * @param message il messaggio, contenuto in una mailbox del Mua
+     * @return i byte, o {@code null} se il messaggio non è (più) su disco
      */
-    public int mailBoxMessages() {
-        checkSelected();
-        return selected.size();
+    ByteBuffer buffer(Message message) {
+        Entry entry = entryMap.get(message);
+        return Objects.isNull(entry) ? null : entry.buffer();
     }
 
     /**
-     * Aggiunge il message {@code message} alla mailbox selezionata.
-     * @param message il message da aggiungere
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
-     * @throws NullPointerException se {@code message} è {@code null}
+     * Cerca in tutte le mailbox i (al più) {@code limit} messaggi più recenti che soddisfano la
+     * {@code query} (vedi {@code Query}) e ne passa la descrizione a {@code output}.
+     * <p>
+     * Le mailbox vengono esaminate in parallelo e i risultati sono passati in ordine decrescente di
+     * data man mano che vengono trovati, senza attendere la fine della ricerca. Ogni risultato riporta
+     * la mailbox che contiene il messaggio e il suo indice in essa, seguiti da data, mittente e oggetto.
+     * @param query la query
+     * @param limit il numero massimo di messaggi da restituire
+     * @param output il consumatore delle descrizioni dei messaggi trovati
+     * @return il numero di messaggi trovati
+     * @throws NullPointerException se {@code query} o {@code output} sono {@code null}
+     * @throws IllegalArgumentException se la {@code query} non è valida o {@code limit < 1}
      */
-    public void addMessage(Message message) {
-        checkSelected();
-        entryMap.put(message, boxMap.get(selected).entry(ASCIICharSequence.of(Objects.requireNonNull(message).toString())));
-        selected.addMessage(message);
+    public int findMessages(String query, int limit, Consumer<String> output) {
+        Objects.requireNonNull(output);
+        return GlobalSearch.search(Query.parse(query), mBoxes, searchMap, limit, risultato -> {
+            MailBox mailBox = risultato.mailBox();
+            Message message = risultato.message();
+            ZonedDateTime data = message.date().value();
+            output.accept(String.format("[%s #%d] %s %s  %s  %s", mailBox.name(), mailBox.indexOf(message) + 1,
+                data.toLocalDate(), data.toLocalTime(), message.sender().value().getEmail(),
+                message.subject().value()));
+        });
     }
 
     /**
-     * Restituisce una tabella contenente i messaggi della mailbox selezionata.
-     * @return la stringa che rappresenta la tabella
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * Scrive su disco il {@code message} e lo aggiunge alla {@code mailBox} e al suo indice full-text,
+     * in modo atomico rispetto alle altre modifiche della mailbox.
+     * <p>
+     * Il messaggio è scritto, e reso persistente, senza il lock della mailbox, così che le scritture
+     * concorrenti nella stessa mailbox possano condividere una sincronizzazione (vedi
+     * {@link Box#durableEntry}); il lock di scrittura è preso solo per aggiungere il messaggio scritto
+     * alla mailbox e ai suoi indici. Lo stesso vale per la copia, la consegna e l'importazione.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param message il messaggio da aggiungere
+     * @throws IllegalArgumentException se il messaggio non può essere codificato in caratteri ASCII
+     * @throws IllegalStateException se non è possibile scrivere il messaggio su disco
      */
-    public String listMessages() {
-        checkSelected();
-        List<List<String>> content = new ArrayList<>();
-        for (Message message : selected) {
-            LinkedList<String> row = new LinkedList<>();
-            row.add((message.sender().value()).getEmail());
-            StringJoiner sj = new StringJoiner("\n");
-            for (Address address : message.recipient().value())
-                sj.add(address.getEmail());
-            row.add(sj.toString()); // To
-            row.add(message.subject().value().toString()); // Subject
-            ZonedDateTime data = message.date().value();
-            row.addFirst(data.toLocalDate() + "\n" + data.toLocalTime()); // Date
-            content.add(row);
+    void add(MailBox mailBox, Message message) {
+        MessageWriter encoder = writer.get();
+        Box box = boxMap.get(mailBox);
+        Entry entry = box.entry(channel -> encoder.write(message, channel));
+        if (Objects.isNull(entry))
+            throw new IllegalStateException("Impossibile scrivere il messaggio");
+        Set<String> termini = SearchIndex.terms(message);
+        mailBox.lock().writeLock().lock();
+        try {
+            publish(mailBox, entry, message.withId(id(box, entry)), termini);
+        } finally {
+            mailBox.lock().writeLock().unlock();
         }
+    }
 
-        return UITable.table(List.of("Date", "From", "To", "Subject"), content, true, true);
+    /**
+     * Copia il {@code message} della mailbox {@code sorgente} nella mailbox {@code destinazione}, in
+     * modo atomico rispetto alle altre modifiche della destinazione.
+     * <p>
+     * Il messaggio è letto con il lock di lettura della sorgente, così che la entry da cui è
+     * decodificato non possa essere eliminata durante la lettura. Se la codifica originale del
+     * messaggio è nota, viene letta una sola volta e copiata così com'è senza codificare nuovamente
+     * il messaggio: i termini della copia sono ricavati decodificando quella stessa codifica, dopo
+     * aver rilasciato il lock della sorgente. La copia legge le parti dal disco quando necessario.
+     * @param sorgente la mailbox che contiene il messaggio, una di quelle del Mua
+     * @param message il messaggio da copiare
+     * @param destinazione la mailbox di destinazione, una di quelle del Mua
+     * @return {@code true} se il messaggio è stato copiato, {@code false} se non era (più) nella sorgente
+     * @throws IllegalStateException se il messaggio su disco è corrotto o non è possibile scrivere la copia
+     */
+    boolean copy(MailBox sorgente, Message message, MailBox destinazione) {
+        ASCIICharSequence codifica;
+        sorgente.lock().readLock().lock();
+        try {
+            if (sorgente.indexOf(message) < 0)
+                return false;
+            codifica = message.original();
+        } finally {
+            sorgente.lock().readLock().unlock();
+        }
+        Set<String> termini = SearchIndex.terms(message, codifica);
+        MessageWriter encoder = writer.get();
+        Box box = boxMap.get(destinazione);
+        Entry entry = box.entry(Objects.nonNull(codifica)
+            ? scrittore(codifica)
+            : channel -> encoder.write(message, channel));
+        if (Objects.isNull(entry))
+            throw new IllegalStateException("Impossibile scrivere la copia del messaggio");
+        destinazione.lock().writeLock().lock();
+        try {
+            publish(destinazione, entry, stored(box, entry, message), termini);
+            return true;
+        } finally {
+            destinazione.lock().writeLock().unlock();
+        }
     }
 
     /**
-     * Controlla che l'indice {@code index} sia valido per la mailbox selezionata.
-     * @param index l'indice da controllare
-     * @throws IndexOutOfBoundsException se {@code index} supera il numero di messaggi contenuti nella mailbox
+     * Restituisce le parti del {@code message} della {@code mailBox}, lette con il lock di lettura
+     * della mailbox così che la entry da cui sono decodificate non possa essere eliminata durante la
+     * lettura.
+     * @param mailBox la mailbox che contiene il messaggio, una di quelle del Mua
+     * @param message il messaggio
+     * @return le parti del messaggio, {@code null} se il messaggio non è (più) nella mailbox
+     * @throws IllegalStateException se il messaggio su disco è corrotto
      */
-    private void checkIndex(int index) {
-        if (index >= selected.size())
-            throw new IndexOutOfBoundsException(
-                "Indice: " + index + 
-                "maggiore del numero di messaggi nella mailbox selezionata: " + selected.size()
-            );
+    List<Part> parts(MailBox mailBox, Message message) {
+        mailBox.lock().readLock().lock();
+        try {
+            if (mailBox.indexOf(message) < 0)
+                return null;
+            List<Part> parti = new ArrayList<>();
+            for (Part parte : message)
+                parti.add(parte);
+            return parti;
+        } finally {
+            mailBox.lock().readLock().unlock();
+        }
     }
 
     /**
-     * Elimina il messaggio di indice {@code n} dalla mailbox selezionata.
-     * @param n l'indice del messaggio da eliminare
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
-     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox
+     * Scrive su disco le {@code codifiche} così come sono e aggiunge i corrispondenti {@code messaggi}
+     * alla {@code mailBox} e al suo indice full-text, in modo atomico rispetto alle altre modifiche
+     * della mailbox.
+     * <p>
+     * Le codifiche sono scritte in un unico lotto, reso persistente con una sola sincronizzazione della
+     * directory della mailbox (vedi {@link Box#entries(List)}): al ritorno i messaggi aggiunti sono
+     * su disco anche in caso di crash.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param messaggi i messaggi da aggiungere, ciascuno decodificato dalla rispettiva codifica
+     * @param codifiche le codifiche dei messaggi
+     * @return per ogni messaggio, se è stato aggiunto
+     * @throws IllegalArgumentException se le due liste hanno lunghezze diverse
      */
-    public void deleteMessage(int n) {
-        checkSelected();
-        checkIndex(n);
-        entryMap.get(selected.getMessage(n)).delete();
-        selected.removeMessage(n);
+    List<Boolean> deliver(MailBox mailBox, List<Message> messaggi, List<ASCIICharSequence> codifiche) {
+        if (messaggi.size() != codifiche.size())
+            throw new IllegalArgumentException("Ogni messaggio deve avere una codifica");
+        List<Store.ContentWriter> scrittori = new ArrayList<>();
+        for (ASCIICharSequence codifica : codifiche)
+            scrittori.add(scrittore(codifica));
+        List<Boolean> esiti = new ArrayList<>();
+        Box box = boxMap.get(mailBox);
+        List<? extends Entry> entries = box.entries(scrittori);
+        List<Set<String>> termini = new ArrayList<>();
+        for (int i = 0; i < messaggi.size(); i++)
+            termini.add(Objects.isNull(entries.get(i)) ? null : SearchIndex.terms(messaggi.get(i)));
+        mailBox.lock().writeLock().lock();
+        try {
+            for (int i = 0; i < messaggi.size(); i++) {
+                Entry entry = entries.get(i);
+                esiti.add(Objects.nonNull(entry));
+                if (Objects.nonNull(entry))
+                    publish(mailBox, entry, stored(box, entry, messaggi.get(i)), termini.get(i));
+            }
+        } finally {
+            mailBox.lock().writeLock().unlock();
+        }
+        return esiti;
     }
 
     /**
-     * Restituisce una stringa che rappresenta il messaggio di indice {@code n} della mailbox selezionata.
+     * Importa nella mailbox di indice {@code n} i messaggi contenuti nei file {@code .eml} della
+     * {@code directory}.
      * <p>
-     * Il messaggio è rappresentato come una card di intestazioni e corpi del messaggio.
-     * @param n l'indice del messaggio da leggere
-     * @return la stringa che rappresenta il messaggio
-     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
-     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox
-     */
-    public String readMessage(int n) {
-        checkSelected();
-        checkIndex(n);
-        Message message = selected.getMessage(n);
-        List<String> headers = new ArrayList<>(), values = new ArrayList<>();
-
-        for (Part parte : message) {
-            for (Header header : parte) {
-                switch (header.type()) {
-                    case "From", "Subject", "Date" -> {
-                        headers.add(header.type());
-                        values.add(header.value().toString());
-                    }
-                    case "To" -> {
-                        headers.add(header.type());
-                        StringJoiner sj = new StringJoiner("\n");
-                        for (Address address : ((Recipient) header).value())
-                            sj.add(address.toString());
-                        values.add(sj.toString());
-                    }
-                    case "Content-Type" -> {
-                        headers.add("Part\n" + header.value());
-                        values.add(parte.body());
-                    }
-                    default -> {
-                    }
+     * I file della directory (non delle sue sottodirectory) sono esaminati in ordine di nome: quelli
+     * nascosti, senza estensione {@code .eml} (senza distinzione tra maiuscole e minuscole) o che non
+     * sono file regolari vengono saltati. Gli altri sono letti, validati con {@link Message#parse} e
+     * indicizzati in parallelo su {@code threads} thread; le righe possono essere terminate da
+     * {@code \r\n}, ma sono memorizzate terminate da {@code \n} come le altre entry. I file che non
+     * contengono un messaggio ASCII valido vengono rifiutati.
+     * <p>
+     * I messaggi validi sono aggiunti nell'ordine dei file, in lotti di (al più) 256 messaggi scritti
+     * mentre vengono letti i file successivi: ogni lotto è reso persistente con una sola
+     * sincronizzazione della directory della mailbox (vedi {@link Box#entries(List)}) ed è aggiunto
+     * in modo atomico rispetto alle altre modifiche della mailbox. In memoria sono mantenute solo le
+     * intestazioni dei messaggi importati, come per quelli caricati all'avvio.
+     * @param n l'indice della mailbox
+     * @param directory la directory che contiene i file da importare
+     * @param threads numero di thread da utilizzare per la lettura dei file
+     * @return l'esito dell'importazione di ogni file della directory, in ordine di nome
+     * @throws NullPointerException se {@code directory} è {@code null}
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di mailbox
+     * @throws IllegalArgumentException se {@code threads < 1} o la {@code directory} non può essere letta
+     * @throws IllegalStateException se l'importazione viene interrotta (i lotti già scritti restano
+     *                               nella mailbox)
+     */
+    public List<Importazione> importMessages(int n, String directory, int threads) {
+        return importMessages(mailBox(n), Path.of(Objects.requireNonNull(directory)), threads);
+    }
+
+    /**
+     * Importa nella {@code mailBox} i messaggi contenuti nei file {@code .eml} della {@code directory}
+     * (vedi {@link #importMessages(int, String, int)}).
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param directory la directory che contiene i file da importare
+     * @param threads numero di thread da utilizzare per la lettura dei file
+     * @return l'esito dell'importazione di ogni file della directory, in ordine di nome
+     * @throws IllegalArgumentException se {@code threads < 1} o la {@code directory} non può essere letta
+     * @throws IllegalStateException se l'importazione viene interrotta
+     */
+    List<Importazione> importMessages(MailBox mailBox, Path directory, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Il numero di thread deve essere positivo");
+        List<Path> files;
+        try (Stream<Path> elenco = Files.list(directory)) {
+            files = elenco.sorted().toList();
+        } catch (IOException | UncheckedIOException exception) {
+            throw new IllegalArgumentException("Impossibile leggere la directory: " + directory);
+        }
+        List<Importazione> esiti = new ArrayList<>(Collections.nCopies(files.size(), null));
+        /* Lettura in corso del file di indice indice */
+        record Lettura(int indice, Future<Letto> letto) {}
+        Deque<Lettura> letture = new ArrayDeque<>();
+        // Le letture in corso sono limitate, così da non tenere in memoria tutti i messaggi da importare
+        int finestra = 2 * Math.max(LOTTO_IMPORTAZIONE, threads);
+        List<Letto> lotto = new ArrayList<>(LOTTO_IMPORTAZIONE);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            int prossimo = 0;
+            while (prossimo < files.size() || !letture.isEmpty()) {
+                for (; prossimo < files.size() && letture.size() < finestra; prossimo++) {
+                    Path file = files.get(prossimo);
+                    String motivo = salta(file);
+                    int indice = prossimo;
+                    if (Objects.nonNull(motivo))
+                        esiti.set(indice, new Importazione(file, Importazione.Esito.SALTATO, motivo));
+                    else
+                        letture.add(new Lettura(indice, executor.submit(() -> leggi(indice, file))));
+                }
+                if (letture.isEmpty())
+                    continue;
+                Lettura lettura = letture.remove();
+                try {
+                    lotto.add(lettura.letto().get());
+                } catch (ExecutionException exception) {
+                    esiti.set(lettura.indice(), new Importazione(files.get(lettura.indice()),
+                        Importazione.Esito.RIFIUTATO, rifiuto(exception.getCause())));
+                }
+                if (lotto.size() == LOTTO_IMPORTAZIONE) {
+                    importa(mailBox, lotto, files, esiti);
+                    lotto.clear();
                 }
             }
+            importa(mailBox, lotto, files, esiti);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Importazione dei messaggi interrotta");
+        } finally {
+            executor.shutdownNow();
         }
+        return List.copyOf(esiti);
+    }
+
+    /**
+     * Messaggio letto da un file da importare
+     * @param indice l'indice del file tra quelli della directory
+     * @param message il messaggio, decodificato per intero
+     * @param codifica la codifica del messaggio, con le righe terminate da {@code \n}
+     * @param termini i termini da aggiungere all'indice full-text
+     */
+    private record Letto(int indice, Message message, ASCIICharSequence codifica, Set<String> termini) {}
+
+    /**
+     * Stabilisce se un file da importare va saltato.
+     * @param file il file
+     * @return il motivo per cui il file va saltato, {@code null} se va importato
+     */
+    private static String salta(Path file) {
+        String nome = file.getFileName().toString();
+        if (nome.startsWith("."))
+            return "File nascosto";
+        if (!nome.toLowerCase(Locale.ROOT).endsWith(ESTENSIONE_IMPORTAZIONE))
+            return "Estensione diversa da " + ESTENSIONE_IMPORTAZIONE;
+        if (!Files.isRegularFile(file))
+            return "Non è un file regolare";
+        return null;
+    }
+
+    /**
+     * Legge e decodifica il messaggio contenuto nel {@code file}, estraendone i termini da indicizzare.
+     * @param indice l'indice del file tra quelli della directory
+     * @param file il file
+     * @return il messaggio letto
+     * @throws IOException se non è possibile leggere il file
+     * @throws IllegalArgumentException se il file non contiene un messaggio ASCII valido
+     */
+    private static Letto leggi(int indice, Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int n = 0;
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] != '\r' || i + 1 == bytes.length || bytes[i + 1] != '\n')
+                bytes[n++] = bytes[i];
+        ASCIICharSequence codifica;
+        try {
+            codifica = ASCIICharSequence.of(bytes, 0, n);
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Il messaggio deve essere codificato in ASCII");
+        }
+        Message message = Message.parse(codifica);
+        return new Letto(indice, message, codifica, SearchIndex.terms(message));
+    }
+
+    /**
+     * Restituisce il motivo per cui è stato rifiutato un file, data l'eccezione sollevata leggendolo.
+     * @param causa l'eccezione
+     * @return il motivo
+     */
+    private static String rifiuto(Throwable causa) {
+        if (causa instanceof IOException)
+            return "Impossibile leggere il file";
+        return "Messaggio non valido: " + Objects.requireNonNullElse(causa.getMessage(), causa.toString());
+    }
+
+    /**
+     * Scrive su disco un lotto di messaggi letti e li aggiunge alla {@code mailBox} e al suo indice
+     * full-text, in modo atomico rispetto alle altre modifiche della mailbox, registrandone gli esiti.
+     * <p>
+     * Alla mailbox vengono aggiunti messaggi di cui sono mantenute in memoria le sole intestazioni
+     * principali, le parti sono lette dal disco quando necessario.
+     * @param mailBox la mailbox
+     * @param lotto i messaggi letti
+     * @param files i file della directory importata
+     * @param esiti gli esiti dell'importazione dei file, aggiornati con quelli del lotto
+     */
+    private void importa(MailBox mailBox, List<Letto> lotto, List<Path> files, List<Importazione> esiti) {
+        if (lotto.isEmpty())
+            return;
+        List<Store.ContentWriter> scrittori = new ArrayList<>();
+        for (Letto letto : lotto)
+            scrittori.add(scrittore(letto.codifica()));
+        Box box = boxMap.get(mailBox);
+        List<? extends Entry> entries = box.entries(scrittori);
+        mailBox.lock().writeLock().lock();
+        try {
+            for (int i = 0; i < lotto.size(); i++) {
+                Letto letto = lotto.get(i);
+                Path file = files.get(letto.indice());
+                Entry entry = entries.get(i);
+                if (Objects.isNull(entry)) {
+                    esiti.set(letto.indice(), new Importazione(file, Importazione.Esito.RIFIUTATO,
+                        "Impossibile scrivere il messaggio"));
+                    continue;
+                }
+                publish(mailBox, entry, stored(box, entry, letto.message()), letto.termini());
+                esiti.set(letto.indice(), Importazione.importato(file));
+            }
+        } finally {
+            mailBox.lock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Restituisce uno scrittore che scrive la {@code codifica} così com'è.
+     * @param codifica la codifica
+     * @return lo scrittore
+     */
+    private static Store.ContentWriter scrittore(ASCIICharSequence codifica) {
+        return channel -> {
+            ByteBuffer buffer = codifica.asByteBuffer();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        };
+    }
 
-        return UICard.card(headers, values);
+    /**
+     * Aggiunge alla {@code mailBox} e ai suoi indici il {@code message} già scritto nella {@code entry}
+     * della sua box (va chiamato con il lock di scrittura)
+     * @param mailBox la mailbox
+     * @param entry la entry in cui è scritto il messaggio
+     * @param message il messaggio, identificato dalla entry
+     * @param termini i termini del messaggio (vedi {@link SearchIndex#terms})
+     */
+    private void publish(MailBox mailBox, Entry entry, Message message, Set<String> termini) {
+        entryMap.put(message, entry);
+        mailBox.addMessage(message);
+        index(mailBox, entry, message, termini);
+    }
+
+    /**
+     * Aggiunge all'indice full-text della {@code mailBox} il {@code message} contenuto nella {@code entry},
+     * di cui sono già stati estratti i {@code termini} (dal messaggio decodificato, così che non debba
+     * essere letto nuovamente dalla entry), e ne aggiunge le intestazioni all'indice della box.
+     * <p>
+     * Gli indici vengono salvati poco dopo (vedi {@link #modified}).
+     * @param mailBox la mailbox che contiene il messaggio
+     * @param entry la entry del messaggio
+     * @param message il messaggio
+     * @param termini i termini del messaggio (vedi {@link SearchIndex#terms})
+     */
+    private void index(MailBox mailBox, Entry entry, Message message, Set<String> termini) {
+        SearchIndex ricerca = searchMap.get(mailBox);
+        ricerca.add(entry.toString(), entry.size(), entry.lastModified(), termini);
+        ricerca.associate(entry.toString(), message);
+        indexMap.get(mailBox).put(entry.toString(), entry.size(), entry.lastModified(), message);
+        modified(mailBox);
+    }
+
+    /**
+     * Registra che gli indici (full-text e delle intestazioni) della {@code mailBox} sono stati
+     * modificati (va chiamato con il lock di scrittura).
+     * <p>
+     * Gli indici vengono salvati {@link #RITARDO_SALVATAGGIO} millisecondi dopo la prima modifica non
+     * salvata, così che le modifiche ravvicinate siano salvate insieme; se il programma termina prima
+     * (e non viene invocato {@link #flush()}) le entry non salvate vengono decodificate e indicizzate
+     * al successivo avvio.
+     * @param mailBox la mailbox
+     */
+    private void modified(MailBox mailBox) {
+        if (daSalvare.add(mailBox))
+            salvataggi.schedule(() -> save(mailBox), RITARDO_SALVATAGGIO, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Salva gli indici della {@code mailBox}, se sono stati modificati dopo l'ultimo salvataggio,
+     * con il lock di lettura della mailbox (così che non vengano modificati durante il salvataggio).
+     * @param mailBox la mailbox
+     */
+    private void save(MailBox mailBox) {
+        mailBox.lock().readLock().lock();
+        try {
+            if (daSalvare.remove(mailBox)) {
+                searchMap.get(mailBox).write(boxMap.get(mailBox));
+                indexMap.get(mailBox).write(boxMap.get(mailBox));
+            }
+        } finally {
+            mailBox.lock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Salva subito gli indici (full-text e delle intestazioni) delle mailbox modificati e non ancora
+     * salvati.
+     * <p>
+     * Va invocato prima di terminare il programma, perché al successivo avvio non debbano essere
+     * decodificate e indicizzate nuovamente le entry aggiunte.
+     */
+    public void flush() {
+        for (MailBox mailBox : mBoxes)
+            save(mailBox);
+    }
+
+    /**
+     * Elimina il {@code message} dalla {@code mailBox}, dai suoi indici e dal disco, in modo
+     * atomico rispetto alle altre modifiche della mailbox.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param message il messaggio da eliminare
+     * @return {@code true} se il messaggio è stato eliminato, {@code false} se non era (più) nella mailbox
+     */
+    boolean delete(MailBox mailBox, Message message) {
+        mailBox.lock().writeLock().lock();
+        try {
+            int n = mailBox.indexOf(message);
+            if (n < 0)
+                return false;
+            mailBox.removeMessage(n);
+            Entry entry = entryMap.remove(message);
+            searchMap.get(mailBox).remove(entry.toString());
+            indexMap.get(mailBox).remove(entry.toString());
+            modified(mailBox);
+            entry.delete();
+            return true;
+        } finally {
+            mailBox.lock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Cerca nella {@code mailBox}, tramite il suo indice full-text, i messaggi che contengono tutti
+     * i termini della {@code query}.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param query i termini da cercare
+     * @return i messaggi trovati, in ordine decrescente
+     * @throws IllegalArgumentException se la query contiene un termine troppo lungo per essere indicizzato
+     */
+    List<Message> search(MailBox mailBox, String query) {
+        List<Message> trovati;
+        mailBox.lock().readLock().lock();
+        try {
+            trovati = new ArrayList<>(searchMap.get(mailBox).search(query));
+        } finally {
+            mailBox.lock().readLock().unlock();
+        }
+        trovati.sort(Comparator.reverseOrder());
+        return trovati;
+    }
+
+    /**
+     * Restituisce i messaggi della {@code mailBox} che soddisfano la {@code query}.
+     * @param mailBox la mailbox, una di quelle del Mua
+     * @param query la query
+     * @return i messaggi trovati, in ordine decrescente
+     */
+    List<Message> filter(MailBox mailBox, Query query) {
+        return query.execute(mailBox, searchMap.get(mailBox));
     }
 }
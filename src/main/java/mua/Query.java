@@ -0,0 +1,325 @@
+package mua;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import mua.message.Message;
+import mua.message.header.Address;
+import utils.DateEncoding;
+
+/**
+ * Query classe concreta immutabile che rappresenta una ricerca sulle intestazioni dei messaggi
+ * <p>
+ * Una query è una sequenza di condizioni separate da spazi, che devono essere tutte soddisfatte:
+ * <ul>
+ *     <li>{@code from:glob} l'indirizzo del mittente corrisponde a {@code glob}</li>
+ *     <li>{@code to:glob} l'indirizzo di almeno un destinatario corrisponde a {@code glob}</li>
+ *     <li>{@code subject:testo} l'oggetto contiene tutte le parole di {@code testo}, o corrisponde
+ *         a {@code testo} se questo contiene caratteri jolly</li>
+ *     <li>{@code after:aaaa-mm-gg} il messaggio è stato inviato a partire dal giorno indicato</li>
+ *     <li>{@code before:aaaa-mm-gg} il messaggio è stato inviato prima del giorno indicato</li>
+ *     <li>{@code parola} l'oggetto o un corpo del messaggio contengono la parola</li>
+ * </ul>
+ * Nei glob {@code *} corrisponde a una sequenza qualsiasi di caratteri e {@code ?} a un carattere;
+ * i confronti non distinguono maiuscole e minuscole, i giorni sono intesi nel fuso orario di Roma.
+ * Un valore può essere racchiuso tra virgolette per includervi degli spazi
+ * (ad esempio {@code subject:"core sicura"}).
+ */
+final class Query {
+    /** Numero di candidati oltre il quale le condizioni sono verificate in parallelo */
+    private static final int SOGLIA_PARALLELA = 2048;
+
+    /** Istante a partire dal quale cercare, null se non limitato */
+    private final Instant after;
+    /** Istante prima del quale cercare, null se non limitato */
+    private final Instant before;
+    /** Parole che devono comparire nell'oggetto o nei corpi */
+    private final Set<String> parole = new LinkedHashSet<>();
+    /** Parole che devono comparire nell'oggetto */
+    private final Set<String> paroleOggetto = new LinkedHashSet<>();
+    /** Condizioni sulle intestazioni, verificate messaggio per messaggio */
+    private final List<Predicate<Message>> condizioni = new ArrayList<>();
+
+    /*
+     * RI:  parole, paroleOggetto, condizioni != null e non contengono null
+     *      parole e paroleOggetto contengono termini nel formato di SearchIndex.terms
+     *
+     * AF:  AF(after, before, parole, condizioni) = i messaggi m tali che
+     *          after <= data(m) < before (gli estremi null non pongono limiti),
+     *          ogni parola di parole è un termine di m e
+     *          m soddisfa tutte le condizioni
+     */
+
+    /**
+     * Costruisce la query a partire dalla sua rappresentazione testuale
+     * @param query la query
+     * @throws IllegalArgumentException se una condizione non è valida (vedi {@link #parse})
+     */
+    private Query(String query) {
+        Instant da = null, a = null;
+        for (String token : tokens(query)) {
+            int duepunti = token.indexOf(':');
+            String chiave = duepunti < 0 ? "" : token.substring(0, duepunti).toLowerCase(Locale.ROOT);
+            String valore = token.substring(duepunti + 1);
+            switch (chiave) {
+                case "from", "to", "subject", "after", "before" -> {
+                    if (valore.isEmpty())
+                        throw new IllegalArgumentException("Condizione senza valore: " + token);
+                }
+                default -> {
+                    chiave = "";
+                    valore = token;
+                }
+            }
+            switch (chiave) {
+                case "from" -> {
+                    Pattern glob = glob(valore);
+                    condizioni.add(m -> glob.matcher(m.sender().value().getEmail()).matches());
+                }
+                case "to" -> {
+                    Pattern glob = glob(valore);
+                    condizioni.add(m -> m.recipient().value().stream()
+                            .map(Address::getEmail).anyMatch(email -> glob.matcher(email).matches()));
+                }
+                case "subject" -> {
+                    if (valore.indexOf('*') >= 0 || valore.indexOf('?') >= 0) {
+                        Pattern glob = glob(valore);
+                        condizioni.add(m -> glob.matcher(m.subject().value().toString()).matches());
+                    } else {
+                        Set<String> cercate = new LinkedHashSet<>();
+                        SearchIndex.queryTerms(valore, cercate);
+                        if (cercate.isEmpty())
+                            throw new IllegalArgumentException("Condizione senza parole: " + token);
+                        paroleOggetto.addAll(cercate);
+                        condizioni.add(m -> subjectTerms(m).containsAll(cercate));
+                    }
+                }
+                case "after" -> {
+                    Instant giorno = day(valore);
+                    if (Objects.isNull(da) || giorno.isAfter(da))
+                        da = giorno;
+                }
+                case "before" -> {
+                    Instant giorno = day(valore);
+                    if (Objects.isNull(a) || giorno.isBefore(a))
+                        a = giorno;
+                }
+                default -> {
+                    Set<String> cercate = new LinkedHashSet<>();
+                    SearchIndex.queryTerms(valore, cercate);
+                    if (cercate.isEmpty())
+                        throw new IllegalArgumentException("Parola non valida: " + token);
+                    parole.addAll(cercate);
+                }
+            }
+        }
+        this.after = da;
+        this.before = a;
+    }
+
+    /**
+     * Costruisce la query descritta dalla stringa {@code query}
+     * @param query la query
+     * @return la query
+     * @throws NullPointerException se {@code query} è {@code null}
+     * @throws IllegalArgumentException se {@code query} non contiene condizioni, se una condizione
+     *                                  non ha valore, se una parola o una condizione {@code subject:}
+     *                                  senza caratteri jolly non contiene termini indicizzabili (ad
+     *                                  esempio {@code subject:!!!}) o contiene un termine troppo lungo
+     *                                  per essere indicizzato, o se una data non è nel formato
+     *                                  aaaa-mm-gg
+     */
+    static Query parse(String query) {
+        if (Objects.requireNonNull(query).isBlank())
+            throw new IllegalArgumentException("La query non contiene condizioni");
+        return new Query(query);
+    }
+
+    /**
+     * Restituisce i messaggi della {@code mailBox} che soddisfano la query, in ordine decrescente
+     * <p>
+     * Le condizioni sulla data restringono la ricerca all'intervallo corrispondente della mailbox
+     * (vedi {@link MailBox#between}); se la query contiene parole e l'{@code indice} è presente,
+     * i candidati sono i messaggi che l'indice associa a tutte le parole o quelli dell'intervallo,
+     * se meno numerosi. Senza indice le parole sono cercate decodificando i messaggi.
+     * Le condizioni restanti sono verificate sui candidati, in parallelo se sono numerosi.
+     * @param mailBox la mailbox in cui cercare
+     * @param indice l'indice full-text della mailbox, {@code null} se non disponibile
+     * @return i messaggi che soddisfano la query
+     * @throws NullPointerException se {@code mailBox} è {@code null}
+     */
+    List<Message> execute(MailBox mailBox, SearchIndex indice) {
+        Piano piano = plan(mailBox, indice);
+        List<Message> candidati = piano.candidati();
+        return (candidati.size() < SOGLIA_PARALLELA ? candidati.stream() : candidati.parallelStream())
+                .filter(piano.verifica())
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * Restituisce un iteratore sui messaggi della {@code mailBox} che soddisfano la query, in ordine
+     * decrescente
+     * <p>
+     * I candidati sono scelti come in {@link #execute}, ma le condizioni vengono verificate su un
+     * solo thread man mano che l'iteratore avanza, così che i primi messaggi siano disponibili senza
+     * scorrere l'intera mailbox. I candidati sono scelti all'invocazione: i messaggi aggiunti in
+     * seguito non vengono restituiti, mentre quelli eliminati nel frattempo possono esserlo (e il
+     * loro corpo non essere più leggibile).
+     * @param mailBox la mailbox in cui cercare
+     * @param indice l'indice full-text della mailbox, {@code null} se non disponibile
+     * @return l'iteratore sui messaggi che soddisfano la query
+     * @throws NullPointerException se {@code mailBox} è {@code null}
+     */
+    Iterator<Message> iterator(MailBox mailBox, SearchIndex indice) {
+        Piano piano = plan(mailBox, indice);
+        return piano.candidati().stream().filter(piano.verifica()).iterator();
+    }
+
+    /**
+     * Piano di esecuzione della query su una mailbox
+     * @param candidati i messaggi da esaminare, in ordine decrescente
+     * @param verifica le condizioni che i candidati devono soddisfare
+     */
+    private record Piano(List<Message> candidati, Predicate<Message> verifica) {}
+
+    /**
+     * Pianifica l'esecuzione della query sulla {@code mailBox}, con il lock di lettura della mailbox
+     * @param mailBox la mailbox
+     * @param indice l'indice full-text della mailbox, null se non disponibile
+     * @return il piano di esecuzione
+     */
+    private Piano plan(MailBox mailBox, SearchIndex indice) {
+        // l'indice è modificato solo con il lock di scrittura della mailbox
+        mailBox.lock().readLock().lock();
+        try {
+            return planLocked(mailBox, indice);
+        } finally {
+            mailBox.lock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Pianifica l'esecuzione della query sulla {@code mailBox}, di cui il chiamante detiene il lock
+     * @param mailBox la mailbox
+     * @param indice l'indice full-text della mailbox, null se non disponibile
+     * @return il piano di esecuzione
+     */
+    private Piano planLocked(MailBox mailBox, SearchIndex indice) {
+        List<Message> candidati = mailBox.between(after, before);
+        Set<String> indicizzate = new LinkedHashSet<>(parole);
+        indicizzate.addAll(paroleOggetto);
+        Predicate<Message> verifica = m -> true;
+        if (Objects.nonNull(indice) && !indicizzate.isEmpty()) {
+            // si scorre il più piccolo tra i risultati dell'indice e l'intervallo di date
+            List<Message> trovati = indice.search(String.join(" ", indicizzate));
+            if (trovati.size() < candidati.size()) {
+                candidati = new ArrayList<>(trovati);
+                candidati.sort(Comparator.reverseOrder());
+                verifica = this::inRange;
+            } else
+                verifica = new HashSet<>(trovati)::contains;
+        } else if (!parole.isEmpty())
+            verifica = m -> SearchIndex.terms(m).containsAll(parole);
+        for (Predicate<Message> condizione : condizioni)
+            verifica = verifica.and(condizione);
+        return new Piano(candidati, verifica);
+    }
+
+    /**
+     * Restituisce {@code true} se la data del {@code message} è nell'intervallo della query
+     * @param message il messaggio
+     * @return se la data è compresa tra after (incluso) e before (escluso)
+     */
+    private boolean inRange(Message message) {
+        Instant data = message.date().value().toInstant();
+        return (Objects.isNull(after) || !data.isBefore(after)) && (Objects.isNull(before) || data.isBefore(before));
+    }
+
+    /**
+     * Restituisce i termini dell'oggetto del {@code message}
+     * @param message il messaggio
+     * @return i termini dell'oggetto
+     */
+    private static Set<String> subjectTerms(Message message) {
+        Set<String> termini = new LinkedHashSet<>();
+        SearchIndex.terms(message.subject().value().toString(), termini);
+        return termini;
+    }
+
+    /**
+     * Divide la query in condizioni separate da spazi; le virgolette raggruppano più parole
+     * in un'unica condizione e non fanno parte del valore
+     * @param query la query
+     * @return le condizioni
+     */
+    private static List<String> tokens(String query) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean virgolette = false, presente = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '"') {
+                virgolette = !virgolette;
+                presente = true;
+            } else if (Character.isWhitespace(c) && !virgolette) {
+                if (presente)
+                    tokens.add(token.toString());
+                token.setLength(0);
+                presente = false;
+            } else {
+                token.append(c);
+                presente = true;
+            }
+        }
+        if (virgolette)
+            throw new IllegalArgumentException("Virgolette non chiuse nella query");
+        if (presente)
+            tokens.add(token.toString());
+        return tokens;
+    }
+
+    /**
+     * Traduce un glob in un'espressione regolare che non distingue maiuscole e minuscole
+     * @param glob il glob, in cui {@code *} e {@code ?} corrispondono a qualsiasi sequenza e a qualsiasi carattere
+     * @return l'espressione regolare
+     */
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*')
+                regex.append(".*");
+            else if (c == '?')
+                regex.append('.');
+            else
+                regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * Restituisce l'inizio (nel fuso orario di Roma) del giorno {@code giorno} in formato aaaa-mm-gg
+     * @param giorno il giorno
+     * @return l'istante di inizio del giorno
+     */
+    private static Instant day(String giorno) {
+        try {
+            return LocalDate.parse(giorno).atStartOfDay(DateEncoding.EUROPE_ROME).toInstant();
+        } catch (DateTimeParseException exception) {
+            throw new IllegalArgumentException("Data non valida (aaaa-mm-gg): " + giorno);
+        }
+    }
+}
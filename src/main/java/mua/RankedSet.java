@@ -0,0 +1,414 @@
+package mua;
+
+import java.util.AbstractList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * RankedSet classe concreta mutabile che rappresenta un insieme ordinato di elementi accessibili per
+ * posizione (rango).
+ * <p>
+ * L'insieme è realizzato con un albero AVL in cui ogni nodo memorizza la dimensione del proprio
+ * sottoalbero: inserimento, accesso e rimozione per rango costano O(log n).
+ *
+ * @param <E> il tipo degli elementi
+ */
+class RankedSet<E> implements Iterable<E> {
+    /** Ordinamento degli elementi */
+    private final Comparator<? super E> comparator;
+    /** Radice dell'albero */
+    private Node<E> root;
+    /** Numero di modifiche strutturali, per gli iteratori */
+    private int modCount;
+
+    /*
+     * RI:  comparator != null
+     *      l'albero è un albero binario di ricerca secondo comparator, senza elementi uguali
+     *      per ogni nodo n: n.size == 1 + size(n.left) + size(n.right)
+     *                       n.height == 1 + max(height(n.left), height(n.right))
+     *                       |height(n.left) - height(n.right)| <= 1
+     *
+     * AF:  AF(root) = la sequenza degli elementi dell'albero in ordine simmetrico
+     */
+
+    /** Nodo dell'albero */
+    private static final class Node<E> {
+        /** Elemento del nodo */
+        private E value;
+        /** Sottoalberi sinistro e destro */
+        private Node<E> left, right;
+        /** Altezza e numero di elementi del sottoalbero radicato nel nodo */
+        private int height = 1, size = 1;
+
+        /**
+         * Costruisce una foglia
+         * @param value l'elemento della foglia
+         */
+        private Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Costruisce un insieme vuoto ordinato secondo {@code comparator}
+     *
+     * @param comparator l'ordinamento degli elementi
+     * @throws NullPointerException se {@code comparator} è {@code null}
+     */
+    RankedSet(Comparator<? super E> comparator) {
+        this.comparator = Objects.requireNonNull(comparator);
+    }
+
+    /**
+     * Ritorna il numero di elementi dell'insieme
+     *
+     * @return il numero di elementi
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Aggiunge {@code e} all'insieme, se non ne contiene già uno uguale
+     *
+     * @param e l'elemento da aggiungere
+     * @return {@code true} se l'elemento è stato aggiunto
+     * @throws NullPointerException se {@code e} è {@code null}
+     */
+    boolean add(E e) {
+        Objects.requireNonNull(e);
+        final int before = size();
+        root = insert(root, e);
+        if (size() == before)
+            return false;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Ritorna l'elemento di rango {@code i}
+     *
+     * @param i il rango dell'elemento
+     * @return l'elemento
+     * @throws IndexOutOfBoundsException se {@code i} non è compreso tra 0 e {@code size()} escluso
+     */
+    E get(int i) {
+        Objects.checkIndex(i, size());
+        Node<E> n = root;
+        for (;;) {
+            final int l = size(n.left);
+            if (i < l)
+                n = n.left;
+            else if (i == l)
+                return n.value;
+            else {
+                i -= l + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Ritorna il rango dell'elemento uguale (secondo l'ordinamento) a {@code e}
+     *
+     * @param e l'elemento da cercare
+     * @return il rango dell'elemento, o -1 se l'insieme non lo contiene
+     * @throws NullPointerException se {@code e} è {@code null}
+     */
+    int indexOf(E e) {
+        Objects.requireNonNull(e);
+        int rango = 0;
+        for (Node<E> n = root; n != null;) {
+            final int c = comparator.compare(e, n.value);
+            if (c < 0)
+                n = n.left;
+            else if (c == 0)
+                return rango + size(n.left);
+            else {
+                rango += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rimuove l'elemento di rango {@code i}
+     *
+     * @param i il rango dell'elemento
+     * @return l'elemento rimosso
+     * @throws IndexOutOfBoundsException se {@code i} non è compreso tra 0 e {@code size()} escluso
+     */
+    E remove(int i) {
+        Objects.checkIndex(i, size());
+        final E removed = get(i);
+        root = delete(root, i);
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Ritorna il numero di elementi iniziali dell'insieme che soddisfano {@code prefisso}, in tempo
+     * O(log n)
+     * <p>
+     * Il predicato deve essere monotono rispetto all'ordinamento: se è soddisfatto da un elemento,
+     * lo è anche da tutti quelli che lo precedono.
+     *
+     * @param prefisso il predicato che individua gli elementi iniziali
+     * @return il rango del primo elemento che non soddisfa {@code prefisso}, o {@code size()} se
+     *         lo soddisfano tutti
+     * @throws NullPointerException se {@code prefisso} è {@code null}
+     */
+    int rank(Predicate<? super E> prefisso) {
+        Objects.requireNonNull(prefisso);
+        int rango = 0;
+        for (Node<E> n = root; n != null;) {
+            if (prefisso.test(n.value)) {
+                rango += size(n.left) + 1;
+                n = n.right;
+            } else
+                n = n.left;
+        }
+        return rango;
+    }
+
+    /**
+     * Ritorna una vista (non modificabile) degli elementi di rango compreso tra {@code from}
+     * (incluso) e {@code to} (escluso)
+     * <p>
+     * L'accesso per posizione costa O(log n) e l'iterazione O(log n) per iniziare; la vista
+     * non è più utilizzabile dopo una modifica strutturale dell'insieme.
+     *
+     * @param from il rango del primo elemento
+     * @param to il rango successivo all'ultimo elemento
+     * @return la vista degli elementi
+     * @throws IndexOutOfBoundsException se {@code from < 0}, {@code to > size()} o {@code from > to}
+     */
+    List<E> subList(int from, int to) {
+        Objects.checkFromToIndex(from, to, size());
+        return new AbstractList<>() {
+            private final int expected = RankedSet.this.modCount;
+
+            @Override
+            public E get(int i) {
+                checkForComodification(expected);
+                return RankedSet.this.get(from + Objects.checkIndex(i, to - from));
+            }
+
+            @Override
+            public int size() {
+                checkForComodification(expected);
+                return to - from;
+            }
+
+            @Override
+            public Iterator<E> iterator() {
+                checkForComodification(expected);
+                return new Iteratore(from, to);
+            }
+        };
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iteratore(0, size());
+    }
+
+    /**
+     * Controlla che l'albero non sia stato modificato
+     * @param expected il numero di modifiche atteso
+     * @throws ConcurrentModificationException se l'albero è stato modificato
+     */
+    private void checkForComodification(int expected) {
+        if (expected != modCount)
+            throw new ConcurrentModificationException();
+    }
+
+    /** Iteratore sugli elementi di rango compreso tra due estremi, in ordine */
+    private final class Iteratore implements Iterator<E> {
+        /** Pila dei nodi i cui elementi e sottoalberi destri non sono ancora stati visitati */
+        private final Object[] stack = new Object[height(root) + 1];
+        /** Numero di modifiche dell'albero alla creazione dell'iteratore */
+        private final int expected = modCount;
+        /** Altezza della pila e numero di elementi ancora da restituire */
+        private int top, remaining;
+
+        /**
+         * Inserisce nella pila il cammino verso l'elemento di rango from, come se fossero stati visitati i precedenti
+         * @param from il rango del primo elemento restituito
+         * @param to il rango successivo a quello dell'ultimo elemento restituito
+         */
+        private Iteratore(int from, int to) {
+            remaining = to - from;
+            for (Node<E> n = root; n != null;) {
+                final int l = size(n.left);
+                if (from < l) {
+                    stack[top++] = n;
+                    n = n.left;
+                } else if (from == l) {
+                    stack[top++] = n;
+                    break;
+                } else {
+                    from -= l + 1;
+                    n = n.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            checkForComodification(expected);
+            if (remaining == 0)
+                throw new NoSuchElementException();
+            final Node<E> n = (Node<E>) stack[--top];
+            stack[top] = null;
+            for (Node<E> m = n.right; m != null; m = m.left)
+                stack[top++] = m;
+            remaining--;
+            return n.value;
+        }
+    }
+
+    /**
+     * Restituisce il numero di elementi del sottoalbero {@code n}
+     * @param n il sottoalbero, eventualmente vuoto
+     * @return il numero di elementi
+     */
+    private static int size(Node<?> n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * Restituisce l'altezza del sottoalbero {@code n}
+     * @param n il sottoalbero, eventualmente vuoto
+     * @return l'altezza, 0 se vuoto
+     */
+    private static int height(Node<?> n) {
+        return n == null ? 0 : n.height;
+    }
+
+    /**
+     * Aggiorna dimensione e altezza del nodo {@code n} a partire da quelle dei figli
+     * @param <E> il tipo degli elementi
+     * @param n il nodo
+     * @return il nodo
+     */
+    private static <E> Node<E> update(Node<E> n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+        return n;
+    }
+
+    /**
+     * Ruota a destra il sottoalbero {@code n}
+     * @param <E> il tipo degli elementi
+     * @param n il sottoalbero, con figlio sinistro
+     * @return la nuova radice del sottoalbero
+     */
+    private static <E> Node<E> rotateRight(Node<E> n) {
+        final Node<E> l = n.left;
+        n.left = l.right;
+        l.right = update(n);
+        return update(l);
+    }
+
+    /**
+     * Ruota a sinistra il sottoalbero {@code n}
+     * @param <E> il tipo degli elementi
+     * @param n il sottoalbero, con figlio destro
+     * @return la nuova radice del sottoalbero
+     */
+    private static <E> Node<E> rotateLeft(Node<E> n) {
+        final Node<E> r = n.right;
+        n.right = r.left;
+        r.left = update(n);
+        return update(r);
+    }
+
+    /**
+     * Ribilancia il sottoalbero {@code n}, i cui figli sono bilanciati e differiscono in altezza al più di 2
+     * @param <E> il tipo degli elementi
+     * @param n il sottoalbero
+     * @return la nuova radice del sottoalbero
+     */
+    private static <E> Node<E> balance(Node<E> n) {
+        update(n);
+        final int b = height(n.left) - height(n.right);
+        if (b > 1) {
+            if (height(n.left.left) < height(n.left.right))
+                n.left = rotateLeft(n.left);
+            return rotateRight(n);
+        }
+        if (b < -1) {
+            if (height(n.right.right) < height(n.right.left))
+                n.right = rotateRight(n.right);
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
+    /**
+     * Inserisce {@code e} nel sottoalbero {@code n}, se non contiene già un elemento equivalente
+     * @param n il sottoalbero, eventualmente vuoto
+     * @param e l'elemento
+     * @return la nuova radice del sottoalbero
+     */
+    private Node<E> insert(Node<E> n, E e) {
+        if (n == null)
+            return new Node<>(e);
+        final int c = comparator.compare(e, n.value);
+        if (c == 0)
+            return n;
+        if (c < 0)
+            n.left = insert(n.left, e);
+        else
+            n.right = insert(n.right, e);
+        return balance(n);
+    }
+
+    /**
+     * Elimina l'elemento di rango {@code i} dal sottoalbero {@code n}
+     * @param n il sottoalbero
+     * @param i il rango dell'elemento nel sottoalbero
+     * @return la nuova radice del sottoalbero
+     */
+    private Node<E> delete(Node<E> n, int i) {
+        final int l = size(n.left);
+        if (i < l)
+            n.left = delete(n.left, i);
+        else if (i > l)
+            n.right = delete(n.right, i - l - 1);
+        else {
+            if (n.left == null)
+                return n.right;
+            if (n.right == null)
+                return n.left;
+            n.value = first(n.right);
+            n.right = delete(n.right, 0);
+        }
+        return balance(n);
+    }
+
+    /**
+     * Restituisce il primo elemento del sottoalbero {@code n}
+     * @param <E> il tipo degli elementi
+     * @param n il sottoalbero, non vuoto
+     * @return il primo elemento
+     */
+    private static <E> E first(Node<E> n) {
+        while (n.left != null)
+            n = n.left;
+        return n.value;
+    }
+}
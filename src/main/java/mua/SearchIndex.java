@@ -0,0 +1,525 @@
+package mua;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import mua.message.Message;
+import mua.message.Part;
+import utils.ASCIICharSequence;
+import utils.Store.Box;
+
+/**
+ * SearchIndex classe concreta mutabile che rappresenta l'indice invertito (full-text) dei messaggi di una box
+ * <p>
+ * Ad ogni entry indicizzata è assegnato un documento, identificato da un intero crescente; ad ogni termine
+ * (parola dell'oggetto o dei corpi decodificati del messaggio, in minuscolo) è associata la lista ordinata
+ * dei documenti che lo contengono, memorizzata come sequenza di differenze tra documenti consecutivi
+ * codificate a lunghezza variabile (varint).
+ * <p>
+ * Le entry rimosse vengono marcate come cancellate e scartate (rinumerando i documenti) quando l'indice
+ * viene salvato, in formato binario, in un file sidecar della box; in memoria vengono scartate quando
+ * i documenti cancellati superano quelli indicizzati, così che un processo di lunga durata non accumuli
+ * documenti cancellati.
+ */
+class SearchIndex {
+    /** Nome del file sidecar che contiene l'indice */
+    private static final String SIDECAR = "mua-search";
+    /** Intestazione del formato binario ("MUAS") */
+    private static final int MAGIC = 0x4D554153;
+    /** Versione del formato binario */
+    private static final int VERSION = 1;
+    /** Lunghezza massima di un termine */
+    private static final int MAX_TERMINE = 64;
+    /** Numero minimo di documenti cancellati perché l'indice in memoria venga compattato */
+    private static final int MIN_CANCELLATI = 64;
+
+    /**
+     * Documento dell'indice: metadati della entry indicizzata
+     * @param nome nome della entry
+     * @param size dimensione della entry in byte
+     * @param lastModified data di modifica della entry in millisecondi
+     */
+    private record Documento(String nome, long size, long lastModified) {}
+
+    /** Lista dei documenti che contengono un termine, in ordine crescente */
+    private static final class Postings {
+        /** Differenze tra documenti consecutivi, codificate come varint */
+        private byte[] bytes = new byte[8];
+        /** Numero di byte usati */
+        private int length;
+        /** Numero di documenti */
+        private int count;
+        /** Ultimo documento aggiunto */
+        private int last = -1;
+
+        /**
+         * Aggiunge un documento alla lista, codificando la differenza dal precedente come varint
+         * @param documento il documento, maggiore dell'ultimo aggiunto
+         */
+        private void add(int documento) {
+            int delta = documento - last;
+            last = documento;
+            count++;
+            if (length + 5 > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+            while ((delta & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+        }
+
+        /**
+         * Decodifica la lista
+         * @return i documenti, in ordine crescente
+         */
+        private int[] decode() {
+            final int[] documenti = new int[count];
+            int documento = -1;
+            for (int i = 0, p = 0; i < count; i++) {
+                int delta = 0;
+                for (int shift = 0;; shift += 7) {
+                    final byte b = bytes[p++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                documenti[i] = documento += delta;
+            }
+            return documenti;
+        }
+
+        /**
+         * Verifica che la lista, letta da un file, sia ben formata: {@code count} varint di al più 5 byte
+         * che occupano esattamente {@code length} byte e codificano documenti crescenti compresi tra 0 e
+         * {@code documenti} (escluso), l'ultimo dei quali è {@code last}
+         * @param documenti il numero di documenti dell'indice
+         * @return {@code true} se la lista è ben formata
+         */
+        private boolean valid(int documenti) {
+            if (count < 0 || length < 0 || length > bytes.length)
+                return false;
+            long documento = -1;
+            int p = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                for (int shift = 0;; shift += 7) {
+                    if (p == length || shift > 28)
+                        return false;
+                    final byte b = bytes[p++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                documento += delta;
+                if (delta == 0 || documento >= documenti)
+                    return false;
+            }
+            return p == length && documento == last;
+        }
+    }
+
+    /** Documenti per identificativo, {@code null} se cancellati */
+    private final List<Documento> documenti = new ArrayList<>();
+    /** Identificativo del documento per nome della entry */
+    private final Map<String, Integer> perNome = new HashMap<>();
+    /** Documenti cancellati */
+    private final BitSet cancellati = new BitSet();
+    /** Liste dei documenti per termine */
+    private final Map<String, Postings> termini = new HashMap<>();
+    /** Messaggi in memoria per identificativo del documento (non salvati) */
+    private final List<Message> messaggi = new ArrayList<>();
+
+    /*
+     * RI:  documenti, perNome, cancellati, termini, messaggi != null
+     *      perNome.get(d.nome()) == i sse documenti.get(i) == d != null
+     *      cancellati.get(i) sse documenti.get(i) == null
+     *      le liste in termini contengono identificativi in [0, documenti.size()) in ordine crescente
+     *      messaggi.size() <= documenti.size()
+     *
+     * AF:  AF(documenti, termini) = { (t, d) | t in termini, d in termini.get(t), !cancellati.get(d) },
+     *                               la relazione tra termini e entry della box che li contengono
+     */
+
+    /**
+     * Legge l'indice salvato nella {@code box}
+     * <p>
+     * Se l'indice non esiste o è corrotto (ad esempio se una lista di documenti non è ben formata o
+     * contiene documenti inesistenti) viene restituito un indice vuoto
+     * @param box la box di cui leggere l'indice
+     * @return l'indice della box
+     * @throws NullPointerException se {@code box} è {@code null}
+     */
+    static SearchIndex read(Box box) {
+        final SearchIndex index = new SearchIndex();
+        final byte[] content = Objects.requireNonNull(box).sidecar(SIDECAR);
+        if (Objects.isNull(content))
+            return index;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return new SearchIndex();
+            final int documenti = in.readInt();
+            if (documenti < 0)
+                return new SearchIndex();
+            for (int i = documenti; i > 0; i--) {
+                Documento documento = new Documento(in.readUTF(), in.readLong(), in.readLong());
+                if (Objects.nonNull(index.perNome.put(documento.nome(), index.documenti.size())))
+                    return new SearchIndex();
+                index.documenti.add(documento);
+            }
+            final int termini = in.readInt();
+            if (termini < 0)
+                return new SearchIndex();
+            for (int i = termini; i > 0; i--) {
+                String termine = in.readUTF();
+                Postings postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readInt();
+                postings.length = in.readInt();
+                if (postings.length < 0 || postings.length > in.available())
+                    return new SearchIndex();
+                postings.bytes = in.readNBytes(postings.length);
+                if (postings.bytes.length != postings.length || !postings.valid(index.documenti.size())
+                        || Objects.nonNull(index.termini.put(termine, postings)))
+                    return new SearchIndex();
+            }
+            if (in.available() != 0)
+                return new SearchIndex();
+        } catch (IOException | RuntimeException corrupt) {
+            return new SearchIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Restituisce i termini contenuti in un testo: le sequenze massimali di lettere e cifre, in minuscolo
+     * @param testo il testo
+     * @param termini la collezione a cui aggiungere i termini
+     */
+    static void terms(String testo, Collection<String> termini) {
+        terms(testo, termini, false);
+    }
+
+    /**
+     * Restituisce i termini cercati da una query, come {@link #terms(String, Collection)}
+     * <p>
+     * I termini più lunghi di {@link #MAX_TERMINE} non sono indicizzati: invece di ignorarli (il che
+     * renderebbe la ricerca meno selettiva di quanto richiesto) la query viene rifiutata
+     * @param query il testo della query
+     * @param termini la collezione a cui aggiungere i termini
+     * @throws IllegalArgumentException se la query contiene un termine troppo lungo
+     */
+    static void queryTerms(String query, Collection<String> termini) {
+        terms(query, termini, true);
+    }
+
+    private static void terms(String testo, Collection<String> termini, boolean rifiuta) {
+        final int n = testo.length();
+        for (int i = 0; i < n;) {
+            while (i < n && !Character.isLetterOrDigit(testo.charAt(i)))
+                i++;
+            final int inizio = i;
+            while (i < n && Character.isLetterOrDigit(testo.charAt(i)))
+                i++;
+            if (i - inizio > MAX_TERMINE && rifiuta)
+                throw new IllegalArgumentException("Parola troppo lunga (massimo " + MAX_TERMINE + " caratteri): "
+                        + testo.substring(inizio, i));
+            if (i > inizio && i - inizio <= MAX_TERMINE)
+                termini.add(testo.substring(inizio, i).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Restituisce i termini (distinti) dell'oggetto e dei corpi di un messaggio
+     * <p>
+     * Se la codifica originale del messaggio è nota, le parti vengono decodificate da essa senza
+     * essere mantenute dal messaggio; se i corpi non possono essere decodificati vengono restituiti
+     * solo i termini dell'oggetto
+     * @param message il messaggio
+     * @return i termini del messaggio
+     * @throws NullPointerException se {@code message} è {@code null}
+     */
+    static Set<String> terms(Message message) {
+        return terms(message, null);
+    }
+
+    /**
+     * Restituisce i termini (distinti) dell'oggetto e dei corpi di un messaggio, come
+     * {@link #terms(Message)}, decodificando le parti dalla sua codifica originale se già letta
+     * @param message il messaggio
+     * @param codifica la codifica originale del messaggio, o {@code null} per leggerla dal messaggio
+     * @return i termini del messaggio
+     * @throws NullPointerException se {@code message} è {@code null}
+     */
+    static Set<String> terms(Message message, ASCIICharSequence codifica) {
+        final Set<String> termini = new LinkedHashSet<>();
+        terms(message.subject().value().toString(), termini);
+        try {
+            final ASCIICharSequence original = Objects.nonNull(codifica) ? codifica : message.original();
+            for (Part parte : Objects.isNull(original) ? message : Message.parse(original))
+                terms(parte.body(), termini);
+        } catch (RuntimeException corrupt) {
+            // il corpo non è decodificabile: il messaggio è cercabile solo per oggetto
+        }
+        return termini;
+    }
+
+    /**
+     * Verifica se la entry di nome {@code nome} è indicizzata e i suoi metadati non sono cambiati
+     * @param nome nome della entry
+     * @param size dimensione attuale della entry
+     * @param lastModified data di modifica attuale della entry
+     * @return {@code true} se la entry è indicizzata ed è aggiornata
+     */
+    boolean contains(String nome, long size, long lastModified) {
+        final Integer id = perNome.get(nome);
+        if (Objects.isNull(id) || size < 0)
+            return false;
+        final Documento documento = documenti.get(id);
+        return documento.size() == size && documento.lastModified() == lastModified;
+    }
+
+    /**
+     * Aggiunge all'indice la entry di nome {@code nome} con i suoi {@code termini}
+     * <p>
+     * Se la entry era già indicizzata, il documento precedente viene cancellato
+     * @param nome nome della entry
+     * @param size dimensione della entry
+     * @param lastModified data di modifica della entry
+     * @param termini termini (distinti) del messaggio contenuto nella entry
+     * @throws NullPointerException se {@code nome} o {@code termini} sono {@code null}
+     */
+    void add(String nome, long size, long lastModified, Collection<String> termini) {
+        remove(Objects.requireNonNull(nome));
+        final int id = documenti.size();
+        documenti.add(new Documento(nome, size, lastModified));
+        perNome.put(nome, id);
+        for (String termine : termini)
+            this.termini.computeIfAbsent(termine, t -> new Postings()).add(id);
+    }
+
+    /**
+     * Associa il messaggio in memoria alla entry indicizzata di nome {@code nome}
+     * @param nome nome della entry
+     * @param message messaggio contenuto nella entry
+     * @throws IllegalArgumentException se la entry non è indicizzata
+     */
+    void associate(String nome, Message message) {
+        final Integer id = perNome.get(nome);
+        if (Objects.isNull(id))
+            throw new IllegalArgumentException("Entry non indicizzata: " + nome);
+        while (messaggi.size() <= id)
+            messaggi.add(null);
+        messaggi.set(id, Objects.requireNonNull(message));
+    }
+
+    /**
+     * Rimuove dall'indice la entry di nome {@code nome}, se presente
+     * @param nome nome della entry
+     */
+    void remove(String nome) {
+        final Integer id = perNome.remove(nome);
+        if (Objects.isNull(id))
+            return;
+        documenti.set(id, null);
+        cancellati.set(id);
+        if (id < messaggi.size())
+            messaggi.set(id, null);
+        final int n = cancellati.cardinality();
+        if (n >= MIN_CANCELLATI && n > perNome.size())
+            compact();
+    }
+
+    /**
+     * Scarta i documenti cancellati, rinumerando quelli indicizzati come nel file salvato
+     */
+    private void compact() {
+        final int[] nuovo = renumber();
+        termini.replaceAll((termine, postings) -> renumber(postings, nuovo));
+        termini.values().removeIf(postings -> postings.count == 0);
+        final List<Documento> vivi = new ArrayList<>();
+        final List<Message> associati = new ArrayList<>();
+        for (int id = 0; id < nuovo.length; id++) {
+            if (nuovo[id] < 0)
+                continue;
+            vivi.add(documenti.get(id));
+            perNome.put(documenti.get(id).nome(), nuovo[id]);
+            associati.add(id < messaggi.size() ? messaggi.get(id) : null);
+        }
+        documenti.clear();
+        documenti.addAll(vivi);
+        messaggi.clear();
+        messaggi.addAll(associati);
+        cancellati.clear();
+    }
+
+    /**
+     * Rinumera i documenti non cancellati, in ordine
+     * @return il nuovo identificativo di ogni documento, -1 se cancellato
+     */
+    private int[] renumber() {
+        final int[] nuovo = new int[documenti.size()];
+        int vivi = 0;
+        for (int id = 0; id < nuovo.length; id++)
+            nuovo[id] = cancellati.get(id) ? -1 : vivi++;
+        return nuovo;
+    }
+
+    /**
+     * Restituisce la lista dei documenti rinumerati, senza quelli cancellati
+     * @param postings la lista
+     * @param nuovo il nuovo identificativo di ogni documento (vedi {@link #renumber()})
+     * @return la lista rinumerata, {@code postings} stessa se non ci sono documenti cancellati
+     */
+    private Postings renumber(Postings postings, int[] nuovo) {
+        if (cancellati.isEmpty())
+            return postings;
+        final Postings rinumerata = new Postings();
+        for (int id : postings.decode())
+            if (nuovo[id] >= 0)
+                rinumerata.add(nuovo[id]);
+        return rinumerata;
+    }
+
+    /**
+     * Rimuove dall'indice le entry il cui nome non è tra i {@code nomi}
+     * @param nomi nomi delle entry da mantenere
+     * @return {@code true} se l'indice è stato modificato
+     */
+    boolean retain(Set<String> nomi) {
+        final List<String> rimossi = new ArrayList<>();
+        for (String nome : perNome.keySet())
+            if (!nomi.contains(nome))
+                rimossi.add(nome);
+        rimossi.forEach(this::remove);
+        return !rimossi.isEmpty();
+    }
+
+    /**
+     * Cerca i messaggi che contengono tutti i termini della {@code query}
+     * @param query i termini da cercare, separati da spazi o punteggiatura
+     * @return i messaggi (associati tramite {@link #associate}) che contengono tutti i termini,
+     *         vuota se la query non contiene termini
+     * @throws NullPointerException se {@code query} è {@code null}
+     * @throws IllegalArgumentException se la query contiene un termine più lungo di {@link #MAX_TERMINE}
+     */
+    List<Message> search(String query) {
+        final Set<String> cercati = new LinkedHashSet<>();
+        queryTerms(Objects.requireNonNull(query), cercati);
+        final List<Postings> liste = new ArrayList<>();
+        for (String termine : cercati) {
+            final Postings postings = termini.get(termine);
+            if (Objects.isNull(postings))
+                return List.of();
+            liste.add(postings);
+        }
+        if (liste.isEmpty())
+            return List.of();
+        liste.sort((p1, p2) -> Integer.compare(p1.count, p2.count));
+        int[] risultato = liste.get(0).decode();
+        int n = risultato.length;
+        for (int k = 1; k < liste.size() && n > 0; k++)
+            n = intersect(risultato, n, liste.get(k).decode());
+        final List<Message> trovati = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final int id = risultato[i];
+            if (!cancellati.get(id) && id < messaggi.size() && Objects.nonNull(messaggi.get(id)))
+                trovati.add(messaggi.get(id));
+        }
+        return trovati;
+    }
+
+    /**
+     * Interseca i primi {@code n} elementi di {@code a} con {@code b}, entrambi ordinati, scrivendo il risultato in {@code a}
+     * @param a il primo array, che contiene il risultato
+     * @param n il numero di elementi di {@code a} da considerare
+     * @param b il secondo array
+     * @return il numero di elementi dell'intersezione
+     */
+    private static int intersect(int[] a, int n, int[] b) {
+        int k = 0;
+        for (int i = 0, j = 0; i < n && j < b.length;) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                a[k++] = a[i++];
+                j++;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Restituisce il numero di entry indicizzate
+     * @return il numero di entry indicizzate
+     */
+    int size() {
+        return perNome.size();
+    }
+
+    /**
+     * Restituisce il numero di documenti in memoria, compresi quelli cancellati non ancora scartati
+     * @return il numero di documenti
+     */
+    int documents() {
+        return documenti.size();
+    }
+
+    /**
+     * Salva l'indice nella {@code box}, scartando i documenti cancellati
+     * @param box la box in cui salvare l'indice
+     * @return {@code true} se l'indice è stato salvato
+     * @throws NullPointerException se {@code box} è {@code null}
+     */
+    boolean write(Box box) {
+        Objects.requireNonNull(box);
+        final int[] nuovo = renumber();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(perNome.size());
+            for (Documento documento : documenti) {
+                if (Objects.isNull(documento))
+                    continue;
+                out.writeUTF(documento.nome());
+                out.writeLong(documento.size());
+                out.writeLong(documento.lastModified());
+            }
+            final List<Map.Entry<String, Postings>> compattati = new ArrayList<>();
+            for (Map.Entry<String, Postings> entry : termini.entrySet()) {
+                final Postings postings = renumber(entry.getValue(), nuovo);
+                if (postings.count > 0)
+                    compattati.add(Map.entry(entry.getKey(), postings));
+            }
+            out.writeInt(compattati.size());
+            for (Map.Entry<String, Postings> entry : compattati) {
+                final Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.count);
+                out.writeInt(postings.last);
+                out.writeInt(postings.length);
+                out.write(postings.bytes, 0, postings.length);
+            }
+        } catch (IOException exception) {
+            return false;
+        }
+        return box.sidecar(SIDECAR, bytes.toByteArray());
+    }
+}
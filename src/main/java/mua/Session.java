@@ -0,0 +1,355 @@
+package mua;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+import mua.message.Message;
+import mua.message.Part;
+import mua.message.header.*;
+import utils.UICard;
+import utils.UITable;
+
+/**
+ * Session classe concreta mutabile che rappresenta la sessione di un utente su un {@link Mua}
+ * <p>
+ * La sessione mantiene la mailbox selezionata dall'utente, su cui operano i metodi che ne
+ * visualizzano, aggiungono, copiano ed eliminano i messaggi; più sessioni possono operare
+ * contemporaneamente sullo stesso Mua, ma una sessione non può essere usata da più thread
+ * contemporaneamente.
+ * <p>
+ * Gli indici dei messaggi si riferiscono alla mailbox selezionata al momento della chiamata:
+ * se un'altra sessione la modifica, possono riferirsi a messaggi diversi da quelli visualizzati.
+ */
+public class Session {
+    /** Mua su cui opera la sessione */
+    private final Mua mua;
+    /** Mailbox selezionata */
+    private MailBox selected;
+    /** Mailbox da cui è stata ottenuta la mailbox selezionata, se virtuale (vedi {@link #filterMessages}) */
+    private MailBox origin;
+
+    /*
+     * RI:  mua != null
+     *      selected == null -> origin == null
+     *      origin == null -> selected == null oppure selected è una mailbox di mua
+     *      origin != null -> origin è una mailbox di mua e selected (non appartiene a mua)
+     *                        contiene solo messaggi che sono, o sono stati, di origin
+     *
+     * AF:  AF(mua, selected, origin) = sessione su mua con mailbox selezionata selected
+     *                                  (nessuna se null), virtuale se origin != null
+     */
+
+    /**
+     * Costruisce una sessione sul {@code mua}, senza mailbox selezionata
+     * @param mua il Mua su cui opera la sessione
+     */
+    Session(Mua mua) {
+        this.mua = Objects.requireNonNull(mua);
+    }
+
+    /**
+     * Seleziona la mailbox di indice {@code n} e ne restituisce il nome.
+     * @param n l'indice della mailbox da selezionare
+     * @return il nome della mailbox selezionata
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di mailbox
+     */
+    public String selectMailbox(int n) {
+        selected = mua.mailBox(n);
+        origin = null;
+        return selected.name();
+    }
+
+    /**
+     * Seleziona una mailbox virtuale che contiene i messaggi della mailbox selezionata che
+     * soddisfano la {@code query} (vedi {@code Query}) e ne restituisce il nome.
+     * <p>
+     * La mailbox virtuale può essere usata come le altre: i messaggi eliminati vengono eliminati
+     * anche dalla mailbox da cui è stata ottenuta, quelli aggiunti vengono aggiunti solo a quest'ultima.
+     * Se la mailbox selezionata è già virtuale, la query è applicata alla mailbox da cui è stata ottenuta.
+     * @param query la query
+     * @return il nome della mailbox virtuale, composto dal nome della mailbox e dalla query
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws NullPointerException se {@code query} è {@code null}
+     * @throws IllegalArgumentException se la {@code query} non è valida
+     */
+    public String filterMessages(String query) {
+        checkSelected();
+        Query q = Query.parse(query);
+        MailBox sorgente = real();
+        MailBox vista = new MailBox(sorgente.name() + "?" + query.trim());
+        for (Message message : mua.filter(sorgente, q))
+            vista.addMessage(message);
+        origin = sorgente;
+        selected = vista;
+        return selected.name();
+    }
+
+    /**
+     * Restituisce la mailbox su disco della mailbox selezionata: sé stessa o, se virtuale,
+     * la mailbox da cui è stata ottenuta.
+     * @return la mailbox su disco della mailbox selezionata
+     */
+    private MailBox real() {
+        return Objects.isNull(origin) ? selected : origin;
+    }
+
+    /**
+     * Controlla che sia stata precedentemente selezionata una mailbox.
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     */
+    private void checkSelected() {
+        if (Objects.isNull(selected))
+            throw new IllegalStateException("Nessuna mailbox selezionata");
+    }
+
+    /**
+     * Restituisce il numero di messaggi contenuti nella mailbox selezionata.
+     * @return il numero di messaggi contenuti nella mailbox selezionata
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     */
+    public int mailBoxMessages() {
+        checkSelected();
+        return selected.size();
+    }
+
+    /**
+     * Aggiunge il message {@code message} alla mailbox selezionata.
+     * <p>
+     * Se la mailbox selezionata è virtuale, il messaggio viene aggiunto alla mailbox da cui è stata ottenuta.
+     * @param message il message da aggiungere
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws NullPointerException se {@code message} è {@code null}
+     * @throws IllegalArgumentException se il messaggio non può essere codificato in caratteri ASCII
+     * @throws IllegalStateException se non è possibile scrivere il messaggio su disco
+     */
+    public void addMessage(Message message) {
+        checkSelected();
+        mua.add(real(), Objects.requireNonNull(message));
+    }
+
+    /**
+     * Importa nella mailbox selezionata i messaggi contenuti nei file {@code .eml} della {@code directory},
+     * utilizzando un thread per ogni processore disponibile (vedi {@link Mua#importMessages(int, String, int)}).
+     * <p>
+     * Se la mailbox selezionata è virtuale, i messaggi vengono aggiunti alla mailbox da cui è stata ottenuta.
+     * @param directory la directory che contiene i file da importare
+     * @return l'esito dell'importazione di ogni file della directory, in ordine di nome
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws NullPointerException se {@code directory} è {@code null}
+     * @throws IllegalArgumentException se la {@code directory} non può essere letta
+     * @throws IllegalStateException se l'importazione viene interrotta
+     */
+    public List<Importazione> importMessages(String directory) {
+        checkSelected();
+        return mua.importMessages(real(), Path.of(Objects.requireNonNull(directory)),
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Restituisce una tabella contenente i messaggi della mailbox selezionata.
+     * @return la stringa che rappresenta la tabella
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     */
+    public String listMessages() {
+        checkSelected();
+        List<List<String>> content = new ArrayList<>();
+        for (Message message : selected)
+            content.add(row(message));
+
+        return UITable.table(List.of("Date", "From", "To", "Subject"), content, true, true);
+    }
+
+    /**
+     * Restituisce la riga che rappresenta il {@code message} nelle tabelle dei messaggi.
+     * @param message il messaggio
+     * @return la riga con data, mittente, destinatari e oggetto del messaggio
+     */
+    private static List<String> row(Message message) {
+        LinkedList<String> row = new LinkedList<>();
+        row.add((message.sender().value()).getEmail());
+        StringJoiner sj = new StringJoiner("\n");
+        for (Address address : message.recipient().value())
+            sj.add(address.getEmail());
+        row.add(sj.toString()); // To
+        row.add(message.subject().value().toString()); // Subject
+        ZonedDateTime data = message.date().value();
+        row.addFirst(data.toLocalDate() + "\n" + data.toLocalTime()); // Date
+        return row;
+    }
+
+    /**
+     * Restituisce una tabella contenente i messaggi della mailbox selezionata che contengono tutti
+     * i termini della {@code query}, nell'oggetto o nei corpi.
+     * <p>
+     * La ricerca usa l'indice full-text della mailbox; la prima colonna della tabella riporta
+     * l'indice del messaggio nella mailbox (da usare con {@link #readMessage(int)} e
+     * {@link #deleteMessage(int)}).
+     * @param query i termini da cercare, separati da spazi (senza distinzione tra maiuscole e minuscole)
+     * @return la stringa che rappresenta la tabella, vuota se nessun messaggio contiene i termini
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws NullPointerException se {@code query} è {@code null}
+     * @throws IllegalArgumentException se la query contiene un termine troppo lungo per essere indicizzato
+     */
+    public String searchMessages(String query) {
+        checkSelected();
+        List<List<String>> content = new ArrayList<>();
+        for (Message message : mua.search(real(), Objects.requireNonNull(query))) {
+            int indice = selected.indexOf(message);
+            if (indice < 0)
+                continue; // non appartiene alla mailbox virtuale selezionata, o è stato eliminato
+            List<String> row = new ArrayList<>();
+            row.add(String.valueOf(indice + 1));
+            row.addAll(row(message));
+            content.add(row);
+        }
+        return UITable.table(List.of("#", "Date", "From", "To", "Subject"), content, false, true);
+    }
+
+    /**
+     * Restituisce il messaggio di indice {@code index} della mailbox selezionata.
+     * @param index l'indice del messaggio
+     * @return il messaggio
+     * @throws IndexOutOfBoundsException se {@code index} supera il numero di messaggi contenuti nella mailbox
+     */
+    private Message message(int index) {
+        try {
+            return selected.getMessage(index);
+        } catch (IndexOutOfBoundsException exception) {
+            throw new IndexOutOfBoundsException(
+                "Indice: " + index +
+                "maggiore del numero di messaggi nella mailbox selezionata: " + selected.size()
+            );
+        }
+    }
+
+    /**
+     * Restituisce l'eccezione che segnala che il messaggio di indice {@code index} della mailbox
+     * selezionata è stato eliminato (da un'altra sessione) prima di poter essere letto.
+     * @param index l'indice del messaggio
+     * @return l'eccezione
+     */
+    private static IndexOutOfBoundsException deleted(int index) {
+        return new IndexOutOfBoundsException("Il messaggio " + index + " è stato eliminato");
+    }
+
+    /**
+     * Elimina il messaggio di indice {@code n} dalla mailbox selezionata.
+     * <p>
+     * Se la mailbox selezionata è virtuale, il messaggio viene eliminato anche dalla mailbox da cui è stata ottenuta.
+     * @param n l'indice del messaggio da eliminare
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox
+     */
+    public void deleteMessage(int n) {
+        checkSelected();
+        delete(message(n));
+    }
+
+    /**
+     * Elimina il {@code message} dalla mailbox selezionata e, se virtuale, da quella da cui è stata ottenuta
+     * @param message il messaggio
+     */
+    private void delete(Message message) {
+        if (Objects.nonNull(origin)) {
+            int indice = selected.indexOf(message);
+            if (indice >= 0)
+                selected.removeMessage(indice);
+        }
+        mua.delete(real(), message);
+    }
+
+    /**
+     * Copia il messaggio di indice {@code n} della mailbox selezionata nella mailbox di indice {@code box}.
+     * <p>
+     * Se la codifica originale del messaggio è nota, viene copiata così com'è senza codificare
+     * nuovamente il messaggio.
+     * @param n l'indice del messaggio da copiare
+     * @param box l'indice della mailbox di destinazione
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox,
+     *                                   o {@code box} il numero di mailbox, o se il messaggio è stato
+     *                                   eliminato da un'altra sessione
+     * @throws IllegalStateException se il messaggio su disco è corrotto o non è possibile scrivere la copia
+     */
+    public void copyMessage(int n, int box) {
+        checkSelected();
+        Message message = message(n);
+        if (!mua.copy(real(), message, mua.mailBox(box)))
+            throw deleted(n);
+    }
+
+    /**
+     * Sposta il messaggio di indice {@code n} della mailbox selezionata nella mailbox di indice {@code box}.
+     * <p>
+     * Il messaggio viene copiato (come in {@link #copyMessage(int, int)}) ed eliminato dalla mailbox
+     * selezionata; se la mailbox di destinazione è quella selezionata (o quella da cui è stata
+     * ottenuta, se virtuale) non viene fatto nulla.
+     * @param n l'indice del messaggio da spostare
+     * @param box l'indice della mailbox di destinazione
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox,
+     *                                   o {@code box} il numero di mailbox, o se il messaggio è stato
+     *                                   eliminato da un'altra sessione
+     * @throws IllegalStateException se il messaggio su disco è corrotto o non è possibile scrivere la copia
+     */
+    public void moveMessage(int n, int box) {
+        checkSelected();
+        Message message = message(n);
+        MailBox destinazione = mua.mailBox(box);
+        if (destinazione == real())
+            return;
+        if (!mua.copy(real(), message, destinazione))
+            throw deleted(n);
+        delete(message);
+    }
+
+    /**
+     * Restituisce una stringa che rappresenta il messaggio di indice {@code n} della mailbox selezionata.
+     * <p>
+     * Il messaggio è rappresentato come una card di intestazioni e corpi del messaggio.
+     * @param n l'indice del messaggio da leggere
+     * @return la stringa che rappresenta il messaggio
+     * @throws IllegalStateException se non è stata precedentemente selezionata una mailbox
+     * @throws IndexOutOfBoundsException se {@code n} supera il numero di messaggi contenuti nella mailbox,
+     *                                   o se il messaggio è stato eliminato da un'altra sessione
+     * @throws IllegalStateException se il messaggio su disco è corrotto o non è più leggibile
+     */
+    public String readMessage(int n) {
+        checkSelected();
+        List<Part> parti = mua.parts(real(), message(n));
+        if (Objects.isNull(parti))
+            throw deleted(n);
+        List<String> headers = new ArrayList<>(), values = new ArrayList<>();
+
+        for (Part parte : parti) {
+            for (Header header : parte) {
+                switch (header.type()) {
+                    case "From", "Subject", "Date" -> {
+                        headers.add(header.type());
+                        values.add(header.value().toString());
+                    }
+                    case "To" -> {
+                        headers.add(header.type());
+                        StringJoiner sj = new StringJoiner("\n");
+                        for (Address address : ((Recipient) header).value())
+                            sj.add(address.toString());
+                        values.add(sj.toString());
+                    }
+                    case "Content-Type" -> {
+                        headers.add("Part\n" + header.value());
+                        values.add(parte.body());
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        return UICard.card(headers, values);
+    }
+}
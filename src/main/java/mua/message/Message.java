@@ -3,13 +3,19 @@ package mua.message;
 import mua.message.header.*;
 import utils.ASCIICharSequence;
 import utils.Base64Encoding;
+import utils.EntryDecoder;
 import utils.EntryEncoding;
 import utils.Fragment;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
-import java.util.StringJoiner;
+import java.util.function.Supplier;
 
 /**
  * Classe immutabile che rappresenta un messaggio email 
@@ -26,11 +32,26 @@ import java.util.StringJoiner;
  * <p>
  * Il messaggio è iterabile sulle sue parti
  * <p>
+ * Un messaggio può essere costruito in modo <i>pigro</i> tramite {@link #parseHeaders(Supplier)}:
+ * in tal caso vengono decodificate solo le intestazioni principali, mentre le parti
+ * vengono decodificate dalla sorgente a ogni accesso, senza essere mantenute dal messaggio.
+ * <p>
  * Il messaggio è ordinabile in base alla data, nel caso in cui due messaggi abbiano la stessa data vengono presi in considerazione mittente, destinatario e oggetto
+ * <p>
+ * Ogni messaggio ha un identificativo stabile a 64 bit ({@link #id()}): l'impronta della sua
+ * codifica, o quello assegnato da chi lo memorizza (ad esempio l'impronta della entry che lo
+ * contiene, così che due copie dello stesso messaggio restino distinte); due messaggi sono uguali
+ * solo se hanno lo stesso identificativo, anche se hanno le stesse intestazioni (a parità di
+ * intestazioni l'ordinamento dipende dall'identificativo, e quindi non cambia tra un'esecuzione e
+ * l'altra).
  */
 public class Message implements Iterable<Part>, Comparable<Message> {
-    /** Lista di parti >= 1 */
+    /** Intestazione che indica un corpo codificato in base64 */
+    private static final ContentTransferEncoding BASE64 = new ContentTransferEncoding("base64");
+    /** Lista di parti >= 1, {@code null} se le parti sono decodificate dalla sorgente a ogni accesso */
     private final List<Part> parti;
+    /** Sorgente della codifica originale del messaggio, {@code null} se non è nota (o non viene mantenuta) */
+    private final Supplier<ASCIICharSequence> source;
     // Intestazioni principali del messaggio (copiate dalla prima parte)
     /* Mittente del messaggio */
     private Sender sender;
@@ -40,13 +61,23 @@ public class Message implements Iterable<Part>, Comparable<Message> {
     private Subject subject;
     /* Data di invio del messaggio */
     private Date date;
+    /** Chiave di ordinamento, calcolata una sola volta alla costruzione */
+    private final SortKey chiave;
+    /** Identificativo stabile del messaggio */
+    private final long id;
 
     /*
-     * RI:  parti != null && parti.size >= 1
-     *      sender, recipient, subject, date sono copie delle intestazioni principali del messaggio
-     *      sender, recipient, subject, date != null -> parti.get(0) le deve contenere
+     * RI:  parti != null || source != null
+     *      parti != null -> parti.size >= 1
+     *      sender, recipient, subject, date != null sono copie delle intestazioni principali del messaggio
+     *      parti != null -> parti.get(0) contiene sender, recipient, subject, date
+     *      chiave == SortKey.of(sender, recipient, subject, date)
+     *      id è l'impronta della codifica del messaggio o l'identificativo assegnato da chi lo memorizza
      * 
-     * AF:  AF(parti) = { parte in parti | parte è una parte del messaggio }
+     *      source != null -> source fornisce la codifica da cui sono state (o vengono) decodificate le parti
+     * 
+     * AF:  AF(parti, source) = { parte in parti | parte è una parte del messaggio }      se parti != null
+     *                        = { parte in parse(source.get()) | parte è una parte del messaggio } altrimenti
      */
 
     /**
@@ -56,7 +87,22 @@ public class Message implements Iterable<Part>, Comparable<Message> {
      * @throws IllegalArgumentException se {@code parti.isEmpty()} o {@code intestazioni.size() < 4}
      */
     public Message(final List<Part> parti) {
+        this(parti, null, fingerprint(parti));
+    }
+
+    /**
+     * Costruisce un'istanza di Message a partire dalle sue {@code parti} e dalla sorgente della
+     * codifica originale da cui sono state decodificate
+     * @param parti parti del messaggio
+     * @param source sorgente della codifica originale, può essere null
+     * @param id identificativo del messaggio
+     * @throws NullPointerException se {@code parti} è null
+     * @throws IllegalArgumentException se {@code parti.isEmpty()} o {@code intestazioni.size() < 4}
+     */
+    private Message(final List<Part> parti, final Supplier<ASCIICharSequence> source, final long id) {
         this.parti = List.copyOf(parti);
+        this.source = source;
+        this.id = id;
         
         if (parti.isEmpty())
             throw new IllegalArgumentException("Il messaggio deve avere almeno una parte");
@@ -76,12 +122,224 @@ public class Message implements Iterable<Part>, Comparable<Message> {
         Objects.requireNonNull(recipient, "Il messaggio deve avere un destinatario");
         Objects.requireNonNull(subject, "Il messaggio deve avere un oggetto");
         Objects.requireNonNull(date, "Il messaggio deve avere una data");
+        this.chiave = SortKey.of(sender, recipient, subject, date);
+    }
+
+    /**
+     * Costruisce un'istanza pigra di Message a partire dalle sue intestazioni principali
+     * e dalla sorgente da cui decodificare le parti
+     * @param sender mittente del messaggio
+     * @param recipient destinatari del messaggio
+     * @param subject oggetto del messaggio
+     * @param date data del messaggio
+     * @param source sorgente del messaggio codificato
+     * @param id identificativo del messaggio
+     * @throws NullPointerException se uno dei parametri è null
+     */
+    private Message(final Sender sender, final Recipient recipient, final Subject subject, final Date date,
+            final Supplier<ASCIICharSequence> source, final long id) {
+        this.parti = null;
+        this.id = id;
+        this.source = Objects.requireNonNull(source, "La sorgente non può essere null");
+        this.sender = Objects.requireNonNull(sender, "Il messaggio deve avere un mittente");
+        this.recipient = Objects.requireNonNull(recipient, "Il messaggio deve avere un destinatario");
+        this.subject = Objects.requireNonNull(subject, "Il messaggio deve avere un oggetto");
+        this.date = Objects.requireNonNull(date, "Il messaggio deve avere una data");
+        this.chiave = SortKey.of(sender, recipient, subject, date);
+    }
+
+    /**
+     * Chiave di ordinamento di un messaggio
+     * <p>
+     * Contiene la data (istante, offset e zona, confrontati come in {@link ZonedDateTime#compareTo})
+     * e le rappresentazioni testuali di mittente, destinatario e oggetto, così che il confronto
+     * tra due chiavi non debba allocare nulla.
+     */
+    private record SortKey(long epochSecond, int nano, int offset, String zone, String sender,
+            String recipient, String subject) implements Comparable<SortKey> {
+
+        /**
+         * Costruisce la chiave di ordinamento di un messaggio a partire dalle sue intestazioni
+         * @param sender il mittente
+         * @param recipient i destinatari
+         * @param subject l'oggetto
+         * @param date la data
+         * @return la chiave di ordinamento
+         */
+        private static SortKey of(final Sender sender, final Recipient recipient, final Subject subject,
+                final Date date) {
+            final ZonedDateTime data = date.value();
+            return new SortKey(data.toEpochSecond(), data.getNano(), data.getOffset().getTotalSeconds(),
+                    data.getZone().getId(), sender.toString(), recipient.toString(), subject.toString());
+        }
+
+        @Override
+        public int compareTo(final SortKey o) {
+            int res = Long.compare(epochSecond, o.epochSecond);
+            if (res != 0) return res;
+            res = Integer.compare(nano, o.nano);
+            if (res != 0) return res;
+            res = Integer.compare(offset, o.offset);
+            if (res != 0) return res;
+            res = zone.compareTo(o.zone);
+            if (res != 0) return res;
+            res = sender.compareTo(o.sender);
+            if (res != 0) return res;
+            res = recipient.compareTo(o.recipient);
+            if (res != 0) return res;
+            return subject.compareTo(o.subject);
+        }
+    }
+
+    /**
+     * Costruisce un'istanza pigra di Message a partire dalle intestazioni principali già decodificate
+     * <p>
+     * Le parti del messaggio vengono decodificate dalla {@code source} solo quando necessario,
+     * le intestazioni devono corrispondere a quelle della prima parte del messaggio codificato.
+     * @param id identificativo stabile del messaggio (ad esempio l'impronta della entry che lo contiene)
+     * @param sender mittente del messaggio
+     * @param recipient destinatari del messaggio
+     * @param subject oggetto del messaggio
+     * @param date data del messaggio
+     * @param source sorgente della sequenza ASCII che rappresenta il messaggio codificato
+     * @return il messaggio con le sole intestazioni principali
+     * @throws NullPointerException se uno dei parametri è null
+     */
+    public static Message lazy(final long id, final Sender sender, final Recipient recipient,
+            final Subject subject, final Date date, final Supplier<ASCIICharSequence> source) {
+        return new Message(sender, recipient, subject, date, source, id);
+    }
+
+    /**
+     * Decodifica in modo pigro un'istanza di Message a partire dalla sua sorgente
+     * <p>
+     * Vengono decodificate solo le intestazioni della prima parte, le parti del messaggio
+     * vengono decodificate dalla {@code source} solo quando necessario.
+     * La sequenza fornita dalla {@code source} deve essere codificata secondo lo standard RFC,
+     * l'identificativo del messaggio è l'impronta della sequenza.
+     * @param source sorgente della sequenza ASCII che rappresenta il messaggio codificato
+     * @return il messaggio con le sole intestazioni principali decodificate
+     * @throws NullPointerException se {@code source} è null o fornisce null
+     * @throws IllegalArgumentException se le intestazioni non sono codificate secondo lo standard RFC
+     */
+    public static Message parseHeaders(final Supplier<ASCIICharSequence> source) {
+        Objects.requireNonNull(source, "La sorgente non può essere null");
+        final ASCIICharSequence sequence = Objects.requireNonNull(source.get(), "La sequenza non può essere null");
+        return fromRawHeaders(EntryEncoding.decodeHeaders(sequence), source, fingerprint(sequence));
+    }
+
+    /**
+     * Decodifica in modo pigro un'istanza di Message leggendone le intestazioni da un canale
+     * <p>
+     * Dal {@code channel} vengono lette solo le intestazioni della prima parte, tramite un
+     * {@link EntryDecoder}; le parti del messaggio vengono decodificate dalla {@code source}
+     * solo quando necessario. Se le intestazioni non possono essere lette dal canale
+     * (ad esempio perché troppo lunghe) vengono decodificate dalla {@code source}.
+     * @param channel canale da cui leggere il messaggio codificato, non viene chiuso
+     * @param id identificativo stabile del messaggio (ad esempio l'impronta della entry che lo contiene)
+     * @param source sorgente della sequenza ASCII che rappresenta il messaggio codificato
+     * @return il messaggio con le sole intestazioni principali decodificate
+     * @throws NullPointerException se {@code channel} o {@code source} sono null
+     * @throws IllegalArgumentException se le intestazioni non sono codificate secondo lo standard RFC
+     * @throws UncheckedIOException se la lettura dal canale fallisce
+     */
+    public static Message parseHeaders(final ReadableByteChannel channel, final long id,
+            final Supplier<ASCIICharSequence> source) {
+        Objects.requireNonNull(channel, "Il canale non può essere null");
+        Objects.requireNonNull(source, "La sorgente non può essere null");
+        final List<List<ASCIICharSequence>> rawHeaders = new ArrayList<>();
+        try {
+            new EntryDecoder().decode(channel, headersHandler(rawHeaders));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        } catch (IllegalArgumentException exception) {
+            return parseHeaders(source).withId(id);
+        }
+        return fromRawHeaders(rawHeaders, source, id);
+    }
+
+    /**
+     * Decodifica in modo pigro un'istanza di Message leggendone le intestazioni da un buffer
+     * <p>
+     * Come {@link #parseHeaders(ReadableByteChannel, long, Supplier)}, ma le intestazioni sono decodificate
+     * direttamente dal {@code buffer}, senza copiarlo: è il modo più economico di decodificare un
+     * messaggio mappato in memoria.
+     * @param buffer buffer i cui byte rimanenti sono il messaggio codificato, la sua posizione non cambia
+     * @param id identificativo stabile del messaggio (ad esempio l'impronta della entry che lo contiene)
+     * @param source sorgente della sequenza ASCII che rappresenta il messaggio codificato
+     * @return il messaggio con le sole intestazioni principali decodificate
+     * @throws NullPointerException se {@code buffer} o {@code source} sono null
+     * @throws IllegalArgumentException se le intestazioni non sono codificate secondo lo standard RFC
+     */
+    public static Message parseHeaders(final ByteBuffer buffer, final long id,
+            final Supplier<ASCIICharSequence> source) {
+        Objects.requireNonNull(buffer, "Il buffer non può essere null");
+        Objects.requireNonNull(source, "La sorgente non può essere null");
+        final List<List<ASCIICharSequence>> rawHeaders = new ArrayList<>();
+        try {
+            new EntryDecoder().decode(buffer, headersHandler(rawHeaders));
+        } catch (IllegalArgumentException exception) {
+            return parseHeaders(source).withId(id);
+        }
+        return fromRawHeaders(rawHeaders, source, id);
+    }
+
+    /**
+     * Restituisce un handler che raccoglie le intestazioni della prima parte e interrompe la decodifica
+     * @param rawHeaders lista in cui aggiungere le intestazioni grezze (tipo in lowercase e valore)
+     * @return l'handler
+     */
+    private static EntryDecoder.Handler headersHandler(final List<List<ASCIICharSequence>> rawHeaders) {
+        return new EntryDecoder.Handler() {
+            @Override
+            public void header(ASCIICharSequence name, ASCIICharSequence value) {
+                rawHeaders.add(List.of(name, value));
+            }
+
+            @Override
+            public EntryDecoder.Body headersEnd() {
+                return EntryDecoder.Body.STOP;
+            }
+        };
+    }
+
+    /**
+     * Costruisce un'istanza pigra di Message a partire dalle intestazioni grezze della prima parte
+     * @param rawHeaders intestazioni grezze (tipo in lowercase e valore) della prima parte
+     * @param source sorgente della sequenza ASCII che rappresenta il messaggio codificato
+     * @param id identificativo del messaggio
+     * @return il messaggio con le sole intestazioni principali decodificate
+     * @throws NullPointerException se manca una delle intestazioni principali
+     * @throws IllegalArgumentException se una delle intestazioni principali non può essere decodificata
+     */
+    private static Message fromRawHeaders(final List<List<ASCIICharSequence>> rawHeaders,
+            final Supplier<ASCIICharSequence> source, final long id) {
+        final HeaderParser parser = new HeaderParser();
+        Sender sender = null;
+        Recipient recipient = null;
+        Subject subject = null;
+        Date date = null;
+        for (List<ASCIICharSequence> rawHeader : rawHeaders) {
+            switch (rawHeader.get(0).toString()) {
+                case "from" -> sender = (Sender) parser.parse(rawHeader.get(0), rawHeader.get(1));
+                case "to" -> recipient = (Recipient) parser.parse(rawHeader.get(0), rawHeader.get(1));
+                case "subject" -> subject = (Subject) parser.parse(rawHeader.get(0), rawHeader.get(1));
+                case "date" -> date = (Date) parser.parse(rawHeader.get(0), rawHeader.get(1));
+                default -> {
+                }
+            }
+        }
+        return new Message(sender, recipient, subject, date, source, id);
     }
 
     /**
      * Decodifica un'istanza di Message a partire sequenza ASCII
      * <p>
-     * La sequenza deve essere codificata secondo lo standard RFC
+     * La sequenza deve essere codificata secondo lo standard RFC, l'identificativo del messaggio
+     * è l'impronta della sequenza. Il messaggio non mantiene alcun riferimento alla sequenza, che
+     * quindi non resta in memoria: per conservare la codifica originale (vedi {@link #original()})
+     * va usato {@link #parseHeaders(Supplier)} o {@link #lazy}, con una sorgente che la rilegga dal
+     * disco.
      * @param sequence sequenza di caratteri ASCII che rappresenta il messaggio codificato
      * @return il messaggio decodificato
      * @throws NullPointerException se {@code sequence} è null
@@ -93,16 +351,47 @@ public class Message implements Iterable<Part>, Comparable<Message> {
         final List<Part> parti = new ArrayList<>();
         for (Fragment fragment : EntryEncoding.decode(sequence)) {
             List<Header> intestazioni = new ArrayList<>();
-            String corpo = fragment.rawBody().toString();
             for (List<ASCIICharSequence> rawHeader : fragment.rawHeaders()) {
                 Header i = parser.parse(rawHeader.get(0), rawHeader.get(1));
                 if (Objects.nonNull(i)) intestazioni.add(i);
             }
-            if (intestazioni.contains(ContentTransferEncoding.parse(ASCIICharSequence.of("base64"))))
-                corpo = Base64Encoding.decode(ASCIICharSequence.of(corpo));
+            // Il corpo codificato in base64 viene decodificato direttamente dai byte del frammento
+            String corpo = intestazioni.contains(BASE64)
+                ? Base64Encoding.decode(fragment.rawBodyBuffer())
+                : fragment.rawBody().toString();
             parti.add(new Part(intestazioni, corpo));
         }
-        return new Message(parti);
+        return new Message(parti, null, fingerprint(sequence));
+    }
+
+    /**
+     * Restituisce la codifica originale del messaggio, così come letta dal disco o decodificata
+     * <p>
+     * La codifica originale è nota per i messaggi ottenuti tramite {@link #parseHeaders(Supplier)},
+     * {@link #parseHeaders(ReadableByteChannel, long, Supplier)} e {@link #lazy}, che la leggono
+     * dalla sorgente a ogni invocazione; permette di copiare il messaggio senza codificarlo nuovamente.
+     * @return la codifica originale, o {@code null} se non è nota o non è più leggibile
+     */
+    public ASCIICharSequence original() {
+        return Objects.isNull(source) ? null : source.get();
+    }
+
+    /**
+     * Restituisce le parti del messaggio, decodificandole dalla sorgente se il messaggio è pigro
+     * <p>
+     * Le parti decodificate non vengono mantenute dal messaggio, così che i corpi (anche quelli
+     * decodificati da base64) non restino in memoria finché il messaggio è in una mailbox.
+     * @return le parti del messaggio
+     * @throws IllegalStateException se la sorgente non è più leggibile o non è codificata secondo lo standard RFC
+     */
+    private List<Part> parti() {
+        if (Objects.nonNull(parti))
+            return parti;
+        try {
+            return parse(source.get()).parti;
+        } catch (RuntimeException exception) {
+            throw new IllegalStateException("Impossibile decodificare il messaggio: " + exception.getMessage());
+        }
     }
 
     /**
@@ -139,28 +428,107 @@ public class Message implements Iterable<Part>, Comparable<Message> {
 
     @Override
     public int compareTo(final Message o) {
-        int res = this.date.value().compareTo(o.date.value());
-        if (res != 0) return res;
+        final int res = chiave.compareTo(o.chiave);
+        return res != 0 ? res : Long.compare(id, o.id);
+    }
 
-        res = this.sender.toString().compareTo(o.sender.toString());
-        if (res != 0) return res;
+    /**
+     * Restituisce l'identificativo del messaggio
+     * @return l'identificativo del messaggio
+     */
+    public long id() {
+        return id;
+    }
 
-        res = this.recipient.toString().compareTo(o.recipient.toString());
-        if (res != 0) return res;
+    /**
+     * Restituisce un messaggio uguale a questo ma con l'identificativo {@code id}
+     * <p>
+     * Il nuovo messaggio condivide parti e sorgente con questo; serve a chi memorizza il messaggio
+     * per identificarlo con la posizione in cui è memorizzato.
+     * @param id il nuovo identificativo
+     * @return il messaggio con il nuovo identificativo
+     */
+    public Message withId(final long id) {
+        if (this.id == id)
+            return this;
+        if (Objects.nonNull(parti))
+            return new Message(parti, source, id);
+        return new Message(sender, recipient, subject, date, source, id);
+    }
 
-        res = this.subject.toString().compareTo(o.subject.toString());
-        return 0;
+    /**
+     * Restituisce l'impronta a 64 bit (FNV-1a, con un rimescolamento finale) di una sequenza di caratteri
+     * @param sequence la sequenza
+     * @return l'impronta
+     * @throws NullPointerException se {@code sequence} è null
+     */
+    public static long fingerprint(final CharSequence sequence) {
+        return mix(fingerprint(0xcbf29ce484222325L, sequence));
+    }
+
+    /**
+     * Aggiorna un'impronta FNV-1a con i caratteri di una sequenza
+     * @param h l'impronta
+     * @param sequence la sequenza
+     * @return l'impronta aggiornata
+     */
+    private static long fingerprint(long h, final CharSequence sequence) {
+        for (int i = 0; i < sequence.length(); i++)
+            h = (h ^ sequence.charAt(i)) * 0x100000001b3L;
+        return h;
+    }
+
+    /**
+     * Restituisce l'impronta del contenuto di un messaggio, date le sue parti
+     * @param parti le parti del messaggio
+     * @return l'impronta di intestazioni e corpi delle parti
+     */
+    private static long fingerprint(final List<Part> parti) {
+        long h = 0xcbf29ce484222325L;
+        for (Part parte : parti) {
+            for (Header header : parte) {
+                h = fingerprint(h, header.type());
+                h = fingerprint(h, header.toString());
+            }
+            h = fingerprint(h, parte.body());
+        }
+        return mix(h);
+    }
+
+    /**
+     * Rimescola i bit di un'impronta (passo finale di MurmurHash3)
+     * @param h l'impronta
+     * @return l'impronta rimescolata
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof Message message && message.id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
     }
 
     @Override
     public Iterator<Part> iterator() {
-        return List.copyOf(parti).iterator();
+        return parti().iterator();
     }
 
+    /**
+     * Restituisce la codifica del messaggio, prodotta da {@link MessageWriter}
+     * @return la codifica del messaggio
+     * @throws IllegalArgumentException se un'intestazione o un corpo non codificato in base64
+     *                                  contengono caratteri non ASCII
+     */
     @Override
     public String toString() {
-        final StringJoiner sj = new StringJoiner("\n--frontier\n");
-        for (final Part parte : parti) sj.add(parte.toString());
-        return sj+((parti.size() > 1) ? "\n--frontier--": "");
+        return MessageWriter.encoding(this);
     }
 }
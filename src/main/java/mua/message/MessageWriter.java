@@ -0,0 +1,286 @@
+package mua.message;
+
+import mua.message.header.ContentTransferEncoding;
+import mua.message.header.Header;
+import utils.ASCIICharSequence;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * Classe mutabile che codifica messaggi e parti scrivendoli direttamente su un canale
+ * <p>
+ * La codifica prodotta è quella dello standard RFC usata da {@link Message#toString()} e
+ * {@link Part#toString()}: le intestazioni e i corpi (eventualmente codificati in base64) vengono
+ * scritti man mano in un buffer riutilizzato tra una scrittura e l'altra, che viene svuotato sul
+ * canale quando è pieno; la memoria usata non dipende quindi dalla dimensione del messaggio.
+ * <p>
+ * Se la codifica originale del messaggio è nota (vedi {@link Message#original()}),
+ * {@link #write(Message, WritableByteChannel)} la copia così com'è, senza codificare nuovamente
+ * intestazioni e corpi; {@link #encode(Message, WritableByteChannel)} codifica sempre il messaggio.
+ * <p>
+ * Un MessageWriter non può essere usato da più thread contemporaneamente.
+ */
+public class MessageWriter {
+    /** Dimensione predefinita del buffer */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    /** Separatore tra le parti di un messaggio */
+    private static final String SEPARATORE = "\n--frontier\n";
+    /** Terminatore di un messaggio con più parti */
+    private static final String TERMINATORE = "\n--frontier--";
+    /** Dimensione dei blocchi di byte UTF-8 passati al codificatore base64, multipla di 3 */
+    private static final int BLOCCO = 3 * 1024;
+
+    /** Buffer in cui viene accumulata la codifica */
+    private final ByteBuffer buffer;
+    /** Blocco dei byte UTF-8 di un corpo da codificare in base64 */
+    private final ByteBuffer utf8 = ByteBuffer.allocate(BLOCCO);
+    /** Flusso che scrive nel buffer i byte che riceve */
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++)
+                put(b[i]);
+        }
+    };
+    /** Canale su cui è in corso la scrittura */
+    private WritableByteChannel channel;
+
+    /*
+     * RI:  buffer, utf8, output != null
+     *      channel != null durante una scrittura, null altrimenti
+     *
+     * AF:  AF(buffer) = codificatore che usa un buffer di buffer.capacity() byte
+     */
+
+    /** Costruisce un MessageWriter con un buffer di {@link #DEFAULT_BUFFER_SIZE} byte */
+    public MessageWriter() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Costruisce un MessageWriter con un buffer di {@code bufferSize} byte
+     * @param bufferSize dimensione del buffer
+     * @throws IllegalArgumentException se {@code bufferSize < 1}
+     */
+    public MessageWriter(final int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("La dimensione del buffer deve essere positiva");
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Scrive il {@code message} sul {@code channel}, copiandone la codifica originale se nota e
+     * codificandolo altrimenti
+     * @param message il messaggio da scrivere
+     * @param channel il canale su cui scrivere, non viene chiuso
+     * @throws IOException se la scrittura sul canale fallisce
+     * @throws NullPointerException se {@code message} o {@code channel} sono null
+     * @throws IllegalArgumentException se un'intestazione o un corpo non codificato in base64
+     *                                  contengono caratteri non ASCII
+     */
+    public void write(final Message message, final WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(message, "Il messaggio non può essere null");
+        final ASCIICharSequence original = message.original();
+        if (Objects.isNull(original)) {
+            encode(message, channel);
+            return;
+        }
+        Objects.requireNonNull(channel, "Il canale non può essere null");
+        final ByteBuffer bytes = original.asByteBuffer();
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+    }
+
+    /**
+     * Scrive la codifica del {@code message} sul {@code channel}
+     * @param message il messaggio da scrivere
+     * @param channel il canale su cui scrivere, non viene chiuso
+     * @throws IOException se la scrittura sul canale fallisce
+     * @throws NullPointerException se {@code message} o {@code channel} sono null
+     * @throws IllegalArgumentException se un'intestazione o un corpo non codificato in base64
+     *                                  contengono caratteri non ASCII
+     */
+    public void encode(final Message message, final WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(message, "Il messaggio non può essere null");
+        start(channel);
+        try {
+            final Iterator<Part> parti = message.iterator();
+            int n = 0;
+            while (parti.hasNext()) {
+                if (n++ > 0)
+                    putAscii(SEPARATORE);
+                part(parti.next());
+            }
+            if (n > 1)
+                putAscii(TERMINATORE);
+            flush();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Scrive la codifica della {@code part} sul {@code channel}
+     * @param part la parte da scrivere
+     * @param channel il canale su cui scrivere, non viene chiuso
+     * @throws IOException se la scrittura sul canale fallisce
+     * @throws NullPointerException se {@code part} o {@code channel} sono null
+     * @throws IllegalArgumentException se un'intestazione o un corpo non codificato in base64
+     *                                  contengono caratteri non ASCII
+     */
+    public void encode(final Part part, final WritableByteChannel channel) throws IOException {
+        Objects.requireNonNull(part, "La parte non può essere null");
+        start(channel);
+        try {
+            part(part);
+            flush();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Restituisce la codifica di un messaggio come stringa
+     * @param message il messaggio
+     * @return la codifica del messaggio
+     */
+    static String encoding(final Message message) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new MessageWriter().encode(message, Channels.newChannel(out));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Restituisce la codifica di una parte come stringa
+     * @param part la parte
+     * @return la codifica della parte
+     */
+    static String encoding(final Part part) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new MessageWriter().encode(part, Channels.newChannel(out));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Inizia una scrittura sul {@code channel}
+     * @param channel il canale su cui scrivere
+     * @throws IllegalStateException se è già in corso una scrittura
+     * @throws NullPointerException se {@code channel} è {@code null}
+     */
+    private void start(final WritableByteChannel channel) {
+        if (this.channel != null)
+            throw new IllegalStateException("Scrittura già in corso");
+        this.channel = Objects.requireNonNull(channel, "Il canale non può essere null");
+        buffer.clear();
+    }
+
+    /** Termina la scrittura in corso, rendendo lo scrittore nuovamente utilizzabile */
+    private void end() {
+        channel = null;
+        buffer.clear();
+    }
+
+    /**
+     * Scrive una parte: le intestazioni, una riga per intestazione, seguite da due righe vuote e dal
+     * corpo, codificato in base64 se la parte ha un'intestazione Content-Transfer-Encoding
+     * @param part la parte
+     * @throws IOException se la scrittura sul canale fallisce
+     */
+    private void part(final Part part) throws IOException {
+        boolean base64 = false;
+        for (Header header : part) {
+            putAscii(header.type());
+            putAscii(": ");
+            putAscii(header.toString());
+            put((byte) '\n');
+            base64 |= header instanceof ContentTransferEncoding;
+        }
+        putAscii("\n\n");
+        if (base64)
+            base64(part.body());
+        else
+            putAscii(part.body());
+    }
+
+    /**
+     * Scrive il corpo codificato in base64 (con righe di 76 caratteri separate da CRLF)
+     * @param body il corpo
+     * @throws IOException se la scrittura sul canale fallisce
+     */
+    private void base64(final String body) throws IOException {
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = CharBuffer.wrap(body);
+        final OutputStream encoded = Base64.getMimeEncoder().wrap(output);
+        boolean finito = false;
+        while (!finito) {
+            utf8.clear();
+            finito = encoder.encode(chars, utf8, true).isUnderflow() && encoder.flush(utf8).isUnderflow();
+            encoded.write(utf8.array(), 0, utf8.position());
+        }
+        encoded.close();
+    }
+
+    /**
+     * Scrive i caratteri di {@code s} come byte ASCII
+     * @param s la stringa
+     * @throws IOException se la scrittura sul canale fallisce
+     * @throws IllegalArgumentException se {@code s} contiene caratteri non ASCII
+     */
+    private void putAscii(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80)
+                throw new IllegalArgumentException("Il messaggio contiene caratteri non ASCII");
+            put((byte) c);
+        }
+    }
+
+    /**
+     * Scrive un byte, svuotando il buffer se è pieno
+     * @param b il byte
+     * @throws IOException se la scrittura sul canale fallisce
+     */
+    private void put(final byte b) throws IOException {
+        if (!buffer.hasRemaining())
+            flush();
+        buffer.put(b);
+    }
+
+    /**
+     * Scrive sul canale il contenuto del buffer e lo svuota
+     * @throws IOException se la scrittura sul canale fallisce
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
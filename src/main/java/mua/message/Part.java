@@ -1,13 +1,10 @@
 package mua.message;
 
-import mua.message.header.ContentTransferEncoding;
 import mua.message.header.Header;
-import utils.Base64Encoding;
 
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
-import java.util.StringJoiner;
 
 /**
  * Classe immutabile che rappresenta la parte di un messaggio
@@ -61,19 +58,15 @@ public class Part implements Iterable<Header> {
         return headers.iterator();
     }
 
+    /**
+     * Restituisce la codifica della parte, prodotta da {@link MessageWriter}
+     *
+     * @return la codifica della parte
+     * @throws IllegalArgumentException se un'intestazione o il corpo non codificato in base64
+     *                                  contengono caratteri non ASCII
+     */
     @Override
     public String toString() {
-        final StringJoiner sj = new StringJoiner("\n");
-        String coded = body;
-        for (Header header : headers) {
-            sj.add(header.type() + ": " + header);
-            if (header instanceof ContentTransferEncoding)
-                coded = Base64Encoding.encode(body);
-        }
-
-        sj.add("\n");
-        sj.add(coded);
-
-        return sj.toString();
+        return MessageWriter.encoding(this);
     }
 }
@@ -6,13 +6,30 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
-/** An implementation of {@link CharSequence} that contains ASCII characters. */
+/**
+ * An implementation of {@link CharSequence} that contains ASCII characters.
+ *
+ * <p>The sequence is backed by a portion of a byte array, one byte per character; subsequences
+ * share the array of the sequence they are obtained from.
+ */
 public class ASCIICharSequence implements CharSequence {
 
-  private final String value;
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private final byte[] bytes;
+  private final int offset, length;
+  private String string;
+  private int hash;
 
   /**
    * Checks if the given string is ASCII.
@@ -21,13 +38,48 @@ public class ASCIICharSequence implements CharSequence {
    * @return if the string non {@code null} and contains only ASCII characters.
    */
   public static boolean isAscii(final String data) {
-    return data != null && StandardCharsets.US_ASCII.newEncoder().canEncode(data);
+    if (data == null) return false;
+    for (int i = 0; i < data.length(); i++) if (data.charAt(i) >= 0x80) return false;
+    return true;
   }
 
-  private ASCIICharSequence(final String data) {
-    if (!isAscii(data))
-      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
-    this.value = data;
+  /**
+   * Checks if the given portion of a byte array is ASCII.
+   *
+   * <p>Bytes are checked eight at a time.
+   *
+   * @param bytes the byte array.
+   * @param offset the index of the first byte to check.
+   * @param length the number of bytes to check.
+   * @return if the bytes contain only ASCII characters.
+   */
+  static boolean isAscii(final byte[] bytes, final int offset, final int length) {
+    int i = offset;
+    final int end = offset + length;
+    for (; i + Long.BYTES <= end; i += Long.BYTES)
+      if (((long) LONGS.get(bytes, i) & HIGH_BITS) != 0) return false;
+    for (; i < end; i++) if (bytes[i] < 0) return false;
+    return true;
+  }
+
+  private ASCIICharSequence(final byte[] bytes, final int offset, final int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Constructs a sequence that is a view of a portion of a byte array, without checking or copying
+   * it.
+   *
+   * @param bytes the byte array, that must contain only ASCII bytes and must not be modified.
+   * @param offset the index of the first byte of the sequence.
+   * @param length the number of bytes of the sequence.
+   * @return the sequence.
+   */
+  static ASCIICharSequence view(final byte[] bytes, final int offset, final int length) {
+    Objects.checkFromIndexSize(offset, length, bytes.length);
+    return new ASCIICharSequence(bytes, offset, length);
   }
 
   /**
@@ -38,7 +90,12 @@ public class ASCIICharSequence implements CharSequence {
    * @throws IllegalArgumentException if the string is not ASCII or {@code null}.
    */
   public static ASCIICharSequence of(final String data) throws IllegalArgumentException {
-    return new ASCIICharSequence(data);
+    if (!isAscii(data))
+      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
+    final byte[] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+    final ASCIICharSequence sequence = new ASCIICharSequence(bytes, 0, bytes.length);
+    sequence.string = data;
+    return sequence;
   }
 
   /**
@@ -46,26 +103,45 @@ public class ASCIICharSequence implements CharSequence {
    *
    * @param bytes the byte array.
    * @return the sequence.
-   * @throws NullPointerException if the byte array contains non ASCII bytes or is {@code null}.
+   * @throws IllegalArgumentException if the byte array contains non ASCII bytes.
+   * @throws NullPointerException if the byte array is {@code null}.
    */
   public static ASCIICharSequence of(final byte[] bytes) {
-    return new ASCIICharSequence(
-        new String(Objects.requireNonNull(bytes), StandardCharsets.US_ASCII));
+    return of(bytes, 0, Objects.requireNonNull(bytes).length);
+  }
+
+  /**
+   * Constructs an {@link ASCIICharSequence} given a portion of a byte array.
+   *
+   * @param bytes the byte array.
+   * @param offset the index of the first byte of the sequence.
+   * @param length the number of bytes of the sequence.
+   * @return the sequence.
+   * @throws IllegalArgumentException if the portion contains non ASCII bytes.
+   * @throws IndexOutOfBoundsException if the portion is out of the bounds of the array.
+   * @throws NullPointerException if the byte array is {@code null}.
+   */
+  public static ASCIICharSequence of(final byte[] bytes, final int offset, final int length) {
+    Objects.checkFromIndexSize(offset, length, Objects.requireNonNull(bytes).length);
+    if (!isAscii(bytes, offset, length))
+      throw new IllegalArgumentException("ASCIICharSequence value must be ASCII (and not null)");
+    return new ASCIICharSequence(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
   }
 
   @Override
   public int length() {
-    return value.length();
+    return length;
   }
 
   @Override
   public char charAt(int index) {
-    return value.charAt(index);
+    return (char) bytes[offset + Objects.checkIndex(index, length)];
   }
 
   @Override
   public ASCIICharSequence subSequence(int start, int end) {
-    return new ASCIICharSequence(value.substring(start, end));
+    Objects.checkFromToIndex(start, end, length);
+    return new ASCIICharSequence(bytes, offset + start, end - start);
   }
 
   /**
@@ -75,7 +151,16 @@ public class ASCIICharSequence implements CharSequence {
    * @return if this sequence is equal to the other, ignoring case.
    */
   public boolean equalsIgnoreCase(ASCIICharSequence other) {
-    return value.equalsIgnoreCase(other.value);
+    if (other.length != length) return false;
+    for (int i = 0; i < length; i++) {
+      final byte a = bytes[offset + i], b = other.bytes[other.offset + i];
+      if (a != b && toLowerCase(a) != toLowerCase(b)) return false;
+    }
+    return true;
+  }
+
+  private static byte toLowerCase(final byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
   }
 
   /**
@@ -85,7 +170,9 @@ public class ASCIICharSequence implements CharSequence {
    * @return the first position of the character, or -1 if the character is not present.
    */
   public int indexOf(char ch) {
-    return value.indexOf(ch);
+    if (ch >= 0x80) return -1;
+    for (int i = 0; i < length; i++) if (bytes[offset + i] == ch) return i;
+    return -1;
   }
 
   /**
@@ -97,32 +184,77 @@ public class ASCIICharSequence implements CharSequence {
    *     this sequence.
    */
   public ASCIICharSequence subSequence(int start) throws IndexOutOfBoundsException {
-    return new ASCIICharSequence(value.substring(start));
+    return subSequence(start, length);
   }
 
   /**
    * Returns the ASCII bytes of this sequence.
    *
+   * <p>The returned array is a copy, see {@link #asByteBuffer()} to read the bytes without copying
+   * them.
+   *
    * @return the bytes.
    */
   public byte[] getASCIIBytes() {
-    return value.getBytes(StandardCharsets.US_ASCII);
+    return Arrays.copyOfRange(bytes, offset, offset + length);
+  }
+
+  /**
+   * Returns a read-only view of the ASCII bytes of this sequence.
+   *
+   * <p>The buffer shares the bytes of this sequence, so no copy is made.
+   *
+   * @return the buffer, positioned at the first byte of this sequence.
+   */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the backing array of this sequence (that must not be modified).
+   *
+   * @return the backing array.
+   */
+  byte[] bytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the offset of this sequence in its backing array.
+   *
+   * @return the offset.
+   */
+  int offset() {
+    return offset;
   }
 
   @Override
   public String toString() {
-    return value;
+    String s = string;
+    if (s == null) string = s = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    return s;
   }
 
   @Override
   public boolean equals(Object obj) {
-    if (obj instanceof String) return value.equals(obj);
+    if (obj instanceof String s) {
+      if (s.length() != length) return false;
+      for (int i = 0; i < length; i++) if (s.charAt(i) != bytes[offset + i]) return false;
+      return true;
+    }
     if (!(obj instanceof ASCIICharSequence)) return false;
-    return value.equals(((ASCIICharSequence) obj).value);
+    final ASCIICharSequence other = (ASCIICharSequence) obj;
+    return Arrays.equals(
+        bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
   }
 
   @Override
   public int hashCode() {
-    return value.hashCode();
+    int h = hash;
+    if (h == 0 && length > 0) {
+      for (int i = 0; i < length; i++) h = 31 * h + bytes[offset + i];
+      hash = h;
+    }
+    return h;
   }
 }
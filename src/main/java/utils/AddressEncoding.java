@@ -9,37 +9,15 @@ package utils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-/** An utility class for decoding and checking email addresses. */
+/**
+ * An utility class for decoding and checking email addresses.
+ *
+ * <p>Addresses are decoded by a hand-written scanner (that doesn't allocate anything but the
+ * resulting strings) accepting the grammar described in {@link #decode(ASCIICharSequence)}.
+ */
 public class AddressEncoding {
-  private static final String ADDRESS_PART = "[\\w\\d.!$%&'*+/=?^_`{|}~-]+";
-
-  private static final Predicate<String> ADDRESS_PART_PREDICATE =
-      Pattern.compile(ADDRESS_PART).asMatchPredicate();
-
-  private static final Pattern ADDRESS_PATTERN =
-      Pattern.compile(
-          String.format(
-              """
-                \\G
-                (
-                  (
-                    (?<name>[-\\w]+(\\s+[-\\w]+)?) |
-                    (\"(?<qname>[^\"]*)\")
-                  )\\s+
-                )?
-                (
-                  (
-                    ((?<local>%1$s)@(?<domain>%1$s)) |
-                    (<(?<rlocal>%1$s)@(?<rdomain>%1$s)>)
-                  )
-                )(\\s*,\\s*)?
-              """,
-              ADDRESS_PART),
-          Pattern.COMMENTS);
+  private static final String SPECIALS = ".!$%&'*+/=?^_`{|}~-";
 
   private AddressEncoding() {}
 
@@ -53,7 +31,63 @@ public class AddressEncoding {
    * @return if the part is a valid email local or domain part.
    */
   public static boolean isValidAddressPart(final String part) {
-    return ASCIICharSequence.isAscii(part) && ADDRESS_PART_PREDICATE.test(part);
+    if (part == null || part.isEmpty()) return false;
+    for (int i = 0; i < part.length(); i++) if (!isPartChar(part.charAt(i))) return false;
+    return true;
+  }
+
+  private static boolean isWordChar(final char c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+  }
+
+  private static boolean isNameChar(final char c) {
+    return c == '-' || isWordChar(c);
+  }
+
+  private static boolean isPartChar(final char c) {
+    return isWordChar(c) || SPECIALS.indexOf(c) >= 0;
+  }
+
+  private static boolean isSpace(final char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private static int skipNameChars(final CharSequence s, int i) {
+    while (i < s.length() && isNameChar(s.charAt(i))) i++;
+    return i;
+  }
+
+  private static int skipPartChars(final CharSequence s, int i) {
+    while (i < s.length() && isPartChar(s.charAt(i))) i++;
+    return i;
+  }
+
+  private static int skipSpaces(final CharSequence s, int i) {
+    while (i < s.length() && isSpace(s.charAt(i))) i++;
+    return i;
+  }
+
+  /**
+   * Scans an address ({@code local@domain} or {@code <local@domain>}) starting at the given
+   * position.
+   *
+   * @param s the sequence.
+   * @param start the position.
+   * @param bounds where to store the start and end of the local and domain parts.
+   * @return the position following the address, or -1 if there is no address at the position.
+   */
+  private static int scanAddress(final CharSequence s, final int start, final int[] bounds) {
+    final boolean angled = start < s.length() && s.charAt(start) == '<';
+    final int ls = angled ? start + 1 : start, le = skipPartChars(s, ls);
+    if (le == ls || le >= s.length() || s.charAt(le) != '@') return -1;
+    final int ds = le + 1, de = skipPartChars(s, ds);
+    if (de == ds) return -1;
+    if (angled && (de >= s.length() || s.charAt(de) != '>')) return -1;
+    bounds[0] = ls;
+    bounds[1] = le;
+    bounds[2] = ds;
+    bounds[3] = de;
+    return angled ? de + 1 : de;
   }
 
   /**
@@ -93,14 +127,39 @@ public class AddressEncoding {
    */
   public static List<List<String>> decode(ASCIICharSequence sequence) throws NullPointerException {
     final List<List<String>> result = new ArrayList<>();
-    final Matcher m = ADDRESS_PATTERN.matcher(Objects.requireNonNull(sequence));
-    while (m.find()) {
-      final String name;
-      if (m.group("name") != null) name = m.group("name");
-      else if (m.group("qname") != null) name = m.group("qname");
-      else name = "";
-      if (m.group("local") != null) result.add(List.of(name, m.group("local"), m.group("domain")));
-      else result.add(List.of(name, m.group("rlocal"), m.group("rdomain")));
+    final CharSequence s = Objects.requireNonNull(sequence);
+    final int[] bounds = new int[4];
+    int pos = 0;
+    while (pos < s.length()) {
+      int end = -1, ns = pos, ne = pos;
+      final int w1 = skipNameChars(s, pos);
+      if (w1 > pos) {
+        final int s1 = skipSpaces(s, w1);
+        if (s1 > w1) {
+          final int w2 = skipNameChars(s, s1), s2 = skipSpaces(s, w2);
+          if (w2 > s1 && s2 > w2 && (end = scanAddress(s, s2, bounds)) >= 0) ne = w2;
+          else if ((end = scanAddress(s, s1, bounds)) >= 0) ne = w1;
+        }
+      } else if (s.charAt(pos) == '"') {
+        int q = pos + 1;
+        while (q < s.length() && s.charAt(q) != '"') q++;
+        if (q < s.length()) {
+          final int sq = skipSpaces(s, q + 1);
+          if (sq > q + 1 && (end = scanAddress(s, sq, bounds)) >= 0) {
+            ns = pos + 1;
+            ne = q;
+          }
+        }
+      }
+      if (end < 0 && (end = scanAddress(s, pos, bounds)) < 0) break;
+      result.add(
+          List.of(
+              s.subSequence(ns, ne).toString(),
+              s.subSequence(bounds[0], bounds[1]).toString(),
+              s.subSequence(bounds[2], bounds[3]).toString()));
+      pos = end;
+      final int comma = skipSpaces(s, end);
+      if (comma < s.length() && s.charAt(comma) == ',') pos = skipSpaces(s, comma + 1);
     }
     return List.copyOf(result);
   }
@@ -6,6 +6,7 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Objects;
@@ -52,8 +53,26 @@ public class Base64Encoding {
    * @throws NullPointerException if the sequence is {@code null}.
    */
   public static String decode(final ASCIICharSequence sequence) throws NullPointerException {
+    return decode(Objects.requireNonNull(sequence).asByteBuffer());
+  }
+
+  /**
+   * Decodes a buffer of ASCII bytes encoded using the Base64 scheme.
+   *
+   * <p>The bytes between the position and the limit of the buffer are decoded, without copying
+   * them to an intermediate sequence.
+   *
+   * @param buffer the buffer to decode.
+   * @return the decoded data.
+   * @throws IllegalArgumentException if the buffer is not a valid Base64 encoding.
+   * @throws NullPointerException if the buffer is {@code null}.
+   */
+  public static String decode(final ByteBuffer buffer) throws NullPointerException {
+    final ByteBuffer decoded = Base64.getMimeDecoder().decode(Objects.requireNonNull(buffer));
     return new String(
-        Base64.getMimeDecoder().decode(Objects.requireNonNull(sequence).toString()),
+        decoded.array(),
+        decoded.arrayOffset() + decoded.position(),
+        decoded.remaining(),
         StandardCharsets.UTF_8);
   }
 
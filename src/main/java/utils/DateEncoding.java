@@ -7,13 +7,22 @@ Copyright 2023 Massimo Santini
 package utils;
 
 import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.Year;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.Objects;
 
-/** An utility class to encode and decode a date. */
+/**
+ * An utility class to encode and decode a date.
+ *
+ * <p>Dates are encoded according to {@link DateTimeFormatter#RFC_1123_DATE_TIME}; the common shape
+ * {@code EEE, d MMM yyyy HH:mm:ss Z} is handled by a specialized parser and formatter, everything
+ * else (e.g., lower case names, or out of range values) falls back to the formatter.
+ */
 public class DateEncoding {
 
   private DateEncoding() {}
@@ -23,6 +32,14 @@ public class DateEncoding {
   /** The {@link ZoneId} of Europe/Rome. */
   public static final ZoneId EUROPE_ROME = ZoneId.of("Europe/Rome");
 
+  private static final String[] DAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+
+  private static final String[] MONTHS = {
+    "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+  };
+
+  private static final int[] MONTH_LENGTHS = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
   /**
    * Encodes a {@link ZonedDateTime} date to an {@link ASCIICharSequence}.
    *
@@ -33,7 +50,33 @@ public class DateEncoding {
    */
   public static ASCIICharSequence encode(final ZonedDateTime date)
       throws DateTimeException, NullPointerException {
-    return ASCIICharSequence.of(Objects.requireNonNull(date).format(DATE_FORMATTER));
+    final String fast = format(Objects.requireNonNull(date));
+    return ASCIICharSequence.of(fast != null ? fast : date.format(DATE_FORMATTER));
+  }
+
+  private static String format(final ZonedDateTime date) {
+    final int year = date.getYear(), offset = date.getOffset().getTotalSeconds();
+    if (year < 0 || year > 9999 || offset % 60 != 0) return null;
+    final StringBuilder sb = new StringBuilder(31);
+    sb.append(DAYS[date.getDayOfWeek().ordinal()]).append(", ").append(date.getDayOfMonth());
+    sb.append(' ').append(MONTHS[date.getMonthValue() - 1]).append(' ');
+    appendDigits(sb, year, 4).append(' ');
+    appendDigits(sb, date.getHour(), 2).append(':');
+    appendDigits(sb, date.getMinute(), 2).append(':');
+    appendDigits(sb, date.getSecond(), 2).append(' ');
+    if (offset == 0) return sb.append("GMT").toString();
+    final int minutes = Math.abs(offset) / 60;
+    sb.append(offset < 0 ? '-' : '+');
+    appendDigits(sb, minutes / 60, 2);
+    return appendDigits(sb, minutes % 60, 2).toString();
+  }
+
+  private static StringBuilder appendDigits(final StringBuilder sb, int value, int width) {
+    for (int d = width == 4 ? 1000 : 10; d > 0; d /= 10) {
+      sb.append((char) ('0' + value / d));
+      value %= d;
+    }
+    return sb;
   }
 
   /**
@@ -45,6 +88,84 @@ public class DateEncoding {
    * @throws NullPointerException if the sequence is {@code null}.
    */
   public static ZonedDateTime decode(final ASCIICharSequence sequence) {
-    return ZonedDateTime.parse(Objects.requireNonNull(sequence), DATE_FORMATTER);
+    final ZonedDateTime fast = parse(Objects.requireNonNull(sequence));
+    return fast != null ? fast : ZonedDateTime.parse(sequence, DATE_FORMATTER);
+  }
+
+  /**
+   * Parses the {@code [EEE, ]d MMM yyyy HH:mm[:ss] Z} shape, with valid values only.
+   *
+   * @param s the sequence.
+   * @return the date, or {@code null} if the sequence has some other shape.
+   */
+  private static ZonedDateTime parse(final ASCIICharSequence s) {
+    final int n = s.length();
+    int i = 0, dayOfWeek = -1;
+    if (n > 5 && s.charAt(3) == ',') {
+      dayOfWeek = indexOf(DAYS, s, 0);
+      if (dayOfWeek < 0 || s.charAt(4) != ' ') return null;
+      i = 5;
+    }
+    final int dayDigits = i + 1 < n && isDigit(s.charAt(i + 1)) ? 2 : 1;
+    final int day = digits(s, i, dayDigits);
+    i += dayDigits;
+    if (day < 1 || i + 19 > n || s.charAt(i) != ' ' || s.charAt(i + 4) != ' ') return null;
+    final int month = indexOf(MONTHS, s, i + 1) + 1;
+    final int year = digits(s, i + 5, 4);
+    i += 9;
+    if (month < 1 || year < 0 || s.charAt(i) != ' ' || s.charAt(i + 3) != ':') return null;
+    final int hour = digits(s, i + 1, 2), minute = digits(s, i + 4, 2);
+    i += 6;
+    int second = 0;
+    if (s.charAt(i) == ':') {
+      second = digits(s, i + 1, 2);
+      i += 3;
+    }
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+      return null;
+    if (day > MONTH_LENGTHS[month - 1] || month == 2 && day == 29 && !Year.isLeap(year))
+      return null;
+    if (i + 4 > n || s.charAt(i) != ' ') return null;
+    final ZoneOffset offset;
+    if (i + 4 == n && s.charAt(i + 1) == 'G' && s.charAt(i + 2) == 'M' && s.charAt(i + 3) == 'T')
+      offset = ZoneOffset.UTC;
+    else {
+      if (i + 6 != n) return null;
+      final char sign = s.charAt(i + 1);
+      final int hours = digits(s, i + 2, 2), minutes = digits(s, i + 4, 2);
+      if (sign != '+' && sign != '-' || hours < 0 || hours > 18 || minutes < 0 || minutes > 59)
+        return null;
+      final int seconds = (hours * 60 + minutes) * 60;
+      if (seconds > 18 * 3600) return null;
+      offset = ZoneOffset.ofTotalSeconds(sign == '-' ? -seconds : seconds);
+    }
+    final LocalDateTime local = LocalDateTime.of(year, month, day, hour, minute, second);
+    if (dayOfWeek >= 0 && local.getDayOfWeek().ordinal() != dayOfWeek) return null;
+    return ZonedDateTime.of(local, offset);
+  }
+
+  private static boolean isDigit(final char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int digits(final ASCIICharSequence s, final int start, final int count) {
+    if (start + count > s.length()) return -1;
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      final char c = s.charAt(i);
+      if (!isDigit(c)) return -1;
+      value = value * 10 + c - '0';
+    }
+    return value;
+  }
+
+  private static int indexOf(final String[] names, final ASCIICharSequence s, final int start) {
+    for (int k = 0; k < names.length; k++) {
+      final String name = names[k];
+      if (s.charAt(start) == name.charAt(0)
+          && s.charAt(start + 1) == name.charAt(1)
+          && s.charAt(start + 2) == name.charAt(2)) return k;
+    }
+    return -1;
   }
 }
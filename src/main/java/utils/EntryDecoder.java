@@ -0,0 +1,311 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A streaming decoder of multipart encoded mail messages.
+ *
+ * <p>This class decodes the same encoding of {@link EntryEncoding}, but instead of building the
+ * list of {@link Fragment fragments} of a message held in memory, it reads the message from a
+ * channel through fixed-size buffers and notifies a {@link Handler} of every header, body chunk and
+ * fragment as soon as they are decoded. The memory used is hence constant, regardless of the size
+ * of the message; bodies can be skipped, or spooled elsewhere by the handler, without ever being
+ * materialized.
+ *
+ * <p>The events produced for a message correspond to the result of {@link
+ * EntryEncoding#decode(ASCIICharSequence)}: for every fragment the handler receives its headers
+ * (via {@link Handler#header}), then {@link Handler#headersEnd}, then the chunks of its raw body
+ * (via {@link Handler#bodyChunk}, their concatenation is the {@link Fragment#rawBody() raw body}),
+ * and finally {@link Handler#fragmentEnd}. Since events are emitted incrementally, a fragment that
+ * is not complete when the message ends (and that hence would not be returned by {@link
+ * EntryEncoding}) receives no {@link Handler#fragmentEnd} event.
+ *
+ * <p>Header lines must fit in the buffer; body lines can be of any length.
+ */
+public class EntryDecoder {
+
+  /** The default size of the buffers. */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  /** What to do with the body of a fragment, as returned by {@link Handler#headersEnd()}. */
+  public enum Body {
+    /** The chunks of the body are passed to the handler. */
+    READ,
+    /** The body is decoded (to find the end of the fragment), but no chunk is passed along. */
+    SKIP,
+    /** Decoding stops immediately. */
+    STOP
+  }
+
+  /** A receiver of the events produced while decoding a message. */
+  public interface Handler {
+
+    /**
+     * Receives a header of the current fragment.
+     *
+     * @param name the name of the header (in lower case).
+     * @param value the value of the header.
+     */
+    void header(ASCIICharSequence name, ASCIICharSequence value);
+
+    /**
+     * Signals the end of the headers of the current fragment.
+     *
+     * @return what to do with the body of the fragment.
+     */
+    default Body headersEnd() {
+      return Body.READ;
+    }
+
+    /**
+     * Receives a chunk of the raw body of the current fragment.
+     *
+     * <p>The buffer is read-only and it is valid only during this invocation.
+     *
+     * @param chunk the chunk.
+     */
+    default void bodyChunk(ByteBuffer chunk) {}
+
+    /**
+     * Signals the end of the current fragment.
+     *
+     * @return {@code false} to stop decoding.
+     */
+    default boolean fragmentEnd() {
+      return true;
+    }
+  }
+
+  private enum Mode {
+    HEADERS,
+    BODY,
+    PART_BODY
+  }
+
+  private final int bufferSize;
+
+  /** Creates a decoder that uses buffers of {@link #DEFAULT_BUFFER_SIZE} bytes. */
+  public EntryDecoder() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a decoder that uses buffers of the given size.
+   *
+   * @param bufferSize the size of the buffers, that is also the maximum length of a header line.
+   * @throws IllegalArgumentException if the size is less than 80 bytes.
+   */
+  public EntryDecoder(final int bufferSize) {
+    if (bufferSize < 80) throw new IllegalArgumentException("Buffer size must be at least 80");
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Decodes a message read from a stream.
+   *
+   * @param in the stream, that is not closed by this method.
+   * @param handler the handler of the events.
+   * @throws IOException if some I/O error occurs.
+   * @throws IllegalArgumentException if the message can't be decoded, or a header line doesn't fit
+   *     in the buffer.
+   * @throws NullPointerException if the stream or the handler are {@code null}.
+   */
+  public void decode(final InputStream in, final Handler handler) throws IOException {
+    decode(Channels.newChannel(Objects.requireNonNull(in)), handler);
+  }
+
+  /**
+   * Decodes a message read from a channel.
+   *
+   * @param channel the channel, that is not closed by this method.
+   * @param handler the handler of the events.
+   * @throws IOException if some I/O error occurs.
+   * @throws IllegalArgumentException if the message can't be decoded, or a header line doesn't fit
+   *     in the buffer.
+   * @throws NullPointerException if the channel or the handler are {@code null}.
+   */
+  public void decode(final ReadableByteChannel channel, final Handler handler) throws IOException {
+    new Decoding(Objects.requireNonNull(handler)).run(Objects.requireNonNull(channel));
+  }
+
+  /**
+   * Decodes a message held in a buffer.
+   *
+   * <p>The bytes are read directly from the buffer, without the input buffer and the reads needed
+   * to decode a channel: this is the cheapest way to decode a memory-mapped message (see {@link
+   * Storage.Box.Entry#buffer()}). Each line is still copied into the line buffer of this decoder,
+   * so a header line must fit in it, while longer body lines are emitted in chunks of its size.
+   * The position of the buffer is left unchanged.
+   *
+   * @param buffer the buffer, whose remaining bytes are the message.
+   * @param handler the handler of the events.
+   * @throws IllegalArgumentException if the message can't be decoded, or a header line doesn't fit
+   *     in the line buffer of this decoder.
+   * @throws NullPointerException if the buffer or the handler are {@code null}.
+   */
+  public void decode(final ByteBuffer buffer, final Handler handler) {
+    new Decoding(Objects.requireNonNull(handler)).run(Objects.requireNonNull(buffer).duplicate());
+  }
+
+  /** The state of the decoding of a single message. */
+  private class Decoding {
+    private final Handler handler;
+    private final byte[] line = new byte[bufferSize];
+    private final ByteBuffer lineView = ByteBuffer.wrap(line).asReadOnlyBuffer();
+    private final ByteBuffer newline = ByteBuffer.wrap(new byte[] {'\n'}).asReadOnlyBuffer();
+    private final Set<ASCIICharSequence> names = new HashSet<>();
+    private int length;
+    private boolean overflowed, skipLF, stopped;
+    private Mode mode = Mode.HEADERS;
+    private String contentType;
+    private byte[] separator, lastSeparator;
+    private Body body;
+    private int bodyLines;
+
+    private Decoding(final Handler handler) {
+      this.handler = handler;
+    }
+
+    private void run(final ReadableByteChannel channel) throws IOException {
+      final ByteBuffer input = ByteBuffer.allocate(bufferSize);
+      while (!stopped && channel.read(input) >= 0) {
+        feed(input.flip());
+        input.compact();
+      }
+      end();
+    }
+
+    private void run(final ByteBuffer input) {
+      feed(input);
+      end();
+    }
+
+    private void feed(final ByteBuffer input) {
+      while (!stopped && input.hasRemaining()) {
+        final byte b = input.get();
+        if (b < 0) throw new IllegalArgumentException("The message must be ASCII");
+        if (skipLF) {
+          skipLF = false;
+          if (b == '\n') continue;
+        }
+        if (b == '\n' || b == '\r') {
+          skipLF = b == '\r';
+          endLine();
+        } else {
+          if (length == line.length) overflow();
+          line[length++] = b;
+        }
+      }
+    }
+
+    private void end() {
+      if (stopped) return;
+      if (length > 0 || overflowed) endLine();
+      if (!stopped && mode == Mode.BODY && bodyLines > 0) handler.fragmentEnd();
+    }
+
+    private void overflow() {
+      if (mode == Mode.HEADERS)
+        throw new IllegalArgumentException("Header line longer than " + line.length + " bytes");
+      if (!overflowed) startBodyLine();
+      emit(lineView.limit(length).position(0));
+      length = 0;
+      overflowed = true;
+    }
+
+    private void startBodyLine() {
+      if (bodyLines++ > 0) emit(newline.rewind());
+    }
+
+    private void emit(final ByteBuffer chunk) {
+      if (body == Body.READ) handler.bodyChunk(chunk);
+    }
+
+    private boolean isLine(final byte[] other) {
+      if (overflowed || other.length != length) return false;
+      for (int i = 0; i < length; i++) if (line[i] != other[i]) return false;
+      return true;
+    }
+
+    private void endLine() {
+      switch (mode) {
+        case HEADERS:
+          if (length == 0) {
+            if (separator == null) {
+              if (contentType != null && contentType.startsWith("multipart/alternative")) {
+                final String[] p = contentType.split("boundary=", 2);
+                if (p.length != 2)
+                  throw new IllegalArgumentException(
+                      "Can't determine boundary: " + ASCIICharSequence.of(line, 0, length));
+                final String boundary = contentType.split("boundary=")[1];
+                separator = ASCIICharSequence.of("--" + boundary).getASCIIBytes();
+                lastSeparator = ASCIICharSequence.of("--" + boundary + "--").getASCIIBytes();
+                if (lastSeparator.length >= line.length)
+                  throw new IllegalArgumentException("Boundary longer than the buffer: " + boundary);
+                mode = Mode.PART_BODY;
+              } else mode = Mode.BODY;
+            } else mode = Mode.PART_BODY;
+            body = handler.headersEnd();
+            if (body == Body.STOP) stopped = true;
+          } else header();
+          break;
+        case BODY:
+          if (!overflowed) startBodyLine();
+          emit(lineView.limit(length).position(0));
+          break;
+        case PART_BODY:
+          if (isLine(separator) || isLine(lastSeparator)) {
+            stopped = !handler.fragmentEnd();
+            names.clear();
+            bodyLines = 0;
+            body = null;
+            mode = Mode.HEADERS;
+          } else {
+            if (!overflowed) startBodyLine();
+            emit(lineView.limit(length).position(0));
+          }
+          break;
+      }
+      length = 0;
+      overflowed = false;
+    }
+
+    private void header() {
+      int colon = 0;
+      while (colon < length && line[colon] != ':') colon++;
+      if (colon == length)
+        throw new IllegalArgumentException(
+            "Can't parse header: " + ASCIICharSequence.of(line, 0, length));
+      int ns = 0, ne = colon, vs = colon + 1, ve = length;
+      while (ns < ne && line[ns] <= ' ') ns++;
+      while (ne > ns && line[ne - 1] <= ' ') ne--;
+      while (vs < ve && line[vs] <= ' ') vs++;
+      while (ve > vs && line[ve - 1] <= ' ') ve--;
+      final byte[] lower = new byte[ne - ns];
+      for (int i = 0; i < lower.length; i++) {
+        final byte b = line[ns + i];
+        lower[i] = b >= 'A' && b <= 'Z' ? (byte) (b + 'a' - 'A') : b;
+      }
+      final ASCIICharSequence name = ASCIICharSequence.view(lower, 0, lower.length);
+      final ASCIICharSequence value = ASCIICharSequence.of(line, vs, ve - vs);
+      if (!names.add(name))
+        throw new IllegalArgumentException(
+            "Duplicate header: [" + ASCIICharSequence.of(line, 0, length) + "]");
+      if (name.equals("content-type")) contentType = value.toString().toLowerCase();
+      handler.header(name, value);
+    }
+  }
+}
@@ -6,12 +6,14 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Scanner;
 import java.util.stream.Collectors;
 
 /**
@@ -88,26 +90,102 @@ public class EntryEncoding {
 
   private EntryEncoding() {}
 
+  /** A cursor over the lines of a byte array, that does not copy them. */
+  private static class Lines {
+    private final byte[] bytes;
+    private final int end;
+    private int next;
+    private int start, stop;
+
+    private Lines(final byte[] bytes, final int offset, final int length) {
+      this.bytes = bytes;
+      this.next = offset;
+      this.end = offset + length;
+    }
+
+    /**
+     * Advances to the next line, terminated by {@code \n}, {@code \r\n} or {@code \r}.
+     *
+     * @return if there was a next line.
+     */
+    private boolean advance() {
+      if (next >= end) return false;
+      int i = start = next;
+      while (i < end && bytes[i] != '\n' && bytes[i] != '\r') i++;
+      stop = i;
+      if (i < end) i += bytes[i] == '\r' && i + 1 < end && bytes[i + 1] == '\n' ? 2 : 1;
+      next = i;
+      return true;
+    }
+
+    private boolean hasNext() {
+      return next < end;
+    }
+
+    private boolean isEmpty() {
+      return start == stop;
+    }
+
+    private boolean equalsTo(final byte[] other) {
+      return other != null && Arrays.equals(bytes, start, stop, other, 0, other.length);
+    }
+
+    private ASCIICharSequence line() {
+      return ASCIICharSequence.view(bytes, start, stop - start);
+    }
+  }
+
   private static class RawBodyBuilder {
+    private final byte[] bytes;
+    private int start = -1, stop;
+    private ByteArrayOutputStream joined;
 
-    private final List<ASCIICharSequence> lines = new ArrayList<>();
+    private RawBodyBuilder(final byte[] bytes) {
+      this.bytes = bytes;
+    }
 
-    private void add(final ASCIICharSequence line) {
-      lines.add(Objects.requireNonNull(line));
+    private void add(final Lines line) {
+      if (start < 0) {
+        start = line.start;
+        stop = line.stop;
+      } else if (joined == null && line.start == stop + 1 && bytes[stop] == '\n') {
+        stop = line.stop;
+      } else {
+        if (joined == null) {
+          joined = new ByteArrayOutputStream();
+          joined.write(bytes, start, stop - start);
+        }
+        joined.write('\n');
+        joined.write(bytes, line.start, line.stop - line.start);
+      }
     }
 
-    private ASCIICharSequence rawBody() {
-      return ASCIICharSequence.of(String.join("\n", lines));
+    private Fragment fragment(final rawHeadersBuilder rawHeadersBuilder) {
+      final List<ASCIICharSequence> names = new ArrayList<>();
+      final int[] values = new int[2 * rawHeadersBuilder.headers.size()];
+      int i = 0;
+      for (final RawHeader header : rawHeadersBuilder.headers.values()) {
+        names.add(header.name());
+        values[i++] = header.start();
+        values[i++] = header.stop() - header.start();
+      }
+      if (joined != null) {
+        final byte[] body = joined.toByteArray();
+        return new Fragment(bytes, names, values, body, 0, body.length);
+      }
+      if (start < 0) return new Fragment(bytes, names, values, bytes, 0, 0);
+      return new Fragment(bytes, names, values, bytes, start, stop - start);
     }
   }
 
   private static class rawHeadersBuilder {
     private final Map<ASCIICharSequence, RawHeader> headers = new LinkedHashMap<>();
 
-    private final void add(final ASCIICharSequence line) {
+    private final void add(final Lines line) {
       final RawHeader dup, header = RawHeader.decode(line);
       if ((dup = headers.put(header.name(), header)) != null)
-        throw new IllegalArgumentException("Duplicate header: [" + line + "] was [" + dup + "]");
+        throw new IllegalArgumentException(
+            "Duplicate header: [" + line.line() + "] was [" + dup + "]");
     }
 
     private String getLowerCaseValue(final String name) {
@@ -121,21 +199,82 @@ public class EntryEncoding {
     }
   }
 
-  private record RawHeader(ASCIICharSequence name, ASCIICharSequence value) {
+  private record RawHeader(ASCIICharSequence name, byte[] bytes, int start, int stop) {
     private RawHeader {
-      name = ASCIICharSequence.of(Objects.requireNonNull(name).toString().trim().toLowerCase());
-      value = ASCIICharSequence.of(Objects.requireNonNull(value).toString().trim());
+      Objects.requireNonNull(name);
+      Objects.checkFromToIndex(start, stop, Objects.requireNonNull(bytes).length);
+    }
+
+    private ASCIICharSequence value() {
+      return ASCIICharSequence.view(bytes, start, stop - start);
     }
 
     private List<ASCIICharSequence> rawHeader() {
-      return List.of(name, value);
+      return List.of(name, value());
     }
 
-    private static RawHeader decode(final ASCIICharSequence line) {
-      final String[] parts = Objects.requireNonNull(line).toString().split(":", 2);
-      if (parts.length != 2) throw new IllegalArgumentException("Can't parse header: " + line);
-      return new RawHeader(ASCIICharSequence.of(parts[0]), ASCIICharSequence.of(parts[1]));
+    @Override
+    public String toString() {
+      return "RawHeader[name=" + name + ", value=" + value() + "]";
     }
+
+    private static RawHeader decode(final Lines line) {
+      final byte[] bytes = line.bytes;
+      int colon = line.start;
+      while (colon < line.stop && bytes[colon] != ':') colon++;
+      if (colon == line.stop) throw new IllegalArgumentException("Can't parse header: " + line.line());
+      int ns = line.start, ne = colon, vs = colon + 1, ve = line.stop;
+      while (ns < ne && (bytes[ns] & 0xff) <= ' ') ns++;
+      while (ne > ns && (bytes[ne - 1] & 0xff) <= ' ') ne--;
+      while (vs < ve && (bytes[vs] & 0xff) <= ' ') vs++;
+      while (ve > vs && (bytes[ve - 1] & 0xff) <= ' ') ve--;
+      final byte[] name = Arrays.copyOfRange(bytes, ns, ne);
+      for (int i = 0; i < name.length; i++)
+        if (name[i] >= 'A' && name[i] <= 'Z') name[i] += 'a' - 'A';
+      return new RawHeader(ASCIICharSequence.view(name, 0, name.length), bytes, vs, ve);
+    }
+  }
+
+  /**
+   * Decodes the headers of the first fragment of an encoded mail message.
+   *
+   * <p>This method stops at the first empty line, so the body (and the other parts) of the
+   * message are neither decoded nor checked; the returned list has the same form of {@link
+   * Fragment#rawHeaders()}.
+   *
+   * @param rawMessage the message.
+   * @return the raw headers of the first fragment of the message.
+   * @throws IllegalArgumentException if a header can't be parsed or is duplicated.
+   */
+  public static List<List<ASCIICharSequence>> decodeHeaders(final ASCIICharSequence rawMessage) {
+    return decodeHeaders(rawMessage.bytes(), rawMessage.offset(), rawMessage.length());
+  }
+
+  /**
+   * Decodes the headers of the first fragment of an encoded mail message given as ASCII bytes.
+   *
+   * <p>See {@link #decodeHeaders(ASCIICharSequence)}; as for {@link #decode(byte[])}, the bytes are
+   * not copied and the values of the returned headers are views over them (that hence must not be
+   * modified).
+   *
+   * @param rawMessage the bytes of the message.
+   * @return the raw headers of the first fragment of the message.
+   * @throws IllegalArgumentException if a header can't be parsed or is duplicated, or if the
+   *     message contains non ASCII bytes.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static List<List<ASCIICharSequence>> decodeHeaders(final byte[] rawMessage) {
+    if (!ASCIICharSequence.isAscii(Objects.requireNonNull(rawMessage), 0, rawMessage.length))
+      throw new IllegalArgumentException("The message must be ASCII");
+    return decodeHeaders(rawMessage, 0, rawMessage.length);
+  }
+
+  private static List<List<ASCIICharSequence>> decodeHeaders(
+      final byte[] rawMessage, final int offset, final int length) {
+    final rawHeadersBuilder rawHeadersBuilder = new rawHeadersBuilder();
+    final Lines line = new Lines(rawMessage, offset, length);
+    while (line.advance() && !line.isEmpty()) rawHeadersBuilder.add(line);
+    return rawHeadersBuilder.rawHeaders();
   }
 
   /**
@@ -150,53 +289,73 @@ public class EntryEncoding {
    * @return a list of {@link Fragment fragments} representing the message.
    */
   public static List<Fragment> decode(final ASCIICharSequence rawMessage) {
+    return decode(rawMessage.bytes(), rawMessage.offset(), rawMessage.length());
+  }
+
+  /**
+   * Decodes a multipart encoded mail message given as ASCII bytes.
+   *
+   * <p>The message is decoded in a single pass over the bytes and lines are never copied; the
+   * returned fragments are views over the given bytes (that hence must not be modified), see
+   * {@link Fragment}.
+   *
+   * @param rawMessage the bytes of the message.
+   * @return a list of {@link Fragment fragments} representing the message.
+   * @throws IllegalArgumentException if the message contains non ASCII bytes or can't be decoded.
+   * @throws NullPointerException if the bytes are {@code null}.
+   */
+  public static List<Fragment> decode(final byte[] rawMessage) {
+    if (!ASCIICharSequence.isAscii(Objects.requireNonNull(rawMessage), 0, rawMessage.length))
+      throw new IllegalArgumentException("The message must be ASCII");
+    return decode(rawMessage, 0, rawMessage.length);
+  }
+
+  private static List<Fragment> decode(final byte[] rawMessage, final int offset, final int length) {
     List<Fragment> fragments = new ArrayList<>();
     rawHeadersBuilder rawHeadersBuilder = new rawHeadersBuilder();
-    RawBodyBuilder rawBodyBuilder = new RawBodyBuilder();
-    ASCIICharSequence separator = null, lastSeparator = null;
+    RawBodyBuilder rawBodyBuilder = new RawBodyBuilder(rawMessage);
+    byte[] separator = null, lastSeparator = null;
     enum Mode {
       HEADERS,
       BODY,
       PART_BODY
     }
     Mode mode = Mode.HEADERS;
-    try (final Scanner s = new Scanner(rawMessage.toString())) {
-      while (s.hasNextLine()) {
-        final ASCIICharSequence line = ASCIICharSequence.of(s.nextLine());
-        switch (mode) {
-          case HEADERS:
-            if (line.isEmpty())
-              if (separator == null) {
-                final String contentType = rawHeadersBuilder.getLowerCaseValue("content-type");
-                if (contentType != null && contentType.startsWith("multipart/alternative")) {
-                  final String[] p = contentType.split("boundary=", 2);
-                  if (p.length != 2)
-                    throw new IllegalArgumentException("Can't determine boundary: " + line);
-                  final String boundary = contentType.split("boundary=")[1];
-                  separator = ASCIICharSequence.of("--" + boundary);
-                  lastSeparator = ASCIICharSequence.of("--" + boundary + "--");
-                  mode = Mode.PART_BODY;
-                } else mode = Mode.BODY;
-              } else mode = Mode.PART_BODY;
-            else rawHeadersBuilder.add(line);
-            break;
-          case BODY:
-            rawBodyBuilder.add(line);
-            if (!s.hasNextLine()) {
-              fragments.add(new Fragment(rawHeadersBuilder.rawHeaders(), rawBodyBuilder.rawBody()));
-              rawHeadersBuilder = new rawHeadersBuilder();
-              rawBodyBuilder = new RawBodyBuilder();
-            }
-            break;
-          case PART_BODY:
-            if (line.equals(separator) || line.equals(lastSeparator)) {
-              fragments.add(new Fragment(rawHeadersBuilder.rawHeaders(), rawBodyBuilder.rawBody()));
-              rawHeadersBuilder = new rawHeadersBuilder();
-              rawBodyBuilder = new RawBodyBuilder();
-              mode = Mode.HEADERS;
-            } else rawBodyBuilder.add(line);
-            break;
-        }
+    final Lines line = new Lines(rawMessage, offset, length);
+    while (line.advance()) {
+      switch (mode) {
+        case HEADERS:
+          if (line.isEmpty())
+            if (separator == null) {
+              final String contentType = rawHeadersBuilder.getLowerCaseValue("content-type");
+              if (contentType != null && contentType.startsWith("multipart/alternative")) {
+                final String[] p = contentType.split("boundary=", 2);
+                if (p.length != 2)
+                  throw new IllegalArgumentException("Can't determine boundary: " + line.line());
+                final String boundary = contentType.split("boundary=")[1];
+                separator = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+                lastSeparator = ("--" + boundary + "--").getBytes(StandardCharsets.US_ASCII);
+                mode = Mode.PART_BODY;
+              } else mode = Mode.BODY;
+            } else mode = Mode.PART_BODY;
+          else rawHeadersBuilder.add(line);
+          break;
+        case BODY:
+          rawBodyBuilder.add(line);
+          if (!line.hasNext()) {
+            fragments.add(rawBodyBuilder.fragment(rawHeadersBuilder));
+            rawHeadersBuilder = new rawHeadersBuilder();
+            rawBodyBuilder = new RawBodyBuilder(rawMessage);
+          }
+          break;
+        case PART_BODY:
+          if (line.equalsTo(separator) || line.equalsTo(lastSeparator)) {
+            fragments.add(rawBodyBuilder.fragment(rawHeadersBuilder));
+            rawHeadersBuilder = new rawHeadersBuilder();
+            rawBodyBuilder = new RawBodyBuilder(rawMessage);
+            mode = Mode.HEADERS;
+          } else rawBodyBuilder.add(line);
+          break;
       }
     }
     return fragments;
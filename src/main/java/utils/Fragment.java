@@ -6,30 +6,75 @@ Copyright 2023 Massimo Santini
 
 package utils;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
 /**
  * A representation of a <em>part</em> of a multipart email message.
  *
+ * <p>A fragment is a view over the bytes of the encoded message: header values and body are kept
+ * as offsets in such bytes, and the sequences returned are views over them.
+ *
  * <p>For an example see {@link utils.EntryEncoding}.
  */
 public class Fragment {
-  private final List<List<ASCIICharSequence>> rawHeaders;
-  private final ASCIICharSequence rawBody;
+  private final byte[] source;
+  private final List<ASCIICharSequence> names;
+  private final int[] values;
+  private final byte[] bodySource;
+  private final int bodyOffset, bodyLength;
 
-  Fragment(List<List<ASCIICharSequence>> rawHeaders, ASCIICharSequence rawBody) {
-    this.rawBody = Objects.requireNonNull(rawBody);
-    this.rawHeaders = Objects.requireNonNull(rawHeaders);
+  /**
+   * Builds a fragment that is a view over the bytes of an encoded message.
+   *
+   * @param source the bytes of the message, that must be ASCII and must not be modified.
+   * @param names the (lower case) names of the headers.
+   * @param values the offset and length in {@code source} of the value of every header.
+   * @param bodySource the bytes containing the body (usually {@code source}).
+   * @param bodyOffset the offset of the body in {@code bodySource}.
+   * @param bodyLength the length of the body.
+   */
+  Fragment(
+      byte[] source,
+      List<ASCIICharSequence> names,
+      int[] values,
+      byte[] bodySource,
+      int bodyOffset,
+      int bodyLength) {
+    this.source = Objects.requireNonNull(source);
+    this.names = List.copyOf(names);
+    this.values = Objects.requireNonNull(values);
+    if (values.length != 2 * names.size())
+      throw new IllegalArgumentException("Every header must have a value");
+    this.bodySource = Objects.requireNonNull(bodySource);
+    Objects.checkFromIndexSize(bodyOffset, bodyLength, bodySource.length);
+    this.bodyOffset = bodyOffset;
+    this.bodyLength = bodyLength;
   }
 
   /**
    * Returns the (possibly Base64 encoded) body of the part.
    *
+   * <p>The sequence is a view over the bytes of the message, so no copy is made.
+   *
    * @return the raw body of the part.
    */
   public ASCIICharSequence rawBody() {
-    return rawBody;
+    return ASCIICharSequence.view(bodySource, bodyOffset, bodyLength);
+  }
+
+  /**
+   * Returns a read-only view of the (possibly Base64 encoded) body of the part.
+   *
+   * <p>The buffer shares the bytes of the message, so no copy is made.
+   *
+   * @return the raw body of the part, as a buffer of ASCII bytes.
+   */
+  public ByteBuffer rawBodyBuffer() {
+    return ByteBuffer.wrap(bodySource, bodyOffset, bodyLength).slice().asReadOnlyBuffer();
   }
 
   /**
@@ -40,17 +85,23 @@ public class Fragment {
    * lower case), the second is the {@link ASCIICharSequence} corresponding to the value of the
    * header (the part after {@code :}).
    *
+   * <p>The values are views over the bytes of the message, so no copy is made.
+   *
    * @return a list of raw headers.
    */
   public List<List<ASCIICharSequence>> rawHeaders() {
-    return rawHeaders;
+    final List<List<ASCIICharSequence>> rawHeaders = new ArrayList<>(names.size());
+    for (int i = 0; i < names.size(); i++)
+      rawHeaders.add(
+          List.of(names.get(i), ASCIICharSequence.view(source, values[2 * i], values[2 * i + 1])));
+    return Collections.unmodifiableList(rawHeaders);
   }
 
   @Override
   public String toString() {
     final StringBuilder sb = new StringBuilder("Fragment\nRaw headers:\n");
-    rawHeaders.forEach(h -> sb.append(String.format("%s: %s\n", h.get(0), h.get(1))));
-    sb.append("Raw body: \n" + rawBody);
+    rawHeaders().forEach(h -> sb.append(String.format("%s: %s\n", h.get(0), h.get(1))));
+    sb.append("Raw body: \n" + rawBody());
     return sb.toString();
   }
 }
@@ -0,0 +1,222 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler that makes the writes of the storage durable in batches (group commit).
+ *
+ * <p>A writer prepares its data without forcing it to the disk (for instance writing a temporary
+ * file) and {@link #submit(Write) submits} a {@link Write}. A single thread gathers the writes
+ * submitted concurrently into a batch, that is closed once it holds {@link #MAX_BATCH} writes or
+ * {@link #MAX_DELAY_NANOS} nanoseconds have passed since its first write; the writes submitted
+ * together (with {@link #submit(List)}) always end up in the same batch. Then it forces the data
+ * of the batch, {@link Write#publish() publishes} every write (for instance renaming its temporary
+ * file) and syncs each directory involved just once. The future of a write is completed with
+ * {@code true} only after all of this, or with {@code false} (once the write has been {@link
+ * Write#abort() aborted}) if some step fails.
+ *
+ * <p>The committer thread survives any failure of a batch (even an {@link Error}): the writes of
+ * the batch whose futures are not completed yet are aborted and completed with {@code false}, since
+ * their writers wait for them without a timeout.
+ *
+ * <p>While a batch is being committed the next one gathers the writes submitted in the meantime,
+ * so the number of directory syncs (and of forces of shared data, like a segment file) grows with
+ * the number of batches rather than with the number of writes.
+ */
+final class GroupCommit {
+
+  /** The maximum number of writes in a batch. */
+  static final int MAX_BATCH = 256;
+
+  /** The maximum time a write waits for other writes to join its batch. */
+  static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final BlockingQueue<List<? extends Write>> QUEUE = new LinkedBlockingQueue<>();
+
+  static {
+    final Thread committer = new Thread(GroupCommit::run, "storage-commit");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  private GroupCommit() {}
+
+  /** A write waiting to be made durable. */
+  abstract static class Write {
+    private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+    /**
+     * Returns the data this write belongs to; writes of the same data (compared by identity) are
+     * forced just once per batch.
+     *
+     * @return the data.
+     */
+    abstract Object data();
+
+    /**
+     * Forces the data of this write to the disk.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    abstract void force() throws IOException;
+
+    /**
+     * Makes this write visible, once its data is durable.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    abstract void publish() throws IOException;
+
+    /**
+     * Returns the directory to sync after this write is published.
+     *
+     * @return the directory.
+     */
+    abstract Path directory();
+
+    /** Undoes this write, as far as possible, after one of its steps failed. */
+    abstract void abort();
+
+    /**
+     * Returns the future of this write.
+     *
+     * @return a future completed with {@code true} when the write is durable, or with {@code
+     *     false} if it failed.
+     */
+    final CompletableFuture<Boolean> future() {
+      return done;
+    }
+  }
+
+  /**
+   * Submits a write to be made durable.
+   *
+   * @param write the write.
+   * @return a future completed with {@code true} when the write is durable, or with {@code false}
+   *     if it failed.
+   */
+  static CompletableFuture<Boolean> submit(Write write) {
+    QUEUE.add(List.of(write));
+    return write.done;
+  }
+
+  /**
+   * Submits several writes to be made durable in the same batch.
+   *
+   * <p>The batch may exceed {@link #MAX_BATCH} writes, so that (for instance) the entries written
+   * together in a directory cost a single sync of the directory.
+   *
+   * @param writes the writes, whose {@link Write#future() futures} are completed as for {@link
+   *     #submit(Write)}.
+   */
+  static void submit(List<? extends Write> writes) {
+    if (!writes.isEmpty()) QUEUE.add(List.copyOf(writes));
+  }
+
+  /** Gathers and commits the batches of writes, forever. */
+  private static void run() {
+    final List<Write> batch = new ArrayList<>(MAX_BATCH);
+    for (; ; ) {
+      try {
+        batch.addAll(QUEUE.take());
+        final long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+        while (batch.size() < MAX_BATCH) {
+          final long wait = deadline - System.nanoTime();
+          final List<? extends Write> next =
+              wait > 0 ? QUEUE.poll(wait, TimeUnit.NANOSECONDS) : QUEUE.poll();
+          if (next == null) break;
+          batch.addAll(next);
+        }
+      } catch (InterruptedException e) {
+        // the committer is never interrupted, commit what has been gathered so far
+      }
+      try {
+        commit(batch);
+      } catch (Throwable t) {
+        // the writers wait for their futures without a timeout: fail the ones left pending
+        for (final Write write : batch) if (!write.done.isDone()) fail(write);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /** Commits a batch of writes, completing their futures. */
+  private static void commit(List<Write> batch) {
+    final Map<Object, Boolean> forced = new HashMap<>();
+    final Map<Path, List<Write>> published = new LinkedHashMap<>();
+    for (final Write write : batch) {
+      try {
+        Boolean ok = forced.get(write.data());
+        if (ok == null) {
+          try {
+            write.force();
+            ok = true;
+          } catch (IOException | RuntimeException e) {
+            ok = false;
+          }
+          forced.put(write.data(), ok);
+        }
+        if (!ok) throw new IOException("Data not forced");
+        write.publish();
+        published.computeIfAbsent(write.directory(), directory -> new ArrayList<>()).add(write);
+      } catch (IOException | RuntimeException e) {
+        fail(write);
+      }
+    }
+    for (final Map.Entry<Path, List<Write>> group : published.entrySet()) {
+      final boolean synced = sync(group.getKey());
+      for (final Write write : group.getValue())
+        if (synced) write.done.complete(true);
+        else fail(write);
+    }
+  }
+
+  /**
+   * Syncs a directory, making the creation and renaming of its files durable.
+   *
+   * @param dir the directory.
+   * @return {@code false} if the directory could not be synced.
+   */
+  private static boolean sync(Path dir) {
+    final FileChannel directory;
+    try {
+      directory = FileChannel.open(dir, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return true; // directories cannot be opened (nor synced) on this platform
+    }
+    try (directory) {
+      directory.force(true);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void fail(Write write) {
+    try {
+      write.abort();
+    } catch (Throwable ignored) {
+      // the write is reported as failed anyway
+    }
+    write.done.complete(false);
+  }
+}
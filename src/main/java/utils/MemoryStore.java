@@ -0,0 +1,420 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+*/
+
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Heap-based {@link Store}.
+ *
+ * <p>Boxes, entries and sidecars are kept in memory, and are lost when the store is no longer
+ * referenced: this makes it possible to test the application, and to measure the costs of parsing,
+ * indexing and rendering messages, without paying for the filesystem. A store can be filled with
+ * the boxes and entries of another one with {@link #copyOf(Store)}.
+ */
+public class MemoryStore implements Store {
+
+  private static final String ROOT = "INBOX";
+  private static final String SEPARATOR = ":";
+  private final ConcurrentNavigableMap<String, Box> boxes = new ConcurrentSkipListMap<>();
+
+  /** Creates an empty store, containing just the root box. */
+  public MemoryStore() {
+    boxes.put(ROOT, new Box(ROOT));
+  }
+
+  /**
+   * Creates a store containing a copy of the boxes and entries of another store.
+   *
+   * <p>The entries keep their names and modification times; sidecars are not copied.
+   *
+   * @param source the store to copy.
+   * @return the copy.
+   * @throws NullPointerException if the source is {@code null}.
+   * @throws UncheckedIOException if the boxes or entries of the source can't be read.
+   */
+  public static MemoryStore copyOf(Store source) throws NullPointerException {
+    final List<? extends Store.Box> sourceBoxes = Objects.requireNonNull(source).boxes();
+    if (sourceBoxes == null) throw new UncheckedIOException(new IOException("Can't list boxes"));
+    final MemoryStore copy = new MemoryStore();
+    for (final Store.Box sourceBox : sourceBoxes) {
+      final Box box = copy.boxes.computeIfAbsent(sourceBox.toString(), name -> copy.new Box(name));
+      for (final Store.Box.Entry entry : sourceBox.entries()) {
+        final ByteBuffer buffer = entry.buffer();
+        if (buffer == null)
+          throw new UncheckedIOException(new IOException("Can't read entry: " + entry));
+        final byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        box.entries.put(
+            entry.toString(), box.new Entry(entry.toString(), content, entry.lastModified()));
+      }
+    }
+    return copy;
+  }
+
+  private static void checkName(String name) {
+    if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
+    if (name.contains(SEPARATOR) || name.contains(File.separator))
+      throw new IllegalArgumentException();
+  }
+
+  /**
+   * A box.
+   *
+   * <p>A box is a collection of {@link Entry Entries}.
+   */
+  public class Box implements Store.Box {
+
+    /**
+     * An entry.
+     *
+     * <p>An entry is a sequence of bytes (stored in a heap array, that is shared by all the views
+     * of its content).
+     */
+    public class Entry implements Store.Box.Entry {
+      private final String name;
+      private final byte[] content;
+      private final long lastModified;
+
+      private Entry(String name, byte[] content, long lastModified) {
+        this.name = name;
+        this.content = content;
+        this.lastModified = lastModified;
+      }
+
+      /**
+       * Returns the content of this entry.
+       *
+       * <p>The returned sequence shares the array of the entry, no copy is made.
+       *
+       * @return the bytes of the entry.
+       * @throws IllegalArgumentException if the entry contains non ASCII bytes.
+       */
+      @Override
+      public ASCIICharSequence content() {
+        if (!ASCIICharSequence.isAscii(content, 0, content.length))
+          throw new IllegalArgumentException("Entry content must be ASCII: " + this);
+        return ASCIICharSequence.view(content, 0, content.length);
+      }
+
+      /**
+       * Returns a read-only view of the content of this entry.
+       *
+       * @return the content of the entry.
+       */
+      @Override
+      public ByteBuffer buffer() {
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+      }
+
+      /**
+       * Opens a channel to read the content of this entry.
+       *
+       * <p>The channel is a {@link SeekableByteChannel} whose size is the size of the entry.
+       *
+       * @return the channel.
+       */
+      @Override
+      public ReadableByteChannel channel() {
+        return new BufferChannel(buffer());
+      }
+
+      /**
+       * Returns the size of this entry.
+       *
+       * @return the size of the entry in bytes.
+       */
+      @Override
+      public long size() {
+        return content.length;
+      }
+
+      /**
+       * Returns the creation time of this entry, since entries are never modified.
+       *
+       * @return the creation time of the entry in milliseconds since the epoch.
+       */
+      @Override
+      public long lastModified() {
+        return lastModified;
+      }
+
+      /**
+       * Deletes this entry.
+       *
+       * <p>The content of the entry can still be read through this object.
+       *
+       * @return if the entry was deleted, {@code false} if it was already deleted.
+       */
+      @Override
+      public boolean delete() {
+        return entries.remove(name, this);
+      }
+
+      @Override
+      public String toString() {
+        return name;
+      }
+    }
+
+    private final String name;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> sidecars = new ConcurrentHashMap<>();
+
+    private Box(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Creates a sub-box of this box.
+     *
+     * @param name the name of the sub-box.
+     * @return the sub-box, or {@code null} if it already exists or this box was deleted.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator or the
+     *     {@code :} character.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    @Override
+    public Box box(String name) throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      final String path = this.name.equals(ROOT) ? name : this.name + SEPARATOR + name;
+      final Box box = new Box(path);
+      synchronized (boxes) {
+        if (boxes.get(this.name) != this) return null;
+        return boxes.putIfAbsent(path, box) == null ? box : null;
+      }
+    }
+
+    /**
+     * Deletes this box.
+     *
+     * <p>If the box is not empty (it contains entries, sidecars or sub-boxes), or it is the root
+     * box, this method will fail, returning {@code false}.
+     *
+     * @return if the box was deleted.
+     */
+    @Override
+    public boolean delete() {
+      synchronized (boxes) {
+        if (name.equals(ROOT) || !entries.isEmpty() || !sidecars.isEmpty()) return false;
+        final String child = boxes.ceilingKey(name + SEPARATOR);
+        if (child != null && child.startsWith(name + SEPARATOR)) return false;
+        return boxes.remove(name, this);
+      }
+    }
+
+    /**
+     * Returns the entries contained in this box.
+     *
+     * @return the list of entries in the box, sorted by name.
+     */
+    @Override
+    public List<Entry> entries() {
+      final List<Entry> list = new ArrayList<>(entries.values());
+      list.sort((e1, e2) -> e1.name.compareTo(e2.name));
+      return List.copyOf(list);
+    }
+
+    /**
+     * Creates an entry in this box.
+     *
+     * @param content the content of the entry.
+     * @return the entry.
+     * @throws NullPointerException if the content is {@code null}.
+     */
+    @Override
+    public Entry entry(ASCIICharSequence content) throws NullPointerException {
+      return add(Objects.requireNonNull(content).getASCIIBytes());
+    }
+
+    /**
+     * Creates an entry in this box whose content is streamed by the given writer.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return the entry, or {@code null} if the writer throws an {@link IOException}.
+     * @throws NullPointerException if the writer is {@code null}.
+     */
+    @Override
+    public Entry entry(ContentWriter writer) throws NullPointerException {
+      Objects.requireNonNull(writer);
+      final ByteArrayOutputStream content = new ByteArrayOutputStream();
+      try {
+        writer.write(Channels.newChannel(content));
+      } catch (IOException e) {
+        return null;
+      }
+      return add(content.toByteArray());
+    }
+
+    /**
+     * Creates several entries in this box.
+     *
+     * @param writers the writers of the contents of the entries.
+     * @return the entries, in the order of the writers, with {@code null} in place of those whose
+     *     writer failed.
+     * @throws NullPointerException if the list, or any of the writers, is {@code null}.
+     */
+    @Override
+    public List<Entry> entries(List<ContentWriter> writers) throws NullPointerException {
+      final List<Entry> list = new ArrayList<>(writers.size());
+      for (final ContentWriter writer : writers) {
+        Objects.requireNonNull(writer);
+        Entry entry;
+        try {
+          entry = entry(writer);
+        } catch (RuntimeException e) {
+          entry = null;
+        }
+        list.add(entry);
+      }
+      return list;
+    }
+
+    private Entry add(byte[] content) {
+      if (boxes.get(name) != this) return null;
+      final String entryName = UUID.randomUUID().toString();
+      final Entry entry = new Entry(entryName, content, System.currentTimeMillis());
+      entries.put(entryName, entry);
+      return entry;
+    }
+
+    /**
+     * Reads a sidecar of this box.
+     *
+     * @param name the name of the sidecar.
+     * @return a copy of the content of the sidecar, or {@code null} if it does not exist.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator or the
+     *     {@code :} character.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    @Override
+    public byte[] sidecar(String name) throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      final byte[] content = sidecars.get(name);
+      return content == null ? null : content.clone();
+    }
+
+    /**
+     * Writes a sidecar of this box, replacing its previous content.
+     *
+     * @param name the name of the sidecar.
+     * @param content the content of the sidecar, that is copied.
+     * @return {@code true}.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator or the
+     *     {@code :} character.
+     * @throws NullPointerException if the name or content is {@code null}.
+     */
+    @Override
+    public boolean sidecar(String name, byte[] content)
+        throws IllegalArgumentException, NullPointerException {
+      checkName(name);
+      sidecars.put(name, Objects.requireNonNull(content).clone());
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Returns the boxes contained in this store.
+   *
+   * @return the list of boxes in the store, sorted by name.
+   */
+  @Override
+  public List<Box> boxes() {
+    return List.copyOf(boxes.values());
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryStore: " + boxes.size() + " boxes";
+  }
+
+  /** A read-only channel over a buffer. */
+  private static final class BufferChannel implements SeekableByteChannel {
+    private final ByteBuffer buffer;
+    private boolean open = true;
+
+    private BufferChannel(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+      if (!open) throw new ClosedChannelException();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      ensureOpen();
+      if (!buffer.hasRemaining()) return -1;
+      final int n = Math.min(dst.remaining(), buffer.remaining());
+      dst.put(buffer.slice(buffer.position(), n));
+      buffer.position(buffer.position() + n);
+      return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+      ensureOpen();
+      return buffer.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      ensureOpen();
+      if (newPosition < 0) throw new IllegalArgumentException();
+      buffer.position((int) Math.min(newPosition, buffer.limit()));
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      ensureOpen();
+      return buffer.limit();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+}
@@ -0,0 +1,674 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the entries of a box, stored in large segment files.
+ *
+ * <p>Every entry is appended to the last (active) segment as a record made of a header (magic
+ * number, type, name, timestamp and length), the content, and a CRC32 checksum; a segment that
+ * grows beyond {@link #MAX_SEGMENT} bytes is forced to the disk and a new one is started. Deleting
+ * an entry appends a tombstone record. When opened, the log scans the headers of its segments
+ * (skipping the contents) to build an in-memory index from the names of the entries to their
+ * offsets; the records of the last segment are also checked against their checksum, and a torn
+ * tail left by a crash is truncated.
+ *
+ * <p>Once deleted entries take most of the space of the non active segments, they are compacted
+ * in background: their live records are copied into a new file that atomically replaces the
+ * first of them, and the others are then removed (in ascending order, so that a tombstone is never
+ * removed before the entry it deletes).
+ *
+ * <p>Segment files are named with the {@link #PREFIX} prefix, so that they are not listed as
+ * entries of the box.
+ */
+final class SegmentLog {
+
+  /** The prefix of the names of the segment files. */
+  static final String PREFIX = ".segment-";
+
+  /** The size after which a new segment is started. */
+  static final long MAX_SEGMENT = 64L * 1024 * 1024;
+
+  private static final String COMPACT_SUFFIX = ".compact";
+  private static final int MAGIC = 0x4D554131; // "MUA1"
+  private static final byte ENTRY = 1, TOMBSTONE = 2;
+  private static final int HEADER = 4 + 1 + 16 + 8 + 4, TRAILER = 4;
+  private static final long MIN_COMPACT = 1024 * 1024;
+  private static final ExecutorService COMPACTOR =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            final Thread thread = new Thread(runnable, "storage-compaction");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** A segment file. */
+  private static final class Segment {
+    private final int number;
+    private final Path path;
+    private final FileChannel channel;
+    private long size, dead;
+    private volatile MappedByteBuffer mapping;
+
+    private Segment(int number, Path path, FileChannel channel, long size) {
+      this.number = number;
+      this.path = path;
+      this.channel = channel;
+      this.size = size;
+    }
+
+    /**
+     * Returns a read-only mapping of this segment that extends at least up to the given offset.
+     *
+     * <p>The whole file is mapped, and it is mapped again only when the records appended since
+     * fall beyond the current mapping; the mapping stays valid after the segment is compacted.
+     */
+    private ByteBuffer mapping(long end) throws IOException {
+      MappedByteBuffer mapping = this.mapping;
+      if (mapping != null && mapping.capacity() >= end) return mapping;
+      synchronized (this) {
+        mapping = this.mapping;
+        if (mapping == null || mapping.capacity() < end) {
+          mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(end, channel.size()));
+          this.mapping = mapping;
+        }
+        return mapping;
+      }
+    }
+  }
+
+  /**
+   * The location of the content of an entry.
+   *
+   * @param segment the segment containing the entry.
+   * @param offset the offset of the record of the entry in the segment.
+   * @param length the length of the content.
+   * @param timestamp the time the entry was created, in milliseconds since the epoch.
+   */
+  private record Location(Segment segment, long offset, int length, long timestamp) {
+    private long content() {
+      return offset + HEADER;
+    }
+
+    private long record() {
+      return HEADER + length + TRAILER;
+    }
+  }
+
+  private final Path dir;
+  private final Map<String, Location> index = new ConcurrentHashMap<>();
+  private final List<Segment> segments = new ArrayList<>(); // guarded by this
+  private boolean compacting; // guarded by this
+
+  private SegmentLog(Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Tells whether the given directory contains segment files.
+   *
+   * @param dir the directory.
+   * @return if the directory contains segment files.
+   * @throws IOException if some I/O error occurs.
+   */
+  static boolean exists(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.list(dir)) {
+      return paths.anyMatch(path -> number(path) >= 0);
+    }
+  }
+
+  /**
+   * Opens the log of the given directory, scanning its segments (if any).
+   *
+   * @param dir the directory.
+   * @return the log.
+   * @throws IOException if some I/O error occurs.
+   */
+  static SegmentLog open(Path dir) throws IOException {
+    final SegmentLog log = new SegmentLog(dir);
+    final List<Path> paths;
+    try (Stream<Path> files = Files.list(dir)) {
+      paths = new ArrayList<>();
+      for (final Path path : files.toList()) {
+        if (path.getFileName().toString().startsWith(PREFIX)
+            && path.getFileName().toString().endsWith(COMPACT_SUFFIX))
+          Files.deleteIfExists(path); // left by an interrupted compaction
+        else if (number(path) >= 0) paths.add(path);
+      }
+    }
+    paths.sort((p1, p2) -> Integer.compare(number(p1), number(p2)));
+    try {
+      for (int i = 0; i < paths.size(); i++) log.scan(paths.get(i), i == paths.size() - 1);
+    } catch (IOException e) {
+      log.close();
+      throw e;
+    }
+    return log;
+  }
+
+  private static int number(Path path) {
+    final String name = path.getFileName().toString();
+    if (!name.startsWith(PREFIX)) return -1;
+    try {
+      return Integer.parseInt(name.substring(PREFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private Path path(int number) {
+    return dir.resolve(String.format("%s%06d", PREFIX, number));
+  }
+
+  /**
+   * Scans the records of a segment, updating the index; if last, verifies them and truncates a torn
+   * tail.
+   */
+  private void scan(Path path, boolean last) throws IOException {
+    final FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final Segment segment = new Segment(number(path), path, channel, channel.size());
+    segments.add(segment);
+    final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    long position = 0;
+    while (position < segment.size) {
+      final Location location = readHeader(segment, position, header);
+      if (location == null || (last && !verify(location))) break;
+      final UUID uuid = new UUID(header.getLong(5), header.getLong(13));
+      if (header.get(4) == ENTRY) {
+        final Location previous = index.put(uuid.toString(), location);
+        if (previous != null) previous.segment().dead += previous.record();
+      } else {
+        final Location deleted = index.remove(uuid.toString());
+        if (deleted != null) deleted.segment().dead += deleted.record();
+        segment.dead += location.record();
+      }
+      position += location.record();
+    }
+    if (position < segment.size) {
+      if (last) channel.truncate(position);
+      segment.size = position;
+    }
+  }
+
+  /** Reads the header of the record at the given position, or returns null if it is not valid. */
+  private static Location readHeader(Segment segment, long position, ByteBuffer header)
+      throws IOException {
+    header.clear();
+    if (segment.size - position < HEADER + TRAILER) return null;
+    while (header.hasRemaining())
+      if (segment.channel.read(header, position + header.position()) < 0) return null;
+    final byte type = header.get(4);
+    final int length = header.getInt(HEADER - 4);
+    if (header.getInt(0) != MAGIC || (type != ENTRY && type != TOMBSTONE) || length < 0)
+      return null;
+    if (type == TOMBSTONE && length != 0) return null;
+    if (segment.size - position < (long) HEADER + length + TRAILER) return null;
+    return new Location(segment, position, length, header.getLong(21));
+  }
+
+  /** Tells whether the checksum of the record at the given location matches its content. */
+  private static boolean verify(Location location) throws IOException {
+    final ByteBuffer record = ByteBuffer.allocate((int) location.record());
+    while (record.hasRemaining())
+      if (location.segment().channel.read(record, location.offset() + record.position()) < 0)
+        return false;
+    final CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER, location.length());
+    crc.update(record.array(), 4, HEADER - 4);
+    return (int) crc.getValue() == record.getInt(HEADER + location.length());
+  }
+
+  /**
+   * Returns the names of the entries of this log.
+   *
+   * @return the names of the entries.
+   */
+  List<String> names() {
+    return List.copyOf(index.keySet());
+  }
+
+  /**
+   * Returns a read-only view of the content of an entry, backed by the memory mapping of its
+   * segment.
+   *
+   * @param name the name of the entry.
+   * @return the content, or {@code null} if there is no such entry.
+   * @throws IOException if some I/O error occurs.
+   */
+  ByteBuffer buffer(String name) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      final Location location = index.get(name);
+      if (location == null) return null;
+      try {
+        final long start = location.content();
+        return location
+            .segment()
+            .mapping(start + location.length())
+            .slice((int) start, location.length());
+      } catch (ClosedChannelException e) {
+        if (attempt > 2) throw e; // the segment was compacted, the entry has moved
+      }
+    }
+  }
+
+  /**
+   * Opens a channel to read the content of an entry.
+   *
+   * @param name the name of the entry.
+   * @return the channel, or {@code null} if there is no such entry.
+   */
+  SeekableByteChannel channel(String name) {
+    final Location location = index.get(name);
+    return location == null ? null : new RangeChannel(name, location);
+  }
+
+  /**
+   * Returns the size of the content of an entry.
+   *
+   * @param name the name of the entry.
+   * @return the size, or {@code -1} if there is no such entry.
+   */
+  long size(String name) {
+    final Location location = index.get(name);
+    return location == null ? -1 : location.length();
+  }
+
+  /**
+   * Returns the creation time of an entry.
+   *
+   * @param name the name of the entry.
+   * @return the creation time in milliseconds since the epoch, or {@code -1} if there is no such
+   *     entry.
+   */
+  long timestamp(String name) {
+    final Location location = index.get(name);
+    return location == null ? -1 : location.timestamp();
+  }
+
+  /**
+   * Appends an entry whose content is produced by the given writer.
+   *
+   * <p>If the writer fails, the partially written record is removed. The record is not forced to
+   * the disk, see {@link #force()}.
+   *
+   * @param writer the writer of the content.
+   * @return the name of the new entry.
+   * @throws IOException if some I/O error occurs.
+   */
+  synchronized String append(Store.ContentWriter writer) throws IOException {
+    final String name = UUID.randomUUID().toString();
+    final Segment segment = active();
+    final long start = segment.size;
+    try {
+      final Location location =
+          write(segment, ENTRY, UUID.fromString(name), System.currentTimeMillis(), writer);
+      index.put(name, location);
+      return name;
+    } catch (IOException | RuntimeException e) {
+      segment.channel.truncate(start);
+      segment.size = start;
+      throw e;
+    }
+  }
+
+  /**
+   * Forces the active segment to the disk; segments are forced when a new one is started, so this
+   * makes all the records appended so far durable, once the directory of the log is synced as well
+   * (see {@link #directory()}).
+   *
+   * @throws IOException if some I/O error occurs.
+   */
+  synchronized void force() throws IOException {
+    if (!segments.isEmpty()) segments.get(segments.size() - 1).channel.force(false);
+  }
+
+  /**
+   * Returns the directory of this log.
+   *
+   * @return the directory.
+   */
+  Path directory() {
+    return dir;
+  }
+
+  /** Forces the directory of the log (hence the creation, renaming and deletion of segments). */
+  private void forceDirectory() throws IOException {
+    try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+      directory.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened (nor synced) on this platform
+    }
+  }
+
+  /**
+   * Deletes an entry, appending a tombstone; compacts the log in background if most of its space
+   * is taken by deleted entries.
+   *
+   * @param name the name of the entry.
+   * @return if the entry was deleted, or if there was no such entry or some I/O error occurred.
+   */
+  synchronized boolean delete(String name) {
+    final Location location = index.get(name);
+    if (location == null) return false;
+    final Segment segment;
+    try {
+      segment = active();
+      final Location tombstone =
+          write(
+              segment, TOMBSTONE, UUID.fromString(name), System.currentTimeMillis(), channel -> {});
+      segment.dead += tombstone.record();
+    } catch (IOException e) {
+      return false;
+    }
+    index.remove(name);
+    location.segment().dead += location.record();
+    long size = 0, dead = 0;
+    for (final Segment old : segments.subList(0, segments.size() - 1)) {
+      size += old.size;
+      dead += old.dead;
+    }
+    if (!compacting && dead >= MIN_COMPACT && dead * 2 >= size) {
+      compacting = true;
+      COMPACTOR.execute(
+          () -> {
+            try {
+              compactSegments();
+            } catch (IOException ignored) {
+              // the log is left as it was, compaction will be retried after the next delete
+            }
+          });
+    }
+    return true;
+  }
+
+  /** Returns the segment new records are appended to, starting a new one if needed. */
+  private Segment active() throws IOException {
+    final Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    return last != null && last.size < MAX_SEGMENT ? last : roll();
+  }
+
+  /** Starts a new active segment, forcing the current one to the disk. */
+  private Segment roll() throws IOException {
+    Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (last != null) last.channel.force(false);
+    final int number = last == null ? 1 : last.number + 1;
+    final Path path = path(number);
+    final FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    last = new Segment(number, path, channel, 0);
+    segments.add(last);
+    return last;
+  }
+
+  /** Writes a record at the end of a segment, returning its location. */
+  private static Location write(
+      Segment segment, byte type, UUID uuid, long timestamp, Store.ContentWriter writer)
+      throws IOException {
+    final long start = segment.size;
+    final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    header.putInt(MAGIC).put(type).putLong(uuid.getMostSignificantBits());
+    header.putLong(uuid.getLeastSignificantBits()).putLong(timestamp).putInt(0);
+    final CRC32 crc = new CRC32();
+    final long[] position = {start + HEADER};
+    writer.write(
+        new WritableByteChannel() {
+          private boolean open = true;
+
+          @Override
+          public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            final ByteBuffer copy = src.duplicate();
+            final int n = segment.channel.write(src, position[0]);
+            crc.update(copy.limit(copy.position() + n));
+            position[0] += n;
+            return n;
+          }
+
+          @Override
+          public boolean isOpen() {
+            return open;
+          }
+
+          @Override
+          public void close() {
+            open = false;
+          }
+        });
+    final long length = position[0] - start - HEADER;
+    if (length > Integer.MAX_VALUE - HEADER - TRAILER) throw new IOException("Entry too large");
+    header.putInt(HEADER - 4, (int) length);
+    crc.update(header.array(), 4, HEADER - 4); // the header follows the content in the checksum
+    writeFully(segment.channel, header.flip(), start);
+    writeFully(
+        segment.channel,
+        ByteBuffer.allocate(TRAILER).putInt((int) crc.getValue()).flip(),
+        position[0]);
+    segment.size = position[0] + TRAILER;
+    return new Location(segment, start, (int) length, timestamp);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) position += channel.write(buffer, position);
+  }
+
+  /**
+   * Compacts all the segments, starting a new active segment and copying the live records of the
+   * others into a new file that replaces the first of them.
+   *
+   * @return if the segments were compacted, {@code false} if there was nothing to compact or a
+   *     compaction was already in progress.
+   * @throws IOException if some I/O error occurs.
+   */
+  boolean compact() throws IOException {
+    synchronized (this) {
+      if (compacting) return false;
+      if (!segments.isEmpty() && segments.get(segments.size() - 1).size > 0) roll();
+      compacting = true;
+    }
+    return compactSegments();
+  }
+
+  /** Compacts the non active segments, once {@link #compacting} has been set. */
+  private boolean compactSegments() throws IOException {
+    final List<Segment> old;
+    final List<Map.Entry<String, Location>> live = new ArrayList<>();
+    synchronized (this) {
+      if (segments.size() < 2) {
+        compacting = false;
+        return false;
+      }
+      old = List.copyOf(segments.subList(0, segments.size() - 1));
+      for (final Map.Entry<String, Location> entry : index.entrySet())
+        if (old.contains(entry.getValue().segment()))
+          live.add(Map.entry(entry.getKey(), entry.getValue()));
+    }
+    live.sort(
+        (e1, e2) -> {
+          final Location l1 = e1.getValue(), l2 = e2.getValue();
+          final int res = Integer.compare(l1.segment().number, l2.segment().number);
+          return res != 0 ? res : Long.compare(l1.offset(), l2.offset());
+        });
+    final Segment first = old.get(0);
+    final Path tmp = first.path.resolveSibling(first.path.getFileName() + COMPACT_SUFFIX);
+    final FileChannel channel =
+        FileChannel.open(
+            tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final Segment compacted = new Segment(first.number, first.path, channel, 0);
+    final List<Location> moved = new ArrayList<>();
+    try {
+      for (final Map.Entry<String, Location> entry : live) {
+        final Location from = entry.getValue();
+        final long start = compacted.size;
+        for (long copied = 0; copied < from.record(); ) {
+          final long n =
+              from.segment()
+                  .channel
+                  .transferTo(
+                      from.offset() + copied,
+                      from.record() - copied,
+                      channel.position(start + copied));
+          if (n <= 0) throw new IOException("Truncated segment: " + from.segment().path);
+          copied += n;
+        }
+        compacted.size = start + from.record();
+        moved.add(new Location(compacted, start, from.length(), from.timestamp()));
+      }
+      channel.force(true);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      Files.deleteIfExists(tmp);
+      synchronized (this) {
+        compacting = false;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      try {
+        Files.move(
+            tmp, first.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        channel.close();
+        Files.deleteIfExists(tmp);
+        compacting = false;
+        throw e;
+      }
+      forceDirectory(); // the compacted records are durable before the old copies are deleted
+      for (int i = 0; i < live.size(); i++)
+        if (!index.replace(live.get(i).getKey(), live.get(i).getValue(), moved.get(i)))
+          compacted.dead += moved.get(i).record(); // deleted while compacting
+      segments.removeAll(old);
+      segments.add(0, compacted);
+      for (final Segment segment : old) {
+        if (segment != first) Files.deleteIfExists(segment.path);
+        segment.channel.close();
+      }
+      compacting = false;
+    }
+    return true;
+  }
+
+  /** Closes the segment files of this log. */
+  synchronized void close() {
+    for (final Segment segment : segments) {
+      try {
+        segment.channel.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * A read-only channel over the content of an entry.
+   *
+   * <p>If the segment of the entry is compacted (and closed) while the channel is open, the entry
+   * is looked up again in the index and reading continues from its new location, as in {@link
+   * #buffer(String)}.
+   */
+  private final class RangeChannel implements SeekableByteChannel {
+    private final String name;
+    private Location location;
+    private long position;
+    private boolean open = true;
+
+    private RangeChannel(String name, Location location) {
+      this.name = name;
+      this.location = location;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!open) throw new ClosedChannelException();
+      final long remaining = location.length() - position;
+      if (remaining <= 0) return -1;
+      final ByteBuffer slice = dst.slice();
+      if (slice.remaining() > remaining) slice.limit((int) remaining);
+      for (int attempt = 0; ; attempt++) {
+        try {
+          final int n = location.segment().channel.read(slice, location.content() + position);
+          if (n > 0) {
+            dst.position(dst.position() + n);
+            position += n;
+          }
+          return n;
+        } catch (ClosedChannelException e) {
+          // the segment was compacted, the entry has moved (unless it was deleted or the log closed)
+          final Location moved = index.get(name);
+          if (attempt > 2 || moved == null || moved == location) throw e;
+          location = moved;
+        }
+      }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+      if (newPosition < 0) throw new IllegalArgumentException();
+      position = newPosition;
+      return this;
+    }
+
+    @Override
+    public long size() {
+      return location.length();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SegmentLog: " + dir;
+  }
+}
@@ -8,28 +8,99 @@ package utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
-/** Filesystem-based storage. */
-public class Storage {
+/**
+ * Filesystem-based {@link Store}.
+ *
+ * <p>The entries of a box are kept either one per file, or appended to large segment files (see
+ * {@link Layout}); the two layouts can be mixed in the same box, and the entries of both are
+ * returned by {@link Box#entries()}.
+ *
+ * <p>Entries and sidecar files are first written to temporary files of the box; the ones left by a
+ * crash are deleted when the box is opened (by {@link #boxes()} or {@link Box#box(String)}), once
+ * they are older than any write that could still be in progress.
+ */
+public class Storage implements Store {
+
+  /** The layout of the entries created by a storage. */
+  public enum Layout {
+    /** Every entry is stored in its own file, named after the entry. */
+    FILES,
+    /**
+     * Entries are appended to large segment files of their box, that are compacted in background
+     * once most of their space is taken by deleted entries.
+     */
+    SEGMENTS
+  }
 
   private static final Path EMPTY_PATH = Path.of("");
+  private static final String SIDECAR_PREFIX = ".";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String UUID_PATTERN = "\\p{XDigit}{8}(-\\p{XDigit}{4}){3}-\\p{XDigit}{12}";
+  private static final Pattern TMP_NAME =
+      Pattern.compile(
+          Pattern.quote(SIDECAR_PREFIX)
+              + "("
+              + UUID_PATTERN
+              + Pattern.quote(TMP_SUFFIX)
+              + "|.+\\."
+              + UUID_PATTERN
+              + ")");
+  private static final long STALE_TMP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final int MAP_THRESHOLD = 64 * 1024;
+  private static final int SLAB_SIZE = 1024 * 1024;
+  private static final ThreadLocal<ByteBuffer> SLAB = new ThreadLocal<>();
   private final Path baseDir;
+  private final Layout layout;
+  private final Map<Path, SegmentLog> logs = new ConcurrentHashMap<>();
 
   /**
    * Creates an instance of {@link #Storage} given the path of a directory.
    *
+   * <p>New entries are stored with the {@link Layout#FILES} layout.
+   *
    * @param baseDir the path of the base directory of the storage.
    * @throws NullPointerException if the path is {@code null}.
    * @throws IllegalArgumentException if the path is not a directory.
    */
   public Storage(String baseDir) throws NullPointerException, IllegalArgumentException {
+    this(baseDir, Layout.FILES);
+  }
+
+  /**
+   * Creates an instance of {@link #Storage} given the path of a directory and the layout of the
+   * entries it creates.
+   *
+   * <p>The layout affects only the entries created by this storage: the existing ones are read
+   * whatever their layout is.
+   *
+   * @param baseDir the path of the base directory of the storage.
+   * @param layout the layout of new entries.
+   * @throws NullPointerException if the path or layout is {@code null}.
+   * @throws IllegalArgumentException if the path is not a directory.
+   */
+  public Storage(String baseDir, Layout layout)
+      throws NullPointerException, IllegalArgumentException {
     this.baseDir = Path.of(Objects.requireNonNull(baseDir)).normalize().toAbsolutePath();
+    this.layout = Objects.requireNonNull(layout);
     if (!Files.isDirectory(this.baseDir))
       throw new IllegalArgumentException("Not a directory: " + this.baseDir);
   }
@@ -39,41 +110,134 @@ public class Storage {
    *
    * <p>A box is a collection of {@link Entry Entries}.
    */
-  public class Box {
+  public class Box implements Store.Box {
 
     /**
      * An entry.
      *
-     * <p>An entry is a sequence of bytes (stored in the filesystem).
+     * <p>An entry is a sequence of bytes (stored in the filesystem, in its own file or in a segment
+     * file of its box).
      */
-    public class Entry {
+    public class Entry implements Store.Box.Entry {
       private final Path entryPath;
+      private final SegmentLog log;
+      private final String name;
 
       private Entry(Path path) {
         this.entryPath = baseDir.resolve(boxPath).relativize(path);
+        this.log = null;
+        this.name = null;
+      }
+
+      private Entry(SegmentLog log, String name) {
+        this.entryPath = null;
+        this.log = log;
+        this.name = name;
       }
 
       /**
        * Returns the content of this entry.
        *
        * @return the bytes of the entry, or {@code null} if some {@link IOException} occurs.
+       * @throws IllegalArgumentException if the entry contains non ASCII bytes.
        */
+      @Override
       public ASCIICharSequence content() {
+        final ByteBuffer buffer = buffer();
+        if (buffer == null) return null;
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        if (!ASCIICharSequence.isAscii(bytes, 0, bytes.length))
+          throw new IllegalArgumentException("Entry content must be ASCII: " + this);
+        return ASCIICharSequence.view(bytes, 0, bytes.length);
+      }
+
+      /**
+       * Returns a read-only view of the content of this entry.
+       *
+       * <p>Entries stored in segment files are views of the memory mapping of their segment, that
+       * is shared by all the entries of the segment; entries stored in files of at least 64 KiB
+       * are memory-mapped on their own. Smaller files are read into slabs of direct memory shared
+       * by the entries read by the same thread, so that reading many small entries does not
+       * allocate (and copy into) a new array for each of them. Either way, the buffer remains valid
+       * as long as it is referenced, even if the entry is deleted in the meantime.
+       *
+       * @return the content of the entry, or {@code null} if some {@link IOException} occurs.
+       */
+      @Override
+      public ByteBuffer buffer() {
         try {
-          return ASCIICharSequence.of(
-              Files.readAllBytes(baseDir.resolve(boxPath).resolve(entryPath)));
+          if (log != null) return log.buffer(name);
+          final Path path = baseDir.resolve(boxPath).resolve(entryPath);
+          try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+          }
         } catch (IOException e) {
           return null;
         }
       }
 
+      /**
+       * Opens a channel to read the content of this entry.
+       *
+       * <p>The caller is responsible for closing the channel; the content can be decoded
+       * incrementally with an {@link EntryDecoder}. The channel is a {@link
+       * java.nio.channels.SeekableByteChannel} whose size is the size of the entry.
+       *
+       * @return the channel, or {@code null} if some {@link IOException} occurs.
+       */
+      @Override
+      public ReadableByteChannel channel() {
+        if (log != null) return log.channel(name);
+        try {
+          return Files.newByteChannel(baseDir.resolve(boxPath).resolve(entryPath));
+        } catch (IOException e) {
+          return null;
+        }
+      }
+
+      /**
+       * Returns the size of this entry.
+       *
+       * @return the size of the entry in bytes, or {@code -1} if some {@link IOException} occurs.
+       */
+      @Override
+      public long size() {
+        if (log != null) return log.size(name);
+        try {
+          return Files.size(baseDir.resolve(boxPath).resolve(entryPath));
+        } catch (IOException e) {
+          return -1;
+        }
+      }
+
+      /**
+       * Returns the last modification time of this entry.
+       *
+       * <p>Entries stored in segment files are never modified: their creation time is returned.
+       *
+       * @return the last modification time of the entry in milliseconds since the epoch, or {@code
+       *     -1} if some {@link IOException} occurs.
+       */
+      @Override
+      public long lastModified() {
+        if (log != null) return log.timestamp(name);
+        try {
+          return Files.getLastModifiedTime(baseDir.resolve(boxPath).resolve(entryPath)).toMillis();
+        } catch (IOException e) {
+          return -1;
+        }
+      }
+
       /**
        * Deletes this entry.
        *
        * @return if the entry was deleted (from the filesystem), or if some {@link IOException}
        *     occurred.
        */
+      @Override
       public boolean delete() {
+        if (log != null) return log.delete(name);
         try {
           Files.delete(baseDir.resolve(boxPath).resolve(entryPath));
           return true;
@@ -84,6 +248,7 @@ public class Storage {
 
       @Override
       public String toString() {
+        if (log != null) return name;
         final String nameExt = entryPath.toString();
         final int idx = nameExt.lastIndexOf('.');
         return idx == -1 ? nameExt : nameExt.substring(0, idx);
@@ -94,6 +259,28 @@ public class Storage {
 
     private Box(Path path) {
       this.boxPath = baseDir.relativize(path);
+      deleteStaleTemporaries(path);
+    }
+
+    /**
+     * Returns the segment log of this box, opening it if the box has segment files.
+     *
+     * @param create if the log must be created when the box has no segment files.
+     * @return the log, or {@code null} if the box has no segment files and {@code create} is false.
+     * @throws IOException if some I/O error occurs.
+     */
+    private SegmentLog log(boolean create) throws IOException {
+      SegmentLog log = logs.get(boxPath);
+      if (log != null) return log;
+      synchronized (logs) {
+        log = logs.get(boxPath);
+        final Path dir = baseDir.resolve(boxPath);
+        if (log == null && (create || SegmentLog.exists(dir))) {
+          log = SegmentLog.open(dir);
+          logs.put(boxPath, log);
+        }
+        return log;
+      }
     }
 
     /**
@@ -105,6 +292,7 @@ public class Storage {
      *     character.
      * @throws NullPointerException if the name is {@code null}.
      */
+    @Override
     public Box box(String name) throws IllegalArgumentException, NullPointerException {
       if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
       if (name.contains(File.separator)) throw new IllegalArgumentException();
@@ -126,6 +314,7 @@ public class Storage {
      * @return if the sub-box was deleted (from the filesystem), or if some {@link IOException}
      *     occurred.
      */
+    @Override
     public boolean delete() {
       try {
         Files.delete(baseDir.resolve(boxPath));
@@ -138,15 +327,25 @@ public class Storage {
     /**
      * Returns the entries contained in this box.
      *
+     * <p>Files whose name starts with a dot (like the sidecar files, see {@link
+     * #sidecar(String)}) are not entries.
+     *
      * @return the entries of this box, or {@code null} if some {@link IOException} occurs.
      */
+    @Override
     public List<Entry> entries() {
       try {
-        return Files.list(baseDir.resolve(boxPath))
-            .filter(Files::isRegularFile)
-            .map(Entry::new)
-            .sorted((e1, e2) -> e1.toString().compareTo(e2.toString()))
-            .toList();
+        final List<Entry> entries = new ArrayList<>();
+        try (final Stream<Path> paths = Files.list(baseDir.resolve(boxPath))) {
+          paths
+              .filter(Files::isRegularFile)
+              .filter(path -> !path.getFileName().toString().startsWith(SIDECAR_PREFIX))
+              .forEach(path -> entries.add(new Entry(path)));
+        }
+        final SegmentLog log = log(false);
+        if (log != null) for (final String name : log.names()) entries.add(new Entry(log, name));
+        entries.sort((e1, e2) -> e1.toString().compareTo(e2.toString()));
+        return Collections.unmodifiableList(entries);
       } catch (IOException e) {
         return Collections.emptyList();
       }
@@ -159,18 +358,202 @@ public class Storage {
      * @return the entry, or {@code null} if some {@link IOException} occurs.
      * @throws NullPointerException if the content is {@code null}.
      */
+    @Override
     public Entry entry(ASCIICharSequence content) throws NullPointerException {
       Objects.requireNonNull(content);
+      return entry(
+          channel -> {
+            final ByteBuffer buffer = content.asByteBuffer();
+            while (buffer.hasRemaining()) channel.write(buffer);
+          });
+    }
+
+    /**
+     * Creates an entry in this box whose content is streamed by the given writer, waiting until it
+     * is durable.
+     *
+     * <p>See {@link #durableEntry(ContentWriter)}.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return the entry, or {@code null} if some {@link IOException} occurs.
+     * @throws NullPointerException if the writer is {@code null}.
+     */
+    @Override
+    public Entry entry(ContentWriter writer) throws NullPointerException {
+      return durableEntry(writer).join();
+    }
+
+    /**
+     * Creates an entry in this box whose content is streamed by the given writer, returning a
+     * future completed once the entry is durable.
+     *
+     * <p>The content is written (in the calling thread, without being held in memory) to a
+     * temporary file, that is then forced to the disk and renamed to the name of the entry, or
+     * appended to the segment log of the box, depending on the {@link Layout}. Forcing the data
+     * and syncing the directory are left to a single thread that commits the writes of all boxes
+     * in batches, so that concurrent writers share the cost of the syncs; the entry becomes
+     * visible (in {@link #entries()}) only once its content is complete. If the writer fails, the
+     * partially written content is removed.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return a future completed with the entry when it is durable, or with {@code null} if some
+     *     {@link IOException} occurs.
+     * @throws NullPointerException if the writer is {@code null}.
+     */
+    @Override
+    public CompletableFuture<Entry> durableEntry(ContentWriter writer)
+        throws NullPointerException {
+      final EntryWrite write;
+      try {
+        write = prepare(Objects.requireNonNull(writer));
+      } catch (IOException e) {
+        return CompletableFuture.completedFuture(null);
+      }
+      GroupCommit.submit(write);
+      return write.entry();
+    }
+
+    /**
+     * Creates several entries in this box, waiting until they are durable.
+     *
+     * <p>The entries are written as by {@link #durableEntry(ContentWriter)}, then committed in the
+     * same batch, so that the whole list costs a single sync of the directory of the box (and of
+     * its segment file). A writer that fails does not affect the other entries of the batch.
+     *
+     * @param writers the writers of the contents of the entries.
+     * @return the entries, in the order of the writers, with {@code null} in place of those whose
+     *     writer failed or if some {@link IOException} occurs.
+     * @throws NullPointerException if the list, or any of the writers, is {@code null}.
+     */
+    @Override
+    public List<Entry> entries(List<ContentWriter> writers) throws NullPointerException {
+      final List<EntryWrite> writes = new ArrayList<>(writers.size());
+      for (final ContentWriter writer : writers) {
+        Objects.requireNonNull(writer);
+        EntryWrite write;
+        try {
+          write = prepare(writer);
+        } catch (IOException | RuntimeException e) {
+          write = null;
+        }
+        writes.add(write);
+      }
+      GroupCommit.submit(writes.stream().filter(Objects::nonNull).toList());
+      final List<Entry> entries = new ArrayList<>(writes.size());
+      for (final EntryWrite write : writes)
+        entries.add(write == null ? null : write.entry().join());
+      return entries;
+    }
+
+    /**
+     * Writes the content of a new entry, without forcing it to the disk nor making it visible.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return the write to commit.
+     * @throws IOException if some I/O error occurs, in which case the content is removed.
+     */
+    private EntryWrite prepare(ContentWriter writer) throws IOException {
+      if (layout == Layout.SEGMENTS) {
+        final SegmentLog log = log(true);
+        final String name = log.append(writer);
+        return new SegmentWrite(log, name, new Entry(log, name));
+      }
+      final Path dir = baseDir.resolve(boxPath);
       final String name = UUID.randomUUID().toString();
-      final Path path = baseDir.resolve(boxPath).resolve(name);
+      final Path tmp = dir.resolve(SIDECAR_PREFIX + name + TMP_SUFFIX);
+      try (final FileChannel channel =
+          FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        writer.write(channel);
+      } catch (IOException | RuntimeException e) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException ignored) {
+        }
+        throw e;
+      }
+      final Path path = dir.resolve(name);
+      return new FileWrite(tmp, path, new Entry(path));
+    }
+
+    /**
+     * Compacts the segment files of this box, removing the space taken by deleted entries.
+     *
+     * <p>Compaction happens in background as entries are deleted; this method compacts the
+     * segments immediately, for instance before a backup.
+     *
+     * @return if the segments were compacted, or {@code false} if the box has no segment files,
+     *     a compaction is already in progress or some {@link IOException} occurred.
+     */
+    public boolean compact() {
       try {
-        Files.write(path, content.getASCIIBytes());
-        return new Entry(path);
+        final SegmentLog log = log(false);
+        return log != null && log.compact();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private Path sidecarPath(String name) {
+      if (Objects.requireNonNull(name).isBlank()) throw new IllegalArgumentException();
+      if (name.contains(File.separator)) throw new IllegalArgumentException();
+      return baseDir.resolve(boxPath).resolve(SIDECAR_PREFIX + name);
+    }
+
+    /**
+     * Returns the content of a sidecar file of this box.
+     *
+     * <p>A sidecar file stores data associated to the box (for instance an index of its entries);
+     * it is kept in the directory of the box, but it is not one of its {@link #entries()}.
+     *
+     * @param name the name of the sidecar file.
+     * @return the content of the sidecar file, or {@code null} if it does not exist or some {@link
+     *     IOException} occurs.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    @Override
+    public byte[] sidecar(String name) throws IllegalArgumentException, NullPointerException {
+      final Path path = sidecarPath(name);
+      try {
+        return Files.readAllBytes(path);
       } catch (IOException e) {
         return null;
       }
     }
 
+    /**
+     * Writes a sidecar file of this box, replacing its previous content.
+     *
+     * <p>The content is first written to a temporary file that then replaces the sidecar file, so
+     * that readers never see a partially written content.
+     *
+     * @param name the name of the sidecar file.
+     * @param content the content of the sidecar file.
+     * @return if the sidecar file was written, or if some {@link IOException} occurred.
+     * @throws IllegalArgumentException if the name is blank or contains the file separator
+     *     character.
+     * @throws NullPointerException if the name or content is {@code null}.
+     */
+    @Override
+    public boolean sidecar(String name, byte[] content)
+        throws IllegalArgumentException, NullPointerException {
+      final Path path = sidecarPath(name);
+      Objects.requireNonNull(content);
+      final Path tmp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID());
+      try {
+        Files.write(tmp, content);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (IOException e) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException ignored) {
+        }
+        return false;
+      }
+    }
+
     @Override
     public String toString() {
       if (boxPath.equals(EMPTY_PATH)) return "INBOX";
@@ -178,11 +561,154 @@ public class Storage {
     }
   }
 
+  /** A new entry, that becomes available once committed. */
+  private abstract static class EntryWrite extends GroupCommit.Write {
+    private final Box.Entry entry;
+
+    private EntryWrite(Box.Entry entry) {
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the future of the entry.
+     *
+     * @return a future completed with the entry when it is durable, or with {@code null} if the
+     *     commit failed.
+     */
+    final CompletableFuture<Box.Entry> entry() {
+      return future().thenApply(durable -> durable ? entry : null);
+    }
+  }
+
+  /** A new entry file, written to a temporary file that is renamed once forced. */
+  private static final class FileWrite extends EntryWrite {
+    private final Path tmp, path;
+
+    private FileWrite(Path tmp, Path path, Box.Entry entry) {
+      super(entry);
+      this.tmp = tmp;
+      this.path = path;
+    }
+
+    @Override
+    Object data() {
+      return this;
+    }
+
+    @Override
+    void force() throws IOException {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+    }
+
+    @Override
+    void publish() throws IOException {
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    Path directory() {
+      return path.getParent();
+    }
+
+    @Override
+    void abort() {
+      try {
+        Files.deleteIfExists(tmp);
+        Files.deleteIfExists(path);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /** A new entry appended to a segment log, that is forced once per batch. */
+  private static final class SegmentWrite extends EntryWrite {
+    private final SegmentLog log;
+    private final String name;
+
+    private SegmentWrite(SegmentLog log, String name, Box.Entry entry) {
+      super(entry);
+      this.log = log;
+      this.name = name;
+    }
+
+    @Override
+    Object data() {
+      return log;
+    }
+
+    @Override
+    void force() throws IOException {
+      log.force();
+    }
+
+    @Override
+    void publish() {}
+
+    @Override
+    Path directory() {
+      return log.directory();
+    }
+
+    @Override
+    void abort() {
+      log.delete(name);
+    }
+  }
+
+  /**
+   * Reads the content of a file, mapping it or reading it into the slab of the current thread.
+   *
+   * @param channel the channel of the file.
+   * @return a read-only view of the content.
+   * @throws IOException if some I/O error occurs.
+   */
+  private static ByteBuffer read(FileChannel channel) throws IOException {
+    final long size = channel.size();
+    if (size >= MAP_THRESHOLD) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    ByteBuffer slab = SLAB.get();
+    if (slab == null || slab.remaining() < size) {
+      // the previous slab is freed once the views handed out are no longer referenced
+      slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+      SLAB.set(slab);
+    }
+    final ByteBuffer content = slab.slice(slab.position(), (int) size);
+    while (content.hasRemaining()) if (channel.read(content, content.position()) < 0) break;
+    slab.position(slab.position() + content.position());
+    return content.flip().asReadOnlyBuffer();
+  }
+
+  /**
+   * Deletes the temporary files of entries ({@code .<uuid>.tmp}) and of sidecar files ({@code
+   * .<name>.<uuid>}) left in a directory by writes interrupted by a crash.
+   *
+   * <p>Only the files not modified for {@link #STALE_TMP_MILLIS} milliseconds are deleted, so that
+   * the writes in progress (of this or of another storage over the same directory) are not
+   * affected; errors are ignored, the files will be deleted the next time the box is opened.
+   *
+   * @param dir the directory of a box.
+   */
+  private static void deleteStaleTemporaries(Path dir) {
+    final long stale = System.currentTimeMillis() - STALE_TMP_MILLIS;
+    try (final Stream<Path> paths = Files.list(dir)) {
+      for (final Path path : paths.toList()) {
+        if (!TMP_NAME.matcher(path.getFileName().toString()).matches()) continue;
+        try {
+          if (Files.getLastModifiedTime(path).toMillis() < stale) Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+      }
+    } catch (IOException ignored) {
+    }
+  }
+
   /**
    * Returns the boxes contained in this storage.
    *
    * @return the list of boxes in the storage, or {@code null} if some {@link IOException} occurs.
    */
+  @Override
   public List<Storage.Box> boxes() {
     try {
       return Files.walk(this.baseDir)
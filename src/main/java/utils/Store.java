@@ -0,0 +1,219 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+*/
+
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A storage of entries organized in boxes.
+ *
+ * <p>This is the interface through which the application reads and writes its boxes, regardless of
+ * where they are kept: {@link Storage} keeps them in the filesystem, {@link MemoryStore} on the
+ * heap. Implementations must be safe for use by multiple threads.
+ *
+ * <p>Boxes are named after their path in the hierarchy of boxes, whose components are separated by
+ * {@code :}; the root box is named {@code INBOX}.
+ */
+public interface Store {
+
+  /**
+   * A producer of the content of an entry.
+   *
+   * <p>See {@link Box#entry(ContentWriter)}.
+   */
+  @FunctionalInterface
+  interface ContentWriter {
+
+    /**
+     * Writes the content of an entry to the given channel.
+     *
+     * @param channel the channel, that must not be closed.
+     * @throws IOException if some I/O error occurs.
+     */
+    void write(WritableByteChannel channel) throws IOException;
+  }
+
+  /**
+   * A box.
+   *
+   * <p>A box is a collection of {@link Entry Entries}, plus some sidecar data that is not an entry.
+   */
+  interface Box {
+
+    /**
+     * An entry.
+     *
+     * <p>An entry is an immutable sequence of bytes, named by a string that is unique in its box.
+     */
+    interface Entry {
+
+      /**
+       * Returns the content of this entry.
+       *
+       * @return the bytes of the entry, or {@code null} if they can't be read.
+       * @throws IllegalArgumentException if the entry contains non ASCII bytes.
+       */
+      ASCIICharSequence content();
+
+      /**
+       * Returns a read-only view of the content of this entry.
+       *
+       * @return the content of the entry, or {@code null} if it can't be read.
+       */
+      ByteBuffer buffer();
+
+      /**
+       * Opens a channel to read the content of this entry.
+       *
+       * <p>The caller is responsible for closing the channel.
+       *
+       * @return the channel, or {@code null} if the content can't be read.
+       */
+      ReadableByteChannel channel();
+
+      /**
+       * Returns the size of this entry.
+       *
+       * @return the size of the entry in bytes, or {@code -1} if it can't be determined.
+       */
+      long size();
+
+      /**
+       * Returns the last modification time of this entry.
+       *
+       * @return the last modification time of the entry in milliseconds since the epoch, or {@code
+       *     -1} if it can't be determined.
+       */
+      long lastModified();
+
+      /**
+       * Deletes this entry.
+       *
+       * @return if the entry was deleted.
+       */
+      boolean delete();
+
+      /**
+       * Returns the name of this entry.
+       *
+       * @return the name.
+       */
+      @Override
+      String toString();
+    }
+
+    /**
+     * Creates a sub-box of this box.
+     *
+     * @param name the name of the sub-box (relative to this box).
+     * @return the sub-box, or {@code null} if it can't be created.
+     * @throws IllegalArgumentException if the name is blank or contains a separator.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    Box box(String name);
+
+    /**
+     * Deletes this box, that must be empty.
+     *
+     * @return if the box was deleted.
+     */
+    boolean delete();
+
+    /**
+     * Returns the entries contained in this box, sorted by name.
+     *
+     * @return the list of entries, empty if they can't be listed.
+     */
+    List<? extends Entry> entries();
+
+    /**
+     * Creates an entry in this box.
+     *
+     * @param content the content of the entry.
+     * @return the entry, or {@code null} if it can't be written.
+     * @throws NullPointerException if the content is {@code null}.
+     */
+    Entry entry(ASCIICharSequence content);
+
+    /**
+     * Creates an entry in this box whose content is streamed by the given writer.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return the entry, or {@code null} if it can't be written (or the writer throws an {@link
+     *     IOException}).
+     * @throws NullPointerException if the writer is {@code null}.
+     */
+    Entry entry(ContentWriter writer);
+
+    /**
+     * Creates an entry in this box whose content is streamed by the given writer, returning a
+     * future completed once the entry is durable.
+     *
+     * <p>The default implementation creates the entry with {@link #entry(ContentWriter)}, that is
+     * assumed to be durable on return, and returns a completed future.
+     *
+     * @param writer the writer of the content of the entry.
+     * @return a future completed with the entry, or with {@code null} if it can't be written (or
+     *     the writer throws an {@link IOException}).
+     * @throws NullPointerException if the writer is {@code null}.
+     */
+    default CompletableFuture<? extends Entry> durableEntry(ContentWriter writer) {
+      return CompletableFuture.completedFuture(entry(writer));
+    }
+
+    /**
+     * Creates several entries in this box, making them durable before returning.
+     *
+     * @param writers the writers of the contents of the entries.
+     * @return the entries, in the order of the writers, with {@code null} in place of those that
+     *     can't be written.
+     * @throws NullPointerException if the list, or any of the writers, is {@code null}.
+     */
+    List<? extends Entry> entries(List<ContentWriter> writers);
+
+    /**
+     * Reads a sidecar of this box.
+     *
+     * @param name the name of the sidecar.
+     * @return the content of the sidecar, or {@code null} if it does not exist or can't be read.
+     * @throws IllegalArgumentException if the name is blank or contains a separator.
+     * @throws NullPointerException if the name is {@code null}.
+     */
+    byte[] sidecar(String name);
+
+    /**
+     * Writes a sidecar of this box, replacing its previous content atomically.
+     *
+     * @param name the name of the sidecar.
+     * @param content the content of the sidecar.
+     * @return if the sidecar was written.
+     * @throws IllegalArgumentException if the name is blank or contains a separator.
+     * @throws NullPointerException if the name or content is {@code null}.
+     */
+    boolean sidecar(String name, byte[] content);
+
+    /**
+     * Returns the name of this box.
+     *
+     * @return the name.
+     */
+    @Override
+    String toString();
+  }
+
+  /**
+   * Returns the boxes contained in this store, sorted by name.
+   *
+   * @return the list of boxes, or {@code null} if they can't be listed.
+   */
+  List<? extends Box> boxes();
+}
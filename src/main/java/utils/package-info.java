@@ -9,7 +9,8 @@
  *   <li>The simple encoding classes {@link utils.AddressEncoding}, {@link utils.Base64Encoding},
  *       {@link utils.DateEncoding} deal with encoding and decoding of simple types.
  *   <li>The more complex {@link utils.EntryEncoding} and {@link Fragment} classes deal with
- *       encoding and decoding of mail messages.
+ *       encoding and decoding of mail messages; {@link utils.EntryDecoder} decodes them
+ *       incrementally from a channel.
  *   <li>The {@link utils.Storage} class is a class that allows to save and retrieve encoded mail
  *       messages from disk.
  *   <li>The user interface classes {@link utils.UIInteract}, {@link utils.UICard} and {@link
@@ -0,0 +1,139 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.AddressEncoding;
+import utils.Faker;
+
+/** Checks {@link AddressEncoding#decode} against the regular expression it replaced. */
+public class AddressEncodingTest {
+
+  private static final String ADDRESS_PART = "[\\w\\d.!$%&'*+/=?^_`{|}~-]+";
+
+  private static final Pattern ADDRESS_PATTERN =
+      Pattern.compile(
+          String.format(
+              """
+                \\G
+                (
+                  (
+                    (?<name>[-\\w]+(\\s+[-\\w]+)?) |
+                    (\"(?<qname>[^\"]*)\")
+                  )\\s+
+                )?
+                (
+                  (
+                    ((?<local>%1$s)@(?<domain>%1$s)) |
+                    (<(?<rlocal>%1$s)@(?<rdomain>%1$s)>)
+                  )
+                )(\\s*,\\s*)?
+              """,
+              ADDRESS_PART),
+          Pattern.COMMENTS);
+
+  private static final String NOISE = " \t\r\n,<>@\"-_.x!";
+
+  private static List<List<String>> regexDecode(final String sequence) {
+    final List<List<String>> result = new ArrayList<>();
+    final Matcher m = ADDRESS_PATTERN.matcher(sequence);
+    while (m.find()) {
+      final String name;
+      if (m.group("name") != null) name = m.group("name");
+      else if (m.group("qname") != null) name = m.group("qname");
+      else name = "";
+      if (m.group("local") != null) result.add(List.of(name, m.group("local"), m.group("domain")));
+      else result.add(List.of(name, m.group("rlocal"), m.group("rdomain")));
+    }
+    return result;
+  }
+
+  private static String encode(final List<List<String>> addresses, final Random rnd) {
+    final StringBuilder sb = new StringBuilder();
+    for (final List<String> address : addresses) {
+      if (sb.length() > 0) sb.append(rnd.nextBoolean() ? ", " : " ,\t");
+      final String name = address.get(0), email = address.get(1) + "@" + address.get(2);
+      if (name.isEmpty()) sb.append(rnd.nextBoolean() ? email : "<" + email + ">");
+      else if (name.split(" ").length > 2 || rnd.nextBoolean())
+        sb.append('"').append(name).append("\" <").append(email).append('>');
+      else sb.append(name).append(" <").append(email).append('>');
+    }
+    return sb.toString();
+  }
+
+  private static String mutate(final String sequence, final Random rnd) {
+    final StringBuilder sb = new StringBuilder(sequence);
+    for (int i = 1 + rnd.nextInt(3); i > 0; i--) {
+      final int pos = rnd.nextInt(sb.length() + 1);
+      if (pos < sb.length() && rnd.nextBoolean()) sb.deleteCharAt(pos);
+      else sb.insert(pos, NOISE.charAt(rnd.nextInt(NOISE.length())));
+    }
+    return sb.toString();
+  }
+
+  private static void check(final String sequence) {
+    assertEquals(
+        regexDecode(sequence), AddressEncoding.decode(ASCIICharSequence.of(sequence)), sequence);
+  }
+
+  @Test
+  public void agreesOnFakerAddresses() {
+    Faker.setSeed(42);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 2000; i++) check(encode(Faker.addresses(5), rnd));
+  }
+
+  @Test
+  public void agreesOnMalformedAddresses() {
+    Faker.setSeed(17);
+    final Random rnd = new Random(17);
+    for (int i = 0; i < 5000; i++) check(mutate(encode(Faker.addresses(3), rnd), rnd));
+  }
+
+  @Test
+  public void agreesOnEdgeCases() {
+    for (final String sequence :
+        List.of(
+            "",
+            " ",
+            ",",
+            "a@b",
+            "a@",
+            "@b",
+            "<a@b",
+            "a b c <x@y>",
+            "a  b\t<x@y>,c@d",
+            "a b x@y",
+            "\"\" <x@y>",
+            "\"a, b\" x@y ,  <c@d>  ",
+            "a@b c@d",
+            "a@b,,c@d",
+            "-a- -b- <x.y@z.w>"))
+      check(sequence);
+  }
+}
@@ -0,0 +1,120 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.DateEncoding;
+import utils.Faker;
+
+/** Checks {@link DateEncoding} against {@link DateTimeFormatter#RFC_1123_DATE_TIME}. */
+public class DateEncodingTest {
+
+  private static final DateTimeFormatter RFC = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  private static final List<ZoneId> ZONES =
+      List.of(
+          DateEncoding.EUROPE_ROME,
+          ZoneOffset.UTC,
+          ZoneOffset.ofHoursMinutes(5, 30),
+          ZoneOffset.ofHoursMinutes(-9, -45),
+          ZoneId.of("America/New_York"));
+
+  private static String decoded(final String sequence) {
+    try {
+      return ZonedDateTime.parse(sequence, RFC).toString();
+    } catch (DateTimeException e) {
+      return e.getClass().getName();
+    }
+  }
+
+  private static String fastDecoded(final String sequence) {
+    try {
+      return DateEncoding.decode(ASCIICharSequence.of(sequence)).toString();
+    } catch (DateTimeException e) {
+      return e.getClass().getName();
+    }
+  }
+
+  private static void check(final String sequence) {
+    assertEquals(decoded(sequence), fastDecoded(sequence), sequence);
+  }
+
+  @Test
+  public void encodesLikeTheFormatter() {
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      final Instant instant = Instant.ofEpochSecond(rnd.nextLong() % 4_000_000_000L);
+      final ZonedDateTime date = instant.atZone(ZONES.get(rnd.nextInt(ZONES.size())));
+      assertEquals(date.format(RFC), DateEncoding.encode(date).toString());
+    }
+  }
+
+  @Test
+  public void decodesLikeTheFormatter() {
+    Faker.setSeed(42);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      final ZonedDateTime date = Faker.date().withZoneSameInstant(ZONES.get(i % ZONES.size()));
+      final String encoded = date.format(RFC);
+      check(encoded);
+      check(encoded.substring(5));
+      final StringBuilder sb = new StringBuilder(encoded);
+      final int pos = rnd.nextInt(sb.length());
+      if (rnd.nextBoolean()) sb.setCharAt(pos, (char) ('0' + rnd.nextInt(10)));
+      else sb.deleteCharAt(pos);
+      check(sb.toString());
+    }
+  }
+
+  @Test
+  public void decodesEdgeCasesLikeTheFormatter() {
+    for (final String sequence :
+        List.of(
+            "Mon, 1 Jan 2024 00:00:00 GMT",
+            "Tue, 1 Jan 2024 00:00:00 GMT",
+            "mon, 1 jan 2024 00:00:00 GMT",
+            "01 Jan 2024 10:20 +0100",
+            "29 Feb 2023 10:20:30 +0100",
+            "29 Feb 2024 10:20:30 +0100",
+            "31 Apr 2024 10:20:30 +0100",
+            "1 Jan 2024 24:00:00 +0000",
+            "1 Jan 2024 23:59:60 -0000",
+            "1 Jan 2024 12:00:00 +1800",
+            "1 Jan 2024 12:00:00 +1801",
+            "1 Jan 2024 12:00:00 +0560",
+            "1 Jan 2024 12:00:00 UT",
+            "1 Jan 2024 12:00:00 GMT ",
+            "123 Jan 2024 12:00:00 GMT",
+            "",
+            "Mon, "))
+      check(sequence);
+  }
+}
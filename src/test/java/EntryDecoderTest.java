@@ -0,0 +1,207 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.EntryDecoder;
+import utils.EntryEncoding;
+import utils.Faker;
+
+/** Checks that the events of {@link EntryDecoder} agree with {@link EntryEncoding#decode}. */
+public class EntryDecoderTest {
+
+  /* Collects the events as [headers, body] for every fragment, like EntryEncodingTest.strings. */
+  private static class Collector implements EntryDecoder.Handler {
+    private final List<List<Object>> fragments = new ArrayList<>();
+    private final EntryDecoder.Body body;
+    private List<List<String>> headers = new ArrayList<>();
+    private ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+
+    private Collector(final EntryDecoder.Body body) {
+      this.body = body;
+    }
+
+    @Override
+    public void header(final ASCIICharSequence name, final ASCIICharSequence value) {
+      headers.add(List.of(name.toString(), value.toString()));
+    }
+
+    @Override
+    public EntryDecoder.Body headersEnd() {
+      return body;
+    }
+
+    @Override
+    public void bodyChunk(final ByteBuffer chunk) {
+      assertTrue(chunk.isReadOnly());
+      while (chunk.hasRemaining()) chunks.write(chunk.get());
+    }
+
+    @Override
+    public boolean fragmentEnd() {
+      fragments.add(List.of(headers, chunks.toString(StandardCharsets.US_ASCII)));
+      headers = new ArrayList<>();
+      chunks = new ByteArrayOutputStream();
+      return true;
+    }
+  }
+
+  /* A channel that returns at most a random number of bytes at every read. */
+  private static class ShortReads implements ReadableByteChannel {
+    private final ByteBuffer source;
+    private final Random rnd;
+
+    private ShortReads(final byte[] bytes, final Random rnd) {
+      this.source = ByteBuffer.wrap(bytes);
+      this.rnd = rnd;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) {
+      if (!source.hasRemaining()) return -1;
+      final int n = Math.min(1 + rnd.nextInt(100), Math.min(dst.remaining(), source.remaining()));
+      dst.put(source.slice().limit(n));
+      source.position(source.position() + n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private interface Decoding {
+    void decode(EntryDecoder decoder, byte[] bytes, Collector collector) throws IOException;
+  }
+
+  private static Object outcome(final Callable<?> decoder) {
+    try {
+      return decoder.call();
+    } catch (final Exception e) {
+      // the streaming decoder doesn't keep the previous value of duplicate headers
+      return e.getClass().getSimpleName() + ": " + e.getMessage().replaceFirst(" was \\[.*", "");
+    }
+  }
+
+  private static void check(
+      final String rawMessage, final int bufferSize, final Decoding decoding) {
+    final byte[] bytes = rawMessage.getBytes(StandardCharsets.US_ASCII);
+    final Object expected = outcome(() -> EntryEncodingTest.strings(EntryEncoding.decode(bytes)));
+    final Object actual =
+        outcome(
+            () -> {
+              final Collector collector = new Collector(EntryDecoder.Body.READ);
+              decoding.decode(new EntryDecoder(bufferSize), bytes, collector);
+              return collector.fragments;
+            });
+    if (actual.toString().startsWith("IllegalArgumentException: Header line longer than")
+        || actual.toString().startsWith("IllegalArgumentException: Boundary longer than"))
+      assertTrue(rawMessage.lines().anyMatch(l -> l.length() >= bufferSize - 2), rawMessage);
+    else assertEquals(expected, actual, rawMessage);
+  }
+
+  private static void checkAll(final int bufferSize, final Decoding decoding) {
+    Faker.setSeed(42);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      final String message = EntryEncodingTest.message(rnd);
+      check(message, bufferSize, decoding);
+      check(EntryEncodingTest.mutate(message, rnd), bufferSize, decoding);
+    }
+  }
+
+  @Test
+  public void agreesReadingStreams() {
+    for (final int size : List.of(80, EntryDecoder.DEFAULT_BUFFER_SIZE))
+      checkAll(size, (d, b, c) -> d.decode(new ByteArrayInputStream(b), c));
+  }
+
+  @Test
+  public void agreesReadingShortReads() {
+    final Random rnd = new Random(17);
+    for (final int size : List.of(80, 97, EntryDecoder.DEFAULT_BUFFER_SIZE))
+      checkAll(size, (d, b, c) -> d.decode(new ShortReads(b, rnd), c));
+  }
+
+  @Test
+  public void agreesReadingBuffers() {
+    for (final int size : List.of(80, EntryDecoder.DEFAULT_BUFFER_SIZE))
+      checkAll(size, (d, b, c) -> d.decode(ByteBuffer.wrap(b), c));
+  }
+
+  @Test
+  public void skipsBodies() throws IOException {
+    Faker.setSeed(7);
+    final Random rnd = new Random(7);
+    for (int i = 0; i < 200; i++) {
+      final byte[] bytes = EntryEncodingTest.message(rnd).getBytes(StandardCharsets.US_ASCII);
+      final Collector collector = new Collector(EntryDecoder.Body.SKIP);
+      new EntryDecoder().decode(ByteBuffer.wrap(bytes), collector);
+      final List<List<Object>> expected = new ArrayList<>();
+      for (final List<Object> fragment : EntryEncodingTest.strings(EntryEncoding.decode(bytes)))
+        expected.add(List.of(fragment.get(0), ""));
+      assertEquals(expected, collector.fragments);
+    }
+  }
+
+  @Test
+  public void stops() throws IOException {
+    final byte[] bytes =
+        "content-type: multipart/alternative; boundary=b\n\npre\n--b\nx: y\n\nbody\n--b--"
+            .getBytes(StandardCharsets.US_ASCII);
+    final Collector collector = new Collector(EntryDecoder.Body.STOP);
+    new EntryDecoder().decode(ByteBuffer.wrap(bytes), collector);
+    assertEquals(
+        List.of(List.of("content-type", "multipart/alternative; boundary=b")),
+        collector.headers);
+    assertEquals(List.of(), collector.fragments);
+  }
+
+  @Test
+  public void reportsTheBoundaryLine() {
+    final byte[] bytes =
+        "content-type: multipart/alternative\n\nx".getBytes(StandardCharsets.US_ASCII);
+    final Callable<?> streaming =
+        () -> {
+          new EntryDecoder().decode(ByteBuffer.wrap(bytes), new Collector(EntryDecoder.Body.READ));
+          return null;
+        };
+    assertEquals(outcome(() -> EntryEncoding.decode(bytes)), outcome(streaming));
+  }
+}
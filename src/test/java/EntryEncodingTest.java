@@ -0,0 +1,297 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.Base64Encoding;
+import utils.DateEncoding;
+import utils.EntryEncoding;
+import utils.Faker;
+import utils.Fragment;
+
+/** Checks {@link EntryEncoding#decode} against the {@link Scanner} based decoder it replaced. */
+public class EntryEncodingTest {
+
+  private static final String NOISE = "\n\r\r\n:- \tXx=";
+
+  /* The decoder it replaced, returning [headers, body] for every fragment. */
+  private static List<List<Object>> scannerDecode(final String rawMessage) {
+    final List<List<Object>> fragments = new ArrayList<>();
+    Map<String, List<String>> headers = new LinkedHashMap<>();
+    List<String> body = new ArrayList<>();
+    String separator = null, lastSeparator = null;
+    enum Mode {
+      HEADERS,
+      BODY,
+      PART_BODY
+    }
+    Mode mode = Mode.HEADERS;
+    try (final Scanner s = new Scanner(rawMessage)) {
+      while (s.hasNextLine()) {
+        final String line = s.nextLine();
+        switch (mode) {
+          case HEADERS:
+            if (line.isEmpty())
+              if (separator == null) {
+                final List<String> header = headers.get("content-type");
+                final String contentType = header == null ? null : header.get(1).toLowerCase();
+                if (contentType != null && contentType.startsWith("multipart/alternative")) {
+                  final String[] p = contentType.split("boundary=", 2);
+                  if (p.length != 2)
+                    throw new IllegalArgumentException("Can't determine boundary: " + line);
+                  final String boundary = contentType.split("boundary=")[1];
+                  separator = "--" + boundary;
+                  lastSeparator = "--" + boundary + "--";
+                  mode = Mode.PART_BODY;
+                } else mode = Mode.BODY;
+              } else mode = Mode.PART_BODY;
+            else {
+              final String[] parts = line.split(":", 2);
+              if (parts.length != 2)
+                throw new IllegalArgumentException("Can't parse header: " + line);
+              final List<String> dup,
+                  header = List.of(parts[0].trim().toLowerCase(), parts[1].trim());
+              if ((dup = headers.put(header.get(0), header)) != null)
+                throw new IllegalArgumentException(
+                    "Duplicate header: ["
+                        + line
+                        + "] was [RawHeader[name="
+                        + dup.get(0)
+                        + ", value="
+                        + dup.get(1)
+                        + "]]");
+            }
+            break;
+          case BODY:
+            body.add(line);
+            if (!s.hasNextLine()) {
+              fragments.add(List.of(List.copyOf(headers.values()), String.join("\n", body)));
+              headers = new LinkedHashMap<>();
+              body = new ArrayList<>();
+            }
+            break;
+          case PART_BODY:
+            if (line.equals(separator) || line.equals(lastSeparator)) {
+              fragments.add(List.of(List.copyOf(headers.values()), String.join("\n", body)));
+              headers = new LinkedHashMap<>();
+              body = new ArrayList<>();
+              mode = Mode.HEADERS;
+            } else body.add(line);
+            break;
+        }
+      }
+    }
+    return fragments;
+  }
+
+  static List<List<Object>> strings(final List<Fragment> fragments) {
+    final List<List<Object>> result = new ArrayList<>();
+    for (final Fragment fragment : fragments)
+      result.add(List.of(strings(fragment.rawHeaders()), fragment.rawBody().toString()));
+    return result;
+  }
+
+  private static Object outcome(final Callable<?> decoder) {
+    try {
+      return decoder.call();
+    } catch (final Exception e) {
+      return e.getClass().getSimpleName() + ": " + e.getMessage();
+    }
+  }
+
+  private static void check(final String rawMessage) {
+    final Object expected = outcome(() -> scannerDecode(rawMessage));
+    assertEquals(
+        expected,
+        outcome(() -> strings(EntryEncoding.decode(ASCIICharSequence.of(rawMessage)))),
+        rawMessage);
+    assertEquals(
+        expected,
+        outcome(
+            () -> strings(EntryEncoding.decode(rawMessage.getBytes(StandardCharsets.US_ASCII)))),
+        rawMessage);
+  }
+
+  static String message(final Random rnd) {
+    final String eol = List.of("\n", "\r\n", "\r").get(rnd.nextInt(3));
+    final List<String> lines = new ArrayList<>();
+    lines.add(header(rnd, "From", String.join("@", Faker.address().subList(1, 3))));
+    lines.add(header(rnd, "To", String.join("@", Faker.address().subList(1, 3))));
+    lines.add(header(rnd, "Subject", Base64Encoding.encodeWord(Faker.subject())));
+    lines.add(header(rnd, "Date", DateEncoding.encode(Faker.date()).toString()));
+    if (rnd.nextBoolean()) {
+      final String boundary = rnd.nextBoolean() ? "frontier" : "b" + rnd.nextInt(1000);
+      lines.add(header(rnd, "MIME-Version", "1.0"));
+      lines.add(header(rnd, "Content-Type", "multipart/alternative; boundary=" + boundary));
+      lines.add("");
+      lines.add("This is a message with multiple parts in MIME format.");
+      for (int i = rnd.nextInt(4); i > 0; i--) {
+        lines.add("--" + boundary);
+        lines.add(header(rnd, "Content-Type", "text/plain; charset=\"us-ascii\""));
+        lines.add("");
+        lines.add(Faker.text());
+      }
+      lines.add("--" + boundary + "--");
+    } else {
+      lines.add(header(rnd, "Content-Type", "text/plain; charset=\"us-ascii\""));
+      lines.add("");
+      lines.add(Faker.text());
+    }
+    final String text = String.join("\n", lines) + (rnd.nextBoolean() ? "\n" : "");
+    return text.replace("\n", eol);
+  }
+
+  private static String header(final Random rnd, final String name, final String value) {
+    final String n =
+        rnd.nextBoolean() ? name : rnd.nextBoolean() ? name.toLowerCase() : name.toUpperCase();
+    return n + (rnd.nextBoolean() ? ": " : " :\t") + value + (rnd.nextBoolean() ? "" : " ");
+  }
+
+  static String mutate(final String sequence, final Random rnd) {
+    final StringBuilder sb = new StringBuilder(sequence);
+    for (int i = 1 + rnd.nextInt(4); i > 0; i--) {
+      final int pos = rnd.nextInt(sb.length() + 1);
+      if (pos < sb.length() && rnd.nextBoolean()) sb.deleteCharAt(pos);
+      else sb.insert(pos, NOISE.charAt(rnd.nextInt(NOISE.length())));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void agreesOnTestMessages() throws IOException {
+    final List<Path> paths;
+    try (final Stream<Path> mbox = Files.walk(Path.of("tests/mbox"));
+        final Stream<Path> inputs = Files.list(Path.of("tests/clients/MessageDecode"))) {
+      paths =
+          Stream.concat(
+                  mbox.filter(p -> !p.getFileName().toString().startsWith(".")),
+                  inputs.filter(p -> p.getFileName().toString().startsWith("input")))
+              .filter(Files::isRegularFile)
+              .toList();
+    }
+    for (final Path path : paths) check(Files.readString(path, StandardCharsets.US_ASCII));
+  }
+
+  private static List<List<String>> strings(final Iterable<List<ASCIICharSequence>> headers) {
+    final List<List<String>> result = new ArrayList<>();
+    for (final List<ASCIICharSequence> header : headers)
+      result.add(List.of(header.get(0).toString(), header.get(1).toString()));
+    return result;
+  }
+
+  /* The values of a fragment as if all the bytes they are views of were replaced by '#'. */
+  private static Object hashes(final Object value) {
+    if (value instanceof String s) return "#".repeat(s.length());
+    final List<Object> result = new ArrayList<>();
+    for (final Object o : (List<?>) value)
+      result.add(o instanceof List<?> h ? List.of(h.get(0), hashes(h.get(1))) : hashes(o));
+    return result;
+  }
+
+  @Test
+  public void fragmentsAreViewsOverTheMessage() throws IOException {
+    try (final Stream<Path> mbox = Files.walk(Path.of("tests/mbox"))) {
+      for (final Path path :
+          mbox.filter(Files::isRegularFile)
+              .filter(p -> !p.getFileName().toString().startsWith("."))
+              .toList()) {
+        final byte[] bytes = Files.readAllBytes(path);
+        final List<Fragment> fragments = EntryEncoding.decode(bytes);
+        final List<List<ASCIICharSequence>> headers = EntryEncoding.decodeHeaders(bytes);
+        final List<List<Object>> before = strings(fragments);
+        assertEquals(before.get(0).get(0), strings(EntryEncoding.decodeHeaders(bytes)));
+        for (final Fragment fragment : fragments) {
+          final ByteBuffer buffer = fragment.rawBodyBuffer();
+          assertTrue(buffer.isReadOnly(), path.toString());
+          final byte[] body = new byte[buffer.remaining()];
+          buffer.get(body);
+          assertArrayEquals(fragment.rawBody().getASCIIBytes(), body, path.toString());
+        }
+        final boolean onlyLF = !new String(bytes, StandardCharsets.US_ASCII).contains("\r");
+        Arrays.fill(bytes, (byte) '#');
+        assertEquals(hashes(before.get(0).get(0)), strings(headers), path.toString());
+        final List<List<Object>> after = strings(fragments);
+        for (int i = 0; i < before.size(); i++) {
+          assertEquals(hashes(before.get(i).get(0)), after.get(i).get(0), path.toString());
+          // bodies with CR line ends are normalized to LF, hence copied
+          if (onlyLF)
+            assertEquals(hashes(before.get(i).get(1)), after.get(i).get(1), path.toString());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void agreesOnFakerMessages() {
+    Faker.setSeed(42);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 2000; i++) check(message(rnd));
+  }
+
+  @Test
+  public void agreesOnMalformedMessages() {
+    Faker.setSeed(17);
+    final Random rnd = new Random(17);
+    for (int i = 0; i < 5000; i++) check(mutate(message(rnd), rnd));
+  }
+
+  @Test
+  public void agreesOnEdgeCases() {
+    for (final String rawMessage :
+        List.of(
+            "",
+            "\n",
+            "\r\n\r\n",
+            "a: b",
+            "a: b\n",
+            "a: b\n\n",
+            "a: b\n\nc",
+            "a: b\r\rc\rd\r",
+            "A : b\na:c\n\nx",
+            "no colon\n\nx",
+            "content-type: multipart/alternative\n\nx",
+            "content-type: multipart/alternative; boundary=\n\n--\nx: y\n\nz\n---",
+            "content-type: Multipart/Alternative; Boundary=B\n\npre\n--b\n\nbody\n--b--",
+            "content-type: multipart/alternative; boundary=b\n\n--b\nx: y\n\n\n\n--b\n",
+            "content-type: multipart/alternative; boundary=b\n\n--b\nx: y\n\nunterminated",
+            " x :  y  \n\n  body  \n\n"))
+      check(rawMessage);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import mua.ImapServer;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Drives an {@link ImapServer} end to end over a local socket. */
+public class ImapServerTest {
+
+  private static final Path MBOX = Path.of("tests", "mbox");
+  private static final String OLDEST = "Subject: Hardware ridotta logistica";
+
+  private static final class Client {
+    private final InputStream in;
+    private final OutputStream out;
+    private final List<byte[]> literals = new ArrayList<>();
+
+    Client(final Socket socket) throws IOException {
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+    }
+
+    String line() throws IOException {
+      final ByteArrayOutputStream line = new ByteArrayOutputStream();
+      for (int b; (b = in.read()) != '\n'; ) {
+        if (b < 0) throw new IOException("connection closed");
+        if (b != '\r') line.write(b);
+      }
+      return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Sends a command and returns its response lines, the tagged one last. */
+    List<String> send(final String tag, final String command) throws IOException {
+      out.write((tag + " " + command + "\r\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      final List<String> lines = new ArrayList<>();
+      literals.clear();
+      for (String line = line(); ; line = line()) {
+        lines.add(line);
+        if (line.endsWith("}")) {
+          final int size =
+              Integer.parseInt(line.substring(line.lastIndexOf('{') + 1, line.length() - 1));
+          literals.add(in.readNBytes(size));
+        }
+        if (line.startsWith(tag + " ")) return lines;
+      }
+    }
+  }
+
+  private static void copy(final Path source, final Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(source)) {
+      for (final Path path : paths.toList()) {
+        final Path target = dir.resolve(source.relativize(path).toString());
+        if (Files.isDirectory(path)) Files.createDirectories(target);
+        else Files.copy(path, target);
+      }
+    }
+  }
+
+  /** Returns the bytes of a file with every line terminated by CRLF, as IMAP literals are sent. */
+  private static byte[] crlf(final Path file) throws IOException {
+    return Files.readString(file, StandardCharsets.ISO_8859_1)
+        .replaceAll("(?<!\r)\n", "\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static Path oldest(final Path dir) throws IOException {
+    try (Stream<Path> paths = Files.list(dir)) {
+      for (final Path path : paths.filter(Files::isRegularFile).toList())
+        if (Files.readString(path, StandardCharsets.ISO_8859_1).contains(OLDEST)) return path;
+    }
+    throw new AssertionError("missing message");
+  }
+
+  @Test
+  public void sessionReadsAndExpungesMessages(@TempDir final Path dir) throws Exception {
+    copy(MBOX, dir);
+    final Mua mua = new Mua(dir.toString());
+    try (ImapServer server = new ImapServer(mua, 0, 2, "user", "secret");
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      final Client client = new Client(socket);
+      assertTrue(client.line().startsWith("* OK"));
+      assertEquals("a0 NO Not authenticated", client.send("a0", "SELECT INBOX").get(0));
+      assertEquals(
+          "a1 NO [AUTHENTICATIONFAILED] Invalid credentials",
+          client.send("a1", "LOGIN user wrong").get(0));
+      assertEquals(List.of("a1 OK LOGIN completed"), client.send("a1", "LOGIN user \"secret\""));
+      assertEquals(
+          List.of(
+              "* LIST (\\HasNoChildren) \":\" \"INBOX\"",
+              "* LIST (\\HasChildren) \":\" \"first\"",
+              "* LIST (\\HasNoChildren) \":\" \"first:third\"",
+              "* LIST (\\HasNoChildren) \":\" \"second\"",
+              "a2 OK LIST completed"),
+          client.send("a2", "LIST \"\" *"));
+      assertTrue(client.send("a3", "SELECT inbox").contains("* 3 EXISTS"));
+
+      final Path file = oldest(dir);
+      final byte[] crlf = crlf(file);
+      assertTrue(crlf.length > Files.size(file));
+      final List<String> fetch = client.send("a4", "FETCH 1 (RFC822.SIZE BODY[] BODY[HEADER])");
+      assertEquals(
+          "* 1 FETCH (RFC822.SIZE " + crlf.length + " BODY[] {" + crlf.length + "}", fetch.get(0));
+      assertArrayEquals(crlf, client.literals.get(0));
+      final String header = new String(client.literals.get(1), StandardCharsets.ISO_8859_1);
+      assertTrue(header.endsWith("\r\n\r\n") && !header.matches("(?s).*[^\r]\n.*"));
+      assertEquals("a5 OK FETCH completed", client.send("a5", "FETCH 1 FLAGS").get(1));
+      assertEquals("* 1 FETCH (FLAGS (\\Seen))", client.send("a6", "FETCH 1 FLAGS").get(0));
+
+      assertEquals("* SEARCH 1", client.send("a7", "SEARCH SUBJECT hardware").get(0));
+      assertEquals("* SEARCH 2 3", client.send("a8", "SEARCH UNSEEN").get(0));
+      assertEquals("a9 BAD Unsupported SEARCH key UID", client.send("a9", "SEARCH UID 1").get(0));
+      // FROM and TO match the whole header, display names included
+      assertEquals("* SEARCH 2", client.send("a10", "SEARCH FROM \"orlando LEOPARDI\"").get(0));
+      assertEquals("* SEARCH 3", client.send("a11", "SEARCH TO \"Sig.ra Patrizia\"").get(0));
+      assertEquals("* SEARCH 2 3", client.send("a12", "SEARCH TO ocaruso@").get(0));
+
+      client.send("b1", "STORE 1 +FLAGS.SILENT (\\Deleted)");
+      assertEquals(List.of("* 1 EXPUNGE", "b2 OK EXPUNGE completed"), client.send("b2", "EXPUNGE"));
+      assertTrue(Files.notExists(file));
+      assertEquals("* SEARCH", client.send("b3", "SEARCH SUBJECT hardware").get(0));
+      assertTrue(client.send("b4", "LOGOUT").get(0).startsWith("* BYE"));
+
+      final Session reloaded = new Mua(dir.toString()).session();
+      reloaded.selectMailbox(0);
+      assertEquals(2, reloaded.mailBoxMessages());
+    } finally {
+      mua.flush();
+    }
+  }
+
+  @Test
+  public void refusesClientsBeyondTheLimitAndLoginWithoutCredentials(@TempDir final Path dir)
+      throws Exception {
+    copy(MBOX, dir);
+    try (ImapServer server = new ImapServer(new Mua(dir.toString()), 0, 1, null, null);
+        Socket first = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      final Client client = new Client(first);
+      assertTrue(client.line().contains("LOGINDISABLED"));
+      assertEquals("a1 NO LOGIN disabled", client.send("a1", "LOGIN user secret").get(0));
+      try (Socket second = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+        assertTrue(new Client(second).line().startsWith("* BYE"));
+        assertEquals(-1, second.getInputStream().read());
+      }
+      assertTrue(client.send("a2", "LOGOUT").get(0).startsWith("* BYE"));
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import mua.Mua;
+import mua.Session;
+import mua.message.Message;
+import mua.message.Part;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ASCIICharSequence;
+
+/** Checks that lazy messages decode their parts on every access and never keep them. */
+public class LazyMessageTest {
+
+  private static final Path MESSAGE = Path.of("tests", "mbox", "test-311a171a");
+
+  private static List<Part> parts(final Message message) {
+    final List<Part> parts = new ArrayList<>();
+    message.forEach(parts::add);
+    return parts;
+  }
+
+  @Test
+  public void partsAreDecodedFromTheSourceOnEveryAccess() throws IOException {
+    final ASCIICharSequence encoding = ASCIICharSequence.of(Files.readString(MESSAGE));
+    final AtomicInteger reads = new AtomicInteger();
+    final Message lazy =
+        Message.parseHeaders(
+            () -> {
+              reads.incrementAndGet();
+              return encoding;
+            });
+    assertEquals(1, reads.get());
+    final List<Part> expected = parts(Message.parse(encoding));
+    assertEquals(expected.size(), parts(lazy).size());
+    assertEquals(2, reads.get());
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(expected.get(i).body(), parts(lazy).get(i).body());
+    assertEquals(2 + expected.size(), reads.get());
+  }
+
+  @Test
+  public void readMessageKeepsNoPartsInTheMailBox(@TempDir final Path dir) throws IOException {
+    Files.copy(MESSAGE, dir.resolve(MESSAGE.getFileName()));
+    final Session session = new Mua(dir.toString()).session();
+    session.selectMailbox(0);
+    final String read = session.readMessage(0);
+    assertEquals(read, session.readMessage(0));
+
+    // if the parts had been kept by the message, it could still be read
+    try (Stream<Path> entries = Files.list(dir)) {
+      for (final Path entry : entries.toList())
+        if (!entry.getFileName().toString().startsWith(".")) Files.delete(entry);
+    }
+    assertEquals(1, session.mailBoxMessages());
+    assertThrows(IllegalStateException.class, () -> session.readMessage(0));
+  }
+}
@@ -0,0 +1,125 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import mua.LmtpServer;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Delivers messages to an {@link LmtpServer} over a local socket. */
+public class LmtpServerTest {
+
+  private static final String MESSAGE =
+      String.join(
+          "\r\n",
+          "From: Mittente <mittente@example.com>",
+          "To: destinatario@example.com",
+          "Subject: Consegna %d",
+          "Date: Mon, 4 Dec 2023 00:21:58 +0100",
+          "Content-Type: text/plain; charset=\"us-ascii\"",
+          "",
+          "..riga con punto",
+          "corpo",
+          ".",
+          "");
+
+  private static final class Client {
+    private final BufferedReader in;
+    private final OutputStream out;
+
+    Client(final Socket socket) throws IOException {
+      in =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+      out = socket.getOutputStream();
+    }
+
+    /** Reads a (possibly multiline) reply and returns its last line. */
+    String reply() throws IOException {
+      String line = in.readLine();
+      while (line.charAt(3) == '-') line = in.readLine();
+      return line;
+    }
+
+    String send(final String command) throws IOException {
+      out.write((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+      return reply();
+    }
+  }
+
+  @Test
+  public void deliveredMessagesAreStoredAndAcknowledgedPerRecipient(@TempDir final Path dir)
+      throws Exception {
+    Files.createDirectories(dir.resolve("a").resolve("b"));
+    final Mua mua = new Mua(dir.toString());
+    try (LmtpServer server = new LmtpServer(mua, 0, 4);
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      final Client client = new Client(socket);
+      assertTrue(client.reply().startsWith("220 "));
+      assertTrue(client.send("MAIL FROM:<x@example.com>").startsWith("503 "));
+      assertTrue(client.send("LHLO client").startsWith("250 "));
+      assertTrue(client.send("MAIL FROM:<x@example.com>").startsWith("250 "));
+      assertTrue(client.send("RCPT TO:<inbox@localhost>").startsWith("250 "));
+      assertTrue(client.send("RCPT TO:<a.b@localhost>").startsWith("250 "));
+      assertTrue(client.send("RCPT TO:<missing@localhost>").startsWith("550 "));
+      assertTrue(client.send("DATA").startsWith("354 "));
+      client.out.write(String.format(MESSAGE, 1).getBytes(StandardCharsets.US_ASCII));
+      client.out.flush();
+      assertEquals("250 2.0.0 Delivered to INBOX", client.reply());
+      assertEquals("250 2.0.0 Delivered to a:b", client.reply());
+
+      client.send("MAIL FROM:<x@example.com>");
+      client.send("RCPT TO:<a>");
+      client.send("DATA");
+      assertTrue(client.send("not a message\r\n.").startsWith("554 "));
+      assertTrue(client.send("QUIT").startsWith("221 "));
+    }
+    mua.flush();
+
+    final Mua reloaded = new Mua(dir.toString());
+    final Session session = reloaded.session();
+    final List<Integer> sizes = new ArrayList<>();
+    for (int i = 0; i < reloaded.mailBoxes(); i++) {
+      session.selectMailbox(i);
+      sizes.add(session.mailBoxMessages());
+    }
+    assertEquals(List.of(1, 0, 1), sizes);
+    session.selectMailbox(2);
+    final String card = session.readMessage(0);
+    assertTrue(card.contains("| .riga con punto ") && card.contains("| corpo "), card);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.MemoryStore;
+import utils.Storage;
+import utils.Store;
+
+/** Runs the application on a {@link MemoryStore}. */
+public class MemoryStoreTest {
+
+  private static List<String> names(final Store store) {
+    final List<String> names = new ArrayList<>();
+    for (final Store.Box box : store.boxes()) names.add(box.toString());
+    return names;
+  }
+
+  @Test
+  public void boxesAndEntriesBehaveAsInTheFilesystem() throws Exception {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box inbox = store.boxes().get(0);
+    final Store.Box first = inbox.box("first");
+    assertNotNull(first.box("third"));
+    assertNull(inbox.box("first"));
+    assertThrows(IllegalArgumentException.class, () -> inbox.box("a:b"));
+    assertNotNull(inbox.box("first2"));
+    assertEquals(List.of("INBOX", "first", "first2", "first:third"), names(store));
+    assertFalse(first.delete());
+
+    final Store.Box.Entry entry = first.entry(ASCIICharSequence.of("contenuto"));
+    assertEquals(List.of(entry), first.entries());
+    assertEquals("contenuto", entry.content().toString());
+    assertEquals(9L, entry.size());
+    assertTrue(entry.buffer().isReadOnly());
+    try (SeekableByteChannel channel = (SeekableByteChannel) entry.channel()) {
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      channel.position(5);
+      assertEquals(4, channel.read(buffer));
+      assertEquals("nuto", new String(buffer.array(), StandardCharsets.US_ASCII));
+      assertEquals(-1, channel.read(buffer.clear()));
+    }
+    assertTrue(entry.delete());
+    assertFalse(entry.delete());
+    assertTrue(first.entries().isEmpty());
+
+    assertTrue(first.sidecar("indice", new byte[] {1, 2}));
+    assertArrayEquals(new byte[] {1, 2}, first.sidecar("indice"));
+    final List<Store.ContentWriter> writers = new ArrayList<>();
+    writers.add(channel -> channel.write(ByteBuffer.wrap(new byte[] {'a'})));
+    writers.add(
+        channel -> {
+          throw new IOException();
+        });
+    final List<? extends Store.Box.Entry> entries = first.entries(writers);
+    assertEquals("a", entries.get(0).content().toString());
+    assertNull(entries.get(1));
+  }
+
+  @Test
+  public void muaRunsOnACopyOfTheMailBoxes() throws Exception {
+    final MemoryStore store = MemoryStore.copyOf(new Storage("tests/mbox"));
+    final Mua expected = new Mua("tests/mbox");
+    final Mua actual = new Mua(store, 2);
+    final Session expectedSession = expected.session(), actualSession = actual.session();
+    assertEquals(expected.listMailboxes(), actual.listMailboxes());
+    for (int i = 0; i < expected.mailBoxes(); i++) {
+      assertEquals(expectedSession.selectMailbox(i), actualSession.selectMailbox(i));
+      assertEquals(expectedSession.listMessages(), actualSession.listMessages());
+      for (int n = 0; n < expectedSession.mailBoxMessages(); n++)
+        assertEquals(expectedSession.readMessage(n), actualSession.readMessage(n));
+    }
+
+    actualSession.selectMailbox(0);
+    final int messages = actualSession.mailBoxMessages();
+    actualSession.copyMessage(0, 1);
+    actualSession.deleteMessage(0);
+    final Session reloaded = new Mua(store, 1).session();
+    reloaded.selectMailbox(0);
+    assertEquals(messages - 1, reloaded.mailBoxMessages());
+    reloaded.selectMailbox(1);
+    expectedSession.selectMailbox(1);
+    assertEquals(expectedSession.mailBoxMessages() + 1, reloaded.mailBoxMessages());
+  }
+}
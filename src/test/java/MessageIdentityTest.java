@@ -0,0 +1,92 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import mua.Mua;
+import mua.Session;
+import mua.message.Message;
+import mua.message.Part;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.MemoryStore;
+import utils.Store;
+
+/** Checks that the identity of a {@link Message} is stable and keeps copies apart. */
+public class MessageIdentityTest {
+
+  private static ASCIICharSequence encoding() throws IOException {
+    return ASCIICharSequence.of(Files.readString(Path.of("tests/mbox/test-311a171a")));
+  }
+
+  @Test
+  public void parsedMessagesAreIdentifiedByTheirEncoding() throws IOException {
+    final ASCIICharSequence encoding = encoding();
+    final Message first = Message.parse(encoding), second = Message.parse(encoding);
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+    assertEquals(0, first.compareTo(second));
+    final List<Part> parts = new ArrayList<>();
+    first.forEach(parts::add);
+    assertEquals(new Message(parts), new Message(List.copyOf(parts)));
+
+    final Message other = Message.parse(ASCIICharSequence.of(encoding + "\nAltro paragrafo."));
+    assertNotEquals(first, other);
+    final int order = first.compareTo(other);
+    assertTrue(order != 0);
+    assertEquals(Long.signum(Long.compare(first.id(), other.id())), Integer.signum(order));
+    assertEquals(-order, other.compareTo(first));
+  }
+
+  @Test
+  public void withIdKeepsTheContent() throws IOException {
+    final Message message = Message.parse(encoding()), copy = message.withId(message.id() + 1);
+    assertNotEquals(message, copy);
+    assertEquals(message.toString(), copy.toString());
+    assertEquals(message.original(), copy.original());
+    assertEquals(message, copy.withId(message.id()));
+  }
+
+  @Test
+  public void storedCopiesStayApartAcrossLoads() throws IOException {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box inbox = store.boxes().get(0);
+    for (int i = 0; i < 3; i++) inbox.entry(encoding());
+    final Session session = new Mua(store, 1).session();
+    session.selectMailbox(0);
+    assertEquals(3, session.mailBoxMessages());
+    final Session reloaded = new Mua(store, 2).session();
+    reloaded.selectMailbox(0);
+    assertEquals(session.listMessages(), reloaded.listMessages());
+    reloaded.deleteMessage(1);
+    final Session again = new Mua(store, 1).session();
+    again.selectMailbox(0);
+    assertEquals(2, again.mailBoxMessages());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static mua.message.TestMessages.EPOCH;
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mua.message.Message;
+import org.junit.jupiter.api.Test;
+
+/** Checks the order of {@link Message messages} against the rules of the original comparison. */
+public class MessageOrderTest {
+
+  /** The same instant, seen from different offsets and zones. */
+  private static final List<ZonedDateTime> SAME_INSTANT =
+      List.of(
+          EPOCH,
+          EPOCH.withZoneSameInstant(ZoneOffset.ofHours(1)),
+          EPOCH.withZoneSameInstant(ZoneOffset.ofHours(-5)),
+          EPOCH.withZoneSameInstant(ZoneId.of("Europe/Rome")),
+          EPOCH.withZoneSameInstant(ZoneId.of("Europe/Paris")),
+          EPOCH.withZoneSameInstant(ZoneId.of("America/New_York")));
+
+  /**
+   * Compares two messages as the original {@code compareTo} did (date, then sender, then
+   * recipient), followed by the subject, that it computed but ignored.
+   */
+  private static int expected(final Message a, final Message b) {
+    int res = a.date().value().compareTo(b.date().value());
+    if (res != 0) return res;
+    res = a.sender().toString().compareTo(b.sender().toString());
+    if (res != 0) return res;
+    res = a.recipient().toString().compareTo(b.recipient().toString());
+    if (res != 0) return res;
+    return a.subject().toString().compareTo(b.subject().toString());
+  }
+
+  @Test
+  public void sameInstantIsOrderedByLocalDateTimeThenZone() {
+    final List<Message> messages = new ArrayList<>();
+    for (final ZonedDateTime date : SAME_INSTANT)
+      messages.add(message("from", "to", "subject", date, "body"));
+    for (final Message a : messages)
+      for (final Message b : messages)
+        assertEquals(
+            Integer.signum(a.date().value().compareTo(b.date().value())),
+            Integer.signum(a.compareTo(b)),
+            a.date() + " " + b.date());
+    // same local date-time, different zones
+    final Message rome = messages.get(3), paris = messages.get(4);
+    assertTrue(paris.compareTo(rome) < 0 && rome.compareTo(paris) > 0);
+  }
+
+  @Test
+  public void tiesAreBrokenBySenderRecipientSubjectAndThenId() {
+    final Random rnd = new Random(11);
+    final List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < 300; i++)
+      messages.add(
+          message(
+              "from" + rnd.nextInt(3),
+              "to" + rnd.nextInt(3),
+              "subject " + rnd.nextInt(3),
+              SAME_INSTANT.get(rnd.nextInt(SAME_INSTANT.size())).plusNanos(rnd.nextInt(2)),
+              "body " + rnd.nextInt(2)));
+    for (final Message a : messages)
+      for (final Message b : messages) {
+        final int expected = expected(a, b), actual = a.compareTo(b);
+        if (expected != 0) assertEquals(Integer.signum(expected), Integer.signum(actual));
+        else assertEquals(Long.signum(Long.compare(a.id(), b.id())), Integer.signum(actual));
+        if (actual == 0) assertEquals(a, b);
+        assertEquals(-Integer.signum(actual), Integer.signum(b.compareTo(a)));
+      }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringJoiner;
+import mua.message.Message;
+import mua.message.MessageWriter;
+import mua.message.Part;
+import mua.message.header.Address;
+import mua.message.header.ContentTransferEncoding;
+import mua.message.header.ContentType;
+import mua.message.header.Date;
+import mua.message.header.Header;
+import mua.message.header.Mime;
+import mua.message.header.Recipient;
+import mua.message.header.Sender;
+import mua.message.header.Subject;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.Base64Encoding;
+import utils.Faker;
+
+/** Checks that {@link MessageWriter} produces the encoding built by joining strings. */
+public class MessageWriterTest {
+
+  private static String expected(final Part part) {
+    final StringJoiner sj = new StringJoiner("\n");
+    String coded = part.body();
+    for (Header header : part) {
+      sj.add(header.type() + ": " + header);
+      if (header instanceof ContentTransferEncoding) coded = Base64Encoding.encode(part.body());
+    }
+    sj.add("\n");
+    sj.add(coded);
+    return sj.toString();
+  }
+
+  private static String expected(final Message message) {
+    final StringJoiner sj = new StringJoiner("\n--frontier\n");
+    int n = 0;
+    for (Part part : message) {
+      sj.add(expected(part));
+      n++;
+    }
+    return sj + (n > 1 ? "\n--frontier--" : "");
+  }
+
+  private static Address address(final List<String> parts) {
+    return new Address(parts.get(0), parts.get(1), parts.get(2));
+  }
+
+  private static String body(final Random rnd) {
+    final StringBuilder sb = new StringBuilder(Faker.text());
+    for (int i = rnd.nextInt(400); i > 0; i--)
+      sb.append(rnd.nextInt(4) == 0 ? "àè€😀".charAt(rnd.nextInt(5)) : 'x');
+    return sb.toString();
+  }
+
+  private static Message message(final Random rnd) {
+    final List<Header> headers = new ArrayList<>();
+    headers.add(new Sender(address(Faker.address())));
+    final List<Address> recipients = new ArrayList<>();
+    for (List<String> parts : Faker.addresses(3)) recipients.add(address(parts));
+    headers.add(new Recipient(recipients));
+    headers.add(new Subject(Faker.subject()));
+    headers.add(new Date(Faker.date()));
+    final List<Part> parts = new ArrayList<>();
+    if (rnd.nextBoolean()) {
+      headers.add(Mime.MIME_1_0);
+      headers.add(
+          ContentType.parse(
+              ASCIICharSequence.of("multipart/alternative; boundary=frontier")));
+      parts.add(new Part(headers, "This is a message with multiple parts in MIME format."));
+      headers.clear();
+      headers.add(ContentType.parse(ASCIICharSequence.of("text/plain; charset=\"us-ascii\"")));
+      parts.add(new Part(headers, Faker.text()));
+      headers.clear();
+      headers.add(ContentType.parse(ASCIICharSequence.of("text/html; charset=\"utf-8\"")));
+      headers.add(ContentTransferEncoding.parse(ASCIICharSequence.of("base64")));
+      parts.add(new Part(headers, body(rnd)));
+    } else {
+      headers.add(ContentType.parse(ASCIICharSequence.of("text/plain; charset=\"utf-8\"")));
+      headers.add(ContentTransferEncoding.parse(ASCIICharSequence.of("base64")));
+      parts.add(new Part(headers, body(rnd)));
+    }
+    return new Message(parts);
+  }
+
+  @Test
+  public void writesTheSameBytesAsTheJoinedStrings() throws IOException {
+    Faker.setSeed(42);
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      final Message message = message(rnd);
+      final String expected = expected(message);
+      assertEquals(expected, message.toString());
+      for (int size : new int[] {1, 7, 76, MessageWriter.DEFAULT_BUFFER_SIZE}) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MessageWriter(size).encode(message, Channels.newChannel(out));
+        assertEquals(expected, out.toString(StandardCharsets.US_ASCII));
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import mua.Mua;
+import mua.Session;
+import mua.message.Message;
+import mua.message.TestMessages;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.Storage;
+
+/** Stress tests {@link Mua} with many concurrent {@link Session sessions}. */
+public class MuaConcurrencyTest {
+
+  private static final int THREADS = 8;
+  private static final int OPERATIONS = 300;
+
+  private static Message message(final Random rnd, final String subject) {
+    return TestMessages.message(
+        "from" + rnd.nextInt(10),
+        "to" + rnd.nextInt(10),
+        subject,
+        TestMessages.EPOCH.plusSeconds(rnd.nextInt(1_000_000)),
+        "stress body " + subject);
+  }
+
+  private static void session(final Mua mua, final int seed, final Queue<Throwable> errors) {
+    final Random rnd = new Random(seed);
+    final Session session = mua.session();
+    try {
+      for (int i = 0; i < OPERATIONS; i++) {
+        session.selectMailbox(rnd.nextInt(mua.mailBoxes()));
+        final int size = session.mailBoxMessages();
+        final int n = size == 0 ? 0 : rnd.nextInt(size);
+        final int op = rnd.nextInt(100);
+        try {
+          if (op < 40 || size == 0) session.addMessage(message(rnd, "stress " + seed + " " + i));
+          else if (op < 60) session.deleteMessage(n);
+          else if (op < 75) session.readMessage(n);
+          else if (op < 85) session.listMessages();
+          else if (op < 90) session.searchMessages("stress");
+          else if (op < 95) mua.findMessages("stress body", 20, line -> {});
+          else session.moveMessage(n, rnd.nextInt(mua.mailBoxes()));
+        } catch (IndexOutOfBoundsException raced) {
+          // another session removed messages after mailBoxMessages()
+        }
+      }
+    } catch (Throwable t) {
+      errors.add(t);
+    }
+  }
+
+  @Test
+  public void concurrentSessionsStayConsistentWithStorage(@TempDir final Path dir)
+      throws Exception {
+    Files.createDirectory(dir.resolve("a"));
+    Files.createDirectory(dir.resolve("b"));
+    final Mua mua = new Mua(dir.toString());
+    final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int seed = t;
+      final Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  return;
+                }
+                session(mua, seed, errors);
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (final Thread thread : threads) thread.join();
+    assertTrue(errors.isEmpty(), "errors: " + errors);
+    mua.flush();
+
+    final List<Storage.Box> boxes = new Storage(dir.toString()).boxes();
+    final Mua reloaded = new Mua(dir.toString());
+    final Session session = mua.session(), check = reloaded.session();
+    assertEquals(boxes.size(), mua.mailBoxes());
+    for (int i = 0; i < mua.mailBoxes(); i++) {
+      session.selectMailbox(i);
+      check.selectMailbox(i);
+      assertEquals(
+          boxes.get(i).entries().size(), session.mailBoxMessages(), boxes.get(i).toString());
+      assertEquals(session.listMessages(), check.listMessages(), boxes.get(i).toString());
+      assertEquals(session.searchMessages("stress"), check.searchMessages("stress"));
+    }
+  }
+}
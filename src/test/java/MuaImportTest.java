@@ -0,0 +1,99 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static mua.message.TestMessages.EPOCH;
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import mua.Importazione;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Imports directories of {@code .eml} files with {@link Mua#importMessages}. */
+public class MuaImportTest {
+
+  private static String eml(final int i) {
+    return message("from" + i, "to", "imported " + i, EPOCH.plusSeconds(i), "body of message " + i)
+        .toString();
+  }
+
+  private static void write(final Path file, final String content) throws IOException {
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void reportsEveryFileAndStoresTheValidMessages(
+      @TempDir final Path store, @TempDir final Path source) throws Exception {
+    final int messages = 600;
+    for (int i = 0; i < messages; i++)
+      write(source.resolve(String.format("m%04d.eml", i)), eml(i).replace("\n", "\r\n"));
+    write(source.resolve("notes.txt"), eml(0));
+    write(source.resolve(".hidden.eml"), eml(0));
+    Files.createDirectory(source.resolve("nested.eml"));
+    write(source.resolve("z-accented.EML"), eml(0).replace("body", "bòdy"));
+    write(source.resolve("z-garbage.eml"), "not a message\n");
+
+    final Mua mua = new Mua(store.toString());
+    final List<Importazione> report = mua.importMessages(0, source.toString(), 4);
+    assertEquals(messages + 5, report.size());
+    final List<Importazione.Esito> esiti = new ArrayList<>();
+    for (final Importazione importazione : report) esiti.add(importazione.esito());
+    for (int i = 0; i < messages; i++) {
+      assertEquals(Importazione.Esito.IMPORTATO, esiti.get(i + 1));
+      assertEquals(
+          String.format("m%04d.eml", i), report.get(i + 1).file().getFileName().toString());
+    }
+    assertEquals(Importazione.Esito.SALTATO, esiti.get(0));
+    assertEquals(Importazione.Esito.SALTATO, esiti.get(messages + 1));
+    assertEquals(Importazione.Esito.SALTATO, esiti.get(messages + 2));
+    assertEquals(Importazione.Esito.RIFIUTATO, esiti.get(messages + 3));
+    assertEquals(Importazione.Esito.RIFIUTATO, esiti.get(messages + 4));
+
+    final Session session = mua.session();
+    session.selectMailbox(0);
+    assertEquals(messages, session.mailBoxMessages());
+    assertTrue(session.searchMessages("message 42").contains("imported 42"));
+    assertEquals(1, mua.findMessages("subject:\"imported 7\"", 5, line -> {}));
+
+    final Session reloaded = new Mua(store.toString()).session();
+    reloaded.selectMailbox(0);
+    assertEquals(messages, reloaded.mailBoxMessages());
+    assertEquals(session.listMessages(), reloaded.listMessages());
+    assertTrue(reloaded.readMessage(0).contains("imported 599"));
+    assertEquals(session.readMessage(0), reloaded.readMessage(0));
+    try (Stream<Path> entries = Files.list(store)) {
+      for (final Path entry : entries.filter(Files::isRegularFile).toList())
+        if (!entry.getFileName().toString().startsWith("."))
+          assertTrue(Files.readString(entry).indexOf('\r') < 0);
+    }
+    mua.flush();
+  }
+}
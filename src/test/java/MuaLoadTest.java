@@ -0,0 +1,88 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static mua.message.TestMessages.EPOCH;
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ASCIICharSequence;
+import utils.Storage;
+
+/** Loads the same store with one and with several threads. */
+public class MuaLoadTest {
+
+  private static final Path MBOX = Path.of("tests", "mbox");
+
+  private static void copy(final Path source, final Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(source)) {
+      for (final Path path : paths.toList()) {
+        final Path target = dir.resolve(source.relativize(path).toString());
+        if (Files.isDirectory(path)) Files.createDirectories(target);
+        else Files.copy(path, target);
+      }
+    }
+  }
+
+  private static void assertSameMua(final Mua expected, final Mua actual) {
+    assertEquals(expected.listMailboxes(), actual.listMailboxes());
+    final Session expectedSession = expected.session(), actualSession = actual.session();
+    for (int i = 0; i < expected.mailBoxes(); i++) {
+      assertEquals(expectedSession.selectMailbox(i), actualSession.selectMailbox(i));
+      assertEquals(expectedSession.listMessages(), actualSession.listMessages());
+    }
+  }
+
+  @Test
+  public void parallelLoadMatchesSequentialLoad(
+      @TempDir final Path sequential, @TempDir final Path parallel) throws Exception {
+    copy(MBOX, sequential);
+    final Random rnd = new Random(42);
+    final List<Storage.Box> boxes = new Storage(sequential.toString()).boxes();
+    // few senders, subjects and dates, so that many messages share their headers
+    for (int i = 0; i < 400; i++)
+      boxes
+          .get(rnd.nextInt(boxes.size()))
+          .entry(
+              ASCIICharSequence.of(
+                  message(
+                          "from" + rnd.nextInt(4),
+                          "to" + rnd.nextInt(4),
+                          "subject " + rnd.nextInt(8),
+                          EPOCH.plusSeconds(rnd.nextInt(30)),
+                          "body " + i)
+                      .toString()));
+    copy(sequential, parallel);
+
+    assertSameMua(new Mua(sequential.toString(), 1), new Mua(parallel.toString(), 8));
+    // the second load reads the headers from the indexes written by the first one
+    assertSameMua(new Mua(sequential.toString(), 1), new Mua(parallel.toString(), 8));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import mua.Mua;
+import mua.Session;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ASCIICharSequence;
+import utils.Storage;
+
+/** Stores entries with the {@link Storage.Layout#SEGMENTS} layout. */
+public class SegmentStorageTest {
+
+  private static List<Path> files(final Path dir) throws IOException {
+    try (Stream<Path> paths = Files.list(dir)) {
+      return paths.filter(Files::isRegularFile).sorted().toList();
+    }
+  }
+
+  private static List<String> contents(final Storage.Box box) {
+    final List<String> contents = new ArrayList<>();
+    for (final Storage.Box.Entry entry : box.entries()) contents.add(entry.content().toString());
+    contents.sort(null);
+    return contents;
+  }
+
+  private static Storage.Box box(final Path dir, final Storage.Layout layout) {
+    return new Storage(dir.toString(), layout).boxes().get(0);
+  }
+
+  @Test
+  public void entriesSurviveReopeningAlongsideFileEntries(@TempDir final Path dir)
+      throws Exception {
+    final Storage.Box box = box(dir, Storage.Layout.SEGMENTS);
+    final Storage.Box.Entry first = box.entry(ASCIICharSequence.of("first"));
+    box.entry(ASCIICharSequence.of("second"));
+    box.entries(
+        List.of(
+            channel -> channel.write(ByteBuffer.wrap("third".getBytes())),
+            channel -> channel.write(ByteBuffer.wrap("fourth".getBytes()))));
+    assertEquals(5L, first.size());
+    assertTrue(first.delete());
+    assertEquals(List.of("fourth", "second", "third"), contents(box));
+    assertTrue(
+        files(dir).stream().allMatch(path -> path.getFileName().toString().startsWith(".")));
+
+    final Storage.Box files = box(dir, Storage.Layout.FILES);
+    files.entry(ASCIICharSequence.of("fifth"));
+    assertEquals(List.of("fifth", "fourth", "second", "third"), contents(files));
+    assertEquals(
+        List.of("fifth", "fourth", "second", "third"), contents(box(dir, Storage.Layout.FILES)));
+  }
+
+  @Test
+  public void compactionKeepsOnlyLiveEntries(@TempDir final Path dir) throws Exception {
+    final Storage.Box box = box(dir, Storage.Layout.SEGMENTS);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      final String content = "entry " + i + " ".repeat(1000);
+      final Storage.Box.Entry entry = box.entry(ASCIICharSequence.of(content));
+      if (i % 4 == 0) expected.add(content);
+      else entry.delete();
+    }
+    expected.sort(null);
+    final long before = Files.size(files(dir).get(0));
+    assertTrue(box.compact());
+    assertEquals(expected, contents(box));
+    final List<Path> segments = files(dir);
+    assertEquals(2, segments.size());
+    assertTrue(Files.size(segments.get(0)) * 3 < before);
+    assertEquals(expected, contents(box(dir, Storage.Layout.SEGMENTS)));
+    box.entry(ASCIICharSequence.of("after"));
+    assertEquals(expected.size() + 1, box(dir, Storage.Layout.FILES).entries().size());
+  }
+
+  @Test
+  public void openChannelsFollowCompactedEntries(@TempDir final Path dir) throws Exception {
+    final Storage.Box box = box(dir, Storage.Layout.SEGMENTS);
+    final String content = "kept " + "x".repeat(5000);
+    final Storage.Box.Entry kept = box.entry(ASCIICharSequence.of(content));
+    for (int i = 0; i < 50; i++)
+      box.entry(ASCIICharSequence.of("deleted " + i + " ".repeat(1000))).delete();
+    final ByteBuffer read = ByteBuffer.allocate(content.length());
+    try (ReadableByteChannel channel = kept.channel()) {
+      read.limit(100);
+      while (read.hasRemaining()) channel.read(read);
+      assertTrue(box.compact());
+      read.limit(read.capacity());
+      while (read.hasRemaining()) assertTrue(channel.read(read) > 0);
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+    }
+    assertEquals(content, new String(read.array(), StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  public void tornTailIsDiscarded(@TempDir final Path dir) throws Exception {
+    final Storage.Box box = box(dir, Storage.Layout.SEGMENTS);
+    box.entry(ASCIICharSequence.of("complete"));
+    box.entry(ASCIICharSequence.of("torn"));
+    final Path segment = files(dir).get(0);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 2);
+    }
+    final Storage.Box reopened = box(dir, Storage.Layout.SEGMENTS);
+    assertEquals(List.of("complete"), contents(reopened));
+    reopened.entry(ASCIICharSequence.of("appended"));
+    assertEquals(List.of("appended", "complete"), contents(box(dir, Storage.Layout.SEGMENTS)));
+  }
+
+  @Test
+  public void muaLoadsAndStoresSegmentedMailBoxes(@TempDir final Path dir) throws Exception {
+    final Storage source = new Storage("tests/mbox");
+    final Storage target = new Storage(dir.toString(), Storage.Layout.SEGMENTS);
+    for (final Storage.Box box : source.boxes()) {
+      if (!box.toString().equals("INBOX"))
+        Files.createDirectories(dir.resolve(box.toString().replace(':', '/')));
+    }
+    final List<Storage.Box> targets = target.boxes();
+    for (int i = 0; i < targets.size(); i++)
+      for (final Storage.Box.Entry entry : source.boxes().get(i).entries())
+        targets.get(i).entry(entry.content());
+
+    final Mua expected = new Mua("tests/mbox");
+    final Mua actual = new Mua(dir.toString(), 2, Storage.Layout.SEGMENTS);
+    final Session expectedSession = expected.session(), actualSession = actual.session();
+    assertEquals(expected.mailBoxes(), actual.mailBoxes());
+    for (int i = 0; i < expected.mailBoxes(); i++) {
+      assertEquals(expectedSession.selectMailbox(i), actualSession.selectMailbox(i));
+      assertEquals(expectedSession.listMessages(), actualSession.listMessages());
+    }
+    actualSession.selectMailbox(0);
+    final int messages = actualSession.mailBoxMessages();
+    actualSession.copyMessage(0, 1);
+    actualSession.deleteMessage(0);
+    assertEquals(messages - 1, actualSession.mailBoxMessages());
+    final Session reloaded = new Mua(dir.toString()).session();
+    reloaded.selectMailbox(0);
+    assertEquals(messages - 1, reloaded.mailBoxMessages());
+    actual.flush();
+  }
+}
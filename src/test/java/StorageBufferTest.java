@@ -0,0 +1,113 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ASCIICharSequence;
+import utils.EntryDecoder;
+import utils.Storage;
+
+/** Reads entries through {@link Storage.Box.Entry#buffer()}. */
+public class StorageBufferTest {
+
+  private static final String MESSAGE = "From: a@b.c\nSubject: prova\n\ncorpo\n";
+
+  private static String string(final ByteBuffer buffer) {
+    return StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString();
+  }
+
+  @Test
+  public void buffersHoldTheContentOfEveryLayout(@TempDir final Path dir) throws Exception {
+    final String large = MESSAGE + "x".repeat(100 * 1024);
+    final List<String> expected = new ArrayList<>();
+    for (final Storage.Layout layout : Storage.Layout.values()) {
+      final Storage.Box box = new Storage(dir.toString(), layout).boxes().get(0);
+      for (int i = 0; i < 100; i++) {
+        box.entry(ASCIICharSequence.of(MESSAGE + i));
+        expected.add(MESSAGE + i);
+      }
+      box.entry(ASCIICharSequence.of(large));
+      expected.add(large);
+    }
+    expected.sort(null);
+
+    final List<String> actual = new ArrayList<>();
+    for (final Storage.Box.Entry entry : new Storage(dir.toString()).boxes().get(0).entries()) {
+      final ByteBuffer buffer = entry.buffer();
+      assertTrue(buffer.isReadOnly());
+      assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 'x'));
+      assertEquals(entry.content().toString(), string(buffer));
+      actual.add(string(buffer));
+    }
+    actual.sort(null);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void buffersOutliveDeletedEntries(@TempDir final Path dir) throws Exception {
+    for (final Storage.Layout layout : Storage.Layout.values()) {
+      final Storage.Box box = new Storage(dir.toString(), layout).boxes().get(0);
+      final Storage.Box.Entry entry = box.entry(ASCIICharSequence.of(MESSAGE));
+      final ByteBuffer buffer = entry.buffer();
+      assertTrue(entry.delete());
+      assertEquals(MESSAGE, string(buffer));
+    }
+  }
+
+  @Test
+  public void decoderReadsBuffersInPlace() throws Exception {
+    final ByteBuffer buffer =
+        ByteBuffer.allocateDirect(MESSAGE.length() + 2)
+            .put((byte) '-')
+            .put(MESSAGE.getBytes(StandardCharsets.US_ASCII))
+            .put((byte) '-')
+            .flip()
+            .position(1)
+            .limit(MESSAGE.length() + 1);
+    final List<String> events = new ArrayList<>();
+    new EntryDecoder()
+        .decode(
+            buffer,
+            new EntryDecoder.Handler() {
+              @Override
+              public void header(ASCIICharSequence name, ASCIICharSequence value) {
+                events.add(name + "=" + value);
+              }
+
+              @Override
+              public void bodyChunk(ByteBuffer chunk) {
+                events.add(string(chunk));
+              }
+            });
+    assertEquals(List.of("from=a@b.c", "subject=prova", "corpo"), events);
+    assertEquals(1, buffer.position());
+  }
+}
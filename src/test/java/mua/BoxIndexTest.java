@@ -0,0 +1,157 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua;
+
+import static mua.message.TestMessages.EPOCH;
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import mua.message.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ASCIICharSequence;
+import utils.MemoryStore;
+import utils.Store;
+
+/** Checks when {@link Mua} reads headers from the {@link BoxIndex} and how it keeps it updated. */
+public class BoxIndexTest {
+
+  private static final Path MESSAGE = Path.of("tests", "mbox", "test-311a171a");
+  private static final String SUBJECT = "Core sicura discreta";
+
+  private static String subject(final Path dir) {
+    return new Mua(dir.toString(), 1).mailBox(0).getMessage(0).subject().value().toString();
+  }
+
+  /** Rewrites the entry with another subject, keeping its modification time. */
+  private static void rewrite(final Path entry, final String subject) throws IOException {
+    final FileTime time = Files.getLastModifiedTime(entry);
+    final String content = Files.readString(entry, StandardCharsets.US_ASCII);
+    final int start = content.indexOf("Subject: ");
+    final String old = content.substring(start, content.indexOf('\n', start));
+    Files.writeString(
+        entry, content.replace(old, "Subject: " + subject), StandardCharsets.US_ASCII);
+    Files.setLastModifiedTime(entry, time);
+  }
+
+  @Test
+  public void validIndexesAreUsedAndStaleOrCorruptOnesRebuilt(@TempDir final Path dir)
+      throws IOException {
+    final Path entry = Files.copy(MESSAGE, dir.resolve(MESSAGE.getFileName()));
+    final Path index = dir.resolve(".mua-index");
+    assertEquals(SUBJECT, subject(dir));
+    assertTrue(Files.isRegularFile(index));
+
+    // same size and time: the subject comes from the index
+    rewrite(entry, "Core sicura discretA");
+    assertEquals(SUBJECT, subject(dir));
+
+    // a changed time makes the entry stale
+    final FileTime time = Files.getLastModifiedTime(entry);
+    Files.setLastModifiedTime(
+        entry, FileTime.fromMillis(time.toMillis() + TimeUnit.MINUTES.toMillis(1)));
+    assertEquals("Core sicura discretA", subject(dir));
+
+    // and so does a changed size
+    rewrite(entry, "Core sicura discreta e lunga");
+    assertEquals("Core sicura discreta e lunga", subject(dir));
+
+    // the rebuilt index is used again
+    rewrite(entry, "Core sicura discreta e lungA");
+    assertEquals("Core sicura discreta e lunga", subject(dir));
+
+    // a truncated index is rebuilt
+    final byte[] valid = Files.readAllBytes(index);
+    Files.write(index, Arrays.copyOf(valid, valid.length / 2));
+    assertEquals("Core sicura discreta e lungA", subject(dir));
+    rewrite(entry, "Core sicura discreta e LUNGA");
+    assertEquals("Core sicura discreta e lungA", subject(dir));
+
+    // and so is a missing one
+    Files.delete(index);
+    assertEquals("Core sicura discreta e LUNGA", subject(dir));
+  }
+
+  @Test
+  public void muaUpdatesTheIndexWhenMessagesChange() throws IOException {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box inbox = store.boxes().get(0), other = inbox.box("other");
+    final Message message = Message.parse(ASCIICharSequence.of(Files.readString(MESSAGE)));
+    final Mua mua = new Mua(store, 1);
+    final Session session = mua.session();
+    session.selectMailbox(0);
+    session.addMessage(message);
+    session.addMessage(message);
+    session.copyMessage(0, 1);
+    mua.flush();
+    assertEquals(2, BoxIndex.read(inbox).size());
+    assertEquals(1, BoxIndex.read(other).size());
+    for (final Store.Box box : store.boxes())
+      for (final Store.Box.Entry entry : box.entries())
+        assertEquals(
+            SUBJECT,
+            BoxIndex.read(box)
+                .get(entry.toString(), entry.size(), entry.lastModified())
+                .subject()
+                .value()
+                .toString());
+
+    session.deleteMessage(0);
+    mua.flush();
+    assertEquals(1, BoxIndex.read(inbox).size());
+  }
+
+  @Test
+  public void headersLongerThan64KiBAreSaved() {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box inbox = store.boxes().get(0);
+    final String subject = "lungo ".repeat(12_000).strip();
+    final Mua mua = new Mua(store, 1);
+    final Session session = mua.session();
+    session.selectMailbox(0);
+    session.addMessage(message("from", "to", subject, EPOCH, "body"));
+    session.addMessage(message("from", "to", "corto", EPOCH, "body"));
+    mua.flush();
+    final BoxIndex index = BoxIndex.read(inbox);
+    assertEquals(2, index.size());
+    final Set<String> subjects = new HashSet<>();
+    for (final Store.Box.Entry entry : inbox.entries())
+      subjects.add(
+          index
+              .get(entry.toString(), entry.size(), entry.lastModified())
+              .subject()
+              .value()
+              .toString());
+    assertEquals(Set.of(subject, "corto"), subjects);
+  }
+}
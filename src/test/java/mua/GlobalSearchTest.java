@@ -0,0 +1,191 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua;
+
+import static mua.message.TestMessages.EPOCH;
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import mua.message.Message;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+
+/** Compares {@link GlobalSearch} with a sort of the matching messages of every mailbox. */
+public class GlobalSearchTest {
+
+  private static final List<String> WORDS = List.of("alfa", "beta", "gamma", "delta");
+
+  private static List<MailBox> mailBoxes(final Random rnd, final int boxes, final int messages) {
+    final List<MailBox> mailBoxes = new ArrayList<>();
+    for (int b = 0; b < boxes; b++) mailBoxes.add(new MailBox("box" + b));
+    for (int i = 0; i < messages; i++) {
+      final Message message =
+          message(
+              "from" + rnd.nextInt(3),
+              "to",
+              WORDS.get(rnd.nextInt(WORDS.size())) + " " + i,
+              EPOCH.plusMinutes(rnd.nextInt(messages)),
+              WORDS.get(rnd.nextInt(WORDS.size())));
+      // some messages are in more than one mailbox, to check the order of the ties
+      final int first = rnd.nextInt(boxes);
+      mailBoxes.get(first).addMessage(message);
+      if (rnd.nextInt(5) == 0) mailBoxes.get((first + 1) % boxes).addMessage(message);
+    }
+    return mailBoxes;
+  }
+
+  private static Map<MailBox, SearchIndex> indexes(final List<MailBox> mailBoxes) {
+    final Map<MailBox, SearchIndex> indexes = new HashMap<>();
+    for (final MailBox mailBox : mailBoxes) {
+      final SearchIndex index = new SearchIndex();
+      int i = 0;
+      for (final Message message : mailBox) {
+        index.add("entry-" + i, 0, 0, SearchIndex.terms(message));
+        index.associate("entry-" + i++, message);
+      }
+      indexes.put(mailBox, index);
+    }
+    return indexes;
+  }
+
+  /** Returns the first k matching messages, by decreasing message and then by mailbox. */
+  private static List<GlobalSearch.Risultato> expected(
+      final List<MailBox> mailBoxes, final Predicate<Message> predicate, final int k) {
+    final List<GlobalSearch.Risultato> expected = new ArrayList<>();
+    for (final MailBox mailBox : mailBoxes)
+      for (final Message message : mailBox)
+        if (predicate.test(message)) expected.add(new GlobalSearch.Risultato(mailBox, message));
+    expected.sort(
+        Comparator.comparing(GlobalSearch.Risultato::message, Comparator.reverseOrder())
+            .thenComparingInt(risultato -> mailBoxes.indexOf(risultato.mailBox())));
+    return expected.subList(0, Math.min(k, expected.size()));
+  }
+
+  private static List<GlobalSearch.Risultato> search(
+      final String query,
+      final List<MailBox> mailBoxes,
+      final Map<MailBox, SearchIndex> indexes,
+      final int k) {
+    final List<GlobalSearch.Risultato> found = new ArrayList<>();
+    final int returned = GlobalSearch.search(Query.parse(query), mailBoxes, indexes, k, found::add);
+    assertEquals(found.size(), returned);
+    return found;
+  }
+
+  @Test
+  public void mergesTheMailboxesByDecreasingDate() {
+    final List<MailBox> mailBoxes = mailBoxes(new Random(42), 5, 2000);
+    final Map<MailBox, SearchIndex> indexes = indexes(mailBoxes);
+    final Map<String, Predicate<Message>> queries =
+        Map.of(
+            "alfa", m -> SearchIndex.terms(m).contains("alfa"),
+            "from:from1@*", m -> m.sender().value().getEmail().startsWith("from1@"),
+            "subject:beta before:2024-01-01", m -> false,
+            "to:to@example.com", m -> true);
+    for (final Map.Entry<String, Predicate<Message>> query : queries.entrySet())
+      for (final int k : new int[] {1, 7, 100, 5000}) {
+        final List<GlobalSearch.Risultato> expected = expected(mailBoxes, query.getValue(), k);
+        assertEquals(expected, search(query.getKey(), mailBoxes, indexes, k), query.getKey());
+        assertEquals(expected, search(query.getKey(), mailBoxes, Map.of(), k), query.getKey());
+      }
+  }
+
+  @Test
+  public void breaksTiesByMailbox() {
+    final Message message = message("from", "to", "alfa", EPOCH, "alfa");
+    final List<MailBox> mailBoxes = new ArrayList<>();
+    for (int b = 0; b < 4; b++) {
+      mailBoxes.add(new MailBox("box" + b));
+      if (b != 1) mailBoxes.get(b).addMessage(message);
+    }
+    final List<GlobalSearch.Risultato> found = search("alfa", mailBoxes, Map.of(), 10);
+    assertEquals(3, found.size());
+    for (int i = 0; i < 3; i++) {
+      assertSame(message, found.get(i).message());
+      assertSame(mailBoxes.get(i == 0 ? 0 : i + 1), found.get(i).mailBox());
+    }
+    assertEquals(0, search("alfa", List.of(), Map.of(), 10).size());
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> GlobalSearch.search(Query.parse("alfa"), mailBoxes, Map.of(), 0, r -> {}));
+  }
+
+  @Test
+  public void stopsTheWorkersWhenTheConsumerStops() throws InterruptedException {
+    final AtomicInteger decoded = new AtomicInteger();
+    final MailBox mailBox = new MailBox("slow");
+    final int messages = 5000;
+    for (int i = 0; i < messages; i++) {
+      final Message message = message("from", "to", "subject " + i, EPOCH.plusSeconds(i), "alfa");
+      final ASCIICharSequence encoding = ASCIICharSequence.of(message.toString());
+      mailBox.addMessage(
+          Message.lazy(
+              i,
+              message.sender(),
+              message.recipient(),
+              message.subject(),
+              message.date(),
+              () -> {
+                decoded.incrementAndGet();
+                try {
+                  Thread.sleep(1);
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                return encoding;
+              }));
+    }
+    final RuntimeException stop = new RuntimeException("stop");
+    assertSame(
+        stop,
+        assertThrows(
+            RuntimeException.class,
+            () ->
+                GlobalSearch.search(
+                    Query.parse("alfa"),
+                    List.of(mailBox),
+                    Map.of(),
+                    messages,
+                    risultato -> {
+                      throw stop;
+                    })));
+    // the worker stops at the next message, so the count settles well before the end
+    int before;
+    do {
+      before = decoded.get();
+      Thread.sleep(100);
+    } while (decoded.get() != before);
+    assertTrue(before < messages / 2, before + " messages decoded");
+  }
+}
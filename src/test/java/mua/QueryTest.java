@@ -0,0 +1,244 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua;
+
+import static mua.message.TestMessages.message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import mua.message.Message;
+import org.junit.jupiter.api.Test;
+import utils.DateEncoding;
+
+/** Compares {@link Query} with a brute force filter of the messages of a mailbox. */
+public class QueryTest {
+
+  private static final List<String> WORDS =
+      List.of("alfa", "beta", "gamma", "delta", "core", "sicura", "Zeta");
+
+  private static final LocalDate FIRST = LocalDate.of(2024, 3, 1);
+
+  private static final int DAYS = 60;
+
+  /** Returns the start of a day in the time zone of the queries. */
+  private static ZonedDateTime day(final int day) {
+    return FIRST.plusDays(day).atStartOfDay(DateEncoding.EUROPE_ROME);
+  }
+
+  private static String words(final Random rnd, final int n) {
+    final List<String> words = new ArrayList<>();
+    for (int i = 0; i < n; i++) words.add(WORDS.get(rnd.nextInt(WORDS.size())));
+    return String.join(" ", words);
+  }
+
+  /** Returns random messages, some of which are sent exactly at the start of a day. */
+  private static List<Message> messages(final Random rnd, final int n) {
+    final List<Message> messages = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      final ZonedDateTime date = day(rnd.nextInt(DAYS));
+      messages.add(
+          message(
+              "from" + rnd.nextInt(4),
+              (rnd.nextBoolean() ? "to" : "cc") + rnd.nextInt(3),
+              words(rnd, 1 + rnd.nextInt(3)) + (rnd.nextInt(4) == 0 ? "!" : ""),
+              switch (rnd.nextInt(3)) {
+                case 0 -> date;
+                case 1 -> date.minusSeconds(1);
+                default -> date.plusSeconds(rnd.nextInt(86400));
+              },
+              words(rnd, 1 + rnd.nextInt(4)) + " " + i));
+    }
+    return messages;
+  }
+
+  private static MailBox mailBox(final List<Message> messages) {
+    final MailBox mailBox = new MailBox("box");
+    for (final Message message : messages) mailBox.addMessage(message);
+    return mailBox;
+  }
+
+  private static SearchIndex index(final List<Message> messages) {
+    final SearchIndex index = new SearchIndex();
+    for (int i = 0; i < messages.size(); i++) {
+      index.add("entry-" + i, i, i, SearchIndex.terms(messages.get(i)));
+      index.associate("entry-" + i, messages.get(i));
+    }
+    return index;
+  }
+
+  private static List<Message> expected(
+      final MailBox mailBox, final Predicate<Message> predicate) {
+    final List<Message> expected = new ArrayList<>();
+    for (final Message message : mailBox) if (predicate.test(message)) expected.add(message);
+    expected.sort(Comparator.reverseOrder());
+    return expected;
+  }
+
+  private static List<Message> list(final Iterator<Message> iterator) {
+    final List<Message> list = new ArrayList<>();
+    iterator.forEachRemaining(list::add);
+    return list;
+  }
+
+  /** Checks every way of running the query, with and without the index, against a predicate. */
+  private static void check(
+      final List<Message> messages, final String query, final Predicate<Message> predicate) {
+    final MailBox mailBox = mailBox(messages);
+    final SearchIndex index = index(messages);
+    final List<Message> expected = expected(mailBox, predicate);
+    final Query parsed = Query.parse(query);
+    assertEquals(expected, parsed.execute(mailBox, index), query);
+    assertEquals(expected, parsed.execute(mailBox, null), query);
+    assertEquals(expected, list(parsed.iterator(mailBox, index)), query);
+    assertEquals(expected, list(parsed.iterator(mailBox, null)), query);
+  }
+
+  private static boolean hasTerm(final Message message, final String term) {
+    return SearchIndex.terms(message).contains(term);
+  }
+
+  private static List<String> subjectTerms(final Message message) {
+    final List<String> terms = new ArrayList<>();
+    SearchIndex.terms(message.subject().value().toString(), terms);
+    return terms;
+  }
+
+  private static boolean between(final Message message, final int after, final int before) {
+    final Instant date = message.date().value().toInstant();
+    return !date.isBefore(day(after).toInstant()) && date.isBefore(day(before).toInstant());
+  }
+
+  @Test
+  public void matchesWordsAndQuotedSubjects() {
+    final List<Message> messages = messages(new Random(1), 300);
+    check(messages, "alfa", m -> hasTerm(m, "alfa"));
+    check(messages, "ALFA Beta", m -> hasTerm(m, "alfa") && hasTerm(m, "beta"));
+    check(messages, "\"alfa beta\"", m -> hasTerm(m, "alfa") && hasTerm(m, "beta"));
+    check(messages, "subject:core", m -> subjectTerms(m).contains("core"));
+    check(
+        messages,
+        "subject:\"core sicura\"",
+        m -> subjectTerms(m).containsAll(List.of("core", "sicura")));
+    check(
+        messages,
+        "\"subject:core  sicura\" gamma",
+        m -> subjectTerms(m).containsAll(List.of("core", "sicura")) && hasTerm(m, "gamma"));
+  }
+
+  @Test
+  public void matchesGlobs() {
+    final List<Message> messages = messages(new Random(2), 300);
+    check(messages, "from:from1@*", m -> m.sender().value().getEmail().equals("from1@example.com"));
+    check(messages, "FROM:*1@EXAMPLE.COM", m -> m.sender().value().getEmail().startsWith("from1"));
+    check(
+        messages,
+        "to:?o2@example.com",
+        m -> m.recipient().value().get(0).getEmail().equals("to2@example.com"));
+    check(messages, "from:*.org", m -> false);
+    check(messages, "subject:*!", m -> m.subject().value().toString().endsWith("!"));
+    check(
+        messages,
+        "subject:\"alfa *\"",
+        m -> m.subject().value().toString().toLowerCase().startsWith("alfa "));
+  }
+
+  @Test
+  public void afterIsInclusiveAndBeforeIsExclusive() {
+    final List<Message> messages = messages(new Random(3), 400);
+    check(messages, "after:2024-03-10", m -> between(m, 9, DAYS + 1));
+    check(messages, "before:2024-03-10", m -> between(m, -1, 9));
+    check(messages, "after:2024-03-10 before:2024-03-12", m -> between(m, 9, 11));
+    check(messages, "after:2024-03-05 after:2024-03-10", m -> between(m, 9, DAYS + 1));
+    check(messages, "before:2024-03-12 before:2024-03-20", m -> between(m, -1, 11));
+    check(messages, "after:2024-03-12 before:2024-03-10", m -> false);
+    // the last Sunday of March the clocks of Rome go forward
+    check(messages, "after:2024-03-31 before:2024-04-01", m -> between(m, 30, 31));
+    check(
+        messages,
+        "after:2024-03-10 before:2024-03-12 from:from2@*",
+        m -> between(m, 9, 11) && m.sender().value().getEmail().startsWith("from2@"));
+  }
+
+  @Test
+  public void usesTheSmallerOfIndexAndRange() {
+    final List<Message> messages = messages(new Random(4), 600);
+    // a narrow range is scanned even if the words are frequent, a wide one is not
+    check(
+        messages,
+        "alfa after:2024-03-10 before:2024-03-11",
+        m -> hasTerm(m, "alfa") && between(m, 9, 10));
+    check(messages, "alfa after:2024-03-02", m -> hasTerm(m, "alfa") && between(m, 1, DAYS + 1));
+    check(messages, "499", m -> hasTerm(m, "499"));
+    check(messages, "499 before:2024-04-01", m -> hasTerm(m, "499") && between(m, -1, 31));
+
+    // a message that is only in the index shows which candidates have been scanned
+    final MailBox mailBox = mailBox(messages);
+    final SearchIndex index = index(messages);
+    final Message stray = message("stray", "to0", "rara", day(10).plusHours(1), "rara");
+    index.add("stray", 0, 0, SearchIndex.terms(stray));
+    index.associate("stray", stray);
+    assertTrue(Query.parse("rara after:2024-03-01").execute(mailBox, index).contains(stray));
+    assertFalse(
+        Query.parse("alfa after:2024-03-11 before:2024-03-12").execute(mailBox, index).isEmpty());
+    index.add("stray", 0, 0, List.of("alfa"));
+    index.associate("stray", stray);
+    assertFalse(
+        Query.parse("alfa after:2024-03-11 before:2024-03-12")
+            .execute(mailBox, index)
+            .contains(stray));
+  }
+
+  @Test
+  public void rejectsInvalidQueries() {
+    for (final String query :
+        List.of(
+            "",
+            "   ",
+            "!!!",
+            "\"\"",
+            "subject:!!!",
+            "subject:\"...\"",
+            "from:",
+            "to:\"\"",
+            "after:",
+            "after:2024-13-01",
+            "before:1/2/2024",
+            "subject:\"core sicura",
+            "alfa \"beta",
+            // longer than any indexed term
+            "alfa " + "x".repeat(65),
+            "subject:\"core " + "x".repeat(65) + "\""))
+      assertThrows(IllegalArgumentException.class, () -> Query.parse(query), query);
+  }
+}
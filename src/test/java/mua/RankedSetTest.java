@@ -0,0 +1,140 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/** Checks {@link RankedSet} against a {@link TreeSet} and a {@link List} of its elements. */
+public class RankedSetTest {
+
+  private static List<Integer> list(final Iterable<Integer> elements) {
+    final List<Integer> result = new ArrayList<>();
+    for (final Integer e : elements) result.add(e);
+    return result;
+  }
+
+  private static void check(
+      final RankedSet<Integer> set, final TreeSet<Integer> reference, final Random rnd) {
+    final List<Integer> expected = new ArrayList<>(reference);
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected, list(set));
+    for (int i = 0; i < 5 && !expected.isEmpty(); i++) {
+      final int r = rnd.nextInt(expected.size());
+      assertEquals(expected.get(r), set.get(r));
+      assertEquals(r, set.indexOf(expected.get(r)));
+    }
+    final int absent = rnd.nextInt(1000);
+    assertEquals(expected.indexOf(absent), set.indexOf(absent));
+    final int bound = rnd.nextInt(1000);
+    final Comparator<? super Integer> comparator = reference.comparator();
+    assertEquals(
+        reference.headSet(bound).size(), set.rank(e -> comparator.compare(e, bound) < 0));
+    final int from = rnd.nextInt(expected.size() + 1),
+        to = from + rnd.nextInt(expected.size() - from + 1);
+    final List<Integer> subList = set.subList(from, to);
+    assertEquals(expected.subList(from, to), subList);
+    assertEquals(expected.subList(from, to), list(subList));
+    assertThrows(IndexOutOfBoundsException.class, () -> set.get(expected.size()));
+    assertThrows(IndexOutOfBoundsException.class, () -> set.subList(to, to + 1 + expected.size()));
+  }
+
+  private static void randomOperations(final Comparator<Integer> comparator, final long seed) {
+    final Random rnd = new Random(seed);
+    final RankedSet<Integer> set = new RankedSet<>(comparator);
+    final TreeSet<Integer> reference = new TreeSet<>(comparator);
+    for (int i = 0; i < 5000; i++) {
+      if (reference.isEmpty() || rnd.nextInt(3) > 0) {
+        final int e = rnd.nextInt(1000);
+        assertEquals(reference.add(e), set.add(e));
+      } else {
+        final int r = rnd.nextInt(reference.size());
+        final Integer expected = new ArrayList<>(reference).get(r);
+        reference.remove(expected);
+        assertEquals(expected, set.remove(r));
+      }
+      if (i % 10 == 0) check(set, reference, rnd);
+    }
+    check(set, reference, rnd);
+  }
+
+  @Test
+  public void agreesOnRandomOperations() {
+    randomOperations(Comparator.naturalOrder(), 42);
+  }
+
+  @Test
+  public void agreesOnRandomOperationsInReverseOrder() {
+    randomOperations(Comparator.reverseOrder(), 17);
+  }
+
+  @Test
+  public void iteratesAfterRebalancing() {
+    final Random rnd = new Random(7);
+    final RankedSet<Integer> set = new RankedSet<>(Comparator.naturalOrder());
+    final TreeSet<Integer> reference = new TreeSet<>(Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) {
+      set.add(i);
+      reference.add(i);
+    }
+    check(set, reference, rnd);
+    for (int i = 999; i >= 500; i--) {
+      set.remove(set.size() - 1);
+      reference.remove(i);
+    }
+    check(set, reference, rnd);
+    while (set.size() > 100) {
+      reference.remove(set.remove(0));
+      check(set, reference, rnd);
+    }
+    final Iterator<Integer> it = set.iterator();
+    for (final Integer e : reference) assertEquals(e, it.next());
+    assertThrows(NoSuchElementException.class, it::next);
+  }
+
+  @Test
+  public void failsAfterModification() {
+    final RankedSet<Integer> set = new RankedSet<>(Comparator.naturalOrder());
+    for (int i = 0; i < 10; i++) set.add(i);
+    final Iterator<Integer> it = set.iterator();
+    final List<Integer> subList = set.subList(2, 5);
+    assertEquals(false, set.add(3));
+    it.next();
+    subList.get(0);
+    set.add(10);
+    assertThrows(ConcurrentModificationException.class, it::next);
+    assertThrows(ConcurrentModificationException.class, () -> subList.get(0));
+    set.remove(0);
+    assertThrows(ConcurrentModificationException.class, subList::size);
+  }
+}
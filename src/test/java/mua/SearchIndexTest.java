@@ -0,0 +1,203 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import mua.message.Message;
+import org.junit.jupiter.api.Test;
+import utils.ASCIICharSequence;
+import utils.MemoryStore;
+import utils.Store;
+
+/** Checks how {@link SearchIndex} is saved, read back and kept up to date by {@link Mua}. */
+public class SearchIndexTest {
+
+  private static final List<String> TERMS = List.of("alfa", "beta", "gamma", "delta", "zeta");
+
+  private static Message message() throws IOException {
+    final String encoding = Files.readString(Path.of("tests/mbox/test-311a171a"));
+    return Message.parse(ASCIICharSequence.of(encoding));
+  }
+
+  private static SearchIndex index(final Random rnd) {
+    final SearchIndex index = new SearchIndex();
+    for (int i = 0; i < 200; i++) {
+      final List<String> terms = TERMS.subList(rnd.nextInt(TERMS.size()), TERMS.size());
+      index.add("entry-" + rnd.nextInt(150), i, i, Set.copyOf(terms));
+    }
+    return index;
+  }
+
+  @Test
+  public void readsWhatWasWritten() {
+    final Store.Box box = new MemoryStore().boxes().get(0);
+    final SearchIndex index = index(new Random(42));
+    assertTrue(index.write(box));
+    final SearchIndex read = SearchIndex.read(box);
+    assertEquals(index.size(), read.size());
+    for (int i = 0; i < 150; i++)
+      assertEquals(index.contains("entry-" + i, 0, 0), read.contains("entry-" + i, 0, 0));
+  }
+
+  @Test
+  public void corruptIndexesAreReadAsEmpty() {
+    final Random rnd = new Random(17);
+    final Store.Box box = new MemoryStore().boxes().get(0);
+    assertTrue(index(rnd).write(box));
+    final byte[] valid = box.sidecar("mua-search");
+    for (int i = 0; i < 2000; i++) {
+      final byte[] corrupt = valid.clone();
+      for (int k = 1 + rnd.nextInt(3); k > 0; k--)
+        corrupt[rnd.nextInt(corrupt.length)] = (byte) rnd.nextInt(256);
+      final byte[] content =
+          rnd.nextInt(4) == 0 ? Arrays.copyOf(corrupt, rnd.nextInt(corrupt.length)) : corrupt;
+      assertTrue(box.sidecar("mua-search", content));
+      final SearchIndex read = SearchIndex.read(box);
+      for (final String term : TERMS) read.search(term);
+      read.add("nuova", 0, 0, Set.copyOf(TERMS));
+      read.write(box);
+    }
+  }
+
+  @Test
+  public void copiesAreIndexedWithTheTermsOfTheMessage() throws Exception {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box other = store.boxes().get(0).box("other");
+    final Mua mua = new Mua(store, 1);
+    final Session session = mua.session();
+    session.selectMailbox(0);
+    session.addMessage(message());
+    session.copyMessage(0, 1);
+    mua.flush();
+    final Store.Box.Entry copy = other.entries().get(0);
+    final SearchIndex index = SearchIndex.read(other);
+    assertTrue(index.contains(copy.toString(), copy.size(), copy.lastModified()));
+    index.associate(copy.toString(), message());
+    for (final String term : SearchIndex.terms(message()))
+      assertEquals(1, index.search(term).size(), term);
+    session.selectMailbox(1);
+    assertTrue(session.searchMessages("occaecati expedita").contains("Core sicura discreta"));
+  }
+
+  @Test
+  public void muaSavesChangedIndexes() throws Exception {
+    final MemoryStore store = new MemoryStore();
+    final Store.Box inbox = store.boxes().get(0);
+    final Mua mua = new Mua(store, 1);
+    final Session session = mua.session();
+    session.selectMailbox(0);
+    session.addMessage(message());
+    mua.flush();
+    assertEquals(1, SearchIndex.read(inbox).size());
+
+    session.addMessage(message());
+    for (int i = 0; i < 100 && SearchIndex.read(inbox).size() < 2; i++) Thread.sleep(50);
+    assertEquals(2, SearchIndex.read(inbox).size());
+
+    session.deleteMessage(0);
+    mua.flush();
+    assertEquals(1, SearchIndex.read(inbox).size());
+  }
+
+  @Test
+  public void termsDoNotDependOnTheDefaultLocale() {
+    final Locale locale = Locale.getDefault();
+    try {
+      Locale.setDefault(Locale.forLanguageTag("tr"));
+      final Set<String> terms = new TreeSet<>();
+      SearchIndex.terms("CORE SICURA", terms);
+      assertEquals(Set.of("core", "sicura"), terms);
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test
+  public void overlongTermsAreRejectedByQueries() throws IOException {
+    final SearchIndex index = new SearchIndex();
+    final String overlong = "x".repeat(65);
+    index.add("entry", 0, 0, Set.of("alfa", "x".repeat(64)));
+    index.associate("entry", message());
+    assertEquals(1, index.search("alfa " + "x".repeat(64)).size());
+    assertThrows(IllegalArgumentException.class, () -> index.search("alfa " + overlong));
+
+    // documents are indexed without them
+    final Set<String> terms = new TreeSet<>();
+    SearchIndex.terms("alfa " + overlong, terms);
+    assertEquals(Set.of("alfa"), terms);
+  }
+
+  @Test
+  public void deletedDocumentsAreDiscardedFromMemory() throws IOException {
+    final Random rnd = new Random(23);
+    final SearchIndex index = new SearchIndex();
+    final Message message = message();
+    final Map<String, Set<String>> live = new HashMap<>();
+    for (int i = 0; i < 5000; i++) {
+      final String name = "entry-" + i;
+      if (live.size() > 10 && rnd.nextInt(3) > 0) {
+        final String removed = live.keySet().iterator().next();
+        index.remove(removed);
+        live.remove(removed);
+      } else {
+        final Set<String> terms =
+            Set.copyOf(TERMS.subList(rnd.nextInt(TERMS.size()), TERMS.size()));
+        index.add(name, i, i, terms);
+        index.associate(name, message);
+        live.put(name, terms);
+      }
+      // deleted documents never outnumber the indexed ones by much
+      assertTrue(index.documents() <= 2 * index.size() + 64, String.valueOf(index.documents()));
+    }
+    for (final String term : TERMS)
+      assertEquals(
+          live.values().stream().filter(terms -> terms.contains(term)).count(),
+          index.search(term).size(),
+          term);
+    for (final String name : live.keySet()) {
+      final long i = Long.parseLong(name.substring("entry-".length()));
+      assertTrue(index.contains(name, i, i), name);
+    }
+
+    // the compacted index is saved and read back as it is
+    final Store.Box box = new MemoryStore().boxes().get(0);
+    assertTrue(index.write(box));
+    final SearchIndex read = SearchIndex.read(box);
+    assertEquals(index.size(), read.size());
+    assertEquals(read.size(), read.documents());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package mua.message;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import mua.message.header.Address;
+import mua.message.header.Date;
+import mua.message.header.Recipient;
+import mua.message.header.Sender;
+import mua.message.header.Subject;
+
+/** Builds the single part messages used by the tests. */
+public final class TestMessages {
+
+  /** The date tests add offsets to. */
+  public static final ZonedDateTime EPOCH =
+      ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+  private TestMessages() {}
+
+  /**
+   * Builds a message between two {@code example.com} addresses.
+   *
+   * @param from the local part of the sender.
+   * @param to the local part of the recipient.
+   * @param subject the subject.
+   * @param date the date.
+   * @param body the body.
+   * @return the message.
+   */
+  public static Message message(
+      final String from,
+      final String to,
+      final String subject,
+      final ZonedDateTime date,
+      final String body) {
+    return new Message(
+        List.of(
+            new Part(
+                List.of(
+                    new Sender(new Address("", from, "example.com")),
+                    new Recipient(List.of(new Address("", to, "example.com"))),
+                    new Subject(subject),
+                    new Date(date)),
+                body)));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package utils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/** Checks that {@link GroupCommit} keeps committing after a batch fails unexpectedly. */
+public class GroupCommitFailureTest {
+
+  /** A write of its own data, in the temporary directory, that can fail with an error. */
+  private static final class TestWrite extends GroupCommit.Write {
+    private final boolean error;
+    private boolean aborted;
+
+    private TestWrite(final boolean error) {
+      this.error = error;
+    }
+
+    @Override
+    Object data() {
+      return this;
+    }
+
+    @Override
+    void force() {
+      if (error) throw new AssertionError("unexpected");
+    }
+
+    @Override
+    void publish() throws IOException {}
+
+    @Override
+    Path directory() {
+      return Path.of(System.getProperty("java.io.tmpdir"));
+    }
+
+    @Override
+    void abort() {
+      aborted = true;
+    }
+  }
+
+  @Test
+  public void errorsFailThePendingWritesOfTheBatch() throws Exception {
+    final List<TestWrite> batch = List.of(new TestWrite(false), new TestWrite(true));
+    GroupCommit.submit(batch);
+    assertFalse(batch.get(1).future().get(10, TimeUnit.SECONDS));
+    assertTrue(batch.get(1).aborted);
+    batch.get(0).future().get(10, TimeUnit.SECONDS);
+
+    final TestWrite next = new TestWrite(false);
+    assertTrue(GroupCommit.submit(next).get(10, TimeUnit.SECONDS));
+    assertFalse(next.aborted);
+  }
+}
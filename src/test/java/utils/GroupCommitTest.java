@@ -0,0 +1,143 @@
+/*
+
+Copyright 2023 Massimo Santini
+
+This file is part of "Programmazione 2 @ UniMI" teaching material.
+
+This is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This material is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this file.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Makes entries durable with group commit, with both layouts. */
+public class GroupCommitTest {
+
+  private static List<String> contents(final Storage.Box box) {
+    final List<String> contents = new ArrayList<>();
+    for (final Storage.Box.Entry entry : box.entries()) contents.add(entry.content().toString());
+    contents.sort(null);
+    return contents;
+  }
+
+  private static void concurrentEntriesAreDurable(final Path dir, final Storage.Layout layout)
+      throws Exception {
+    final Storage.Box box = new Storage(dir.toString(), layout).boxes().get(0);
+    final List<String> expected = new ArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      for (int i = 0; i < 50; i++) expected.add("entry " + thread + " " + i);
+      threads.add(
+          new Thread(
+              () -> {
+                final List<CompletableFuture<Storage.Box.Entry>> futures = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                  final ASCIICharSequence content =
+                      ASCIICharSequence.of("entry " + thread + " " + i);
+                  futures.add(box.durableEntry(channel -> channel.write(content.asByteBuffer())));
+                }
+                for (final CompletableFuture<Storage.Box.Entry> future : futures)
+                  if (future.join() == null) throw new IllegalStateException();
+              }));
+    }
+    for (final Thread thread : threads) thread.start();
+    for (final Thread thread : threads) thread.join();
+    expected.sort(null);
+    assertEquals(expected, contents(box));
+    assertEquals(expected, contents(new Storage(dir.toString(), layout).boxes().get(0)));
+    try (Stream<Path> paths = Files.list(dir)) {
+      assertTrue(paths.noneMatch(path -> path.toString().endsWith(".tmp")));
+    }
+  }
+
+  @Test
+  public void concurrentFileEntriesAreDurable(@TempDir final Path dir) throws Exception {
+    concurrentEntriesAreDurable(dir, Storage.Layout.FILES);
+  }
+
+  @Test
+  public void concurrentSegmentEntriesAreDurable(@TempDir final Path dir) throws Exception {
+    concurrentEntriesAreDurable(dir, Storage.Layout.SEGMENTS);
+  }
+
+  @Test
+  public void staleTemporaryFilesAreDeletedWhenTheBoxIsOpened(@TempDir final Path dir)
+      throws Exception {
+    final Path sub = Files.createDirectory(dir.resolve("sub"));
+    final FileTime old = FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS));
+    final List<String> stale =
+        List.of("." + UUID.randomUUID() + ".tmp", ".mua-search." + UUID.randomUUID());
+    final List<String> kept = List.of(".mua-search", ".mua-search.backup", "entry.tmp", "entry");
+    for (final Path box : List.of(dir, sub)) {
+      for (final String name : stale) Files.createFile(box.resolve(name));
+      for (final String name : kept) Files.createFile(box.resolve(name));
+      try (Stream<Path> paths = Files.list(box)) {
+        for (final Path path : paths.filter(Files::isRegularFile).toList())
+          Files.setLastModifiedTime(path, old);
+      }
+      // a write in progress, that must not be deleted
+      Files.createFile(box.resolve("." + UUID.randomUUID() + ".tmp"));
+    }
+    assertEquals(2, new Storage(dir.toString()).boxes().size());
+    for (final Path box : List.of(dir, sub)) {
+      for (final String name : stale) assertTrue(Files.notExists(box.resolve(name)), name);
+      for (final String name : kept) assertTrue(Files.exists(box.resolve(name)), name);
+      try (Stream<Path> paths = Files.list(box)) {
+        assertEquals(
+            1L,
+            paths.filter(path -> path.getFileName().toString().matches("\\..*\\.tmp")).count());
+      }
+    }
+  }
+
+  @Test
+  public void failedWritersLeaveNoEntry(@TempDir final Path dir) throws Exception {
+    final Storage.Box box = new Storage(dir.toString()).boxes().get(0);
+    final List<Storage.Box.Entry> entries =
+        box.entries(
+            List.of(
+                channel -> channel.write(ByteBuffer.wrap("kept".getBytes())),
+                channel -> {
+                  channel.write(ByteBuffer.wrap("partial".getBytes()));
+                  throw new IOException();
+                }));
+    assertEquals(2, entries.size());
+    assertNull(entries.get(1));
+    assertEquals(List.of("kept"), contents(box));
+    try (Stream<Path> paths = Files.list(dir)) {
+      assertEquals(1L, paths.count());
+    }
+  }
+}